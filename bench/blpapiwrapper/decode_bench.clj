@@ -0,0 +1,150 @@
+(ns blpapiwrapper.decode-bench
+  "JMH benchmarks of the per-message hot paths, on messages built with TestUtil (see bench/jmh.edn).
+  Every benchmark reports per message: throughput, and latency percentiles from sample mode.
+  lein bench-jmh
+  lein with-profile +bench jmh '{:file \"bench/jmh.edn\" :profilers [\"gc\"] :format :table}'
+  the gc profiler adds gc.alloc.rate.norm, the bytes allocated per message."
+  (:require [cljblpapiwrapper.core :as core]
+            [blpapiwrapper.refdata-fixture :refer [numeric-fields response-event spot-xml history-xml stand-in-value]]
+            [blpapiwrapper.mktdata-fixture :refer [mktdata-service]])
+  (:import
+    (java.time LocalDate)
+    (com.bloomberglp.blpapi CorrelationID Event Event$EventType EventHandler Message Name)
+    (com.bloomberglp.blpapi.test MessageProperties TestUtil)
+    AsyncOutput OutputSink SnapshotStore TickDecoder TopicStats test_with_uuid_a))
+
+(def ^:private read-spot-response @#'core/read-spot-response)
+(def ^:private read-historical-response @#'core/read-historical-response)
+(def ^:private read-historical-columns @#'core/read-historical-columns)
+(def ^:private update-snapshots! @#'core/update-snapshots!)
+(def ^:private publish-snapshots! @#'core/publish-snapshots!)
+
+(def spot-fields (vec (take 10 numeric-fields)))
+(def history-fields (vec (take 4 numeric-fields)))
+(def tick-fields ["BID" "ASK" "LAST_PRICE" "VOLUME"])
+
+(def securities-per-message 10)
+(def days 250)
+(def ticks-per-event 16)
+
+(defn- security [i] (str "SEC" i " Equity"))
+
+(defn- only-message ^Message [^Event event] (first (iterator-seq (.messageIterator event))))
+
+(defn- history-message ^Message [security]
+  (only-message
+    (response-event Event$EventType/RESPONSE
+                    [[1 "HistoricalDataRequest"
+                      (history-xml security (for [d (range days)]
+                                              (into {"date" (str (.plusDays (LocalDate/of 2024 1 1) d))}
+                                                    (for [f history-fields] [f (+ (stand-in-value security f) d)]))))]])))
+
+;; States ;;
+
+(defn spot-state
+  "One ReferenceDataResponse message of securities-per-message securities x spot-fields"
+  []
+  {:message (only-message
+              (response-event Event$EventType/RESPONSE
+                              [[1 "ReferenceDataRequest"
+                                (spot-xml (into {} (for [i (range securities-per-message) :let [s (security i)]]
+                                                     [s (into {} (for [f spot-fields] [f (stand-in-value s f)]))])))]]))
+   :fields spot-fields})
+
+(defn history-state
+  "One HistoricalDataResponse message of days days x history-fields"
+  []
+  {:message (history-message (security 0)) :fields history-fields})
+
+(defn bdh-state
+  "bdh results, rows and columnar, of 20 securities x days days x history-fields"
+  []
+  (let [messages (mapv #(history-message (security %)) (range 20))]
+    {:rows (into {} (map #(read-historical-response % history-fields)) messages)
+     :columns (into {} (map #(read-historical-columns % history-fields)) messages)
+     :field (keyword (first history-fields))}))
+
+(defn- tick-events
+  "64 SUBSCRIPTION_DATA events of ticks-per-event messages, round robin over topics, cid-fn of the topic index"
+  [topics cid-fn]
+  (let [definition (.getEventDefinition mktdata-service (Name/getName "MarketDataEvents"))
+        names (mapv #(Name/getName %) tick-fields)]
+    (vec (for [e (range 64)]
+           (let [event (TestUtil/createEvent Event$EventType/SUBSCRIPTION_DATA)]
+             (doseq [m (range ticks-per-event) :let [topic (mod (+ e m) topics) price (+ 100.0 (* 0.01 e) m)]]
+               (doto (TestUtil/appendMessage event definition (.setCorrelationId (MessageProperties.) (cid-fn topic)))
+                 (.setElement ^Name (names 0) (double price))
+                 (.setElement ^Name (names 1) (double (+ price 0.02)))
+                 (.setElement ^Name (names 2) (double (+ price 0.01)))
+                 (.setElement ^Name (names 3) (long (+ (* 100 e) m)))))
+             event)))))
+
+(defn- next-event
+  "Events of state in turn, so that every event changes the values"
+  [{:keys [events ^ints i]}]
+  (let [k (aget i 0)]
+    (aset i 0 (unchecked-inc-int k))
+    (nth events (bit-and k 63))))
+
+(defn subscribe-state
+  "What clj-bdp-subscribe holds for 16 securities: SnapshotStore, rows by object cid, published versions, atom"
+  []
+  (let [securities (mapv security (range 16))
+        store (core/snapshot-store securities tick-fields)
+        rows (mapv #(.topicIndex ^SnapshotStore store ^String %) securities)]
+    {:events (tick-events 16 #(CorrelationID. (Long/valueOf (long %))))
+     :i (int-array 1)
+     :store store
+     :topic-stats (TopicStats. securities)
+     :row-of (fn [^Message msg] (int (rows (.object (.correlationID msg)))))
+     :published (long-array (count securities))
+     :atom-map (atom {})
+     :field-keys (mapv #(Name. ^String %) tick-fields)}))
+
+(def ^:private discard
+  (reify OutputSink
+    (write [_ _ _])
+    (flush [_])
+    (close [_])))
+
+(defn handler-state
+  "test_with_uuid_a's SubscriptionEventHandler for its default topics (cids 1 to 4), printing to a discarding sink"
+  []
+  {:events (tick-events 4 #(CorrelationID. (long (inc %))))
+   :i (int-array 1)
+   :handler (.offlineHandler (test_with_uuid_a.) (.start (AsyncOutput. discard (int 65536) (int 256))))})
+
+(defn decoder-state
+  "TickDecoder of the typed decode mode, one row per topic"
+  []
+  {:events (tick-events 4 #(CorrelationID. (long (inc %))))
+   :i (int-array 1)
+   :decoder (TickDecoder. tick-fields 4)})
+
+;; Benchmarks, one message per operation unless ops-per-invocation says otherwise ;;
+
+(defn read-spot [{:keys [message fields]}] (read-spot-response message fields))
+
+(defn read-historical [{:keys [message fields]}] (read-historical-response message fields))
+
+(defn bdh-field-rows [{:keys [rows field]}] (doall (core/bdh-result->field rows field)))
+
+(defn bdh-field-columns [{:keys [columns field]}] (doall (core/bdh-result->field columns field)))
+
+(defn subscribe-update
+  "clj-bdp-subscribe's work for one event without workers or conflation"
+  [{:keys [store row-of topic-stats published atom-map field-keys] :as state}]
+  (publish-snapshots! store (update-snapshots! store row-of topic-stats (next-event state)) published atom-map field-keys))
+
+(defn handler-process
+  "processSubscriptionDataEvent in the default PRINT mode, as called by the dispatcher"
+  [{:keys [^EventHandler handler] :as state}]
+  (.processEvent handler ^Event (next-event state) nil))
+
+(defn typed-decode
+  "What the TYPED mode does per message, without the registry lookup"
+  [{:keys [^TickDecoder decoder] :as state}]
+  (reduce (fn [n ^Message msg]
+            (if (.decode decoder msg (int (dec (.value (.correlationID msg))))) (inc n) n))
+          0
+          (next-event state)))
@@ -0,0 +1,41 @@
+(ns blpapiwrapper.request-splitting-bench
+  "Throughput of bdp / bdh against the stand-in request engine for a range of sub-request sizes.
+  lein bench-request-splitting"
+  (:require [cljblpapiwrapper.core :refer [bdp bdh default-request-split]]
+            [blpapiwrapper.refdata-fixture :refer [numeric-fields stand-in-engine stop-stand-in]])
+  (:import (java.util.concurrent.atomic AtomicLong)))
+
+(defn- time-millis [f]
+  (let [start (System/nanoTime)]
+    (f)
+    (/ (- (System/nanoTime) start) 1e6)))
+
+(defn- run-bench [title universe fields chunk-sizes request-fn]
+  (println)
+  (println title)
+  (println (format "%12s %12s %12s %16s" "securities" "requests" "millis" "securities/s"))
+  (request-fn universe 100)                                 ; warm up
+  (doseq [chunk chunk-sizes
+          :let [millis (time-millis #(request-fn universe chunk))]]
+    (println (format "%12d %12d %12.1f %16.0f"
+                     chunk
+                     (* (long (Math/ceil (/ (count universe) (double chunk)))) (long (Math/ceil (/ (count fields) (double (:fields-per-request default-request-split))))))
+                     millis
+                     (/ (count universe) (/ millis 1000))))))
+
+(defn -main [& _]
+  ;; stand-in server: 2 sessions, 4 requests served at a time each, 20ms per request plus 2us per value
+  (let [engines (vec (repeatedly 2 #(stand-in-engine :server-threads 4 :request-millis 20 :cell-micros 2
+                                                     :securities-per-message 10 :days 20)))
+        pool {:refdata (mapv #(hash-map :engine %) engines) :next (AtomicLong.)}
+        chunk-sizes [10 50 100 250 500 1000 2500 5000]
+        fields (vec (take 10 numeric-fields))]
+    (try
+      (run-bench "bdp, 5000 securities x 10 fields" (mapv #(str "SEC" % " Equity") (range 5000)) fields chunk-sizes
+                 (fn [universe chunk] (bdp universe fields :session-pool pool :securities-per-request chunk)))
+      (run-bench "bdh, 1000 securities x 4 fields x 20 days" (mapv #(str "SEC" % " Equity") (range 1000)) (take 4 fields)
+                 (remove #{2500 5000} chunk-sizes)
+                 (fn [universe chunk] (bdh universe (take 4 fields) "20240101" "20240131" :session-pool pool :securities-per-request chunk)))
+      (finally
+        (run! stop-stand-in engines)
+        (shutdown-agents)))))
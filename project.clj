@@ -7,4 +7,9 @@
                  [alex314159/bberg-sdk "3.25.2.1.2"]
                  [org.clojure/tools.logging "1.3.0"]]
   :java-source-paths ["src/cljblpapiwrapper"]
+  :profiles {:bench {:source-paths ["test" "bench"]
+                     :dependencies [[jmh-clojure "0.4.1"]]
+                     :plugins [[lein-jmh "0.3.0"]]}}
+  :aliases {"bench-request-splitting" ["with-profile" "+bench" "run" "-m" "blpapiwrapper.request-splitting-bench"]
+            "bench-jmh" ["with-profile" "+bench" "jmh" "{:file \"bench/jmh.edn\" :format :table}"]}
   :repl-options {:init-ns cljblpapiwrapper.core})
@@ -0,0 +1,156 @@
+// Bounded single-producer/single-consumer queue in front of an OutputSink.
+//
+// The producer (the BLPAPI dispatcher thread in test_with_uuid_a) only copies a
+// reference into a preallocated ring; it never blocks on I/O. When the ring is
+// full the record is dropped and counted, so backpressure shows up in
+// dropped() instead of as SlowConsumerWarning. A writer thread drains the ring
+// in batches of up to batchSize records and flushes the sink once per batch.
+// A record the sink fails to write, or a batch it fails to flush, is counted
+// in lost() (and the failure in errors()); the rest of the batch is still
+// written.
+//
+// offer() must only ever be called from one thread at a time.
+// -----------------------------------------------------------------------------
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class AsyncOutput
+{
+    private static final long IDLE_PARK_NANOS = 100000L;
+
+    private final OutputSink  d_sink;
+    private final String[]    d_records;
+    private final long[]      d_timestamps;
+    private final int         d_mask;
+    private final int         d_batchSize;
+
+    // d_tail is only written by the producer, d_head only by the writer thread
+    private final AtomicLong  d_tail     = new AtomicLong();
+    private final AtomicLong  d_head     = new AtomicLong();
+    private long              d_headCache;
+
+    private final AtomicLong  d_enqueued = new AtomicLong();
+    private final AtomicLong  d_dropped  = new AtomicLong();
+    private final AtomicLong  d_flushed  = new AtomicLong();
+    private final AtomicLong  d_batches  = new AtomicLong();
+    private final AtomicLong  d_errors   = new AtomicLong();
+    private final AtomicLong  d_lost     = new AtomicLong();
+
+    private final Thread      d_writer;
+    private volatile boolean  d_isStopped;
+
+    /** capacity is rounded up to the next power of two. */
+    public AsyncOutput(OutputSink sink, int capacity, int batchSize)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        d_sink       = sink;
+        d_records    = new String[size];
+        d_timestamps = new long[size];
+        d_mask       = size - 1;
+        d_batchSize  = Math.max(1, batchSize);
+        d_writer     = new Thread(new Runnable() {
+            public void run() { drainLoop(); }
+        }, "async-output-writer");
+        d_writer.setDaemon(true);
+    }
+
+    public AsyncOutput start()
+    {
+        d_writer.start();
+        return this;
+    }
+
+    /** Enqueues record, or drops it and returns false if the ring is full. */
+    public boolean offer(String record)
+    {
+        long tail = d_tail.get();
+        if (tail - d_headCache > d_mask) {
+            d_headCache = d_head.get();
+            if (tail - d_headCache > d_mask) {
+                d_dropped.lazySet(d_dropped.get() + 1);
+                return false;
+            }
+        }
+        int index = (int) (tail & d_mask);
+        d_records[index]    = record;
+        d_timestamps[index] = System.currentTimeMillis();
+        d_tail.lazySet(tail + 1);
+        d_enqueued.lazySet(d_enqueued.get() + 1);
+        return true;
+    }
+
+    public boolean println(String record)
+    {
+        return offer(record);
+    }
+
+    public boolean printf(String format, Object... args)
+    {
+        return offer(String.format(format, args));
+    }
+
+    private void drainLoop()
+    {
+        while (true) {
+            long head = d_head.get();
+            long tail = d_tail.get();
+            if (head == tail) {
+                if (d_isStopped) break;
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            long end = Math.min(tail, head + d_batchSize);
+            long written = 0;
+            for (long i = head; i < end; ++i) {
+                int index = (int) (i & d_mask);
+                try {
+                    d_sink.write(d_timestamps[index], d_records[index]);
+                    ++written;
+                } catch (IOException e) {
+                    d_errors.incrementAndGet();
+                    d_lost.incrementAndGet();
+                }
+                d_records[index] = null;
+            }
+            try {
+                d_sink.flush();
+            } catch (IOException e) {
+                d_errors.incrementAndGet();
+                d_lost.addAndGet(written);
+                written = 0;
+            }
+            d_head.lazySet(end);
+            d_flushed.lazySet(d_flushed.get() + written);
+            d_batches.lazySet(d_batches.get() + 1);
+        }
+    }
+
+    /** Drains whatever is still queued, then closes the sink. */
+    public void close() throws InterruptedException
+    {
+        d_isStopped = true;
+        if (d_writer.isAlive()) d_writer.join();
+        try {
+            d_sink.close();
+        } catch (IOException e) {
+            d_errors.incrementAndGet();
+        }
+    }
+
+    public long enqueued() { return d_enqueued.get(); }
+    public long dropped()  { return d_dropped.get(); }
+    public long flushed()  { return d_flushed.get(); }
+    public long batches()  { return d_batches.get(); }
+    public long errors()   { return d_errors.get(); }
+    public long lost()     { return d_lost.get(); }
+    public long pending()  { return d_tail.get() - d_head.get(); }
+    public int capacity()  { return d_mask + 1; }
+
+    public String toString()
+    {
+        return String.format("enqueued=%d dropped=%d flushed=%d lost=%d pending=%d batches=%d errors=%d",
+                enqueued(), dropped(), flushed(), lost(), pending(), batches(), errors());
+    }
+}
@@ -0,0 +1,258 @@
+// Authorization of many users on one SAPI / B-PIPE session, e.g. the desktop
+// users an EntitlementFanout serves.
+//
+// Authorizing users one after the other, each on its own EventQueue, costs
+// one round trip per user. authorize() sends the AuthorizationRequest of a
+// (uuid, ipAddress) at once, with its own correlation id, and returns a
+// future of the Authorization; the responses come back through the session's
+// EventHandler, which is this Authorizer, in any order. Many users are thus
+// authorized in about one round trip.
+//
+// Authorizations are cached: authorize() of a user already authorized, or
+// being authorized, returns the same future. An AuthorizationRevoked for the
+// correlation id of a user drops it from the cache, so the next authorize()
+// requests it again. AuthorizationFailure, RequestFailure and requests
+// without an answer after timeoutMillis fail the future and are not cached.
+// The time from send to answer is recorded in latency.
+//
+// Every event that is not the answer to an AuthorizationRequest (and every
+// AUTHORIZATION_STATUS event, after it is handled here) goes on to the next
+// EventHandler, if any.
+// -----------------------------------------------------------------------------
+
+import com.bloomberglp.blpapi.AbstractSession;
+import com.bloomberglp.blpapi.CorrelationID;
+import com.bloomberglp.blpapi.Event;
+import com.bloomberglp.blpapi.EventHandler;
+import com.bloomberglp.blpapi.Identity;
+import com.bloomberglp.blpapi.Message;
+import com.bloomberglp.blpapi.Name;
+import com.bloomberglp.blpapi.Request;
+import com.bloomberglp.blpapi.Service;
+import com.bloomberglp.blpapi.Session;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class Authorizer implements EventHandler
+{
+    public static final String APIAUTH = "//blp/apiauth";
+
+    private static final Name UUID                  = Name.getName("uuid");
+    private static final Name IP_ADDRESS            = Name.getName("ipAddress");
+    private static final Name AUTHORIZATION_SUCCESS = Name.getName("AuthorizationSuccess");
+    private static final Name AUTHORIZATION_REVOKED = Name.getName("AuthorizationRevoked");
+
+    /** An authorized user: its identity and the correlation id AUTHORIZATION_STATUS messages refer to it by. */
+    public static final class Authorization
+    {
+        private final String                              d_uuid;
+        private final String                              d_ipAddress;
+        private final Identity                            d_identity;
+        private final CorrelationID                       d_correlationId;
+        private final CompletableFuture<Authorization>    d_future = new CompletableFuture<Authorization>();
+        private final long                                d_sentNanos;
+        private volatile ScheduledFuture<?>               d_timeout;
+
+        Authorization(String uuid, String ipAddress, Identity identity)
+        {
+            d_uuid          = uuid;
+            d_ipAddress     = ipAddress;
+            d_identity      = identity;
+            d_correlationId = new CorrelationID();
+            d_sentNanos     = System.nanoTime();
+        }
+
+        public String uuid()                   { return d_uuid; }
+        public String ipAddress()              { return d_ipAddress; }
+        public Identity identity()             { return d_identity; }
+        public CorrelationID correlationId()   { return d_correlationId; }
+
+        public String toString()               { return "Authorization[" + d_uuid + " " + d_ipAddress + "]"; }
+    }
+
+    private final EventHandler                                          d_next;
+    private final LatencyHistogram                                      d_latency;
+    private final long                                                  d_timeoutMillis;
+    private final ConcurrentHashMap<String, Authorization>              d_byUser = new ConcurrentHashMap<String, Authorization>();
+    private final ConcurrentHashMap<CorrelationID, Authorization>       d_byCid  = new ConcurrentHashMap<CorrelationID, Authorization>();
+    private final ScheduledExecutorService                              d_timeouts;
+    private volatile AbstractSession                                    d_session;
+    private volatile Service                                            d_service;
+
+    private final AtomicLong d_sent       = new AtomicLong();
+    private final AtomicLong d_authorized = new AtomicLong();
+    private final AtomicLong d_failed     = new AtomicLong();
+    private final AtomicLong d_revoked    = new AtomicLong();
+
+    /** next (may be null) gets the events that are not answers to authorization requests. */
+    public Authorizer(EventHandler next, LatencyHistogram latency, long timeoutMillis)
+    {
+        d_next          = next;
+        d_latency       = latency;
+        d_timeoutMillis = timeoutMillis;
+        d_timeouts      = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "authorizer-timeouts");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** Opens //blp/apiauth on session, which must deliver its events to this Authorizer. */
+    public void open(AbstractSession session) throws IOException, InterruptedException
+    {
+        if (!session.openService(APIAUTH)) throw new IOException("Cannot open " + APIAUTH);
+        d_service = session.getService(APIAUTH);
+        d_session = session;
+    }
+
+    private static String key(String uuid, String ipAddress)
+    {
+        return uuid + "@" + ipAddress;
+    }
+
+    /** Future of the authorization of uuid at ipAddress: the cached one, else a new request sent now. */
+    public CompletableFuture<Authorization> authorize(String uuid, String ipAddress)
+    {
+        if (d_session == null) throw new IllegalStateException("Authorizer is not open");
+        String key = key(uuid, ipAddress);
+        Authorization authorization;
+        synchronized (this) {
+            authorization = d_byUser.get(key);
+            if (authorization != null) return authorization.d_future;
+            authorization = new Authorization(uuid, ipAddress, d_session.createIdentity());
+            d_byUser.put(key, authorization);
+            d_byCid.put(authorization.d_correlationId, authorization);
+        }
+        final Authorization sent = authorization;
+        try {
+            Request request = d_service.createAuthorizationRequest();
+            request.set(UUID, uuid);
+            request.set(IP_ADDRESS, ipAddress);
+            // Scheduled before sending, so that an answer arriving before
+            // sendAuthorizationRequest returns finds the timeout to cancel.
+            sent.d_timeout = d_timeouts.schedule(new Runnable() {
+                public void run() {
+                    if (sent.d_future.isDone()) return;
+                    fail(sent, new TimeoutException("No answer to the authorization of " + sent + " after "
+                                                    + d_timeoutMillis + "ms"));
+                }
+            }, d_timeoutMillis, TimeUnit.MILLISECONDS);
+            d_sent.incrementAndGet();
+            d_session.sendAuthorizationRequest(request, sent.d_identity, sent.d_correlationId);
+        } catch (Exception e) {
+            fail(sent, e);
+        }
+        return sent.d_future;
+    }
+
+    private void forget(Authorization authorization)
+    {
+        d_byCid.remove(authorization.d_correlationId, authorization);
+        d_byUser.remove(key(authorization.d_uuid, authorization.d_ipAddress), authorization);
+        ScheduledFuture<?> timeout = authorization.d_timeout;
+        if (timeout != null) timeout.cancel(false);
+    }
+
+    /** Fails authorization unless it already succeeded, in which case it stays cached. */
+    private void fail(Authorization authorization, Throwable e)
+    {
+        if (authorization.d_future.completeExceptionally(e)) d_failed.incrementAndGet();
+        if (authorization.d_future.isCompletedExceptionally()) forget(authorization);
+    }
+
+    private void answer(Authorization authorization, Message message)
+    {
+        if (authorization.d_future.isDone()) return;
+        d_latency.record(System.nanoTime() - authorization.d_sentNanos);
+        if (AUTHORIZATION_SUCCESS.equals(message.messageType())) {
+            ScheduledFuture<?> timeout = authorization.d_timeout;
+            if (timeout != null) timeout.cancel(false);
+            if (authorization.d_future.complete(authorization)) d_authorized.incrementAndGet();
+        } else {
+            fail(authorization, new IllegalStateException("Authorization of " + authorization + " failed: " + message));
+        }
+    }
+
+    /** The cached authorization of the user of cid, null if none. */
+    public Authorization authorization(CorrelationID cid)
+    {
+        return d_byCid.get(cid);
+    }
+
+    /**
+     * Handles the answers to authorization requests and AUTHORIZATION_STATUS
+     * messages; returns false if event is none of those and should be
+     * handled elsewhere.
+     */
+    public boolean handle(Event event)
+    {
+        Event.EventType type = event.eventType();
+        if (type == Event.EventType.AUTHORIZATION_STATUS) {
+            for (Message message : event) {
+                if (!AUTHORIZATION_REVOKED.equals(message.messageType())) continue;
+                Authorization authorization = d_byCid.get(message.correlationID());
+                if (authorization != null) {
+                    forget(authorization);
+                    d_revoked.incrementAndGet();
+                }
+            }
+            return false;   // revocations concern the next handler too
+        }
+        if (type != Event.EventType.RESPONSE && type != Event.EventType.PARTIAL_RESPONSE
+                && type != Event.EventType.REQUEST_STATUS) {
+            return false;
+        }
+        boolean isOwn = false;
+        for (Message message : event) {
+            Authorization authorization = d_byCid.get(message.correlationID());
+            if (authorization == null) continue;
+            isOwn = true;
+            answer(authorization, message);
+        }
+        return isOwn;
+    }
+
+    public void processEvent(Event event, Session session)
+    {
+        if (!handle(event) && d_next != null) d_next.processEvent(event, session);
+    }
+
+    /** Stops the timeouts; pending authorizations are left as they are. */
+    public void close()
+    {
+        d_timeouts.shutdownNow();
+    }
+
+    public int numAuthorized()
+    {
+        int n = 0;
+        for (Authorization authorization : d_byUser.values()) {
+            if (authorization.d_future.isDone() && !authorization.d_future.isCompletedExceptionally()) n++;
+        }
+        return n;
+    }
+
+    public int numPending()       { return d_byUser.size() - numAuthorized(); }
+    public long sent()            { return d_sent.get(); }
+    public long authorized()      { return d_authorized.get(); }
+    public long failed()          { return d_failed.get(); }
+    public long revoked()         { return d_revoked.get(); }
+    public LatencyHistogram latency() { return d_latency; }
+
+    public String toString()
+    {
+        return String.format("Authorizer[authorized=%d pending=%d sent=%d failed=%d revoked=%d latency: %s]",
+                numAuthorized(), numPending(), sent(), failed(), revoked(), d_latency);
+    }
+}
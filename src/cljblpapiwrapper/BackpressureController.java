@@ -0,0 +1,309 @@
+// Adaptive response of test_with_uuid_a to a consumer that cannot keep up.
+//
+// Pressure is any of: SlowConsumerWarning not yet cleared, a new InProc
+// DataLoss, the output queue filled beyond highWater, or handler time per
+// SUBSCRIPTION_DATA event (an EWMA) above handlerBudgetMicros. While there is
+// pressure, every escalateMillis the controller goes one level further:
+//
+//   CONFLATE  ticks are conflated (Actions.setConflateMillis)
+//   SHED      the lowest-priority topics are cancelled (Actions.shed)
+//   WIDEN     the remaining topics are resubscribed with a wider interval;
+//             under continued pressure more topics are shed, as long as no
+//             more than maxShedCount topics are shed or deferred at once
+//
+// A level is only taken once its action succeeded; an action that throws is
+// counted in errors() and tried again after escalateMillis.
+//
+// Once the pressure is gone it walks back one step per backoff period: first
+// the interval, then the shed and deferred topics, restoreBatch at a time, then
+// conflation. Pressure coming back within two backoff periods of a step doubles
+// the backoff (up to maxBackoffMillis); it returns to backoffMillis after a
+// calm maxBackoffMillis at NORMAL. Topics cancelled for DataLoss are handed in
+// with defer() and restored the same way instead of all at once.
+//
+// Signals (onEvent, onSlowConsumer*, onDataLoss, defer) may come from any
+// thread; tick() and the Actions calls only happen on the controller thread.
+// -----------------------------------------------------------------------------
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BackpressureController
+{
+    public enum Level{NORMAL, CONFLATE, SHED, WIDEN};
+
+    public interface Actions
+    {
+        /** Fraction (0..1) of the output queue in use. */
+        double queueFill();
+
+        /** Conflate ticks every millis, 0 to go back to the configured behaviour. */
+        void setConflateMillis(long millis) throws Exception;
+
+        /** Cancels up to count of the lowest-priority active topics and returns them. */
+        List<SubscriptionRegistry.Entry> shed(int count) throws Exception;
+
+        /** Subscribes entries again. */
+        void restore(List<SubscriptionRegistry.Entry> entries) throws Exception;
+
+        /** Resubscribes the active topics with interval=seconds, 0 for their own options. */
+        void setIntervalSeconds(double seconds) throws Exception;
+    }
+
+    private final Actions       d_actions;
+    private final double        d_highWater;
+    private final long          d_handlerBudgetNanos;
+    private final long          d_conflateMillis;
+    private final int           d_shedCount;
+    private final int           d_maxShedCount;
+    private final double        d_intervalSeconds;
+    private final int           d_restoreBatch;
+    private final long          d_escalateNanos;
+    private final long          d_minBackoffNanos;
+    private final long          d_maxBackoffNanos;
+
+    // signals
+    private final AtomicLong    d_handlerEwmaNanos = new AtomicLong();
+    private volatile boolean    d_isSlow;
+    private final AtomicLong    d_dataLosses = new AtomicLong();
+    private final ConcurrentLinkedQueue<SubscriptionRegistry.Entry> d_deferred
+            = new ConcurrentLinkedQueue<SubscriptionRegistry.Entry>();
+
+    // controller thread only
+    private Level               d_level = Level.NORMAL;
+    private long                d_seenDataLosses;
+    private long                d_lastTickNanos = Long.MIN_VALUE;
+    private long                d_lastChangeNanos;
+    private long                d_lastRestoreNanos;
+    private boolean             d_hasRestored;
+    private long                d_nextRestoreNanos;
+    private long                d_calmSinceNanos = Long.MIN_VALUE;
+    private long                d_backoffNanos;
+
+    // metrics, written by the controller thread
+    private final AtomicLong[]  d_levelNanos = new AtomicLong[Level.values().length];
+    private final AtomicLong    d_degradations = new AtomicLong();
+    private final AtomicLong    d_shed = new AtomicLong();
+    private final AtomicLong    d_restored = new AtomicLong();
+    private final AtomicLong    d_errors = new AtomicLong();
+    private volatile Level      d_publishedLevel = Level.NORMAL;
+    private volatile long       d_publishedBackoffNanos;
+
+    private Thread              d_thread;
+    private volatile boolean    d_isStopped;
+
+    public BackpressureController(Actions actions, double highWater, long handlerBudgetMicros,
+                                  long conflateMillis, int shedCount, int maxShedCount, double intervalSeconds,
+                                  int restoreBatch,
+                                  long escalateMillis, long backoffMillis, long maxBackoffMillis)
+    {
+        d_actions            = actions;
+        d_highWater          = highWater;
+        d_handlerBudgetNanos = TimeUnit.MICROSECONDS.toNanos(handlerBudgetMicros);
+        d_conflateMillis     = conflateMillis;
+        d_shedCount          = Math.max(1, shedCount);
+        d_maxShedCount       = maxShedCount;
+        d_intervalSeconds    = intervalSeconds;
+        d_restoreBatch       = Math.max(1, restoreBatch);
+        d_escalateNanos      = TimeUnit.MILLISECONDS.toNanos(escalateMillis);
+        d_minBackoffNanos    = TimeUnit.MILLISECONDS.toNanos(Math.max(1, backoffMillis));
+        d_maxBackoffNanos    = Math.max(d_minBackoffNanos, TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis));
+        d_backoffNanos       = d_minBackoffNanos;
+        d_publishedBackoffNanos = d_backoffNanos;
+        for (int i = 0; i < d_levelNanos.length; ++i) {
+            d_levelNanos[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Handler time of one SUBSCRIPTION_DATA event. Several dispatcher threads
+     * may call this at once, so the EWMA is updated with compare-and-set.
+     */
+    public void onEvent(long handlerNanos)
+    {
+        long ewma;
+        do {
+            ewma = d_handlerEwmaNanos.get();
+        } while (!d_handlerEwmaNanos.compareAndSet(ewma, ewma + ((handlerNanos - ewma) >> 3)));
+    }
+
+    public void onSlowConsumerWarning()   { d_isSlow = true; }
+    public void onSlowConsumerCleared()   { d_isSlow = false; }
+    public void onDataLoss()              { d_dataLosses.incrementAndGet(); }
+
+    /** entry was cancelled for DataLoss; it is resubscribed once the pressure is gone. */
+    public void defer(SubscriptionRegistry.Entry entry)
+    {
+        d_deferred.add(entry);
+    }
+
+    public BackpressureController start(final long tickMillis)
+    {
+        d_thread = new Thread(new Runnable() {
+            public void run() {
+                while (!d_isStopped) {
+                    try {
+                        Thread.sleep(tickMillis);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    tick(System.nanoTime());
+                }
+            }
+        }, "backpressure-controller");
+        d_thread.setDaemon(true);
+        d_thread.start();
+        return this;
+    }
+
+    public void stop() throws InterruptedException
+    {
+        d_isStopped = true;
+        if (d_thread != null) {
+            d_thread.interrupt();
+            d_thread.join();
+        }
+    }
+
+    private boolean isUnderPressure()
+    {
+        long dataLosses = d_dataLosses.get();
+        boolean newDataLoss = dataLosses != d_seenDataLosses;
+        d_seenDataLosses = dataLosses;
+        return d_isSlow || newDataLoss
+            || d_actions.queueFill() >= d_highWater
+            || (d_handlerBudgetNanos > 0 && d_handlerEwmaNanos.get() > d_handlerBudgetNanos);
+    }
+
+    /** One control step at nowNanos (System.nanoTime()); controller thread only. */
+    public void tick(long nowNanos)
+    {
+        if (d_lastTickNanos != Long.MIN_VALUE) {
+            d_levelNanos[d_level.ordinal()].addAndGet(nowNanos - d_lastTickNanos);
+        }
+        d_lastTickNanos = nowNanos;
+        try {
+            if (isUnderPressure()) {
+                d_calmSinceNanos = Long.MIN_VALUE;
+                if (d_hasRestored && nowNanos - d_lastRestoreNanos < 2 * d_backoffNanos) {
+                    d_backoffNanos = Math.min(d_maxBackoffNanos, d_backoffNanos * 2);
+                    d_hasRestored = false;
+                }
+                if (d_level == Level.NORMAL || nowNanos - d_lastChangeNanos >= d_escalateNanos) {
+                    escalate(nowNanos);
+                }
+                d_nextRestoreNanos = nowNanos + d_backoffNanos;
+            }
+            else {
+                if (d_calmSinceNanos == Long.MIN_VALUE) d_calmSinceNanos = nowNanos;
+                if (nowNanos >= d_nextRestoreNanos) {
+                    if (stepBack(nowNanos)) {
+                        d_lastRestoreNanos = nowNanos;
+                        d_hasRestored = true;
+                        d_nextRestoreNanos = nowNanos + d_backoffNanos;
+                    }
+                    else if (nowNanos - d_calmSinceNanos >= d_maxBackoffNanos) {
+                        d_backoffNanos = d_minBackoffNanos;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            d_errors.incrementAndGet();
+        }
+        d_publishedLevel = d_level;
+        d_publishedBackoffNanos = d_backoffNanos;
+    }
+
+    private void escalate(long nowNanos) throws Exception
+    {
+        d_lastChangeNanos = nowNanos;
+        switch (d_level) {
+            case NORMAL:
+                d_actions.setConflateMillis(d_conflateMillis);
+                d_degradations.incrementAndGet();
+                d_level = Level.CONFLATE;
+                break;
+            case CONFLATE:
+                shedTopics(d_shedCount);
+                d_level = Level.SHED;
+                break;
+            case SHED:
+                if (d_intervalSeconds > 0) d_actions.setIntervalSeconds(d_intervalSeconds);
+                d_level = Level.WIDEN;
+                break;
+            default:
+                shedTopics(Math.min(d_shedCount, d_maxShedCount - d_deferred.size()));
+                break;
+        }
+    }
+
+    private void shedTopics(int count) throws Exception
+    {
+        if (count <= 0) return;
+        List<SubscriptionRegistry.Entry> entries = d_actions.shed(count);
+        d_shed.addAndGet(entries.size());
+        d_deferred.addAll(entries);
+    }
+
+    // one step back towards NORMAL; false if there was nothing left to undo
+    private boolean stepBack(long nowNanos) throws Exception
+    {
+        if (d_level == Level.WIDEN) {
+            if (d_intervalSeconds > 0) d_actions.setIntervalSeconds(0);
+            d_level = Level.SHED;
+            return true;
+        }
+        if (!d_deferred.isEmpty()) {
+            List<SubscriptionRegistry.Entry> batch = new ArrayList<SubscriptionRegistry.Entry>(d_restoreBatch);
+            SubscriptionRegistry.Entry entry;
+            while (batch.size() < d_restoreBatch && (entry = d_deferred.poll()) != null) {
+                batch.add(entry);
+            }
+            d_actions.restore(batch);
+            d_restored.addAndGet(batch.size());
+            return true;
+        }
+        if (d_level == Level.SHED) {
+            d_level = Level.CONFLATE;
+            return true;
+        }
+        if (d_level == Level.CONFLATE) {
+            d_actions.setConflateMillis(0);
+            d_level = Level.NORMAL;
+            return true;
+        }
+        return false;
+    }
+
+    public Level level()                  { return d_publishedLevel; }
+    public long backoffMillis()           { return TimeUnit.NANOSECONDS.toMillis(d_publishedBackoffNanos); }
+    public long handlerEwmaMicros()       { return TimeUnit.NANOSECONDS.toMicros(d_handlerEwmaNanos.get()); }
+    public int deferred()                 { return d_deferred.size(); }
+    public long degradations()            { return d_degradations.get(); }
+    public long shed()                    { return d_shed.get(); }
+    public long restored()                { return d_restored.get(); }
+    public long errors()                  { return d_errors.get(); }
+
+    /** Time spent at level, up to the last tick. */
+    public long millisAt(Level level)     { return TimeUnit.NANOSECONDS.toMillis(d_levelNanos[level.ordinal()].get()); }
+
+    /** Time spent at any level but NORMAL, up to the last tick. */
+    public long degradedMillis()
+    {
+        long nanos = 0;
+        for (Level level : Level.values()) {
+            if (level != Level.NORMAL) nanos += d_levelNanos[level.ordinal()].get();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    public String toString()
+    {
+        return String.format("level=%s degradedMillis=%d (conflate=%d shed=%d widen=%d) degradations=%d shed=%d restored=%d deferred=%d backoffMillis=%d handlerEwmaMicros=%d errors=%d",
+                level(), degradedMillis(), millisAt(Level.CONFLATE), millisAt(Level.SHED), millisAt(Level.WIDEN),
+                degradations(), shed(), restored(), deferred(), backoffMillis(), handlerEwmaMicros(), errors());
+    }
+}
@@ -0,0 +1,168 @@
+// Client-side conflation between the subscription thread and consumers.
+//
+// The subscription thread stores every tick where consumers can read the
+// latest value (TickDecoder, SnapshotStore) and then calls mark(row). A row
+// that is already dirty absorbs the tick: consumers will only see the latest
+// value, and absorbed(row) counts what they skipped. Every intervalMillis a
+// timer thread clears the dirty flags and hands the rows that changed to the
+// Listener in one batch.
+//
+// A row is cleared before the listener reads it, so a tick racing with a
+// flush is flushed again next time rather than lost. Each row must only be
+// marked by one thread at a time.
+//
+// Several subscription threads may share one Conflator (and the store behind
+// it): start() and stop() are counted, the timer runs with the listener of the
+// first start() until the last stop(). A stopped Conflator can be started
+// again, e.g. by the next clj-bdp-subscribe given the same :conflator.
+// -----------------------------------------------------------------------------
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public final class Conflator
+{
+    public interface Listener
+    {
+        /** rows[0..count) changed since the previous flush; called on the timer thread. */
+        void flush(int[] rows, int count) throws Exception;
+    }
+
+    private final AtomicIntegerArray d_dirty;
+    private final AtomicLongArray    d_ticks;
+    private final AtomicLongArray    d_absorbed;
+    private final int[]              d_batch;
+    private volatile long            d_intervalMillis;
+
+    private final AtomicLong         d_flushes   = new AtomicLong();
+    private final AtomicLong         d_flushed   = new AtomicLong();
+    private final AtomicLong         d_errors    = new AtomicLong();
+
+    private Thread                   d_timer;
+    private int                      d_users;
+    private AtomicBoolean            d_isStopped;   // of the running timer
+
+    public Conflator(int rows, long intervalMillis)
+    {
+        d_dirty          = new AtomicIntegerArray(rows);
+        d_ticks          = new AtomicLongArray(rows);
+        d_absorbed       = new AtomicLongArray(rows);
+        d_batch          = new int[rows];
+        d_intervalMillis = Math.max(1, intervalMillis);
+    }
+
+    /**
+     * Records a tick of row, after its value has been stored. The flag is
+     * always swapped (never just read) so that the flusher, which reads the
+     * flag before the values, sees the values of the latest tick.
+     */
+    public void mark(int row)
+    {
+        d_ticks.lazySet(row, d_ticks.get(row) + 1);
+        if (d_dirty.getAndSet(row, 1) != 0) {
+            d_absorbed.lazySet(row, d_absorbed.get(row) + 1);
+        }
+    }
+
+    /** Clears the dirty rows into d_batch and returns how many there were; timer thread only. */
+    private int collect()
+    {
+        int count = 0;
+        for (int row = 0; row < d_batch.length; ++row) {
+            if (d_dirty.get(row) != 0) {
+                d_dirty.set(row, 0);
+                d_batch[count++] = row;
+            }
+        }
+        return count;
+    }
+
+    public synchronized Conflator start(final Listener listener)
+    {
+        if (d_users++ > 0) return this;
+        final AtomicBoolean isStopped = new AtomicBoolean();
+        d_isStopped = isStopped;
+        d_timer = new Thread(new Runnable() {
+            public void run() {
+                long next = System.currentTimeMillis();
+                while (!isStopped.get()) {
+                    next += d_intervalMillis;
+                    long wait = next - System.currentTimeMillis();
+                    if (wait > 0) {
+                        try {
+                            Thread.sleep(wait);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    } else {
+                        next = System.currentTimeMillis();
+                    }
+                    flush(listener);
+                }
+                Thread.interrupted(); // stop()'s, not the listener's business
+                flush(listener);
+            }
+        }, "conflator");
+        d_timer.setDaemon(true);
+        d_timer.start();
+        return this;
+    }
+
+    private void flush(Listener listener)
+    {
+        int count = collect();
+        if (count == 0) return;
+        try {
+            listener.flush(d_batch, count);
+        } catch (Exception e) {
+            d_errors.incrementAndGet();
+        }
+        d_flushes.incrementAndGet();
+        d_flushed.addAndGet(count);
+    }
+
+    /** Stops the timer after one last flush of whatever is still dirty. */
+    public void stop() throws InterruptedException
+    {
+        Thread timer;
+        synchronized (this) {
+            if (d_users == 0 || --d_users > 0) return;
+            d_isStopped.set(true);
+            timer = d_timer;
+        }
+        timer.interrupt();
+        timer.join();
+    }
+
+    public long intervalMillis()                  { return d_intervalMillis; }
+    public void setIntervalMillis(long millis)    { d_intervalMillis = Math.max(1, millis); }
+
+    public int rows()                  { return d_batch.length; }
+    public long ticks(int row)         { return d_ticks.get(row); }
+    public long absorbed(int row)      { return d_absorbed.get(row); }
+    public long flushes()              { return d_flushes.get(); }
+    public long flushed()              { return d_flushed.get(); }
+    public long errors()               { return d_errors.get(); }
+
+    public long totalTicks()
+    {
+        long total = 0;
+        for (int row = 0; row < d_batch.length; ++row) total += d_ticks.get(row);
+        return total;
+    }
+
+    public long totalAbsorbed()
+    {
+        long total = 0;
+        for (int row = 0; row < d_batch.length; ++row) total += d_absorbed.get(row);
+        return total;
+    }
+
+    public String toString()
+    {
+        return String.format("intervalMillis=%d ticks=%d absorbed=%d flushes=%d flushed=%d errors=%d",
+                d_intervalMillis, totalTicks(), totalAbsorbed(), flushes(), flushed(), errors());
+    }
+}
@@ -0,0 +1,362 @@
+// Distribution of one refdata / mktdata stream to the many users authorized on
+// a SAPI or B-PIPE session, each of whom may only see the data their
+// entitlements (EIDs) allow.
+//
+// Checking Identity.hasEntitlements for every user on every message costs
+// messages x users. Here the answer is computed once per (service, EID set)
+// and user, and kept as one bit per user: the set of users entitled to an EID
+// set. Identical sets are interned as a Cohort, so the users of one
+// entitlement profile share one Cohort whatever the EID sets they are
+// entitled to. distribute() looks up the Cohort of the EIDs of a message (or
+// of every security of a response) and calls the Listener once per Cohort:
+// the cost of a message grows with the number of distinct profiles, not of
+// users. Messages without EIDs go to the cohort of every user.
+//
+// The cached answers change with the users: addUser() checks the new user
+// against every EID set seen so far, removeUser() and an AuthorizationRevoked
+// message (matched to the user by the correlation id of its authorization)
+// clear its bit, an EntitlementChanged message checks it again. Only that
+// user's bit is recomputed; the other users' answers stay cached.
+//
+// distribute() may be called from any thread; a known EID set is a lock-free
+// map lookup. Changes to the users are serialized on the fan-out.
+// -----------------------------------------------------------------------------
+
+import com.bloomberglp.blpapi.CorrelationID;
+import com.bloomberglp.blpapi.Element;
+import com.bloomberglp.blpapi.Identity;
+import com.bloomberglp.blpapi.Message;
+import com.bloomberglp.blpapi.Name;
+import com.bloomberglp.blpapi.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class EntitlementFanout
+{
+    private static final Name SECURITY_DATA         = Name.getName("securityData");
+    private static final Name EID_DATA              = Name.getName("eidData");
+    private static final Name EID                   = Name.getName("EID");
+    private static final Name AUTHORIZATION_REVOKED = Name.getName("AuthorizationRevoked");
+    private static final Name ENTITLEMENT_CHANGED   = Name.getName("EntitlementChanged");
+
+    private static final int[] NO_EIDS = new int[0];
+
+    /** The users entitled to the same EID sets. */
+    public static final class Cohort
+    {
+        private final int           d_id;
+        private final BitSet        d_members;
+        private final List<Object>  d_users;
+
+        Cohort(int id, BitSet members, List<Object> users)
+        {
+            d_id      = id;
+            d_members = members;
+            d_users   = Collections.unmodifiableList(users);
+        }
+
+        public int id()               { return d_id; }
+        public List<Object> users()   { return d_users; }
+        public int size()             { return d_users.size(); }
+        public boolean isEmpty()      { return d_users.isEmpty(); }
+
+        public String toString()      { return "Cohort" + d_id + d_users; }
+    }
+
+    /**
+     * Called once per cohort entitled to a message. securities are the
+     * indices, in securityData, of the securities of a refdata response the
+     * cohort may see; null for other messages.
+     */
+    public interface Listener
+    {
+        void deliver(Message message, Cohort cohort, int[] securities);
+    }
+
+    private static final class EidSet
+    {
+        final String d_service;
+        final int[]  d_eids;      // ascending, distinct
+        final int    d_hash;
+
+        EidSet(String service, int[] eids)
+        {
+            d_service = service;
+            d_eids    = eids;
+            d_hash    = service.hashCode() * 31 + Arrays.hashCode(eids);
+        }
+
+        public int hashCode() { return d_hash; }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof EidSet)) return false;
+            EidSet s = (EidSet) o;
+            return d_hash == s.d_hash && d_service.equals(s.d_service) && Arrays.equals(d_eids, s.d_eids);
+        }
+    }
+
+    private static final class Decision
+    {
+        final Service  d_service;
+        final int[]    d_eids;
+        final BitSet   d_entitled = new BitSet();
+        volatile Cohort d_cohort;
+
+        Decision(Service service, int[] eids)
+        {
+            d_service = service;
+            d_eids    = eids;
+        }
+    }
+
+    private final Listener                              d_listener;
+    private final ConcurrentHashMap<EidSet, Decision>   d_decisions = new ConcurrentHashMap<EidSet, Decision>();
+    private final Map<BitSet, Cohort>                   d_cohorts   = new HashMap<BitSet, Cohort>();
+    private final List<Object>                          d_users      = new ArrayList<Object>();     // by slot
+    private final List<Identity>                        d_identities = new ArrayList<Identity>();   // by slot
+    private final Map<Object, Integer>                  d_slots      = new HashMap<Object, Integer>();
+    private final Map<CorrelationID, Object>            d_authorizations = new HashMap<CorrelationID, Object>();
+    private final BitSet                                d_active     = new BitSet();
+    private final Decision                              d_everyone   = new Decision(null, NO_EIDS);
+    private int                                         d_nextCohortId;
+
+    private final AtomicLong                            d_messages   = new AtomicLong();
+    private final AtomicLong                            d_deliveries = new AtomicLong();
+    private final AtomicLong                            d_checks     = new AtomicLong();
+
+    public EntitlementFanout(Listener listener)
+    {
+        d_listener = listener;
+        d_everyone.d_cohort = cohort(new BitSet());
+    }
+
+    // Users ///////////////////////////////////////////////////////////////////
+
+    /**
+     * Adds user (any key, e.g. its uuid), authorized as identity by the
+     * AuthorizationRequest of correlation id authorization (null if revocations
+     * are not to be followed), replacing any user of the same key.
+     */
+    public synchronized void addUser(Object user, Identity identity, CorrelationID authorization)
+    {
+        removeUser(user);
+        int slot = d_active.nextClearBit(0);
+        if (slot == d_users.size()) {
+            d_users.add(null);
+            d_identities.add(null);
+        }
+        d_users.set(slot, user);
+        d_identities.set(slot, identity);
+        d_slots.put(user, slot);
+        if (authorization != null) d_authorizations.put(authorization, user);
+        d_active.set(slot);
+        recheck(slot);
+    }
+
+    /** false if there is no such user. */
+    public synchronized boolean removeUser(Object user)
+    {
+        Integer slot = d_slots.remove(user);
+        if (slot == null) return false;
+        d_authorizations.values().remove(user);
+        d_active.clear(slot);
+        d_users.set(slot, null);
+        d_identities.set(slot, null);
+        recheck(slot);
+        return true;
+    }
+
+    /** Checks the entitlements of user again, e.g. after they changed; false if there is no such user. */
+    public synchronized boolean refreshUser(Object user)
+    {
+        Integer slot = d_slots.get(user);
+        if (slot == null) return false;
+        recheck(slot);
+        return true;
+    }
+
+    public synchronized List<Object> users()
+    {
+        List<Object> users = new ArrayList<Object>();
+        for (int slot = d_active.nextSetBit(0); slot >= 0; slot = d_active.nextSetBit(slot + 1)) {
+            users.add(d_users.get(slot));
+        }
+        return users;
+    }
+
+    /**
+     * Follows an AUTHORIZATION_STATUS message: AuthorizationRevoked removes the
+     * user it was authorized for, EntitlementChanged checks it again. Returns
+     * the user, null if the message is neither or the user is unknown.
+     */
+    public Object onAuthorizationStatus(Message message)
+    {
+        Name type = message.messageType();
+        boolean revoked = AUTHORIZATION_REVOKED.equals(type);
+        if (!revoked && !ENTITLEMENT_CHANGED.equals(type)) return null;
+        synchronized (this) {
+            for (int i = 0; i < message.numCorrelationIds(); ++i) {
+                Object user = d_authorizations.get(message.correlationID(i));
+                if (user == null) continue;
+                if (revoked) removeUser(user); else refreshUser(user);
+                return user;
+            }
+        }
+        return null;
+    }
+
+    // Decisions ///////////////////////////////////////////////////////////////
+
+    private boolean isEntitled(Decision decision, int slot)
+    {
+        if (!d_active.get(slot)) return false;
+        if (decision == d_everyone) return true;
+        d_checks.incrementAndGet();
+        return d_identities.get(slot).hasEntitlements(decision.d_eids, decision.d_service);
+    }
+
+    /** Recomputes the bit of slot in every decision, then forgets the cohorts no decision uses any more. */
+    private void recheck(int slot)
+    {
+        update(d_everyone, slot);
+        for (Decision decision : d_decisions.values()) update(decision, slot);
+        d_cohorts.clear();
+        d_cohorts.put(d_everyone.d_cohort.d_members, d_everyone.d_cohort);
+        for (Decision decision : d_decisions.values()) {
+            d_cohorts.put(decision.d_cohort.d_members, decision.d_cohort);
+        }
+    }
+
+    private void update(Decision decision, int slot)
+    {
+        boolean entitled = isEntitled(decision, slot);
+        if (entitled == decision.d_entitled.get(slot)) return;
+        decision.d_entitled.set(slot, entitled);
+        decision.d_cohort = cohort((BitSet) decision.d_entitled.clone());
+    }
+
+    private Cohort cohort(BitSet members)
+    {
+        Cohort cohort = d_cohorts.get(members);
+        if (cohort == null) {
+            List<Object> users = new ArrayList<Object>();
+            for (int slot = members.nextSetBit(0); slot >= 0; slot = members.nextSetBit(slot + 1)) {
+                users.add(d_users.get(slot));
+            }
+            cohort = new Cohort(d_nextCohortId++, members, users);
+            d_cohorts.put(members, cohort);
+        }
+        return cohort;
+    }
+
+    private static int[] normalize(int[] eids)
+    {
+        int[] sorted = eids.clone();
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length; ++i) {
+            if (n == 0 || sorted[i] != sorted[n - 1]) sorted[n++] = sorted[i];
+        }
+        return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+    }
+
+    /** The users entitled to data of eids from service; every user when eids is empty. */
+    public Cohort cohort(Service service, int[] eids)
+    {
+        if (eids.length == 0) return d_everyone.d_cohort;
+        int[] normalized = normalize(eids);
+        EidSet key = new EidSet(service == null ? "" : service.name(), normalized);
+        Decision decision = d_decisions.get(key);
+        if (decision == null) {
+            synchronized (this) {
+                decision = d_decisions.get(key);
+                if (decision == null) {
+                    decision = new Decision(service, normalized);
+                    for (int slot = d_active.nextSetBit(0); slot >= 0; slot = d_active.nextSetBit(slot + 1)) {
+                        if (isEntitled(decision, slot)) decision.d_entitled.set(slot);
+                    }
+                    decision.d_cohort = cohort((BitSet) decision.d_entitled.clone());
+                    d_decisions.put(key, decision);
+                }
+            }
+        }
+        return decision.d_cohort;
+    }
+
+    // Distribution ////////////////////////////////////////////////////////////
+
+    private static int[] eids(Element element)
+    {
+        if (element == null || element.isNull() || element.numValues() == 0) return NO_EIDS;
+        int[] eids = new int[element.numValues()];
+        for (int i = 0; i < eids.length; ++i) eids[i] = (int) element.getValueAsInt64(i);
+        return eids;
+    }
+
+    /**
+     * Delivers message to every cohort entitled to it: per security of the
+     * securityData of a refdata response (eidData, requested with returnEids),
+     * else by the EID field of a subscription message.
+     */
+    public void distribute(Message message)
+    {
+        d_messages.incrementAndGet();
+        Service service = message.service();
+        if (message.hasElement(SECURITY_DATA, true)) {
+            Element securities = message.getElement(SECURITY_DATA);
+            int size = securities.isArray() ? securities.numValues() : 1;
+            Map<Cohort, int[]> indices = new LinkedHashMap<Cohort, int[]>();     // [count, index...]
+            for (int i = 0; i < size; ++i) {
+                Element security = securities.isArray() ? securities.getValueAsElement(i) : securities;
+                Cohort cohort = cohort(service, eids(security.hasElement(EID_DATA, true)
+                                                     ? security.getElement(EID_DATA) : null));
+                if (cohort.isEmpty()) continue;
+                int[] cohortIndices = indices.get(cohort);
+                if (cohortIndices == null) {
+                    cohortIndices = new int[size + 1];
+                    indices.put(cohort, cohortIndices);
+                }
+                cohortIndices[++cohortIndices[0]] = i;
+            }
+            for (Map.Entry<Cohort, int[]> e : indices.entrySet()) {
+                int[] cohortIndices = e.getValue();
+                deliver(message, e.getKey(), Arrays.copyOfRange(cohortIndices, 1, cohortIndices[0] + 1));
+            }
+        } else {
+            Cohort cohort = cohort(service, eids(message.hasElement(EID, true) ? message.getElement(EID) : null));
+            if (!cohort.isEmpty()) deliver(message, cohort, null);
+        }
+    }
+
+    private void deliver(Message message, Cohort cohort, int[] securities)
+    {
+        d_deliveries.incrementAndGet();
+        d_listener.deliver(message, cohort, securities);
+    }
+
+    // Stats ///////////////////////////////////////////////////////////////////
+
+    public synchronized int numUsers()    { return d_active.cardinality(); }
+    /** Distinct cohorts of the EID sets seen so far and of messages without EIDs. */
+    public synchronized int numCohorts()  { return d_cohorts.size(); }
+    public int numEidSets()               { return d_decisions.size(); }
+    public long messages()                { return d_messages.get(); }
+    public long deliveries()              { return d_deliveries.get(); }
+    public long checks()                  { return d_checks.get(); }
+
+    public String toString()
+    {
+        return String.format("EntitlementFanout[users=%d eidSets=%d cohorts=%d messages=%d deliveries=%d checks=%d]",
+                numUsers(), numEidSets(), numCohorts(), messages(), deliveries(), checks());
+    }
+}
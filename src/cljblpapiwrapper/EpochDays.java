@@ -0,0 +1,30 @@
+// Days since 1970-01-01 of a Bloomberg Datetime, computed from its fields
+// without a Calendar or a java.time object: the day index of HistoryColumns
+// and the date part of the timestamps TickDecoder keeps.
+// -----------------------------------------------------------------------------
+
+import com.bloomberglp.blpapi.Datetime;
+
+public final class EpochDays
+{
+    private EpochDays()
+    {
+    }
+
+    /** Epoch day of the date part of dt. */
+    public static long of(Datetime dt)
+    {
+        return fromCivil(dt.year(), dt.month(), dt.dayOfMonth());
+    }
+
+    // Howard Hinnant's days_from_civil
+    public static long fromCivil(int year, int month, int day)
+    {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468L;
+    }
+}
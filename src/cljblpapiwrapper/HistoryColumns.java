@@ -0,0 +1,207 @@
+// Columnar form of the history of one security, returned by bdh with
+// :columnar true.
+//
+// Rows are dates, held as an ascending int[] of epoch days; every field is one
+// double[] column with a BitSet marking the cells Bloomberg did not send (those
+// cells hold NaN). Dates are looked up through a day -> row table when the
+// dates are dense enough for one (daily data), by binary search otherwise, so
+// the bdh-result helpers never scan the rows.
+//
+// read() builds the columns straight from the securityData element of a
+// HistoricalDataResponse: field names are resolved to Name handles once and
+// absent cells are detected with hasElement instead of NotFoundException.
+// Instances are immutable once built; days() and column() return the backing
+// arrays, which must not be modified.
+// -----------------------------------------------------------------------------
+
+import com.bloomberglp.blpapi.Element;
+import com.bloomberglp.blpapi.Name;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+public final class HistoryColumns
+{
+    private static final Name DATE       = Name.getName("date");
+    private static final Name FIELD_DATA = Name.getName("fieldData");
+
+    // use a day -> row table while it is at most this many times the row count
+    private static final int  MAX_TABLE_SPREAD = 4;
+
+    private final String[]  d_fields;
+    private final int[]     d_days;
+    private final double[][] d_values;
+    private final BitSet[]  d_missing;
+    private final int[]     d_rowOfDay;     // null when lookups use binary search
+
+    public HistoryColumns(String[] fields, int[] days, double[][] values, BitSet[] missing)
+    {
+        d_fields   = fields;
+        d_days     = days;
+        d_values   = values;
+        d_missing  = missing;
+        d_rowOfDay = rowTable(days);
+    }
+
+    private static int[] rowTable(int[] days)
+    {
+        if (days.length == 0) return null;
+        long span = (long) days[days.length - 1] - days[0] + 1;
+        if (span > (long) MAX_TABLE_SPREAD * days.length) return null;
+        int[] table = new int[(int) span];
+        Arrays.fill(table, -1);
+        for (int row = 0; row < days.length; ++row) {
+            table[days[row] - days[0]] = row;
+        }
+        return table;
+    }
+
+    /** Columns for fields out of the securityData element of a HistoricalDataResponse. */
+    public static HistoryColumns read(Element securityData, List<String> fields)
+    {
+        Name[] names = new Name[fields.size()];
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = Name.getName(fields.get(i));
+        }
+        Element rows = securityData.getElement(FIELD_DATA);
+        int size = rows.numValues();
+        int[] days = new int[size];
+        double[][] values = new double[names.length][size];
+        BitSet[] missing = new BitSet[names.length];
+        for (int f = 0; f < names.length; ++f) {
+            missing[f] = new BitSet(size);
+        }
+        for (int row = 0; row < size; ++row) {
+            Element data = rows.getValueAsElement(row);
+            days[row] = (int) EpochDays.of(data.getElementAsDate(DATE));
+            for (int f = 0; f < names.length; ++f) {
+                if (data.hasElement(names[f], true)) {
+                    values[f][row] = data.getElementAsFloat64(names[f]);
+                } else {
+                    values[f][row] = Double.NaN;
+                    missing[f].set(row);
+                }
+            }
+        }
+        HistoryColumns columns = new HistoryColumns(fields.toArray(new String[0]), days, values, missing);
+        return isAscending(days) ? columns : merge(empty(columns.d_fields), columns);
+    }
+
+    private static boolean isAscending(int[] days)
+    {
+        for (int i = 1; i < days.length; ++i) {
+            if (days[i] <= days[i - 1]) return false;
+        }
+        return true;
+    }
+
+    private static HistoryColumns empty(String[] fields)
+    {
+        double[][] values = new double[fields.length][0];
+        BitSet[] missing = new BitSet[fields.length];
+        for (int f = 0; f < fields.length; ++f) {
+            missing[f] = new BitSet();
+        }
+        return new HistoryColumns(fields, new int[0], values, missing);
+    }
+
+    /**
+     * Union of the dates and fields of a and b, e.g. the same security from
+     * sub-requests for different fields or from several response messages.
+     * Where both have a value for a cell, b wins.
+     */
+    public static HistoryColumns merge(HistoryColumns a, HistoryColumns b)
+    {
+        List<String> fields = new ArrayList<String>(Arrays.asList(a.d_fields));
+        for (String field : b.d_fields) {
+            if (!fields.contains(field)) fields.add(field);
+        }
+        int[] days = unionOfDays(a.d_days, b.d_days);
+        double[][] values = new double[fields.size()][days.length];
+        BitSet[] missing = new BitSet[fields.size()];
+        for (int f = 0; f < values.length; ++f) {
+            Arrays.fill(values[f], Double.NaN);
+            missing[f] = new BitSet(days.length);
+            missing[f].set(0, days.length);
+        }
+        for (HistoryColumns source : new HistoryColumns[]{a, b}) {
+            for (int sf = 0; sf < source.d_fields.length; ++sf) {
+                int f = fields.indexOf(source.d_fields[sf]);
+                for (int sr = 0; sr < source.d_days.length; ++sr) {
+                    if (source.d_missing[sf].get(sr)) continue;
+                    int row = Arrays.binarySearch(days, source.d_days[sr]);
+                    values[f][row] = source.d_values[sf][sr];
+                    missing[f].clear(row);
+                }
+            }
+        }
+        return new HistoryColumns(fields.toArray(new String[0]), days, values, missing);
+    }
+
+    private static int[] unionOfDays(int[] a, int[] b)
+    {
+        int[] all = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, all, a.length, b.length);
+        Arrays.sort(all);
+        int n = 0;
+        for (int i = 0; i < all.length; ++i) {
+            if (n == 0 || all[i] != all[n - 1]) all[n++] = all[i];
+        }
+        return Arrays.copyOf(all, n);
+    }
+
+    public int size()                { return d_days.length; }
+    public int numFields()           { return d_fields.length; }
+    public String field(int index)   { return d_fields[index]; }
+
+    /** -1 if field is not one of the columns. */
+    public int fieldIndex(String field)
+    {
+        for (int f = 0; f < d_fields.length; ++f) {
+            if (d_fields[f].equals(field)) return f;
+        }
+        return -1;
+    }
+
+    public int day(int row)          { return d_days[row]; }
+    public LocalDate date(int row)   { return LocalDate.ofEpochDay(d_days[row]); }
+    public int[] days()              { return d_days; }
+
+    public double[] column(int field)     { return d_values[field]; }
+    public double[] column(String field)  { int f = fieldIndex(field); return f < 0 ? null : d_values[f]; }
+
+    public boolean isMissing(int row, int field) { return d_missing[field].get(row); }
+    public double get(int row, int field)        { return d_values[field][row]; }
+
+    /** Row of epochDay, -1 if there is none. */
+    public int rowOf(long epochDay)
+    {
+        if (d_days.length == 0) return -1;
+        if (d_rowOfDay != null) {
+            long offset = epochDay - d_days[0];
+            return offset < 0 || offset >= d_rowOfDay.length ? -1 : d_rowOfDay[(int) offset];
+        }
+        if (epochDay < Integer.MIN_VALUE || epochDay > Integer.MAX_VALUE) return -1;
+        int row = Arrays.binarySearch(d_days, (int) epochDay);
+        return row < 0 ? -1 : row;
+    }
+
+    public int rowOf(LocalDate date)  { return rowOf(date.toEpochDay()); }
+
+    /** NaN when the date, the field or the value is missing. */
+    public double get(LocalDate date, String field)
+    {
+        int row = rowOf(date);
+        int f = fieldIndex(field);
+        return row < 0 || f < 0 ? Double.NaN : d_values[f][row];
+    }
+
+    public String toString()
+    {
+        return String.format("HistoryColumns[%d rows x %s%s]", d_days.length, Arrays.toString(d_fields),
+                d_days.length == 0 ? "" : " " + date(0) + " .. " + date(d_days.length - 1));
+    }
+}
@@ -0,0 +1,335 @@
+// On-disk store of daily (or weekly, monthly...) history, so that bdh only
+// requests the dates it has not downloaded before (see core/bdh-async :store).
+//
+// Every (key, security, field) is one memory-mapped column file
+//
+//   <dir>/<key>/<security>/<field>.hcol
+//
+// key standing for the request options that change the values (periodicity,
+// adjustment-split). A file holds the range of epoch days it covers, i.e. that
+// have been requested and need not be again, and the rows Bloomberg sent for
+// them, ascending:
+//
+//   int magic, int version, int coveredFrom, int coveredTo, int count,
+//   int capacity, 8 bytes padding,
+//   capacity x int day, capacity x double value
+//
+// Only days with a value are stored; a covered day without a row had none.
+// Rows may extend past the covered range (e.g. today's row of a request that
+// cannot cover today yet): they are replaced by the next put() that covers
+// them. The covered range is kept contiguous by the caller, who requests the
+// dates between the old range and the new ones too.
+//
+// put() writes in place when the new rows go at the end and fit, which is the
+// nightly refresh case; otherwise (earlier dates, more rows than capacity) it
+// writes a new file with twice the rows as capacity and renames it over the
+// old one. The header is written after the rows, so a crash leaves the file as
+// it was before the put().
+//
+// read() copies each column range with one bulk get from the mapping into the
+// arrays a HistoryColumns wraps: no per-row objects, no maps.
+// -----------------------------------------------------------------------------
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class HistoryStore implements Closeable
+{
+    public static final int  MAGIC   = 0x48434c31;   // "HCL1"
+    public static final int  VERSION = 1;
+
+    private static final int HEADER_BYTES     = 32;
+    private static final int COVERED_FROM     = 8;
+    private static final int COVERED_TO       = 12;
+    private static final int COUNT            = 16;
+    private static final int CAPACITY         = 20;
+    private static final int MINIMUM_CAPACITY = 64;
+
+    private final File                              d_dir;
+    private final ConcurrentHashMap<File, Column>   d_columns = new ConcurrentHashMap<File, Column>();
+
+    public HistoryStore(File dir) throws IOException
+    {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create history store directory " + dir);
+        }
+        d_dir = dir;
+    }
+
+    public File dir() { return d_dir; }
+
+    private static String encode(String name)
+    {
+        try {
+            return URLEncoder.encode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    File file(String key, String security, String field)
+    {
+        return new File(new File(new File(d_dir, encode(key)), encode(security)), encode(field) + ".hcol");
+    }
+
+    /** The column of (key, security, field); null if it has no file and create is false. */
+    private Column column(String key, String security, String field, boolean create) throws IOException
+    {
+        File file = file(key, security, field);
+        Column column = d_columns.get(file);
+        if (column == null) {
+            if (!create && !file.exists()) return null;
+            Column opened = new Column(file);
+            column = d_columns.putIfAbsent(file, opened);
+            if (column == null) column = opened;
+        }
+        return column;
+    }
+
+    /** {coveredFrom, coveredTo} in epoch days, null when nothing is covered. */
+    public int[] coverage(String key, String security, String field) throws IOException
+    {
+        Column column = column(key, security, field, false);
+        return column == null ? null : column.coverage();
+    }
+
+    /**
+     * Stores the field column of fetched (null when Bloomberg sent nothing),
+     * the history requested for days from to to, replacing the rows held for
+     * those days, and adds them to the covered range. Days after to are stored
+     * but not covered; to &lt; from covers nothing.
+     */
+    public void put(String key, String security, String field, int from, int to, HistoryColumns fetched)
+            throws IOException
+    {
+        int[] days = new int[0];
+        double[] values = new double[0];
+        int f = fetched == null ? -1 : fetched.fieldIndex(field);
+        if (f >= 0) {
+            days = new int[fetched.size()];
+            values = new double[fetched.size()];
+            int n = 0;
+            for (int row = 0; row < fetched.size(); ++row) {
+                if (fetched.isMissing(row, f)) continue;
+                days[n] = fetched.day(row);
+                values[n++] = fetched.get(row, f);
+            }
+            days = Arrays.copyOf(days, n);
+            values = Arrays.copyOf(values, n);
+        }
+        column(key, security, field, true).put(from, to, days, values);
+    }
+
+    /** HistoryColumns of fields for the days from to to that the store holds; missing fields have no rows. */
+    public HistoryColumns read(String key, String security, List<String> fields, int from, int to) throws IOException
+    {
+        int[][] days = new int[fields.size()][];
+        double[][] values = new double[fields.size()][];
+        boolean aligned = true;
+        for (int f = 0; f < days.length; ++f) {
+            Column column = column(key, security, fields.get(f), false);
+            if (column == null) {
+                days[f] = new int[0];
+                values[f] = new double[0];
+            } else {
+                column.read(from, to, days, values, f);
+            }
+            aligned &= Arrays.equals(days[f], days[0]);
+        }
+        if (aligned) {
+            return new HistoryColumns(fields.toArray(new String[0]), days[0], values, emptySets(days.length));
+        }
+        HistoryColumns columns = null;
+        for (int f = 0; f < days.length; ++f) {
+            HistoryColumns one = new HistoryColumns(new String[]{fields.get(f)}, days[f],
+                                                    new double[][]{values[f]}, emptySets(1));
+            columns = columns == null ? one : HistoryColumns.merge(columns, one);
+        }
+        return columns;
+    }
+
+    private static BitSet[] emptySets(int n)
+    {
+        BitSet[] sets = new BitSet[n];
+        for (int i = 0; i < n; ++i) sets[i] = new BitSet();
+        return sets;
+    }
+
+    /** Unmaps every open column; the store can still be used and reopens them. */
+    public void close() throws IOException
+    {
+        List<Column> columns = new ArrayList<Column>(d_columns.values());
+        d_columns.clear();
+        for (Column column : columns) column.close();
+    }
+
+    // Column file /////////////////////////////////////////////////////////////
+
+    private static final class Column
+    {
+        private final File          d_file;
+        private MappedByteBuffer    d_map;      // null until first put() of a new file
+
+        Column(File file) throws IOException
+        {
+            d_file = file;
+            if (file.exists()) map();
+        }
+
+        private void map() throws IOException
+        {
+            RandomAccessFile file = new RandomAccessFile(d_file, "rw");
+            try {
+                d_map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            } finally {
+                file.close();
+            }
+            if (d_map.capacity() < HEADER_BYTES || d_map.getInt(0) != MAGIC || d_map.getInt(4) != VERSION) {
+                d_map = null;
+                throw new IOException("Not a history column file: " + d_file);
+            }
+        }
+
+        private int count()           { return d_map == null ? 0 : d_map.getInt(COUNT); }
+        private int capacity()        { return d_map == null ? 0 : d_map.getInt(CAPACITY); }
+        private int day(int row)      { return d_map.getInt(HEADER_BYTES + 4 * row); }
+
+        private static int valuesOffset(int capacity)   { return HEADER_BYTES + 4 * capacity; }
+
+        /** First row whose day is at least day (count() if none). */
+        private int lowerBound(int day)
+        {
+            int lo = 0;
+            int hi = count();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (day(mid) < day) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        synchronized int[] coverage()
+        {
+            if (d_map == null || d_map.getInt(COVERED_FROM) > d_map.getInt(COVERED_TO)) return null;
+            return new int[]{d_map.getInt(COVERED_FROM), d_map.getInt(COVERED_TO)};
+        }
+
+        synchronized void read(int from, int to, int[][] days, double[][] values, int f)
+        {
+            int lo = d_map == null ? 0 : lowerBound(from);
+            int hi = d_map == null || to == Integer.MAX_VALUE ? count() : lowerBound(to + 1);
+            int n = Math.max(0, hi - lo);
+            days[f] = new int[n];
+            values[f] = new double[n];
+            if (n == 0) return;
+            ByteBuffer view = d_map.duplicate();
+            view.position(HEADER_BYTES + 4 * lo);
+            view.asIntBuffer().get(days[f]);
+            view.position(valuesOffset(capacity()) + 8 * lo);
+            view.asDoubleBuffer().get(values[f]);
+        }
+
+        synchronized void put(int from, int to, int[] days, double[] values) throws IOException
+        {
+            int[] covered = coverage();
+            int coveredFrom = covered == null ? Integer.MAX_VALUE : covered[0];
+            int coveredTo = covered == null ? Integer.MIN_VALUE : covered[1];
+            if (from <= to) {
+                coveredFrom = Math.min(coveredFrom, from);
+                coveredTo = Math.max(coveredTo, to);
+            }
+            int last = days.length == 0 ? to : Math.max(to, days[days.length - 1]);
+            int lo = lowerBound(from);
+            int hi = last == Integer.MAX_VALUE ? count() : lowerBound(last + 1);
+            if (d_map != null && hi == count() && lo + days.length <= capacity()) {
+                writeRows(d_map, capacity(), lo, days, values, 0, days.length);
+                writeHeader(d_map, coveredFrom, coveredTo, lo + days.length, capacity());
+                d_map.force();
+                return;
+            }
+            rewrite(lo, hi, days, values, coveredFrom, coveredTo);
+        }
+
+        /** New file of rows [0, lo) + days + rows [hi, count), renamed over the old one. */
+        private void rewrite(int lo, int hi, int[] days, double[] values, int coveredFrom, int coveredTo)
+                throws IOException
+        {
+            int count = lo + days.length + count() - hi;
+            int capacity = Math.max(MINIMUM_CAPACITY, Integer.highestOneBit(Math.max(1, count)) * 2);
+            File parent = d_file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create history store directory " + parent);
+            }
+            File temporary = new File(parent, d_file.getName() + ".tmp");
+            RandomAccessFile file = new RandomAccessFile(temporary, "rw");
+            try {
+                file.setLength(valuesOffset(capacity) + 8L * capacity);
+                MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+                if (d_map != null) {
+                    copyRows(d_map, capacity(), 0, map, capacity, 0, lo);
+                    copyRows(d_map, capacity(), hi, map, capacity, lo + days.length, count() - hi);
+                }
+                writeRows(map, capacity, lo, days, values, 0, days.length);
+                writeHeader(map, coveredFrom, coveredTo, count, capacity);
+                map.force();
+            } finally {
+                file.close();
+            }
+            if (!temporary.renameTo(d_file)) {
+                throw new IOException("Cannot replace " + d_file);
+            }
+            map();
+        }
+
+        private static void writeHeader(MappedByteBuffer map, int coveredFrom, int coveredTo, int count, int capacity)
+        {
+            map.putInt(COVERED_FROM, coveredFrom);
+            map.putInt(COVERED_TO, coveredTo);
+            map.putInt(COUNT, count);
+            map.putInt(CAPACITY, capacity);
+            map.putInt(4, VERSION);
+            map.putInt(0, MAGIC);
+        }
+
+        private static void writeRows(ByteBuffer map, int capacity, int row, int[] days, double[] values,
+                                      int offset, int n)
+        {
+            ByteBuffer view = map.duplicate();
+            view.position(HEADER_BYTES + 4 * row);
+            view.asIntBuffer().put(days, offset, n);
+            view.position(valuesOffset(capacity) + 8 * row);
+            view.asDoubleBuffer().put(values, offset, n);
+        }
+
+        private static void copyRows(ByteBuffer source, int sourceCapacity, int sourceRow,
+                                     ByteBuffer target, int targetCapacity, int targetRow, int n)
+        {
+            if (n <= 0) return;
+            int[] days = new int[n];
+            double[] values = new double[n];
+            ByteBuffer view = source.duplicate();
+            view.position(HEADER_BYTES + 4 * sourceRow);
+            view.asIntBuffer().get(days);
+            view.position(valuesOffset(sourceCapacity) + 8 * sourceRow);
+            view.asDoubleBuffer().get(values);
+            writeRows(target, targetCapacity, targetRow, days, values, 0, n);
+        }
+
+        synchronized void close()
+        {
+            d_map = null;
+        }
+    }
+}
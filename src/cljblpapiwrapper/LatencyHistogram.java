@@ -0,0 +1,107 @@
+// Latency histogram in the style of HdrHistogram, recorded without locks or
+// allocation so that it can stay on in production.
+//
+// Values (nanoseconds, or any non-negative long) are counted in log-linear
+// buckets: exact below 128, then 64 linear sub-buckets per power of two, so a
+// recorded value is known to within 1/64 (1.6%). Values above 2^40 (about 18
+// minutes in nanoseconds) go to the last bucket, read as max(); max() is exact.
+//
+// record() is a few atomic increments and may be called from any number of
+// threads. Readers see counts that may be a few recordings apart from each
+// other; reset() racing with record() may lose those recordings.
+// -----------------------------------------------------------------------------
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public final class LatencyHistogram
+{
+    private static final int  SUB_BITS     = 7;
+    private static final int  SUB_COUNT    = 1 << SUB_BITS;        // exact values below
+    private static final int  HALF_COUNT   = SUB_COUNT >> 1;       // linear sub-buckets per power of two
+    private static final int  MAX_BITS     = 40;
+    private static final long HIGHEST      = (1L << MAX_BITS) - 1;
+    private static final int  BUCKETS      = index(HIGHEST) + 1;
+
+    private final AtomicLongArray d_counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      d_count  = new AtomicLong();
+    private final AtomicLong      d_sum    = new AtomicLong();
+    private final AtomicLong      d_max    = new AtomicLong();
+
+    static int index(long value)
+    {
+        if (value < SUB_COUNT) return (int) value;
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (value >>> shift) - HALF_COUNT;
+    }
+
+    /** Highest value counted in bucket index. */
+    static long highestInBucket(int index)
+    {
+        if (index < SUB_COUNT) return index;
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /** Counts one value; negative values count as 0. */
+    public void record(long value)
+    {
+        if (value < 0) value = 0;
+        d_counts.incrementAndGet(index(Math.min(value, HIGHEST)));
+        d_count.incrementAndGet();
+        d_sum.addAndGet(value);
+        long max;
+        while (value > (max = d_max.get()) && !d_max.compareAndSet(max, value)) {
+            // retry
+        }
+    }
+
+    public long count()   { return d_count.get(); }
+    public long max()     { return d_max.get(); }
+    public double mean()  { long n = d_count.get(); return n == 0 ? 0.0 : (double) d_sum.get() / n; }
+
+    /**
+     * The value below which percentile percent (0 to 100) of the recorded
+     * values fall, as the highest value of its bucket; 0 when empty.
+     */
+    public long percentile(double percentile)
+    {
+        return percentiles(new double[]{percentile})[0];
+    }
+
+    /** percentile() of each of percentiles, ascending, in one pass. */
+    public long[] percentiles(double[] percentiles)
+    {
+        long[] values = new long[percentiles.length];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) total += d_counts.get(i);
+        if (total == 0) return values;
+        long max = d_max.get();
+        long seen = 0;
+        int p = 0;
+        for (int i = 0; i < BUCKETS && p < percentiles.length; ++i) {
+            seen += d_counts.get(i);
+            while (p < percentiles.length && seen >= Math.max(1, (long) Math.ceil(total * percentiles[p] / 100.0))) {
+                values[p++] = i == BUCKETS - 1 ? max : Math.min(highestInBucket(i), max);
+            }
+        }
+        while (p < percentiles.length) values[p++] = max;
+        return values;
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; ++i) d_counts.set(i, 0);
+        d_count.set(0);
+        d_sum.set(0);
+        d_max.set(0);
+    }
+
+    public String toString()
+    {
+        long[] p = percentiles(new double[]{50, 90, 99, 99.9});
+        return String.format("count=%d mean=%.0f p50=%d p90=%d p99=%d p99.9=%d max=%d",
+                count(), mean(), p[0], p[1], p[2], p[3], max());
+    }
+}
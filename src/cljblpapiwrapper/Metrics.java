@@ -0,0 +1,276 @@
+// Named latency histograms, counters and per-topic stats of one component,
+// readable through a pull API (snapshot, report) and through JMX once
+// register()ed, as cljblpapiwrapper:type=Metrics,name=<name>.
+//
+// Recorders are created up front and kept by the code that records into them
+// (histogram(), counter(), eventTimes(), topics() are lookups that may
+// allocate), so that recording itself is only LatencyHistogram.record,
+// AtomicLong.incrementAndGet and TopicStats.onTick: no locks, no allocation.
+//
+// Histograms hold nanoseconds. Every histogram h is read as h.count, h.mean,
+// h.p50, h.p90, h.p99, h.p99.9 and h.max; every TopicStats t as t.topics,
+// t.ticks, t.stalest (nanos since the quietest topic last ticked) and t.gap.*
+// (inter-arrival gaps of all its topics). The per-topic detail is in report().
+// -----------------------------------------------------------------------------
+
+import com.bloomberglp.blpapi.Event;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+public final class Metrics implements DynamicMBean
+{
+    public static final double[] PERCENTILES      = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_KEYS = {"p50", "p90", "p99", "p99.9"};
+
+    private static final Event.EventType[] EVENT_TYPES = {
+        Event.EventType.ADMIN, Event.EventType.SESSION_STATUS, Event.EventType.SUBSCRIPTION_STATUS,
+        Event.EventType.REQUEST_STATUS, Event.EventType.RESPONSE, Event.EventType.PARTIAL_RESPONSE,
+        Event.EventType.SUBSCRIPTION_DATA, Event.EventType.SERVICE_STATUS, Event.EventType.TIMEOUT,
+        Event.EventType.AUTHORIZATION_STATUS, Event.EventType.RESOLUTION_STATUS, Event.EventType.TOPIC_STATUS,
+        Event.EventType.TOKEN_STATUS, Event.EventType.REQUEST
+    };
+
+    private final String                                        d_name;
+    private final ConcurrentSkipListMap<String, LatencyHistogram> d_histograms
+            = new ConcurrentSkipListMap<String, LatencyHistogram>();
+    private final ConcurrentSkipListMap<String, AtomicLong>     d_counters
+            = new ConcurrentSkipListMap<String, AtomicLong>();
+    private final ConcurrentSkipListMap<String, TopicStats>     d_topics
+            = new ConcurrentSkipListMap<String, TopicStats>();
+
+    private ObjectName                                          d_objectName;
+
+    public Metrics(String name)
+    {
+        d_name = name;
+    }
+
+    public String name() { return d_name; }
+
+    public LatencyHistogram histogram(String name)
+    {
+        LatencyHistogram histogram = d_histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = d_histograms.putIfAbsent(name, created);
+            if (histogram == null) histogram = created;
+        }
+        return histogram;
+    }
+
+    public AtomicLong counter(String name)
+    {
+        AtomicLong counter = d_counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = d_counters.putIfAbsent(name, created);
+            if (counter == null) counter = created;
+        }
+        return counter;
+    }
+
+    /**
+     * One histogram per event type, named prefix.TYPE (e.g.
+     * handler.SUBSCRIPTION_DATA), indexed by Event.EventType.intValue().
+     */
+    public LatencyHistogram[] eventTimes(String prefix)
+    {
+        int size = 0;
+        for (Event.EventType type : EVENT_TYPES) size = Math.max(size, type.intValue() + 1);
+        LatencyHistogram[] histograms = new LatencyHistogram[size];
+        for (Event.EventType type : EVENT_TYPES) {
+            histograms[type.intValue()] = histogram(prefix + "." + type);
+        }
+        return histograms;
+    }
+
+    /** New TopicStats for topics under name, which must not be in use by other topic stats. */
+    public TopicStats topics(String name, List<String> topics)
+    {
+        TopicStats stats = new TopicStats(topics);
+        if (d_topics.putIfAbsent(name, stats) != null) {
+            throw new IllegalArgumentException("Topic stats " + name + " already exist");
+        }
+        return stats;
+    }
+
+    /** Forgets the topic stats called name if they are still stats. */
+    public void remove(String name, TopicStats stats)
+    {
+        d_topics.remove(name, stats);
+    }
+
+    /** Forgets the histogram, counter or topic stats called name. */
+    public void remove(String name)
+    {
+        d_histograms.remove(name);
+        d_counters.remove(name);
+        d_topics.remove(name);
+    }
+
+    public Map<String, LatencyHistogram> histograms() { return Collections.unmodifiableMap(d_histograms); }
+    public Map<String, AtomicLong> counters()         { return Collections.unmodifiableMap(d_counters); }
+    public Map<String, TopicStats> topicStats()       { return Collections.unmodifiableMap(d_topics); }
+
+    private static void putHistogram(Map<String, Object> values, String name, LatencyHistogram histogram)
+    {
+        long[] p = histogram.percentiles(PERCENTILES);
+        values.put(name + ".count", histogram.count());
+        values.put(name + ".mean", histogram.mean());
+        for (int i = 0; i < p.length; ++i) values.put(name + "." + PERCENTILE_KEYS[i], p[i]);
+        values.put(name + ".max", histogram.max());
+    }
+
+    /** Every value as {key value}, Longs and Doubles, keys as described above. */
+    public Map<String, Object> snapshot()
+    {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, AtomicLong> e : d_counters.entrySet()) {
+            values.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, LatencyHistogram> e : d_histograms.entrySet()) {
+            putHistogram(values, e.getKey(), e.getValue());
+        }
+        long now = System.nanoTime();
+        for (Map.Entry<String, TopicStats> e : d_topics.entrySet()) {
+            TopicStats stats = e.getValue();
+            values.put(e.getKey() + ".topics", (long) stats.numTopics());
+            values.put(e.getKey() + ".ticks", stats.totalTicks());
+            values.put(e.getKey() + ".stalest", stats.stalestNanos(now));
+            putHistogram(values, e.getKey() + ".gap", stats.gaps());
+        }
+        return values;
+    }
+
+    /**
+     * Every counter, every histogram that recorded anything (one line each),
+     * then one line per topic of every TopicStats.
+     */
+    public String report()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Metrics ").append(d_name).append('\n');
+        for (Map.Entry<String, AtomicLong> e : d_counters.entrySet()) {
+            sb.append(String.format("  %-40s %d%n", e.getKey(), e.getValue().get()));
+        }
+        for (Map.Entry<String, LatencyHistogram> e : d_histograms.entrySet()) {
+            if (e.getValue().count() > 0) sb.append(String.format("  %-40s %s%n", e.getKey(), e.getValue()));
+        }
+        long now = System.nanoTime();
+        for (Map.Entry<String, TopicStats> e : d_topics.entrySet()) {
+            TopicStats stats = e.getValue();
+            sb.append(String.format("  %-40s %s%n", e.getKey() + ".gap", stats.gaps()));
+            sb.append(String.format("  %-32s %10s %10s %14s %14s%n", e.getKey(), "ticks", "ticks/s", "max gap ns", "idle ns"));
+            for (int row = 0; row < stats.numTopics(); ++row) {
+                long ticks = stats.ticks(row);
+                sb.append(String.format("  %-32s %10d %10.1f %14d %14d%n", stats.topic(row), ticks, stats.rate(row),
+                        stats.maxGapNanos(row), ticks == 0 ? 0 : now - stats.lastNanos(row)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Zeroes every recorder; recordings racing with reset may be lost. */
+    public void reset()
+    {
+        for (AtomicLong counter : d_counters.values()) counter.set(0);
+        for (LatencyHistogram histogram : d_histograms.values()) histogram.reset();
+        for (TopicStats stats : d_topics.values()) stats.reset();
+    }
+
+    // JMX
+
+    public synchronized ObjectName register() throws JMException
+    {
+        if (d_objectName == null) {
+            ObjectName objectName = new ObjectName("cljblpapiwrapper:type=Metrics,name=" + ObjectName.quote(d_name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+            d_objectName = objectName;
+        }
+        return d_objectName;
+    }
+
+    public synchronized void unregister() throws JMException
+    {
+        if (d_objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(d_objectName);
+            d_objectName = null;
+        }
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException
+    {
+        Object value = snapshot().get(attribute);
+        if (value == null) throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    public AttributeList getAttributes(String[] attributes)
+    {
+        Map<String, Object> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) list.add(new Attribute(attribute, values.get(attribute)));
+        }
+        return list;
+    }
+
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+    {
+        if ("report".equals(actionName)) return report();
+        if ("reset".equals(actionName)) {
+            reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo()
+    {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Object> e : snapshot().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(),
+                    true, false, false));
+        }
+        MBeanOperationInfo[] operations = {
+            new MBeanOperationInfo("report", "Every value and the per-topic stats as text",
+                    new MBeanParameterInfo[0], String.class.getName(), MBeanOperationInfo.INFO),
+            new MBeanOperationInfo("reset", "Zeroes every recorder",
+                    new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)
+        };
+        return new MBeanInfo(Metrics.class.getName(), "cljblpapiwrapper metrics " + d_name,
+                attributes.toArray(new MBeanAttributeInfo[0]), null, operations, null);
+    }
+}
@@ -0,0 +1,182 @@
+// Destinations for the records written by AsyncOutput. A sink is only ever
+// called from the AsyncOutput writer thread, so implementations need not be
+// thread-safe. flush() is called once per drained batch. Wrap a sink in Shared
+// to feed it from more than one AsyncOutput.
+// -----------------------------------------------------------------------------
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+public interface OutputSink
+{
+    /** timestampMillis is the time the record was enqueued by the dispatcher thread. */
+    void write(long timestampMillis, String record) throws IOException;
+
+    void flush() throws IOException;
+
+    void close() throws IOException;
+
+    /** Plain text on a PrintStream, one record per line. */
+    class Console implements OutputSink
+    {
+        private final Writer d_writer;
+
+        public Console(PrintStream out)
+        {
+            d_writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        }
+
+        public void write(long timestampMillis, String record) throws IOException
+        {
+            d_writer.write(record);
+            d_writer.write('\n');
+        }
+
+        public void flush() throws IOException { d_writer.flush(); }
+
+        public void close() throws IOException { d_writer.flush(); }
+    }
+
+    /**
+     * Plain text file, rolled over once it exceeds maxBytes: path is renamed to
+     * path.1, path.1 to path.2 and so on, keeping at most maxFiles old files.
+     */
+    class RollingFile implements OutputSink
+    {
+        private final File   d_file;
+        private final long   d_maxBytes;
+        private final int    d_maxFiles;
+        private Writer       d_writer;
+        private long         d_bytes;
+
+        public RollingFile(String path, long maxBytes, int maxFiles) throws IOException
+        {
+            d_file     = new File(path);
+            d_maxBytes = maxBytes;
+            d_maxFiles = maxFiles;
+            open();
+        }
+
+        private void open() throws IOException
+        {
+            d_bytes  = d_file.length();
+            d_writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(d_file, true), StandardCharsets.UTF_8), 1 << 16);
+        }
+
+        private void roll() throws IOException
+        {
+            d_writer.close();
+            for (int i = d_maxFiles - 1; i >= 1; --i) {
+                File from = new File(d_file.getPath() + "." + i);
+                if (from.exists()) {
+                    File to = new File(d_file.getPath() + "." + (i + 1));
+                    to.delete();
+                    from.renameTo(to);
+                }
+            }
+            File first = new File(d_file.getPath() + ".1");
+            first.delete();
+            d_file.renameTo(first);
+            open();
+        }
+
+        public void write(long timestampMillis, String record) throws IOException
+        {
+            if (d_bytes >= d_maxBytes) roll();
+            d_writer.write(record);
+            d_writer.write('\n');
+            d_bytes += utf8Length(record) + 1;
+        }
+
+        /** Length of s in UTF-8, without encoding it. */
+        private static long utf8Length(String s)
+        {
+            long bytes = 0;
+            for (int i = 0, n = s.length(); i < n; ++i) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    bytes += 1;
+                } else if (c < 0x800) {
+                    bytes += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    bytes += 4;
+                    ++i;
+                } else {
+                    bytes += 3;
+                }
+            }
+            return bytes;
+        }
+
+        public void flush() throws IOException { d_writer.flush(); }
+
+        public void close() throws IOException { d_writer.close(); }
+    }
+
+    /**
+     * Length-prefixed binary records: [long timestampMillis][int length][UTF-8 bytes].
+     * Cheaper to write than text and keeps the enqueue time of every record.
+     */
+    class BinaryLog implements OutputSink
+    {
+        private final DataOutputStream d_out;
+
+        public BinaryLog(String path) throws IOException
+        {
+            d_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path, true), 1 << 16));
+        }
+
+        public void write(long timestampMillis, String record) throws IOException
+        {
+            byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+            d_out.writeLong(timestampMillis);
+            d_out.writeInt(bytes.length);
+            d_out.write(bytes);
+        }
+
+        public void flush() throws IOException { d_out.flush(); }
+
+        public void close() throws IOException { d_out.close(); }
+    }
+
+    /**
+     * One sink written by several AsyncOutput writer threads (e.g. the handler
+     * output and the conflation flusher). Every call holds the lock, so records
+     * never interleave; the wrapped sink is closed by the last of the users.
+     */
+    class Shared implements OutputSink
+    {
+        private final OutputSink d_sink;
+        private int              d_users;
+
+        public Shared(OutputSink sink, int users)
+        {
+            d_sink  = sink;
+            d_users = users;
+        }
+
+        public synchronized void write(long timestampMillis, String record) throws IOException
+        {
+            d_sink.write(timestampMillis, record);
+        }
+
+        public synchronized void flush() throws IOException { d_sink.flush(); }
+
+        public synchronized void close() throws IOException
+        {
+            if (--d_users == 0) {
+                d_sink.close();
+            } else {
+                d_sink.flush();
+            }
+        }
+    }
+}
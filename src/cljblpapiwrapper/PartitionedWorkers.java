@@ -0,0 +1,162 @@
+// Pool of worker threads that subscription messages are handed to by
+// correlation id, so that decoding and printing run on several cores while
+// every topic is still processed in order.
+//
+// A topic always goes to the same worker (a hash of its cid picks the queue),
+// and each worker processes its queue in order, so messages of one topic are
+// processed in the order they were dispatched. Different topics run in
+// parallel. Each worker owns its Worker object: state that is per topic (a
+// SubscriptionRegistry entry, a TickDecoder or SnapshotStore row, a Conflator
+// row) only ever has one writer.
+//
+// Queues are bounded: dispatch() blocks once a worker is capacity messages
+// behind, which pushes back on the BLPAPI dispatcher and shows up as
+// SlowConsumerWarning rather than as unbounded memory. Worker.flush() is
+// called every time a worker has drained its queue, i.e. once per batch.
+// -----------------------------------------------------------------------------
+
+import com.bloomberglp.blpapi.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class PartitionedWorkers
+{
+    private static final long POLL_MILLIS = 100;
+
+    public interface Worker
+    {
+        void process(Message message) throws Exception;
+
+        /** The queue of this worker is empty for now. */
+        void flush() throws Exception;
+    }
+
+    private final Worker[]                          d_workers;
+    private final List<ArrayBlockingQueue<Message>> d_queues;
+    private final Thread[]                          d_threads;
+    private final int                               d_capacity;
+    private final int                               d_batchSize;
+
+    private final AtomicLong                        d_dispatched = new AtomicLong();
+    private final AtomicLong                        d_blocked    = new AtomicLong();
+    private final AtomicLong[]                      d_processed;
+    private final AtomicLong                        d_errors     = new AtomicLong();
+    private volatile boolean                        d_isStopped;
+
+    public PartitionedWorkers(Worker[] workers, int capacity, int batchSize)
+    {
+        d_workers   = workers;
+        d_capacity  = Math.max(1, capacity);
+        d_batchSize = Math.max(1, batchSize);
+        d_queues    = new ArrayList<ArrayBlockingQueue<Message>>(workers.length);
+        d_threads   = new Thread[workers.length];
+        d_processed = new AtomicLong[workers.length];
+        for (int i = 0; i < workers.length; ++i) {
+            final int index = i;
+            d_queues.add(new ArrayBlockingQueue<Message>(d_capacity));
+            d_processed[i] = new AtomicLong();
+            d_threads[i]   = new Thread(new Runnable() {
+                public void run() { workLoop(index); }
+            }, "subscription-worker-" + i);
+            d_threads[i].setDaemon(true);
+        }
+    }
+
+    public PartitionedWorkers start()
+    {
+        for (Thread thread : d_threads) {
+            thread.start();
+        }
+        return this;
+    }
+
+    /** Index of the worker of cid. */
+    public int workerOf(long cid)
+    {
+        long h = cid * 0x9E3779B97F4A7C15L;
+        return (int) (((h ^ (h >>> 32)) & 0x7fffffffL) % d_workers.length);
+    }
+
+    /** Queues message for the worker of cid, waiting while that worker is full. */
+    public void dispatch(long cid, Message message) throws InterruptedException
+    {
+        ArrayBlockingQueue<Message> queue = d_queues.get(workerOf(cid));
+        if (!queue.offer(message)) {
+            d_blocked.incrementAndGet();
+            queue.put(message);
+        }
+        d_dispatched.incrementAndGet();
+    }
+
+    private void workLoop(int index)
+    {
+        ArrayBlockingQueue<Message> queue = d_queues.get(index);
+        Worker worker = d_workers[index];
+        ArrayList<Message> batch = new ArrayList<Message>(d_batchSize);
+        while (true) {
+            try {
+                Message first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (d_isStopped) return;
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, d_batchSize - 1);
+                for (Message message : batch) {
+                    try {
+                        worker.process(message);
+                    } catch (Exception e) {
+                        d_errors.incrementAndGet();
+                    }
+                }
+                d_processed[index].addAndGet(batch.size());
+                batch.clear();
+                if (queue.isEmpty()) worker.flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                d_errors.incrementAndGet();
+            }
+        }
+    }
+
+    /** Lets the workers finish what is queued, then stops them. */
+    public void stop() throws InterruptedException
+    {
+        d_isStopped = true;
+        for (Thread thread : d_threads) {
+            thread.join();
+        }
+    }
+
+    public int size()                  { return d_workers.length; }
+    public int depth(int worker)       { return d_queues.get(worker).size(); }
+    public long processed(int worker)  { return d_processed[worker].get(); }
+    public long dispatched()           { return d_dispatched.get(); }
+    public long blocked()              { return d_blocked.get(); }
+    public long errors()               { return d_errors.get(); }
+
+    /** Fill (0..1) of the fullest worker queue. */
+    public double maxFill()
+    {
+        int depth = 0;
+        for (ArrayBlockingQueue<Message> queue : d_queues) {
+            depth = Math.max(depth, queue.size());
+        }
+        return (double) depth / d_capacity;
+    }
+
+    public String toString()
+    {
+        StringBuilder processed = new StringBuilder();
+        for (int i = 0; i < d_workers.length; ++i) {
+            processed.append(i == 0 ? "" : ",").append(processed(i));
+        }
+        return String.format("workers=%d dispatched=%d processed=[%s] blocked=%d maxFill=%.2f errors=%d",
+                d_workers.length, dispatched(), processed, blocked(), maxFill(), errors());
+    }
+}
@@ -0,0 +1,253 @@
+// Cache of reference data values by (security, field, variant), the variant
+// standing for everything else that changes the value: overrides, typed or
+// string values.
+//
+// Every field has a time to live (its TTL class, see core/refdata-cache);
+// expired values are reloaded on the next lookup. Concurrent lookups of the
+// same key share one load: the first caller gets a Lookup that isLoader() and
+// must complete() or fail() it, the others wait on the same future. Values may
+// be null (a field without value is cached like any other).
+//
+// The cache holds at most maximumSize values. Eviction is LRU with a TinyLFU
+// admission filter: a count-min sketch counts how often every key is looked
+// up (halved every 10 x maximumSize lookups so that it follows changes), and a
+// new value only displaces the least recently used one if its key has been
+// looked up more often. Keys looked up once (e.g. a one-off universe download)
+// therefore do not flush the values that are used all day. Expired values are
+// evicted first, without the filter.
+// -----------------------------------------------------------------------------
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public final class RefdataCache
+{
+    private static final int SKETCH_ROWS = 4;
+
+    /** What lookup() found: a value, a load in flight, or a load for the caller to do. */
+    public static final class Lookup
+    {
+        private final CompletableFuture<Object> d_future;
+        private final boolean                   d_isLoader;
+
+        Lookup(CompletableFuture<Object> future, boolean isLoader)
+        {
+            d_future   = future;
+            d_isLoader = isLoader;
+        }
+
+        /** Done for a cached value; otherwise completed by whoever loads the key. */
+        public CompletableFuture<Object> future()  { return d_future; }
+
+        /** The caller must complete() or fail() this key. */
+        public boolean isLoader()                  { return d_isLoader; }
+    }
+
+    private static final class Key
+    {
+        final String d_security;
+        final String d_field;
+        final String d_variant;
+        final int    d_hash;
+
+        Key(String security, String field, String variant)
+        {
+            d_security = security;
+            d_field    = field;
+            d_variant  = variant;
+            d_hash     = (security.hashCode() * 31 + field.hashCode()) * 31 + variant.hashCode();
+        }
+
+        public int hashCode() { return d_hash; }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return d_hash == k.d_hash && d_security.equals(k.d_security) && d_field.equals(k.d_field)
+                    && d_variant.equals(k.d_variant);
+        }
+    }
+
+    private static final class Entry
+    {
+        final CompletableFuture<Object> d_future = new CompletableFuture<Object>();
+        long                            d_expiresAt;      // nanos; set once loaded
+        boolean                         d_isInvalidated;  // invalidated while loading: not cached
+    }
+
+    private final int                       d_maximumSize;
+    private final long                      d_defaultTtlNanos;
+    private final Map<String, Long>         d_ttlNanos = new HashMap<String, Long>();
+    private final LinkedHashMap<Key, Entry> d_entries  = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final Map<Key, Entry>           d_loading  = new HashMap<Key, Entry>();
+
+    private final int[]                     d_sketch;
+    private final int                       d_sketchMask;
+    private int                             d_sketchAdditions;
+
+    private long                            d_hits;
+    private long                            d_waits;
+    private long                            d_loads;
+    private long                            d_evictions;
+    private long                            d_expirations;
+    private long                            d_rejections;
+
+    /**
+     * @param fieldTtlMillis time to live of the fields that do not use
+     *                       defaultTtlMillis
+     */
+    public RefdataCache(int maximumSize, long defaultTtlMillis, Map<String, Long> fieldTtlMillis)
+    {
+        d_maximumSize     = Math.max(1, maximumSize);
+        d_defaultTtlNanos = defaultTtlMillis * 1000000L;
+        for (Map.Entry<String, Long> e : fieldTtlMillis.entrySet()) {
+            d_ttlNanos.put(e.getKey(), e.getValue() * 1000000L);
+        }
+        int width = Integer.highestOneBit(Math.max(16, d_maximumSize - 1) * 2);
+        d_sketch     = new int[SKETCH_ROWS * width];
+        d_sketchMask = width - 1;
+    }
+
+    private long ttlNanos(String field)
+    {
+        Long ttl = d_ttlNanos.get(field);
+        return ttl != null ? ttl : d_defaultTtlNanos;
+    }
+
+    // Frequency sketch ////////////////////////////////////////////////////////
+
+    private int slot(int hash, int row)
+    {
+        int h = (hash ^ (hash >>> 16)) * (0x9E3779B1 + 2 * row);
+        return row * (d_sketchMask + 1) + ((h ^ (h >>> 15)) & d_sketchMask);
+    }
+
+    private void countLookup(Key key)
+    {
+        for (int row = 0; row < SKETCH_ROWS; ++row) {
+            int i = slot(key.d_hash, row);
+            if (d_sketch[i] < 15) d_sketch[i]++;
+        }
+        if (++d_sketchAdditions >= 10 * d_maximumSize) {
+            for (int i = 0; i < d_sketch.length; ++i) d_sketch[i] >>>= 1;
+            d_sketchAdditions /= 2;
+        }
+    }
+
+    private int frequency(Key key)
+    {
+        int f = Integer.MAX_VALUE;
+        for (int row = 0; row < SKETCH_ROWS; ++row) f = Math.min(f, d_sketch[slot(key.d_hash, row)]);
+        return f;
+    }
+
+    // Lookups /////////////////////////////////////////////////////////////////
+
+    public synchronized Lookup lookup(String security, String field, String variant)
+    {
+        Key key = new Key(security, field, variant);
+        countLookup(key);
+        Entry entry = d_loading.get(key);
+        if (entry != null) {
+            d_waits++;
+            return new Lookup(entry.d_future, false);
+        }
+        entry = d_entries.get(key);
+        if (entry != null) {
+            if (entry.d_expiresAt - System.nanoTime() > 0) {
+                d_hits++;
+                return new Lookup(entry.d_future, false);
+            }
+            d_entries.remove(key);
+            d_expirations++;
+        }
+        entry = new Entry();
+        d_loading.put(key, entry);
+        d_loads++;
+        return new Lookup(entry.d_future, true);
+    }
+
+    /** Completes a load: waiters get value, and it is cached unless the admission filter prefers what is there. */
+    public void complete(String security, String field, String variant, Object value)
+    {
+        Entry entry;
+        synchronized (this) {
+            Key key = new Key(security, field, variant);
+            entry = d_loading.remove(key);
+            if (entry == null) return;
+            long now = System.nanoTime();
+            entry.d_expiresAt = now + ttlNanos(field);
+            if (!entry.d_isInvalidated && admit(key, now)) d_entries.put(key, entry);
+        }
+        entry.d_future.complete(value);
+    }
+
+    /** Fails a load: waiters get e, nothing is cached. */
+    public void fail(String security, String field, String variant, Throwable e)
+    {
+        Entry entry;
+        synchronized (this) {
+            entry = d_loading.remove(new Key(security, field, variant));
+        }
+        if (entry != null) entry.d_future.completeExceptionally(e);
+    }
+
+    /** Makes room for key if the cache is full: expired values first, then the LRU one if key is used more. */
+    private boolean admit(Key key, long now)
+    {
+        if (d_entries.size() < d_maximumSize) return true;
+        for (Iterator<Map.Entry<Key, Entry>> it = d_entries.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue().d_expiresAt - now <= 0) {
+                it.remove();
+                d_expirations++;
+            }
+        }
+        if (d_entries.size() < d_maximumSize) return true;
+        Map.Entry<Key, Entry> eldest = d_entries.entrySet().iterator().next();
+        if (frequency(key) <= frequency(eldest.getKey())) {
+            d_rejections++;
+            return false;
+        }
+        d_entries.remove(eldest.getKey());
+        d_evictions++;
+        return true;
+    }
+
+    /**
+     * Drops every value of field, or every value when field is null. Loads of
+     * those keys in flight still complete their waiters, but are not cached.
+     */
+    public synchronized void invalidate(String field)
+    {
+        for (Map.Entry<Key, Entry> loading : d_loading.entrySet()) {
+            if (field == null || loading.getKey().d_field.equals(field)) loading.getValue().d_isInvalidated = true;
+        }
+        if (field == null) {
+            d_entries.clear();
+            return;
+        }
+        for (Iterator<Key> it = d_entries.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().d_field.equals(field)) it.remove();
+        }
+    }
+
+    public synchronized int size()            { return d_entries.size(); }
+    public synchronized int loading()         { return d_loading.size(); }
+    public synchronized long hits()           { return d_hits; }
+    public synchronized long waits()          { return d_waits; }
+    public synchronized long loads()          { return d_loads; }
+    public synchronized long evictions()      { return d_evictions; }
+    public synchronized long expirations()    { return d_expirations; }
+    public synchronized long rejections()     { return d_rejections; }
+
+    public synchronized String toString()
+    {
+        return String.format("RefdataCache[size=%d/%d loading=%d hits=%d waits=%d loads=%d evictions=%d expirations=%d rejections=%d]",
+                d_entries.size(), d_maximumSize, d_loading.size(), d_hits, d_waits, d_loads, d_evictions,
+                d_expirations, d_rejections);
+    }
+}
@@ -0,0 +1,1015 @@
+// In-process stand-in for a Bloomberg session, to run core.clj and
+// test_with_uuid_a without a terminal or B-PIPE host and to load test them.
+//
+// It answers //blp/refdata ReferenceDataRequest / HistoricalDataRequest and
+// //blp/mktdata subscriptions with events built by the SDK's TestUtil, so the
+// code under test reads real Message objects. A ProviderSession would need a
+// broker to publish through; the emulator overrides the Session calls instead.
+//
+// Every event goes through one queue, read by nextEvent() or, when the
+// emulator has an EventHandler, by an "emulator-dispatcher" thread:
+//
+// - requests are served by serverThreads threads, each answering after
+//   latencyMillis and then spending cellMicros per security x field (x point
+//   for history), in PARTIAL_RESPONSE events of securitiesPerMessage
+//   securities (one security per message for history) ending in a RESPONSE;
+// - subscriptions are acknowledged with SubscriptionStarted after
+//   latencyMillis, then tick ticksPerSecond times a second each (at most once
+//   per interval= seconds), ticksPerEvent messages to an event, each tick
+//   carrying the subscribed fields and, with payloadBytes, a PAYLOAD string;
+// - once more than slowConsumerMessages messages are queued a
+//   SlowConsumerWarning is delivered, and a SlowConsumerWarningCleared once
+//   the queue is down to half of that. Ticks that do not fit in queueMessages
+//   are dropped and reported, at most once a second, as InProc DataLoss for
+//   their topics. injectSlowConsumerWarning() and injectDataLoss() add them
+//   by hand.
+//
+// //blp/apiauth answers AuthorizationRequest (sendAuthorizationRequest
+// without an EventQueue, or authorizationResponse() in place of one) after
+// latencyMillis with AuthorizationSuccess, or AuthorizationFailure for the
+// uuids in Options.deniedUuids; injectAuthorizationRevoked() revokes an
+// authorization. Identities from createIdentity() are entitled to everything.
+//
+// Fields are Float64, except NAME (refdata) and PAYLOAD (mktdata) which are
+// strings; fields missing from Options.fields are left out of responses and
+// ticks. Values are value(security, field), plus the point index in history,
+// and a random walk from there for ticks. Ticks carry the time they were
+// generated as their receive time (Message.timeReceivedMillis), so that the
+// queue lag of a consumer can be measured.
+// -----------------------------------------------------------------------------
+
+import com.bloomberglp.blpapi.CorrelationID;
+import com.bloomberglp.blpapi.Datetime;
+import com.bloomberglp.blpapi.Element;
+import com.bloomberglp.blpapi.EventQueue;
+import com.bloomberglp.blpapi.Event;
+import com.bloomberglp.blpapi.EventHandler;
+import com.bloomberglp.blpapi.Identity;
+import com.bloomberglp.blpapi.Message;
+import com.bloomberglp.blpapi.Name;
+import com.bloomberglp.blpapi.Request;
+import com.bloomberglp.blpapi.SchemaElementDefinition;
+import com.bloomberglp.blpapi.Service;
+import com.bloomberglp.blpapi.Session;
+import com.bloomberglp.blpapi.SessionOptions;
+import com.bloomberglp.blpapi.Subscription;
+import com.bloomberglp.blpapi.SubscriptionList;
+import com.bloomberglp.blpapi.test.MessageFormatter;
+import com.bloomberglp.blpapi.test.MessageProperties;
+import com.bloomberglp.blpapi.test.TestUtil;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class SessionEmulator extends Session
+{
+    public static final String REFDATA = "//blp/refdata";
+    public static final String MKTDATA = "//blp/mktdata";
+    public static final String APIAUTH = "//blp/apiauth";
+
+    public static final List<String> DEFAULT_FIELDS = Arrays.asList(
+            "BID", "ASK", "LAST_PRICE", "VOLUME", "PX_LAST", "PX_OPEN", "PX_HIGH", "PX_LOW",
+            "PX_BID", "PX_ASK", "PX_MID", "PX_VOLUME", "CUR_MKT_CAP", "EQY_BETA");
+
+    private static final long TICK_MILLIS        = 10;
+    private static final long LOSS_REPORT_NANOS  = 1000000000L;
+    private static final TimeZone UTC            = TimeZone.getTimeZone("UTC");
+
+    private static final Name SECURITIES           = Name.getName("securities");
+    private static final Name FIELDS               = Name.getName("fields");
+    private static final Name START_DATE           = Name.getName("startDate");
+    private static final Name END_DATE             = Name.getName("endDate");
+    private static final Name PERIODICITY          = Name.getName("periodicitySelection");
+    private static final Name SECURITY_DATA        = Name.getName("securityData");
+    private static final Name SECURITY             = Name.getName("security");
+    private static final Name FIELD_DATA           = Name.getName("fieldData");
+    private static final Name DATE                 = Name.getName("date");
+    private static final Name NAME                 = Name.getName("NAME");
+    private static final Name PAYLOAD              = Name.getName("PAYLOAD");
+    private static final Name SOURCE               = Name.getName("source");
+    private static final Name NUM_MESSAGES_DROPPED = Name.getName("numMessagesDropped");
+    private static final Name EVENTS_DROPPED       = Name.getName("eventsDropped");
+    private static final Name REASON               = Name.getName("reason");
+    private static final Name DESCRIPTION          = Name.getName("description");
+    private static final Name UUID                 = Name.getName("uuid");
+
+    /** Settings of an emulator; the setters return this. */
+    public static final class Options
+    {
+        List<String> d_fields               = DEFAULT_FIELDS;
+        long         d_latencyMillis        = 5;
+        long         d_cellMicros           = 0;
+        int          d_serverThreads        = 4;
+        int          d_securitiesPerMessage = 10;
+        double       d_ticksPerSecond       = 10;
+        int          d_ticksPerEvent        = 16;
+        int          d_payloadBytes         = 0;
+        int          d_queueMessages        = 100000;
+        int          d_slowConsumerMessages = 50000;
+        long         d_seed                 = 1;
+        Set<String>  d_deniedUuids          = new HashSet<String>();
+
+        public Options fields(List<String> fields)         { d_fields = new ArrayList<String>(fields); return this; }
+        public Options latencyMillis(long millis)          { d_latencyMillis = millis; return this; }
+        public Options cellMicros(long micros)             { d_cellMicros = micros; return this; }
+        public Options serverThreads(int threads)          { d_serverThreads = Math.max(1, threads); return this; }
+        public Options securitiesPerMessage(int n)         { d_securitiesPerMessage = Math.max(1, n); return this; }
+        public Options ticksPerSecond(double ticks)        { d_ticksPerSecond = ticks; return this; }
+        public Options ticksPerEvent(int n)                { d_ticksPerEvent = Math.max(1, n); return this; }
+        public Options payloadBytes(int bytes)             { d_payloadBytes = Math.max(0, bytes); return this; }
+        public Options queueMessages(int messages)         { d_queueMessages = Math.max(1, messages); return this; }
+        public Options slowConsumerMessages(int messages)  { d_slowConsumerMessages = Math.max(1, messages); return this; }
+        public Options seed(long seed)                     { d_seed = seed; return this; }
+        public Options deniedUuids(List<String> uuids)     { d_deniedUuids = new HashSet<String>(uuids); return this; }
+
+        public String toString()
+        {
+            return String.format("latency=%dms cell=%dus serverThreads=%d securitiesPerMessage=%d ticksPerSecond=%s "
+                    + "ticksPerEvent=%d payload=%dB queue=%d slowConsumer=%d fields=%s",
+                    d_latencyMillis, d_cellMicros, d_serverThreads, d_securitiesPerMessage, d_ticksPerSecond,
+                    d_ticksPerEvent, d_payloadBytes, d_queueMessages, d_slowConsumerMessages, d_fields);
+        }
+    }
+
+    private static final class Queued
+    {
+        final Event d_event;
+        final int   d_messages;
+
+        Queued(Event event, int messages) { d_event = event; d_messages = messages; }
+    }
+
+    // a subscription; d_values, d_nextNanos and d_dropped belong to the tick thread
+    private static final class Topic
+    {
+        final CorrelationID d_cid;
+        final String        d_security;
+        final double[]      d_values;
+        volatile int[]      d_fields;
+        volatile long       d_intervalNanos;
+        long                d_nextNanos;
+        int                 d_dropped;
+
+        Topic(CorrelationID cid, String security, int numFields)
+        {
+            d_cid      = cid;
+            d_security = security;
+            d_values   = new double[numFields];
+        }
+    }
+
+    private final Options                                   d_options;
+    private final EventHandler                              d_handler;
+    private final String[]                                  d_fields;
+    private final Name[]                                    d_names;
+    private final Map<String, Integer>                      d_fieldIndex = new HashMap<String, Integer>();
+    private final Service                                   d_refdata;
+    private final Service                                   d_mktdata;
+    private final Service                                   d_apiauth;
+    private final SchemaElementDefinition                   d_marketDataEvents;
+    private final String                                    d_payload;
+
+    private final LinkedBlockingQueue<Queued>               d_queue = new LinkedBlockingQueue<Queued>();
+    private final Object                                    d_lock  = new Object();
+    private int                                             d_queued;       // messages; d_lock
+    private boolean                                         d_isSlow;       // d_lock
+
+    private final ConcurrentHashMap<CorrelationID, Topic>   d_topics   = new ConcurrentHashMap<CorrelationID, Topic>();
+    private final ConcurrentHashMap<CorrelationID, Boolean> d_requests = new ConcurrentHashMap<CorrelationID, Boolean>();
+    private ScheduledExecutorService                        d_server;
+    private Thread                                          d_ticker;
+    private Thread                                          d_dispatcher;
+    private volatile boolean                                d_isStarted;
+    private volatile boolean                                d_isStopped;
+
+    private final AtomicLong                                d_requestCount   = new AtomicLong();
+    private final AtomicLong                                d_ticks          = new AtomicLong();
+    private final AtomicLong                                d_dropped        = new AtomicLong();
+    private final AtomicLong                                d_dataLosses     = new AtomicLong();
+    private final AtomicLong                                d_handlerErrors  = new AtomicLong();
+    private final AtomicInteger                             d_slowConsumerWarnings = new AtomicInteger();
+
+    public SessionEmulator(Options options)
+    {
+        this(options, null);
+    }
+
+    /** With a handler, events are delivered to it on an emulator thread instead of nextEvent(). */
+    public SessionEmulator(Options options, EventHandler handler)
+    {
+        super(new SessionOptions());
+        d_options = options;
+        d_handler = handler;
+        d_fields  = options.d_fields.toArray(new String[0]);
+        d_names   = new Name[d_fields.length];
+        for (int f = 0; f < d_fields.length; ++f) {
+            d_names[f] = Name.getName(d_fields[f]);
+            d_fieldIndex.put(d_fields[f], f);
+        }
+        d_refdata = service(refdataSchema(d_fields));
+        d_mktdata = service(mktdataSchema(d_fields));
+        d_apiauth = service(APIAUTH_SCHEMA);
+        d_marketDataEvents = d_mktdata.getEventDefinition(Name.getName("MarketDataEvents"));
+        char[] payload = new char[options.d_payloadBytes];
+        Arrays.fill(payload, 'x');
+        d_payload = new String(payload);
+    }
+
+    private static Service service(String schema)
+    {
+        return TestUtil.deserializeService(new ByteArrayInputStream(schema.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String element(String name, String type, String maxOccurs)
+    {
+        return "<element name=\"" + name + "\" type=\"" + type + "\" minOccurs=\"0\" maxOccurs=\"" + maxOccurs + "\"/>";
+    }
+
+    private static String serviceHeader(String name)
+    {
+        return "<ServiceDefinition name=\"" + name.substring(2).replace('/', '.') + "\" version=\"1.0.0.0\">"
+             + "<service name=\"" + name + "\" version=\"1.0.0.0\">";
+    }
+
+    private static final String SERVICE_FOOTER =
+            "<defaultServiceId>1</defaultServiceId>"
+          + "<publisherSupportsRecap>true</publisherSupportsRecap>"
+          + "<authoritativeSourceSupportsRecap>true</authoritativeSourceSupportsRecap>"
+          + "<isInfrastructureService>false</isInfrastructureService>"
+          + "<isMetered>false</isMetered><appendMtrId>false</appendMtrId></service>";
+
+    static String refdataSchema(String[] fields)
+    {
+        StringBuilder sb = new StringBuilder(serviceHeader(REFDATA));
+        for (String operation : new String[]{"ReferenceData", "HistoricalData"}) {
+            sb.append("<operation name=\"").append(operation).append("Request\" serviceId=\"1\">")
+              .append("<request>").append(operation).append("Request</request><response>Response</response>")
+              .append("<responseSelection>").append(operation).append("Response</responseSelection></operation>");
+        }
+        sb.append(SERVICE_FOOTER).append("<schema>")
+          .append("<sequenceType name=\"ReferenceDataRequest\">")
+          .append(element("securities", "String", "unbounded")).append(element("fields", "String", "unbounded"))
+          .append(element("overrides", "Override", "unbounded")).append("</sequenceType>")
+          .append("<sequenceType name=\"Override\"><element name=\"fieldId\" type=\"String\"/>")
+          .append("<element name=\"value\" type=\"String\"/></sequenceType>")
+          .append("<sequenceType name=\"HistoricalDataRequest\">")
+          .append(element("securities", "String", "unbounded")).append(element("fields", "String", "unbounded"))
+          .append(element("startDate", "String", "1")).append(element("endDate", "String", "1"))
+          .append(element("adjustmentSplit", "Boolean", "1")).append(element("periodicitySelection", "String", "1"))
+          .append(element("overrides", "Override", "unbounded")).append("</sequenceType>")
+          .append("<sequenceType name=\"FieldData\">")
+          .append(element("date", "Date", "1")).append(element("NAME", "String", "1"));
+        for (String field : fields) {
+            if (!field.equals("NAME")) sb.append(element(field, "Float64", "1"));
+        }
+        sb.append("</sequenceType>")
+          .append("<sequenceType name=\"ReferenceSecurityData\"><element name=\"security\" type=\"String\"/>")
+          .append("<element name=\"fieldData\" type=\"FieldData\"/></sequenceType>")
+          .append("<sequenceType name=\"HistoricalSecurityData\"><element name=\"security\" type=\"String\"/>")
+          .append(element("fieldData", "FieldData", "unbounded")).append("</sequenceType>")
+          .append("<sequenceType name=\"ReferenceDataResponseType\">")
+          .append(element("securityData", "ReferenceSecurityData", "unbounded")).append("</sequenceType>")
+          .append("<sequenceType name=\"HistoricalDataResponseType\">")
+          .append("<element name=\"securityData\" type=\"HistoricalSecurityData\"/></sequenceType>")
+          .append("<choiceType name=\"Response\">")
+          .append("<element name=\"ReferenceDataResponse\" type=\"ReferenceDataResponseType\"/>")
+          .append("<element name=\"HistoricalDataResponse\" type=\"HistoricalDataResponseType\"/>")
+          .append("</choiceType></schema></ServiceDefinition>");
+        return sb.toString();
+    }
+
+    static String mktdataSchema(String[] fields)
+    {
+        StringBuilder sb = new StringBuilder(serviceHeader(MKTDATA));
+        sb.append("<event name=\"MarketDataEvents\" eventType=\"MarketDataUpdate\"><eventId>0</eventId></event>")
+          .append(SERVICE_FOOTER).append("<schema><sequenceType name=\"MarketDataUpdate\">");
+        for (String field : fields) {
+            if (!field.equals("PAYLOAD")) sb.append(element(field, "Float64", "1"));
+        }
+        sb.append(element("PAYLOAD", "String", "1")).append("</sequenceType></schema></ServiceDefinition>");
+        return sb.toString();
+    }
+
+    static final String APIAUTH_SCHEMA = serviceHeader(APIAUTH)
+          + "<operation name=\"AuthorizationRequest\" serviceId=\"1\">"
+          + "<request>AuthorizationRequest</request><response>AuthorizationResponse</response>"
+          + "<responseSelection>AuthorizationSuccess</responseSelection>"
+          + "<responseSelection>AuthorizationFailure</responseSelection>"
+          + "<responseSelection>AuthorizationRevoked</responseSelection>"
+          + "<responseSelection>EntitlementChanged</responseSelection></operation>"
+          + SERVICE_FOOTER + "<schema><sequenceType name=\"AuthorizationRequest\">"
+          + element("uuid", "Int32", "1") + element("ipAddress", "String", "1") + "</sequenceType>"
+          + "<sequenceType name=\"Empty\"/>"
+          + "<sequenceType name=\"Reason\">" + element("message", "String", "1") + "</sequenceType>"
+          + "<choiceType name=\"AuthorizationResponse\">"
+          + "<element name=\"AuthorizationSuccess\" type=\"Empty\"/>"
+          + "<element name=\"AuthorizationFailure\" type=\"Reason\"/>"
+          + "<element name=\"AuthorizationRevoked\" type=\"Reason\"/>"
+          + "<element name=\"EntitlementChanged\" type=\"Reason\"/>"
+          + "</choiceType></schema></ServiceDefinition>";
+
+    /** The value served for field of security (history adds the point index). */
+    public static double value(String security, String field)
+    {
+        return Math.floorMod((security + "|" + field).hashCode(), 1000) + 1;
+    }
+
+    // Session lifecycle ///////////////////////////////////////////////////////
+
+    private static ThreadFactory daemon(final String name)
+    {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public synchronized boolean start()
+    {
+        if (d_isStarted) return true;
+        d_isStarted = true;
+        d_server = Executors.newScheduledThreadPool(d_options.d_serverThreads, daemon("emulator-server"));
+        d_ticker = daemon("emulator-ticks").newThread(new Runnable() {
+            public void run() { tickLoop(); }
+        });
+        d_ticker.start();
+        if (d_handler != null) {
+            d_dispatcher = daemon("emulator-dispatcher").newThread(new Runnable() {
+                public void run() { dispatchLoop(); }
+            });
+            d_dispatcher.start();
+        }
+        enqueue(admin(Event.EventType.SESSION_STATUS, "SessionStarted", null), 1, false);
+        return true;
+    }
+
+    public void startAsync()
+    {
+        start();
+    }
+
+    public void stop()
+    {
+        synchronized (this) {
+            if (d_isStopped || !d_isStarted) {
+                d_isStopped = true;
+                return;
+            }
+            d_isStopped = true;
+        }
+        d_server.shutdownNow();
+        d_ticker.interrupt();
+        enqueue(admin(Event.EventType.SESSION_STATUS, "SessionTerminated", null), 1, false);
+        if (d_dispatcher != null) {
+            try {
+                d_dispatcher.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            d_dispatcher.interrupt();
+        }
+    }
+
+    public void stop(StopOption option)
+    {
+        stop();
+    }
+
+    public boolean openService(String name)
+    {
+        return getService(name) != null;
+    }
+
+    public Service getService(String name)
+    {
+        return REFDATA.equals(name) ? d_refdata : MKTDATA.equals(name) ? d_mktdata
+             : APIAUTH.equals(name) ? d_apiauth : null;
+    }
+
+    // Events //////////////////////////////////////////////////////////////////
+
+    private static Event admin(Event.EventType type, String message, CorrelationID cid)
+    {
+        Event event = TestUtil.createEvent(type);
+        MessageProperties properties = new MessageProperties();
+        if (cid != null) properties.setCorrelationId(cid);
+        TestUtil.appendMessage(event, TestUtil.getAdminMessageDefinition(Name.getName(message)), properties);
+        return event;
+    }
+
+    /** Queues event unless droppable and there is no room for it; warns of a slow consumer. */
+    private boolean enqueue(Event event, int messages, boolean droppable)
+    {
+        synchronized (d_lock) {
+            if (droppable && d_queued + messages > d_options.d_queueMessages) return false;
+            d_queued += messages;
+            d_queue.add(new Queued(event, messages));
+            if (!d_isSlow && d_queued > d_options.d_slowConsumerMessages) {
+                d_isSlow = true;
+                d_slowConsumerWarnings.incrementAndGet();
+                d_queued++;
+                d_queue.add(new Queued(admin(Event.EventType.ADMIN, "SlowConsumerWarning", null), 1));
+            }
+            return true;
+        }
+    }
+
+    private Event dequeued(Queued queued)
+    {
+        synchronized (d_lock) {
+            d_queued -= queued.d_messages;
+            if (d_isSlow && d_queued <= d_options.d_slowConsumerMessages / 2) {
+                d_isSlow = false;
+                Event cleared = admin(Event.EventType.ADMIN, "SlowConsumerWarningCleared", null);
+                d_queued++;
+                d_queue.add(new Queued(cleared, 1));
+            }
+        }
+        return queued.d_event;
+    }
+
+    public Event nextEvent() throws InterruptedException
+    {
+        if (d_handler != null) throw new IllegalStateException("Events go to the EventHandler of this session");
+        return dequeued(d_queue.take());
+    }
+
+    public Event nextEvent(long timeoutMillis) throws InterruptedException
+    {
+        if (d_handler != null) throw new IllegalStateException("Events go to the EventHandler of this session");
+        Queued queued = d_queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        return queued == null ? TestUtil.createEvent(Event.EventType.TIMEOUT) : dequeued(queued);
+    }
+
+    public Event tryNextEvent()
+    {
+        Queued queued = d_handler == null ? d_queue.poll() : null;
+        return queued == null ? null : dequeued(queued);
+    }
+
+    private void dispatchLoop()
+    {
+        while (true) {
+            Event event;
+            try {
+                Queued queued = d_queue.poll(TICK_MILLIS * 10, TimeUnit.MILLISECONDS);
+                if (queued == null) {
+                    if (d_isStopped) return;
+                    continue;
+                }
+                event = dequeued(queued);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                d_handler.processEvent(event, this);
+            } catch (Throwable e) {
+                d_handlerErrors.incrementAndGet();   // like a real session, keep dispatching
+            }
+            if (d_isStopped && event.eventType() == Event.EventType.SESSION_STATUS && d_queue.isEmpty()) return;
+        }
+    }
+
+    /** A SlowConsumerWarning, as if the queue had backed up. */
+    public void injectSlowConsumerWarning()
+    {
+        d_slowConsumerWarnings.incrementAndGet();
+        enqueue(admin(Event.EventType.ADMIN, "SlowConsumerWarning", null), 1, false);
+    }
+
+    public void injectSlowConsumerWarningCleared()
+    {
+        enqueue(admin(Event.EventType.ADMIN, "SlowConsumerWarningCleared", null), 1, false);
+    }
+
+    /** An InProc DataLoss of dropped messages for the subscription of cid. */
+    public void injectDataLoss(CorrelationID cid, int dropped)
+    {
+        Event event = TestUtil.createEvent(Event.EventType.ADMIN);
+        appendDataLoss(event, cid, dropped);
+        enqueue(event, 1, false);
+    }
+
+    private void appendDataLoss(Event event, CorrelationID cid, int dropped)
+    {
+        MessageFormatter formatter = TestUtil.appendMessage(event,
+                TestUtil.getAdminMessageDefinition(Name.getName("DataLoss")),
+                new MessageProperties().setCorrelationId(cid));
+        formatter.setElement(SOURCE, "InProc");
+        formatter.setElement(NUM_MESSAGES_DROPPED, dropped);
+        d_dataLosses.incrementAndGet();
+    }
+
+    // Authorization ///////////////////////////////////////////////////////////
+
+    public Identity createIdentity()
+    {
+        return new Identity() {
+            public boolean isAuthorized(Service service) { return true; }
+            public boolean hasEntitlements(int[] eids, Service service) { return true; }
+            public boolean hasEntitlements(int[] eids, Service service, List<Integer> failed) { return true; }
+            public boolean hasEntitlements(Element eids, Service service) { return true; }
+            public boolean hasEntitlements(Element eids, Service service, List<Integer> failed) { return true; }
+            public SeatType seatType() { return SeatType.BPS; }
+        };
+    }
+
+    private Event authorizationEvent(Event.EventType type, int selection, String name, String message,
+                                     CorrelationID cid)
+    {
+        Event event = TestUtil.createEvent(type);
+        MessageFormatter formatter = TestUtil.appendMessage(event,
+                d_apiauth.getOperation("AuthorizationRequest").responseDefinition(selection),
+                new MessageProperties().setCorrelationId(cid));
+        formatter.formatMessageXml(message == null ? "<" + name + "/>"
+                                   : "<" + name + "><message>" + message + "</message></" + name + ">");
+        return event;
+    }
+
+    private Event authorizationAnswer(Request request, CorrelationID cid)
+    {
+        Element uuid = request.asElement().getElement(UUID);
+        return d_options.d_deniedUuids.contains(uuid.getValueAsString())
+               ? authorizationEvent(Event.EventType.RESPONSE, 1, "AuthorizationFailure", "Denied by the emulator", cid)
+               : authorizationEvent(Event.EventType.RESPONSE, 0, "AuthorizationSuccess", null, cid);
+    }
+
+    public CorrelationID sendAuthorizationRequest(final Request request, Identity identity, CorrelationID cid)
+    {
+        if (!d_isStarted || d_isStopped) throw new IllegalStateException("Session is not started");
+        final CorrelationID correlationID = cid != null ? cid : new CorrelationID();
+        d_requestCount.incrementAndGet();
+        d_server.schedule(new Runnable() {
+            public void run() {
+                enqueue(authorizationAnswer(request, correlationID), 1, false);
+            }
+        }, d_options.d_latencyMillis, TimeUnit.MILLISECONDS);
+        return correlationID;
+    }
+
+    public CorrelationID sendAuthorizationRequest(Request request, Identity identity, CorrelationID cid,
+                                                  String label)
+    {
+        return sendAuthorizationRequest(request, identity, cid);
+    }
+
+    /**
+     * Answers on the session's events only: the emulator cannot add events to
+     * an EventQueue, which has no public way in. Use authorizationResponse().
+     */
+    public CorrelationID sendAuthorizationRequest(Request request, Identity identity, EventQueue queue,
+                                                  CorrelationID cid)
+    {
+        if (queue != null) {
+            throw new UnsupportedOperationException("The emulator cannot answer on an EventQueue,"
+                                                    + " use authorizationResponse()");
+        }
+        return sendAuthorizationRequest(request, identity, cid);
+    }
+
+    /**
+     * The RESPONSE to request, after latencyMillis, for callers that would
+     * wait for it on an EventQueue of their own.
+     */
+    public Event authorizationResponse(Request request, CorrelationID cid) throws InterruptedException
+    {
+        if (!d_isStarted || d_isStopped) throw new IllegalStateException("Session is not started");
+        d_requestCount.incrementAndGet();
+        Thread.sleep(d_options.d_latencyMillis);
+        return authorizationAnswer(request, cid);
+    }
+
+    /** An AUTHORIZATION_STATUS AuthorizationRevoked for the authorization of cid. */
+    public void injectAuthorizationRevoked(CorrelationID cid)
+    {
+        enqueue(authorizationEvent(Event.EventType.AUTHORIZATION_STATUS, 2, "AuthorizationRevoked",
+                                   "Revoked by the emulator", cid), 1, false);
+    }
+
+    // Requests ////////////////////////////////////////////////////////////////
+
+    public CorrelationID sendRequest(Request request, CorrelationID cid)
+    {
+        return sendRequest(request, (Identity) null, cid);
+    }
+
+    public CorrelationID sendRequest(Request request, CorrelationID cid, String label)
+    {
+        return sendRequest(request, (Identity) null, cid);
+    }
+
+    public CorrelationID sendRequest(Request request, Identity identity, CorrelationID cid, String label)
+    {
+        return sendRequest(request, identity, cid);
+    }
+
+    public CorrelationID sendRequest(final Request request, Identity identity, CorrelationID cid)
+    {
+        if (!d_isStarted || d_isStopped) throw new IllegalStateException("Session is not started");
+        final CorrelationID correlationID = cid != null ? cid : new CorrelationID();
+        d_requests.put(correlationID, Boolean.TRUE);
+        d_requestCount.incrementAndGet();
+        d_server.schedule(new Runnable() {
+            public void run() {
+                try {
+                    serve(request, correlationID);
+                } catch (Exception e) {
+                    enqueue(requestFailure(correlationID, String.valueOf(e)), 1, false);
+                } finally {
+                    d_requests.remove(correlationID);
+                }
+            }
+        }, d_options.d_latencyMillis, TimeUnit.MILLISECONDS);
+        return correlationID;
+    }
+
+    /** REQUEST_STATUS RequestFailure for the request of cid, e.g. one that serve() could not parse. */
+    private static Event requestFailure(CorrelationID cid, String description)
+    {
+        Event event = TestUtil.createEvent(Event.EventType.REQUEST_STATUS);
+        MessageFormatter formatter = TestUtil.appendMessage(event,
+                TestUtil.getAdminMessageDefinition(Name.getName("RequestFailure")),
+                new MessageProperties().setCorrelationId(cid));
+        formatter.pushElement(REASON);
+        formatter.setElement(DESCRIPTION, description);
+        formatter.popElement();
+        return event;
+    }
+
+    private static List<String> values(Element request, Name name)
+    {
+        List<String> values = new ArrayList<String>();
+        if (request.hasElement(name)) {
+            Element element = request.getElement(name);
+            for (int i = 0; i < element.numValues(); ++i) {
+                values.add(element.getValueAsString(i));
+            }
+        }
+        return values;
+    }
+
+    private static List<LocalDate> dates(Element request)
+    {
+        DateTimeFormatter format = DateTimeFormatter.BASIC_ISO_DATE;
+        LocalDate start = LocalDate.parse(request.getElementAsString(START_DATE), format);
+        LocalDate end = request.hasElement(END_DATE, true)
+                ? LocalDate.parse(request.getElementAsString(END_DATE), format) : LocalDate.now();
+        String periodicity = request.hasElement(PERIODICITY, true) ? request.getElementAsString(PERIODICITY) : "DAILY";
+        List<LocalDate> dates = new ArrayList<LocalDate>();
+        for (LocalDate date = start; !date.isAfter(end); ) {
+            if ("DAILY".equals(periodicity)) {
+                if (date.getDayOfWeek() != DayOfWeek.SATURDAY && date.getDayOfWeek() != DayOfWeek.SUNDAY) dates.add(date);
+                date = date.plusDays(1);
+            }
+            else {
+                dates.add(date);
+                date = "WEEKLY".equals(periodicity) ? date.plusWeeks(1)
+                     : "MONTHLY".equals(periodicity) ? date.plusMonths(1)
+                     : "QUARTERLY".equals(periodicity) ? date.plusMonths(3)
+                     : date.plusYears(1);
+            }
+        }
+        return dates;
+    }
+
+    private void setField(MessageFormatter formatter, String security, String field, int point)
+    {
+        if (field.equals("NAME")) {
+            formatter.setElement(NAME, security);
+        }
+        else if (d_fieldIndex.containsKey(field)) {
+            formatter.setElement(d_names[d_fieldIndex.get(field)], value(security, field) + point);
+        }
+    }
+
+    private void serve(Request request, CorrelationID cid)
+    {
+        Element root = request.asElement();
+        boolean history = root.name().toString().equals("HistoricalDataRequest");
+        List<String> securities = values(root, SECURITIES);
+        List<String> fields = values(root, FIELDS);
+        List<LocalDate> dates = history ? dates(root) : null;
+        long cells = (long) securities.size() * fields.size() * (history ? dates.size() : 1);
+        if (d_options.d_cellMicros > 0) {
+            LockSupport.parkNanos(cells * d_options.d_cellMicros * 1000);
+        }
+        SchemaElementDefinition definition = d_refdata.getOperation(root.name().toString()).responseDefinition(0);
+        int perMessage = history ? 1 : d_options.d_securitiesPerMessage;
+        for (int from = 0; from < securities.size() || from == 0; from += perMessage) {
+            if (!d_requests.containsKey(cid) || d_isStopped) return;   // cancelled
+            boolean last = from + perMessage >= securities.size();
+            Event event = TestUtil.createEvent(last ? Event.EventType.RESPONSE : Event.EventType.PARTIAL_RESPONSE);
+            MessageFormatter formatter = TestUtil.appendMessage(event, definition,
+                    new MessageProperties().setCorrelationId(cid).setService(d_refdata));
+            if (history) {
+                if (!securities.isEmpty()) {
+                    String security = securities.get(from);
+                    formatter.pushElement(SECURITY_DATA);
+                    formatter.setElement(SECURITY, security);
+                    formatter.pushElement(FIELD_DATA);
+                    for (int point = 0; point < dates.size(); ++point) {
+                        LocalDate date = dates.get(point);
+                        formatter.appendElement();
+                        formatter.setElement(DATE, new Datetime(date.getYear(), date.getMonthValue(), date.getDayOfMonth()));
+                        for (String field : fields) {
+                            setField(formatter, security, field, point);
+                        }
+                        formatter.popElement();
+                    }
+                    formatter.popElement();
+                    formatter.popElement();
+                }
+            }
+            else {
+                formatter.pushElement(SECURITY_DATA);
+                for (String security : securities.subList(from, Math.min(from + perMessage, securities.size()))) {
+                    formatter.appendElement();
+                    formatter.setElement(SECURITY, security);
+                    formatter.pushElement(FIELD_DATA);
+                    for (String field : fields) {
+                        setField(formatter, security, field, 0);
+                    }
+                    formatter.popElement();
+                    formatter.popElement();
+                }
+                formatter.popElement();
+            }
+            enqueue(event, 1, false);
+            if (securities.isEmpty()) break;
+        }
+    }
+
+    public void cancel(CorrelationID cid)
+    {
+        cancel(Arrays.asList(cid));
+    }
+
+    public void cancel(CorrelationID cid, String label)
+    {
+        cancel(Arrays.asList(cid));
+    }
+
+    public void cancel(List<CorrelationID> cids, String label)
+    {
+        cancel(cids);
+    }
+
+    /** Stops requests and subscriptions; a subscription answers with SubscriptionTerminated. */
+    public void cancel(List<CorrelationID> cids)
+    {
+        List<CorrelationID> terminated = new ArrayList<CorrelationID>();
+        for (CorrelationID cid : cids) {
+            d_requests.remove(cid);
+            if (d_topics.remove(cid) != null) terminated.add(cid);
+        }
+        if (terminated.isEmpty()) return;
+        Event event = TestUtil.createEvent(Event.EventType.SUBSCRIPTION_STATUS);
+        SchemaElementDefinition definition = TestUtil.getAdminMessageDefinition(Name.getName("SubscriptionTerminated"));
+        for (CorrelationID cid : terminated) {
+            MessageFormatter formatter = TestUtil.appendMessage(event, definition, new MessageProperties().setCorrelationId(cid));
+            formatter.pushElement(REASON);
+            formatter.setElement(DESCRIPTION, "Subscription cancelled");
+            formatter.popElement();
+        }
+        enqueue(event, terminated.size(), false);
+    }
+
+    // Subscriptions ///////////////////////////////////////////////////////////
+
+    public void subscribe(SubscriptionList subscriptions)                                   { subscribe(subscriptions, (Identity) null); }
+    public void subscribe(SubscriptionList subscriptions, String label)                     { subscribe(subscriptions, (Identity) null); }
+    public void subscribe(SubscriptionList subscriptions, Identity identity, String label)  { subscribe(subscriptions, identity); }
+
+    /** Acknowledges every subscription with SubscriptionStarted after latencyMillis, then starts its ticks. */
+    public void subscribe(SubscriptionList subscriptions, Identity identity)
+    {
+        if (!d_isStarted || d_isStopped) throw new IllegalStateException("Session is not started");
+        final List<Topic> topics = new ArrayList<Topic>();
+        for (Subscription subscription : subscriptions) {
+            CorrelationID cid = subscription.correlationID();
+            Topic topic = new Topic(cid != null ? cid : new CorrelationID(), security(subscription), d_fields.length);
+            configure(topic, subscription);
+            for (int f = 0; f < d_fields.length; ++f) {
+                topic.d_values[f] = value(topic.d_security, d_fields[f]);
+            }
+            topics.add(topic);
+        }
+        d_server.schedule(new Runnable() {
+            public void run() {
+                Event event = TestUtil.createEvent(Event.EventType.SUBSCRIPTION_STATUS);
+                SchemaElementDefinition started = TestUtil.getAdminMessageDefinition(Name.getName("SubscriptionStarted"));
+                long now = System.nanoTime();
+                for (Topic topic : topics) {
+                    TestUtil.appendMessage(event, started, new MessageProperties().setCorrelationId(topic.d_cid));
+                    topic.d_nextNanos = now;
+                }
+                enqueue(event, topics.size(), false);
+                for (Topic topic : topics) {
+                    d_topics.put(topic.d_cid, topic);
+                }
+            }
+        }, d_options.d_latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void resubscribe(SubscriptionList subscriptions)                        { resubscribe(subscriptions, 0); }
+    public void resubscribe(SubscriptionList subscriptions, String label)          { resubscribe(subscriptions, 0); }
+    public void resubscribe(SubscriptionList subscriptions, int id, String label)  { resubscribe(subscriptions, id); }
+
+    /** Changes the fields and interval of running subscriptions. */
+    public void resubscribe(SubscriptionList subscriptions, int resubscriptionId)
+    {
+        for (Subscription subscription : subscriptions) {
+            Topic topic = d_topics.get(subscription.correlationID());
+            if (topic != null) configure(topic, subscription);
+        }
+    }
+
+    public void unsubscribe(SubscriptionList subscriptions, String label)  { unsubscribe(subscriptions); }
+
+    /** Deprecated in Session, still overridden so that old callers cancel here and not on the unstarted real session. */
+    @SuppressWarnings("deprecation")
+    public void unsubscribe(CorrelationID cid)                             { cancel(cid); }
+
+    public void unsubscribe(SubscriptionList subscriptions)
+    {
+        List<CorrelationID> cids = new ArrayList<CorrelationID>();
+        for (Subscription subscription : subscriptions) {
+            cids.add(subscription.correlationID());
+        }
+        cancel(cids);
+    }
+
+    private static String security(Subscription subscription)
+    {
+        String topic = subscription.subscriptionString();
+        int query = topic.indexOf('?');
+        return query < 0 ? topic : topic.substring(0, query);
+    }
+
+    // fields= and interval= of the subscription string
+    private void configure(Topic topic, Subscription subscription)
+    {
+        String topicString = subscription.subscriptionString();
+        int query = topicString.indexOf('?');
+        List<Integer> fields = new ArrayList<Integer>();
+        long intervalNanos = 0;
+        if (query >= 0) {
+            for (String option : topicString.substring(query + 1).split("&")) {
+                if (option.startsWith("fields=")) {
+                    for (String field : option.substring(7).split(",")) {
+                        Integer f = d_fieldIndex.get(field.trim());
+                        if (f != null) fields.add(f);
+                    }
+                }
+                else if (option.startsWith("interval=")) {
+                    intervalNanos = (long) (Double.parseDouble(option.substring(9)) * 1e9);
+                }
+            }
+        }
+        int[] indexes = new int[fields.size()];
+        for (int i = 0; i < indexes.length; ++i) {
+            indexes[i] = fields.get(i);
+        }
+        topic.d_fields = indexes;
+        topic.d_intervalNanos = intervalNanos;
+    }
+
+    // Ticks ///////////////////////////////////////////////////////////////////
+
+    private void tickLoop()
+    {
+        Random random = new Random(d_options.d_seed);
+        List<Topic> batch = new ArrayList<Topic>(d_options.d_ticksPerEvent);
+        long lastLossReport = System.nanoTime();
+        while (!d_isStopped) {
+            long now = System.nanoTime();
+            if (d_options.d_ticksPerSecond > 0) {
+                long period = (long) (1e9 / d_options.d_ticksPerSecond);
+                Datetime received = datetime(System.currentTimeMillis());
+                Event event = null;
+                for (Topic topic : d_topics.values()) {
+                    long step = Math.max(period, topic.d_intervalNanos);
+                    if (now - topic.d_nextNanos > 1000000000L) {
+                        topic.d_nextNanos = now;   // behind by more than a second: skip rather than burst
+                    }
+                    while (topic.d_nextNanos <= now) {
+                        topic.d_nextNanos += step;
+                        if (event == null) event = TestUtil.createEvent(Event.EventType.SUBSCRIPTION_DATA);
+                        appendTick(event, topic, random, received);
+                        batch.add(topic);
+                        if (batch.size() == d_options.d_ticksPerEvent) {
+                            publish(event, batch);
+                            event = null;
+                        }
+                    }
+                }
+                if (event != null) publish(event, batch);
+            }
+            if (now - lastLossReport >= LOSS_REPORT_NANOS) {
+                lastLossReport = now;
+                reportLosses();
+            }
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static Datetime datetime(long epochMillis)
+    {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.setTimeInMillis(epochMillis);
+        return new Datetime(calendar);
+    }
+
+    private void appendTick(Event event, Topic topic, Random random, Datetime received)
+    {
+        MessageFormatter formatter = TestUtil.appendMessage(event, d_marketDataEvents,
+                new MessageProperties().setCorrelationId(topic.d_cid).setService(d_mktdata).setTimeReceived(received));
+        for (int f : topic.d_fields) {
+            double value = topic.d_values[f] * (1 + (random.nextDouble() - 0.5) * 0.002);
+            topic.d_values[f] = value;
+            formatter.setElement(d_names[f], value);
+        }
+        if (d_payload.length() > 0) formatter.setElement(PAYLOAD, d_payload);
+    }
+
+    private void publish(Event event, List<Topic> batch)
+    {
+        d_ticks.addAndGet(batch.size());
+        if (!enqueue(event, batch.size(), true)) {
+            d_dropped.addAndGet(batch.size());
+            for (Topic topic : batch) {
+                topic.d_dropped++;
+            }
+        }
+        batch.clear();
+    }
+
+    private void reportLosses()
+    {
+        Event event = null;
+        int messages = 0;
+        for (Topic topic : d_topics.values()) {
+            if (topic.d_dropped == 0) continue;
+            if (event == null) event = TestUtil.createEvent(Event.EventType.ADMIN);
+            appendDataLoss(event, topic.d_cid, topic.d_dropped);
+            topic.d_dropped = 0;
+            messages++;
+        }
+        if (event != null) enqueue(event, messages, false);
+    }
+
+    // Statistics //////////////////////////////////////////////////////////////
+
+    public Options options()             { return d_options; }
+    public int topics()                  { return d_topics.size(); }
+    public long requests()               { return d_requestCount.get(); }
+    public long ticks()                  { return d_ticks.get(); }
+    public long dropped()                { return d_dropped.get(); }
+    public long dataLosses()             { return d_dataLosses.get(); }
+    public int slowConsumerWarnings()    { return d_slowConsumerWarnings.get(); }
+    public long handlerErrors()          { return d_handlerErrors.get(); }
+
+    /** Messages waiting to be read. */
+    public int queued()
+    {
+        synchronized (d_lock) {
+            return d_queued;
+        }
+    }
+
+    public String toString()
+    {
+        return String.format("SessionEmulator[topics=%d requests=%d ticks=%d dropped=%d dataLosses=%d "
+                + "slowConsumerWarnings=%d queued=%d]", topics(), requests(), ticks(), dropped(), dataLosses(),
+                slowConsumerWarnings(), queued());
+    }
+}
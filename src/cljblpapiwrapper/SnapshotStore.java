@@ -0,0 +1,173 @@
+// Latest value of every (topic, field) of a subscription, for clj-bdp-subscribe.
+//
+// Each topic owns a row of slots: numeric fields are stored in an
+// AtomicLongArray, as double bits for FLOAT64/FLOAT32 and as the long itself
+// for INT64/INT32 (isLong(field)), anything else (strings, dates,
+// enumerations) as its string form in an AtomicReferenceArray. Slots never
+// written hold EMPTY. A field keeps the datatype of its schema, so whether it
+// is a long is known per field.
+//
+// Rows are guarded by a per-topic sequence lock: the writer makes the sequence
+// odd, writes the slots of the fields present in the message and makes it even
+// again. read() copies a row and retries if the sequence moved meanwhile, so a
+// reader always sees all the fields of one update together and never blocks
+// the writer. Each topic must only be written by one thread at a time (its
+// subscription thread); any number of threads may read.
+//
+// version() is the sequence of a topic: it grows with every update, which is
+// how publishers find the topics that changed since they last looked.
+// -----------------------------------------------------------------------------
+
+import com.bloomberglp.blpapi.Element;
+import com.bloomberglp.blpapi.Message;
+import com.bloomberglp.blpapi.Name;
+import com.bloomberglp.blpapi.Schema;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public final class SnapshotStore
+{
+    /** Bits of a slot that was never written; not a NaN Bloomberg sends. */
+    public static final long EMPTY = 0x7ff80000deadbeefL;
+
+    private final String[]                      d_topics;
+    private final Map<String, Integer>          d_topicIndex;
+    private final String[]                      d_fields;
+    private final Name[]                        d_names;
+    private final AtomicLongArray               d_sequences;
+    private final AtomicLongArray               d_bits;
+    private final AtomicIntegerArray            d_isLong;       // per field, 1 once written as a long
+    private final AtomicReferenceArray<String>  d_refs;
+
+    public SnapshotStore(List<String> topics, List<String> fields)
+    {
+        d_topics     = topics.toArray(new String[0]);
+        d_topicIndex = new HashMap<String, Integer>(d_topics.length * 2);
+        for (int t = 0; t < d_topics.length; ++t) {
+            d_topicIndex.put(d_topics[t], t);
+        }
+        d_fields = fields.toArray(new String[0]);
+        d_names  = new Name[d_fields.length];
+        for (int f = 0; f < d_fields.length; ++f) {
+            d_names[f] = Name.getName(d_fields[f]);
+        }
+        d_sequences = new AtomicLongArray(d_topics.length);
+        d_bits      = new AtomicLongArray(d_topics.length * d_fields.length);
+        d_isLong    = new AtomicIntegerArray(d_fields.length);
+        d_refs      = new AtomicReferenceArray<String>(d_topics.length * d_fields.length);
+        for (int i = 0; i < d_bits.length(); ++i) {
+            d_bits.lazySet(i, EMPTY);
+        }
+    }
+
+    public int numTopics()              { return d_topics.length; }
+    public int numFields()              { return d_fields.length; }
+    public String topic(int index)      { return d_topics[index]; }
+    public String field(int index)      { return d_fields[index]; }
+
+    /** -1 if topic is not in the store. */
+    public int topicIndex(String topic)
+    {
+        Integer index = d_topicIndex.get(topic);
+        return index == null ? -1 : index;
+    }
+
+    /** -1 if field is not in the store. */
+    public int fieldIndex(String field)
+    {
+        for (int f = 0; f < d_fields.length; ++f) {
+            if (d_fields[f].equals(field)) return f;
+        }
+        return -1;
+    }
+
+    private static boolean isFloat(Schema.Datatype datatype)
+    {
+        return datatype == Schema.Datatype.FLOAT64 || datatype == Schema.Datatype.FLOAT32;
+    }
+
+    private static boolean isInteger(Schema.Datatype datatype)
+    {
+        return datatype == Schema.Datatype.INT64 || datatype == Schema.Datatype.INT32;
+    }
+
+    /** True if field holds longs (INT64/INT32) rather than double bits. */
+    public boolean isLong(int field)
+    {
+        return d_isLong.get(field) != 0;
+    }
+
+    /**
+     * Writes the fields of message present (and not null) into the row of
+     * topic. Returns the number of fields written; the version only moves when
+     * it is not zero.
+     */
+    public int update(int topic, Message message)
+    {
+        Element element = message.asElement();
+        int base = topic * d_fields.length;
+        long sequence = d_sequences.get(topic);
+        int written = 0;
+        for (int f = 0; f < d_names.length; ++f) {
+            if (!element.hasElement(d_names[f], true)) continue;
+            if (written++ == 0) d_sequences.set(topic, sequence + 1);
+            Element value = element.getElement(d_names[f]);
+            Schema.Datatype datatype = value.datatype();
+            if (isInteger(datatype)) {
+                if (d_isLong.get(f) == 0) d_isLong.set(f, 1);
+                d_bits.set(base + f, value.getValueAsInt64());
+                if (d_refs.get(base + f) != null) d_refs.set(base + f, null);
+            } else if (isFloat(datatype)) {
+                d_bits.set(base + f, Double.doubleToRawLongBits(value.getValueAsFloat64()));
+                if (d_refs.get(base + f) != null) d_refs.set(base + f, null);
+            } else {
+                d_refs.set(base + f, value.getValueAsString());
+                d_bits.set(base + f, EMPTY);
+            }
+        }
+        if (written > 0) d_sequences.set(topic, sequence + 2);
+        return written;
+    }
+
+    /** Even, and larger after every update of topic; 0 until the first one. */
+    public long version(int topic)
+    {
+        return d_sequences.get(topic);
+    }
+
+    /**
+     * Copies the row of topic into bits / refs (numFields() long) and returns
+     * its version. refs[f] is non-null for string fields; bits[f] is EMPTY for
+     * slots without a numeric value, else a long if isLong(f) and double bits
+     * otherwise.
+     */
+    public long read(int topic, long[] bits, String[] refs)
+    {
+        int base = topic * d_fields.length;
+        while (true) {
+            long before = d_sequences.get(topic);
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            for (int f = 0; f < d_fields.length; ++f) {
+                bits[f] = d_bits.get(base + f);
+                refs[f] = d_refs.get(base + f);
+            }
+            if (d_sequences.get(topic) == before) return before;
+        }
+    }
+
+    /** Latest numeric value of one slot, NaN if there is none. */
+    public double getDouble(int topic, int field)
+    {
+        long bits = d_bits.get(topic * d_fields.length + field);
+        if (bits == EMPTY) return Double.NaN;
+        return isLong(field) ? (double) bits : Double.longBitsToDouble(bits);
+    }
+}
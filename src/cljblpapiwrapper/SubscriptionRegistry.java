@@ -0,0 +1,198 @@
+// Subscriptions of test_with_uuid_a keyed by the primitive value of their
+// CorrelationID.
+//
+// Lookups go through an open-addressing long -> Entry table (linear probing,
+// power-of-two size, kept at most half full), so the status, admin and data
+// paths find a topic in O(1) whatever the cids look like; there is no scan of
+// the SubscriptionList and no assumption that cids are dense. Every entry also
+// gets a dense row number, used to index TickDecoder slots.
+//
+// add() must happen before the subscription is sent; after that the table is
+// only read, and only the mutable state/stats of an entry change. Each stat
+// has a single writer: onMessage() is called by the one thread that handles
+// the data of the topic (the dispatcher thread, or the worker of the topic's
+// partition with PartitionedWorkers), the other counters under the handler's
+// lock. The stats are volatile so that other threads read them whole and
+// recent; onMessage() publishes with lazySet, which costs no fence per tick.
+// -----------------------------------------------------------------------------
+
+import com.bloomberglp.blpapi.CorrelationID;
+import com.bloomberglp.blpapi.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+public class SubscriptionRegistry
+{
+    public enum State{PENDING, ACTIVE, TERMINATED, DEFERRED, SHED};
+
+    public static final class Entry
+    {
+        private static final AtomicLongFieldUpdater<Entry> MESSAGES
+                = AtomicLongFieldUpdater.newUpdater(Entry.class, "d_messages");
+        private static final AtomicLongFieldUpdater<Entry> LAST_MESSAGE_MILLIS
+                = AtomicLongFieldUpdater.newUpdater(Entry.class, "d_lastMessageMillis");
+
+        private final long          d_cid;
+        private final int           d_row;
+        private final String        d_topic;
+        private final List<String>  d_fields;
+        private final List<String>  d_options;
+        private final Subscription  d_subscription;
+
+        private volatile State      d_state = State.PENDING;
+        private boolean             d_pendingUnsubscribe;
+
+        // per-topic stats, one writer each (see above)
+        private volatile long       d_messages;
+        private volatile long       d_lastMessageMillis;
+        private volatile int        d_dataLosses;
+        private volatile int        d_terminations;
+        private volatile int        d_resubscriptions;
+
+        Entry(long cid, int row, String topic, List<String> fields, List<String> options)
+        {
+            d_cid          = cid;
+            d_row          = row;
+            d_topic        = topic;
+            d_fields       = fields;
+            d_options      = options;
+            d_subscription = new Subscription(topic, fields, options, new CorrelationID(cid));
+        }
+
+        public long cid()                   { return d_cid; }
+        public int row()                    { return d_row; }
+        public String topic()               { return d_topic; }
+        public List<String> fields()        { return d_fields; }
+        public List<String> options()       { return d_options; }
+        public Subscription subscription()  { return d_subscription; }
+
+        /** The subscription of this topic with interval=seconds added to its options; 0 for subscription(). */
+        public Subscription subscription(double intervalSeconds)
+        {
+            if (intervalSeconds <= 0) return d_subscription;
+            List<String> options = new ArrayList<String>(d_options);
+            options.add("interval=" + intervalSeconds);
+            return new Subscription(d_topic, d_fields, options, d_subscription.correlationID());
+        }
+        public CorrelationID correlationID(){ return d_subscription.correlationID(); }
+
+        public State state()                { return d_state; }
+        public void setState(State state)   { d_state = state; }
+
+        public boolean isPendingUnsubscribe()                 { return d_pendingUnsubscribe; }
+        public void setPendingUnsubscribe(boolean pending)    { d_pendingUnsubscribe = pending; }
+
+        /** By the thread that handles the data of this topic only. */
+        public void onMessage(long nowMillis)
+        {
+            MESSAGES.lazySet(this, d_messages + 1);
+            LAST_MESSAGE_MILLIS.lazySet(this, nowMillis);
+        }
+
+        public void onDataLoss()            { d_dataLosses++; }
+        public void onTerminated()          { d_terminations++; }
+        public void onResubscribe()         { d_resubscriptions++; }
+
+        public long messages()              { return d_messages; }
+        public long lastMessageMillis()     { return d_lastMessageMillis; }
+        public int dataLosses()             { return d_dataLosses; }
+        public int terminations()           { return d_terminations; }
+        public int resubscriptions()        { return d_resubscriptions; }
+
+        public String toString()
+        {
+            return String.format("%s [cid=%d state=%s messages=%d dataLosses=%d terminations=%d resubscriptions=%d]",
+                    d_topic, d_cid, d_state, d_messages, d_dataLosses, d_terminations, d_resubscriptions);
+        }
+    }
+
+    private long[]                 d_keys;
+    private Entry[]                d_values;
+    private int                    d_mask;
+    private final ArrayList<Entry> d_rows;
+
+    public SubscriptionRegistry(int expectedSize)
+    {
+        int size = Integer.highestOneBit(Math.max(2, expectedSize * 2) - 1) << 1;
+        d_keys   = new long[size];
+        d_values = new Entry[size];
+        d_mask   = size - 1;
+        d_rows   = new ArrayList<Entry>(expectedSize);
+    }
+
+    private static int hash(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /** Registers topic under cid and returns its entry; cid must not be registered already. */
+    public Entry add(long cid, String topic, List<String> fields, List<String> options)
+    {
+        if (get(cid) != null) {
+            throw new IllegalArgumentException("Subscription already registered for cid = " + cid);
+        }
+        if ((d_rows.size() + 1) * 2 > d_keys.length) {
+            rehash(d_keys.length * 2);
+        }
+        Entry entry = new Entry(cid, d_rows.size(), topic, fields, options);
+        insert(d_keys, d_values, d_mask, entry);
+        d_rows.add(entry);
+        return entry;
+    }
+
+    private static void insert(long[] keys, Entry[] values, int mask, Entry entry)
+    {
+        int index = hash(entry.d_cid) & mask;
+        while (values[index] != null) {
+            index = (index + 1) & mask;
+        }
+        keys[index]   = entry.d_cid;
+        values[index] = entry;
+    }
+
+    private void rehash(int size)
+    {
+        long[]  keys   = new long[size];
+        Entry[] values = new Entry[size];
+        for (Entry entry : d_rows) {
+            insert(keys, values, size - 1, entry);
+        }
+        d_keys   = keys;
+        d_values = values;
+        d_mask   = size - 1;
+    }
+
+    public Entry get(long cid)
+    {
+        int index = hash(cid) & d_mask;
+        Entry entry;
+        while ((entry = d_values[index]) != null) {
+            if (d_keys[index] == cid) return entry;
+            index = (index + 1) & d_mask;
+        }
+        return null;
+    }
+
+    /** null for cids that are not integer values or were never registered. */
+    public Entry get(CorrelationID cid)
+    {
+        if (cid == null || !cid.isValue()) return null;
+        return get(cid.value());
+    }
+
+    public Entry byRow(int row)      { return d_rows.get(row); }
+    public int size()                { return d_rows.size(); }
+    public List<Entry> entries()     { return d_rows; }
+
+    public int count(State state)
+    {
+        int n = 0;
+        for (Entry entry : d_rows) {
+            if (entry.d_state == state) ++n;
+        }
+        return n;
+    }
+}
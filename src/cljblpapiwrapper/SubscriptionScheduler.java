@@ -0,0 +1,194 @@
+// Sends the subscriptions of a SubscriptionRegistry in chunks instead of one
+// SubscriptionList holding the whole universe.
+//
+// Chunks are paced by a token bucket (chunksPerSecond, with a burst of
+// burstChunks) and by a window of outstanding topics: a new chunk is only sent
+// once enough SubscriptionStarted / SubscriptionFailure acknowledgements have
+// come back for the previous ones to keep at most maxOutstanding topics in
+// flight. The handler reports acknowledgements through onAck().
+//
+// Time-to-fully-subscribed is measured from start() to the last ack.
+//
+// The output takes records from one thread only, so the scheduler thread
+// never writes to it: an IOException that stops the sends is kept in
+// failure(), and reportFailure(), called from the handler's thread, prints it.
+// -----------------------------------------------------------------------------
+
+import com.bloomberglp.blpapi.Identity;
+import com.bloomberglp.blpapi.Session;
+import com.bloomberglp.blpapi.SubscriptionList;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SubscriptionScheduler
+{
+    private final Session              d_session;
+    private final Identity             d_identity;
+    private final SubscriptionRegistry d_registry;
+    private final int                  d_chunkSize;
+    private final double               d_chunksPerSecond;
+    private final double               d_burstChunks;
+    private final int                  d_maxOutstanding;
+    private final AsyncOutput          d_output;
+
+    private final Object               d_lock = new Object();
+    private final BitSet               d_ackedRows = new BitSet();
+    private int                        d_next;          // next registry row to send
+    private int                        d_outstanding;   // sent, not yet acknowledged
+    private int                        d_acked;
+    private int                        d_failed;
+    private int                        d_chunksSent;
+    private double                     d_tokens;
+    private long                       d_lastRefillNanos;
+    private long                       d_startNanos;
+    private long                       d_fullySubscribedNanos = -1;
+    private boolean                    d_isStopped;
+    private Thread                     d_thread;
+    private volatile IOException       d_failure;
+    private final AtomicReference<IOException> d_unreported = new AtomicReference<IOException>();
+
+    public SubscriptionScheduler(Session session, Identity identity, SubscriptionRegistry registry,
+                                 int chunkSize, double chunksPerSecond, int burstChunks,
+                                 int maxOutstanding, AsyncOutput output)
+    {
+        d_session         = session;
+        d_identity        = identity;
+        d_registry        = registry;
+        d_chunkSize       = Math.max(1, chunkSize);
+        d_chunksPerSecond = chunksPerSecond;
+        d_burstChunks     = Math.max(1, burstChunks);
+        d_maxOutstanding  = Math.max(d_chunkSize, maxOutstanding);
+        d_output          = output;
+    }
+
+    /** Starts sending chunks from a background thread. */
+    public void start()
+    {
+        synchronized (d_lock) {
+            d_startNanos      = System.nanoTime();
+            d_lastRefillNanos = d_startNanos;
+            d_tokens          = d_burstChunks;
+        }
+        d_thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    sendLoop();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    d_failure = e;
+                    d_unreported.set(e);
+                }
+            }
+        }, "subscription-scheduler");
+        d_thread.setDaemon(true);
+        d_thread.start();
+    }
+
+    public void stop()
+    {
+        synchronized (d_lock) {
+            d_isStopped = true;
+            d_lock.notifyAll();
+        }
+    }
+
+    private void sendLoop() throws InterruptedException, IOException
+    {
+        while (true) {
+            SubscriptionList chunk = new SubscriptionList();
+            synchronized (d_lock) {
+                while (!d_isStopped && d_next < d_registry.size()
+                        && (d_outstanding + Math.min(d_chunkSize, d_registry.size() - d_next) > d_maxOutstanding
+                            || !takeToken())) {
+                    d_lock.wait(Math.max(1, millisToNextToken()));
+                }
+                if (d_isStopped || d_next >= d_registry.size()) return;
+                int end = Math.min(d_registry.size(), d_next + d_chunkSize);
+                for (int row = d_next; row < end; ++row) {
+                    SubscriptionRegistry.Entry entry = d_registry.byRow(row);
+                    entry.setState(SubscriptionRegistry.State.PENDING);
+                    chunk.add(entry.subscription());
+                }
+                d_outstanding += end - d_next;
+                d_next = end;
+                d_chunksSent++;
+            }
+            d_session.subscribe(chunk, d_identity);
+        }
+    }
+
+    // token bucket, d_lock held
+    private boolean takeToken()
+    {
+        long now = System.nanoTime();
+        d_tokens = Math.min(d_burstChunks, d_tokens + (now - d_lastRefillNanos) * d_chunksPerSecond / 1e9);
+        d_lastRefillNanos = now;
+        if (d_tokens >= 1) {
+            d_tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    // d_lock held
+    private long millisToNextToken()
+    {
+        if (d_tokens >= 1 || d_chunksPerSecond <= 0) return 100;
+        return (long) Math.ceil((1 - d_tokens) * 1000 / d_chunksPerSecond);
+    }
+
+    /**
+     * Called by the handler for SubscriptionStarted (failed = false) and
+     * SubscriptionFailure (failed = true). Only the first ack of a topic sent by
+     * this scheduler counts; later ones belong to resubscriptions.
+     */
+    public void onAck(SubscriptionRegistry.Entry entry, boolean failed)
+    {
+        synchronized (d_lock) {
+            int row = entry.row();
+            if (row >= d_next || d_ackedRows.get(row)) return;
+            d_ackedRows.set(row);
+            d_outstanding--;
+            d_acked++;
+            if (failed) d_failed++;
+            if (d_acked == d_registry.size() && d_fullySubscribedNanos < 0) {
+                d_fullySubscribedNanos = System.nanoTime() - d_startNanos;
+                d_output.printf("Fully subscribed: %d topics (%d failed) in %d chunks, %.1f ms",
+                        d_acked, d_failed, d_chunksSent, d_fullySubscribedNanos / 1e6);
+            }
+            d_lock.notifyAll();
+        }
+    }
+
+    /** Why the sends stopped before the end of the registry, null if they did not. */
+    public IOException failure()
+    {
+        return d_failure;
+    }
+
+    /** Prints failure() to the output once; call from the thread that writes the output. */
+    public void reportFailure()
+    {
+        IOException failure = d_unreported.getAndSet(null);
+        if (failure != null) d_output.printf("Subscription scheduler stopped: %s", failure);
+    }
+
+    public boolean isFullySubscribed()
+    {
+        synchronized (d_lock) { return d_fullySubscribedNanos >= 0; }
+    }
+
+    /** Nanoseconds from start() to the last acknowledgement, -1 until then. */
+    public long fullySubscribedNanos()
+    {
+        synchronized (d_lock) { return d_fullySubscribedNanos; }
+    }
+
+    public int outstanding() { synchronized (d_lock) { return d_outstanding; } }
+    public int acked()       { synchronized (d_lock) { return d_acked; } }
+    public int failed()      { synchronized (d_lock) { return d_failed; } }
+    public int chunksSent()  { synchronized (d_lock) { return d_chunksSent; } }
+}
@@ -0,0 +1,250 @@
+// Typed decoder for SUBSCRIPTION_DATA messages, used by test_with_uuid_a when
+// Config.decodeMode is TYPED.
+//
+// The configured fields are resolved to Name handles once. Every subscription
+// (row) owns one preallocated primitive slot per field, and decode() reads the
+// message straight into those slots with getValueAsFloat64 / getValueAsInt64 /
+// getValueAsDatetime. Nothing is formatted until format() is called, so the
+// steady-state cost of a message is a handful of lookups and no garbage.
+//
+// Strings are the exception: STRING fields still go through getValueAsString.
+// Enumerations are kept as the interned Name returned by getValueAsName.
+// -----------------------------------------------------------------------------
+
+import com.bloomberglp.blpapi.Datetime;
+import com.bloomberglp.blpapi.Element;
+import com.bloomberglp.blpapi.Message;
+import com.bloomberglp.blpapi.Name;
+import com.bloomberglp.blpapi.Schema;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.List;
+
+public class TickDecoder
+{
+    public static final byte KIND_UNKNOWN  = 0;
+    public static final byte KIND_DOUBLE   = 1;
+    public static final byte KIND_LONG     = 2;
+    public static final byte KIND_DATETIME = 3; // epoch millis, UTC
+    public static final byte KIND_DATE     = 4; // epoch millis at midnight, UTC
+    public static final byte KIND_TIME     = 5; // millis since midnight
+    public static final byte KIND_NAME     = 6;
+    public static final byte KIND_STRING   = 7;
+
+    public static final byte STATE_EMPTY = 0;
+    public static final byte STATE_VALUE = 1;
+    public static final byte STATE_NULL  = 2;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private final String[] d_fieldNames;
+    private final Name[]   d_names;
+    private final byte[]   d_kinds;
+    private final int      d_numFields;
+
+    private int            d_capacity;
+    private double[]       d_doubles;   // [row * numFields + field]
+    private long[]         d_longs;     // ints, bools, chars and datetimes
+    private Object[]       d_refs;      // enumeration Names and Strings
+    private byte[]         d_states;
+    private long[]         d_messages;  // messages decoded per row
+
+    public TickDecoder(List<String> fields, int capacity)
+    {
+        d_numFields  = fields.size();
+        d_fieldNames = new String[d_numFields];
+        d_names      = new Name[d_numFields];
+        d_kinds      = new byte[d_numFields];
+        for (int i = 0; i < d_numFields; ++i) {
+            d_fieldNames[i] = fields.get(i);
+            d_names[i]      = Name.getName(fields.get(i));
+        }
+        d_capacity = 0;
+        d_doubles  = new double[0];
+        d_longs    = new long[0];
+        d_refs     = new Object[0];
+        d_states   = new byte[0];
+        d_messages = new long[0];
+        ensureCapacity(capacity);
+    }
+
+    /**
+     * Grows the slot arrays so that rows [0, capacity) can be decoded into.
+     * Must not race with decode(); call it before subscribing more topics.
+     */
+    public void ensureCapacity(int capacity)
+    {
+        if (capacity <= d_capacity) return;
+        int slots = capacity * d_numFields;
+        double[] doubles  = new double[slots];
+        long[]   longs    = new long[slots];
+        Object[] refs     = new Object[slots];
+        byte[]   states   = new byte[slots];
+        long[]   messages = new long[capacity];
+        System.arraycopy(d_doubles,  0, doubles,  0, d_doubles.length);
+        System.arraycopy(d_longs,    0, longs,    0, d_longs.length);
+        System.arraycopy(d_refs,     0, refs,     0, d_refs.length);
+        System.arraycopy(d_states,   0, states,   0, d_states.length);
+        System.arraycopy(d_messages, 0, messages, 0, d_messages.length);
+        d_doubles  = doubles;
+        d_longs    = longs;
+        d_refs     = refs;
+        d_states   = states;
+        d_messages = messages;
+        d_capacity = capacity;
+    }
+
+    /**
+     * Decodes the configured fields of msg into the slots of row. Fields absent
+     * from the message keep their previous value. Returns false if row is out of
+     * range.
+     */
+    public boolean decode(Message msg, int row)
+    {
+        if (row < 0 || row >= d_capacity) return false;
+        Element root = msg.asElement();
+        int base = row * d_numFields;
+        for (int i = 0; i < d_numFields; ++i) {
+            Name name = d_names[i];
+            if (!root.hasElement(name)) continue;
+            Element field = root.getElement(name);
+            int slot = base + i;
+            if (field.isNull()) {
+                d_states[slot] = STATE_NULL;
+                continue;
+            }
+            byte kind = d_kinds[i];
+            if (kind == KIND_UNKNOWN) {
+                kind = kindOf(field.datatype());
+                d_kinds[i] = kind;
+            }
+            switch (kind) {
+                case KIND_DOUBLE:
+                    d_doubles[slot] = field.getValueAsFloat64();
+                    break;
+                case KIND_LONG:
+                    d_longs[slot] = field.datatype() == Schema.Datatype.BOOL
+                            ? (field.getValueAsBool() ? 1L : 0L)
+                            : field.getValueAsInt64();
+                    break;
+                case KIND_DATETIME:
+                case KIND_DATE:
+                case KIND_TIME:
+                    d_longs[slot] = toMillis(field.getValueAsDatetime());
+                    break;
+                case KIND_NAME:
+                    d_refs[slot] = field.getValueAsName();
+                    break;
+                default:
+                    d_refs[slot] = field.getValueAsString();
+                    break;
+            }
+            d_states[slot] = STATE_VALUE;
+        }
+        d_messages[row]++;
+        return true;
+    }
+
+    /** Convenience for the dense cids (1, 2, ...) created by test_with_uuid_a.subscribe(). */
+    public boolean decode(Message msg)
+    {
+        return decode(msg, (int) msg.correlationID().value() - 1);
+    }
+
+    public int numFields()             { return d_numFields; }
+    public int capacity()              { return d_capacity; }
+    public String fieldName(int field) { return d_fieldNames[field]; }
+    public byte kind(int field)        { return d_kinds[field]; }
+    public long messages(int row)      { return d_messages[row]; }
+
+    public int fieldIndex(String field)
+    {
+        for (int i = 0; i < d_numFields; ++i) {
+            if (d_fieldNames[i].equals(field)) return i;
+        }
+        return -1;
+    }
+
+    public byte state(int row, int field)       { return d_states[row * d_numFields + field]; }
+    public double getDouble(int row, int field) { return d_doubles[row * d_numFields + field]; }
+    public long getLong(int row, int field)     { return d_longs[row * d_numFields + field]; }
+    public Object getRef(int row, int field)    { return d_refs[row * d_numFields + field]; }
+
+    /** Appends "FIELD : value" lines for every field of row that has been seen. */
+    public StringBuilder format(int row, StringBuilder sb)
+    {
+        for (int i = 0; i < d_numFields; ++i) {
+            int slot = row * d_numFields + i;
+            if (d_states[slot] == STATE_EMPTY) continue;
+            sb.append(String.format("%40s : ", d_fieldNames[i]));
+            if (d_states[slot] == STATE_NULL) {
+                sb.append("NULL");
+            }
+            else {
+                appendValue(sb, d_kinds[i], slot);
+            }
+            sb.append('\n');
+        }
+        return sb;
+    }
+
+    private void appendValue(StringBuilder sb, byte kind, int slot)
+    {
+        switch (kind) {
+            case KIND_DOUBLE:
+                sb.append(d_doubles[slot]);
+                break;
+            case KIND_LONG:
+                sb.append(d_longs[slot]);
+                break;
+            case KIND_DATETIME:
+                sb.append(Instant.ofEpochMilli(d_longs[slot]));
+                break;
+            case KIND_DATE:
+                sb.append(LocalDate.ofEpochDay(Math.floorDiv(d_longs[slot], MILLIS_PER_DAY)));
+                break;
+            case KIND_TIME:
+                sb.append(LocalTime.ofNanoOfDay(Math.floorMod(d_longs[slot], MILLIS_PER_DAY) * 1000000L));
+                break;
+            default:
+                sb.append(d_refs[slot]);
+                break;
+        }
+    }
+
+    static byte kindOf(Schema.Datatype datatype)
+    {
+        if (datatype == Schema.Datatype.FLOAT64 || datatype == Schema.Datatype.FLOAT32) return KIND_DOUBLE;
+        if (datatype == Schema.Datatype.INT64 || datatype == Schema.Datatype.INT32
+                || datatype == Schema.Datatype.BOOL || datatype == Schema.Datatype.CHAR) return KIND_LONG;
+        if (datatype == Schema.Datatype.DATETIME) return KIND_DATETIME;
+        if (datatype == Schema.Datatype.DATE) return KIND_DATE;
+        if (datatype == Schema.Datatype.TIME) return KIND_TIME;
+        if (datatype == Schema.Datatype.ENUMERATION) return KIND_NAME;
+        return KIND_STRING;
+    }
+
+    /**
+     * Datetime to epoch millis (UTC) without going through Calendar. Values with
+     * no date part come back as millis since midnight.
+     */
+    static long toMillis(Datetime dt)
+    {
+        long millis = 0;
+        if (dt.hasParts(Datetime.DATE)) {
+            millis = EpochDays.of(dt) * MILLIS_PER_DAY;
+        }
+        if (dt.hasParts(Datetime.TIME)) {
+            millis += dt.hour() * 3600000L + dt.minute() * 60000L + dt.second() * 1000L;
+        }
+        if (dt.hasParts(Datetime.MILLISECOND)) {
+            millis += dt.milliSecond();
+        }
+        if (dt.hasParts(Datetime.TIME_ZONE_OFFSET)) {
+            millis -= dt.timezoneOffsetMinutes() * 60000L;
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,424 @@
+// Append-only binary journal of decoded subscription ticks, for debugging and
+// for replaying a session without a live connection (see TickReplay).
+//
+// A journal is a directory of fixed-size segment files, ticks-000000.journal,
+// ticks-000001.journal, ... each memory-mapped while it is written. A segment
+// starts with a header:
+//
+//   int magic, int version, long startEpochMillis, int numFields,
+//   numFields x { byte kind, short length, UTF-8 field name }
+//
+// followed by records, each [int length][byte type][body of length - 1 bytes].
+// A record length of 0 (the zero-filled rest of the file) ends the segment.
+//
+//   TOPIC  long cid, short length, UTF-8 topic        first tick of each cid
+//   TICK   long nanos, long cid, byte flags, short numValues,
+//          numValues x { short field, byte kind, value }
+//
+// nanos count from the start of the journal (startEpochMillis). FIRST_IN_EVENT
+// in flags marks the first message of a SUBSCRIPTION_DATA event, so replay can
+// rebuild events as they arrived. Values are 8 bytes for the numeric, date and
+// time kinds of TickDecoder (dates and times as TickDecoder millis), a short
+// length and UTF-8 bytes for NAME / STRING, nothing for NULL. The header kind of
+// a field is filled in when the field is first seen.
+//
+// Writer.append() may be called from several threads; records are encoded into
+// a scratch buffer and copied into the segment under the writer's lock.
+// -----------------------------------------------------------------------------
+
+import com.bloomberglp.blpapi.CorrelationID;
+import com.bloomberglp.blpapi.Element;
+import com.bloomberglp.blpapi.Event;
+import com.bloomberglp.blpapi.Message;
+import com.bloomberglp.blpapi.Name;
+import com.bloomberglp.blpapi.Schema;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public final class TickJournal
+{
+    public static final int  MAGIC          = 0x544b4a31;   // "TKJ1"
+    public static final int  VERSION        = 1;
+    public static final byte TOPIC          = 1;
+    public static final byte TICK           = 2;
+    public static final byte FIRST_IN_EVENT = 1;
+    public static final byte KIND_NULL      = TickDecoder.KIND_UNKNOWN;
+
+    public static final int  DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private TickJournal() {}
+
+    static File segmentFile(File dir, int index)
+    {
+        return new File(dir, String.format("ticks-%06d.journal", index));
+    }
+
+    /** Topic of a cid, for the TOPIC record written the first time it ticks. */
+    public interface Topics
+    {
+        String topic(CorrelationID cid);
+    }
+
+    public static final class Writer
+    {
+        private final File         d_dir;
+        private final String[]     d_fields;
+        private final Name[]       d_names;
+        private final byte[]       d_kinds;
+        private final int          d_segmentBytes;
+        private final long         d_startEpochMillis;
+        private final long         d_startNanos;
+        private final Set<Long>    d_topics = new HashSet<Long>();
+
+        private ByteBuffer         d_scratch = ByteBuffer.allocate(4096);
+        private MappedByteBuffer   d_segment;
+        private int[]              d_kindOffsets;
+        private int                d_segmentIndex = -1;
+        private long               d_records;
+        private long               d_bytes;
+        private boolean            d_isClosed;
+
+        public Writer(File dir, List<String> fields, int segmentBytes) throws IOException
+        {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create journal directory " + dir);
+            }
+            if (segmentFile(dir, 0).exists()) {
+                throw new IOException("Journal already exists in " + dir);
+            }
+            d_dir              = dir;
+            d_fields           = fields.toArray(new String[0]);
+            d_names            = new Name[d_fields.length];
+            d_kinds            = new byte[d_fields.length];
+            for (int f = 0; f < d_fields.length; ++f) {
+                d_names[f] = Name.getName(d_fields[f]);
+            }
+            d_segmentBytes     = segmentBytes;
+            d_startEpochMillis = System.currentTimeMillis();
+            d_startNanos       = System.nanoTime();
+            roll();
+        }
+
+        private void roll() throws IOException
+        {
+            d_segmentIndex++;
+            RandomAccessFile file = new RandomAccessFile(segmentFile(d_dir, d_segmentIndex), "rw");
+            try {
+                d_segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, d_segmentBytes);
+            } finally {
+                file.close();
+            }
+            d_segment.putInt(MAGIC).putInt(VERSION).putLong(d_startEpochMillis).putInt(d_fields.length);
+            d_kindOffsets = new int[d_fields.length];
+            for (int f = 0; f < d_fields.length; ++f) {
+                byte[] name = d_fields[f].getBytes(StandardCharsets.UTF_8);
+                d_kindOffsets[f] = d_segment.position();
+                d_segment.put(d_kinds[f]).putShort((short) name.length).put(name);
+            }
+            d_topics.clear();  // every segment names its own topics
+        }
+
+        private void ensureScratch(int bytes)
+        {
+            if (d_scratch.remaining() < bytes) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(d_scratch.capacity() * 2, d_scratch.position() + bytes));
+                d_scratch.flip();
+                bigger.put(d_scratch);
+                d_scratch = bigger;
+            }
+        }
+
+        private void putString(String value)
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(bytes.length, Short.MAX_VALUE);
+            ensureScratch(2 + length);
+            d_scratch.putShort((short) length).put(bytes, 0, length);
+        }
+
+        private void putRecord(byte[] bytes, int length)
+        {
+            d_segment.putInt(length);
+            d_segment.put(bytes, 0, length);
+            d_records++;
+            d_bytes += 4 + length;
+        }
+
+        private static byte[] topicRecord(long cid, String topic)
+        {
+            byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(name.length, Short.MAX_VALUE);
+            return ByteBuffer.allocate(11 + length).put(TOPIC).putLong(cid).putShort((short) length).put(name, 0, length).array();
+        }
+
+        /** Journals the messages of a SUBSCRIPTION_DATA event received at System.nanoTime() nanos. */
+        public synchronized void append(long nanos, Event event, Topics topics) throws IOException
+        {
+            if (d_isClosed) return;
+            boolean first = true;
+            for (Message message : event) {
+                append(nanos, message, first, topics);
+                first = false;
+            }
+        }
+
+        /** Journals one message; first marks the start of an event. */
+        public synchronized void append(long nanos, Message message, boolean first, Topics topics) throws IOException
+        {
+            if (d_isClosed) return;
+            CorrelationID correlationID = message.correlationID();
+            long cid = correlationID == null ? 0
+                    : correlationID.isValue() ? correlationID.value()
+                    : correlationID.object() instanceof Number ? ((Number) correlationID.object()).longValue()
+                    : 0;
+            d_scratch.clear();
+            ensureScratch(20);
+            d_scratch.put(TICK).putLong(nanos - d_startNanos).putLong(cid).put(first ? FIRST_IN_EVENT : 0);
+            int countAt = d_scratch.position();
+            d_scratch.putShort((short) 0);
+            Element root = message.asElement();
+            short count = 0;
+            for (int f = 0; f < d_names.length; ++f) {
+                if (!root.hasElement(d_names[f])) continue;
+                Element field = root.getElement(d_names[f]);
+                ensureScratch(11);
+                d_scratch.putShort((short) f);
+                count++;
+                if (field.isNull()) {
+                    d_scratch.put(KIND_NULL);
+                    continue;
+                }
+                byte kind = TickDecoder.kindOf(field.datatype());
+                if (d_kinds[f] == KIND_NULL) {
+                    d_kinds[f] = kind;
+                    d_segment.put(d_kindOffsets[f], kind);
+                }
+                d_scratch.put(kind);
+                switch (kind) {
+                    case TickDecoder.KIND_DOUBLE:
+                        d_scratch.putDouble(field.getValueAsFloat64());
+                        break;
+                    case TickDecoder.KIND_LONG:
+                        d_scratch.putLong(field.datatype() == Schema.Datatype.BOOL
+                                ? (field.getValueAsBool() ? 1L : 0L)
+                                : field.getValueAsInt64());
+                        break;
+                    case TickDecoder.KIND_DATETIME:
+                    case TickDecoder.KIND_DATE:
+                    case TickDecoder.KIND_TIME:
+                        d_scratch.putLong(TickDecoder.toMillis(field.getValueAsDatetime()));
+                        break;
+                    default:
+                        putString(field.getValueAsString());
+                        break;
+                }
+            }
+            d_scratch.putShort(countAt, count);
+            int length = d_scratch.position();
+            if (d_topics.contains(cid) && 4 + length <= d_segment.remaining()) {
+                putRecord(d_scratch.array(), length);
+                return;
+            }
+            // the first tick of a cid in a segment is preceded by its TOPIC record
+            String topic = topics == null ? null : topics.topic(correlationID);
+            byte[] topicRecord = topicRecord(cid, topic == null ? String.valueOf(cid) : topic);
+            if (4 + topicRecord.length + 4 + length > d_segment.remaining()) {
+                roll();
+                if (4 + topicRecord.length + 4 + length > d_segment.remaining()) {
+                    throw new IOException("Record of " + length + " bytes does not fit in a segment");
+                }
+            }
+            putRecord(topicRecord, topicRecord.length);
+            d_topics.add(cid);
+            putRecord(d_scratch.array(), length);
+        }
+
+        /** Forces the mapped segment to disk; closing does not need it, the OS writes it back. */
+        public synchronized void force()
+        {
+            if (d_segment != null) d_segment.force();
+        }
+
+        public synchronized void close()
+        {
+            if (d_isClosed) return;
+            d_isClosed = true;
+            d_segment.force();
+        }
+
+        public synchronized long records()   { return d_records; }
+        public synchronized long bytes()     { return d_bytes; }
+        public synchronized int segments()   { return d_segmentIndex + 1; }
+
+        public String toString()
+        {
+            return String.format("journal %s: records=%d bytes=%d segments=%d", d_dir, records(), bytes(), segments());
+        }
+    }
+
+    /** Callbacks of Reader.read(), in journal order. */
+    public interface Visitor
+    {
+        void onTopic(long cid, String topic) throws Exception;
+
+        /** The values of the tick are in reader: numValues(), field(i), kind(i), getDouble(i) ... */
+        void onTick(long nanos, long cid, boolean firstInEvent, Reader reader) throws Exception;
+
+        /** Checked before every record: read() returns once it is true. */
+        default boolean isStopped() { return false; }
+    }
+
+    public static final class Reader
+    {
+        private final File         d_dir;
+        private final long         d_startEpochMillis;
+        private final String[]     d_fields;
+        private final byte[]       d_kinds;
+
+        // values of the current tick
+        private short[]            d_valueFields = new short[16];
+        private byte[]             d_valueKinds  = new byte[16];
+        private long[]             d_valueBits   = new long[16];
+        private String[]           d_valueRefs   = new String[16];
+        private int                d_numValues;
+
+        /** Reads the headers of every segment: fields, and their kinds as far as they were seen. */
+        public Reader(File dir) throws IOException
+        {
+            d_dir = dir;
+            List<ByteBuffer> segments = segments();
+            if (segments.isEmpty()) throw new IOException("No journal in " + dir);
+            ByteBuffer first = segments.get(0);
+            checkHeader(first);
+            d_startEpochMillis = first.getLong(8);
+            d_fields = new String[first.getInt(16)];
+            d_kinds  = new byte[d_fields.length];
+            for (ByteBuffer segment : segments) {
+                segment.position(20);
+                for (int f = 0; f < d_fields.length; ++f) {
+                    byte kind = segment.get();
+                    d_fields[f] = readString(segment);
+                    if (d_kinds[f] == KIND_NULL) d_kinds[f] = kind;
+                }
+            }
+        }
+
+        private static void checkHeader(ByteBuffer segment) throws IOException
+        {
+            if (segment.getInt(0) != MAGIC || segment.getInt(4) != VERSION) {
+                throw new IOException("Not a tick journal segment (version " + VERSION + ")");
+            }
+        }
+
+        private List<ByteBuffer> segments() throws IOException
+        {
+            List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+            for (int index = 0; segmentFile(d_dir, index).exists(); ++index) {
+                RandomAccessFile file = new RandomAccessFile(segmentFile(d_dir, index), "r");
+                try {
+                    segments.add(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+                } finally {
+                    file.close();
+                }
+            }
+            return segments;
+        }
+
+        private static String readString(ByteBuffer buffer)
+        {
+            int length = buffer.getShort();
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public long startEpochMillis()       { return d_startEpochMillis; }
+        public List<String> fields()         { return Arrays.asList(d_fields); }
+        public byte fieldKind(int field)     { return d_kinds[field]; }
+
+        public int numValues()               { return d_numValues; }
+        public int field(int i)              { return d_valueFields[i]; }
+        public byte kind(int i)              { return d_valueKinds[i]; }
+        public double getDouble(int i)       { return Double.longBitsToDouble(d_valueBits[i]); }
+        /** Longs, and TickDecoder millis for the date and time kinds. */
+        public long getLong(int i)           { return d_valueBits[i]; }
+        public String getString(int i)       { return d_valueRefs[i]; }
+
+        private void growValues(int n)
+        {
+            if (n <= d_valueFields.length) return;
+            d_valueFields = Arrays.copyOf(d_valueFields, n);
+            d_valueKinds  = Arrays.copyOf(d_valueKinds, n);
+            d_valueBits   = Arrays.copyOf(d_valueBits, n);
+            d_valueRefs   = Arrays.copyOf(d_valueRefs, n);
+        }
+
+        /** Visits every record of every segment, in order, until visitor.isStopped(). */
+        public void read(Visitor visitor) throws Exception
+        {
+            for (ByteBuffer segment : segments()) {
+                checkHeader(segment);
+                segment.position(20);
+                for (int f = 0; f < d_fields.length; ++f) {
+                    segment.get();
+                    int length = segment.getShort();
+                    segment.position(segment.position() + length);
+                }
+                while (segment.remaining() >= 4) {
+                    if (visitor.isStopped()) return;
+                    int length = segment.getInt();
+                    if (length == 0) break;
+                    int end = segment.position() + length;
+                    byte type = segment.get();
+                    if (type == TOPIC) {
+                        long cid = segment.getLong();
+                        int n = segment.getShort();
+                        byte[] bytes = new byte[n];
+                        segment.get(bytes);
+                        visitor.onTopic(cid, new String(bytes, StandardCharsets.UTF_8));
+                    }
+                    else if (type == TICK) {
+                        long nanos = segment.getLong();
+                        long cid = segment.getLong();
+                        byte flags = segment.get();
+                        int count = segment.getShort();
+                        growValues(count);
+                        for (int i = 0; i < count; ++i) {
+                            d_valueFields[i] = segment.getShort();
+                            byte kind = segment.get();
+                            d_valueKinds[i] = kind;
+                            d_valueRefs[i] = null;
+                            switch (kind) {
+                                case KIND_NULL:
+                                    break;
+                                case TickDecoder.KIND_NAME:
+                                case TickDecoder.KIND_STRING:
+                                    byte[] bytes = new byte[segment.getShort()];
+                                    segment.get(bytes);
+                                    d_valueRefs[i] = new String(bytes, StandardCharsets.UTF_8);
+                                    break;
+                                default:
+                                    d_valueBits[i] = segment.getLong();
+                                    break;
+                            }
+                        }
+                        d_numValues = count;
+                        visitor.onTick(nanos, cid, (flags & FIRST_IN_EVENT) != 0, this);
+                    }
+                    segment.position(end);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+// Replays a TickJournal as SUBSCRIPTION_DATA events, so the test_with_uuid_a
+// handler or clj-bdp-subscribe can be run and measured without a live
+// connection.
+//
+// The events are real BLPAPI Events built with the SDK's TestUtil against a
+// //blp/mktdata service generated from the fields of the journal: every field
+// gets the schema type of its journal kind (Float64, Int64, Datetime, Date,
+// Time, String - enumerations come back as strings). Messages are grouped into
+// events as they were received, and delivered with the correlation id the
+// Target gives for each topic, so a journal recorded under one set of cids can
+// drive subscriptions made with another.
+//
+// speed 1 replays at the recorded pace, 2 twice as fast and so on; 0 delivers
+// the events back to back, as fast as the target takes them.
+//
+// subscriptionStarted() and timeout() build the other events a session
+// standing in for a live one (replay-session) has to deliver.
+// -----------------------------------------------------------------------------
+
+import com.bloomberglp.blpapi.CorrelationID;
+import com.bloomberglp.blpapi.Datetime;
+import com.bloomberglp.blpapi.Event;
+import com.bloomberglp.blpapi.Name;
+import com.bloomberglp.blpapi.SchemaElementDefinition;
+import com.bloomberglp.blpapi.Service;
+import com.bloomberglp.blpapi.Subscription;
+import com.bloomberglp.blpapi.SubscriptionList;
+import com.bloomberglp.blpapi.test.MessageFormatter;
+import com.bloomberglp.blpapi.test.MessageProperties;
+import com.bloomberglp.blpapi.test.TestUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+public final class TickReplay
+{
+    private static final long MILLIS_PER_DAY       = 86400000L;
+    private static final Name SUBSCRIPTION_STARTED = Name.getName("SubscriptionStarted");
+
+    /** Where replayed events go. */
+    public interface Target
+    {
+        /** Correlation id to deliver the ticks of topic with; null skips the topic. */
+        CorrelationID correlationID(String topic);
+
+        void onEvent(Event event) throws Exception;
+    }
+
+    private final File                     d_dir;
+    private final TickJournal.Reader       d_reader;
+    private final Service                  d_service;
+    private final SchemaElementDefinition  d_definition;
+    private final Name[]                   d_names;
+
+    private volatile boolean               d_isStopped;
+
+    public TickReplay(File dir) throws IOException
+    {
+        d_dir        = dir;
+        d_reader     = new TickJournal.Reader(dir);
+        d_service    = TestUtil.deserializeService(new ByteArrayInputStream(
+                schema(d_reader).getBytes(StandardCharsets.UTF_8)));
+        d_definition = d_service.getEventDefinition(Name.getName("MarketDataEvents"));
+        List<String> fields = d_reader.fields();
+        d_names = new Name[fields.size()];
+        for (int f = 0; f < d_names.length; ++f) {
+            d_names[f] = Name.getName(fields.get(f));
+        }
+    }
+
+    private static String schemaType(byte kind)
+    {
+        switch (kind) {
+            case TickDecoder.KIND_DOUBLE:   return "Float64";
+            case TickDecoder.KIND_LONG:     return "Int64";
+            case TickDecoder.KIND_DATETIME: return "Datetime";
+            case TickDecoder.KIND_DATE:     return "Date";
+            case TickDecoder.KIND_TIME:     return "Time";
+            default:                        return "String";
+        }
+    }
+
+    static String schema(TickJournal.Reader reader)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<ServiceDefinition name=\"blp.mktdata\" version=\"1.0.0.0\">")
+          .append("<service name=\"//blp/mktdata\" version=\"1.0.0.0\">")
+          .append("<event name=\"MarketDataEvents\" eventType=\"MarketDataUpdate\"><eventId>0</eventId></event>")
+          .append("<defaultServiceId>1</defaultServiceId>")
+          .append("<publisherSupportsRecap>true</publisherSupportsRecap>")
+          .append("<authoritativeSourceSupportsRecap>true</authoritativeSourceSupportsRecap>")
+          .append("<isInfrastructureService>false</isInfrastructureService>")
+          .append("<isMetered>false</isMetered><appendMtrId>false</appendMtrId>")
+          .append("</service><schema><sequenceType name=\"MarketDataUpdate\">");
+        List<String> fields = reader.fields();
+        for (int f = 0; f < fields.size(); ++f) {
+            sb.append("<element name=\"").append(fields.get(f)).append("\" type=\"")
+              .append(schemaType(reader.fieldKind(f))).append("\" minOccurs=\"0\" maxOccurs=\"1\"/>");
+        }
+        sb.append("</sequenceType></schema></ServiceDefinition>");
+        return sb.toString();
+    }
+
+    public Service service()                 { return d_service; }
+    public List<String> fields()             { return d_reader.fields(); }
+    public long startEpochMillis()           { return d_reader.startEpochMillis(); }
+
+    /** Makes a running replay() return after the event it is delivering. */
+    public void stop()                       { d_isStopped = true; }
+
+    /** SUBSCRIPTION_STATUS event with one SubscriptionStarted per subscription. */
+    public static Event subscriptionStarted(SubscriptionList subscriptions)
+    {
+        Event event = TestUtil.createEvent(Event.EventType.SUBSCRIPTION_STATUS);
+        SchemaElementDefinition started = TestUtil.getAdminMessageDefinition(SUBSCRIPTION_STARTED);
+        for (Subscription subscription : subscriptions) {
+            TestUtil.appendMessage(event, started,
+                    new MessageProperties().setCorrelationId(subscription.correlationID()));
+        }
+        return event;
+    }
+
+    /** The empty TIMEOUT event Session.nextEvent(timeout) returns when nothing came in time. */
+    public static Event timeout()
+    {
+        return TestUtil.createEvent(Event.EventType.TIMEOUT);
+    }
+
+    private static Datetime datetime(byte kind, long millis)
+    {
+        if (kind == TickDecoder.KIND_TIME) {
+            long ms = Math.floorMod(millis, MILLIS_PER_DAY);
+            return new Datetime((int) (ms / 3600000), (int) (ms / 60000 % 60), (int) (ms / 1000 % 60), (int) (ms % 1000));
+        }
+        LocalDateTime t = LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L),
+                (int) Math.floorMod(millis, 1000L) * 1000000, ZoneOffset.UTC);
+        if (kind == TickDecoder.KIND_DATE) {
+            return new Datetime(t.getYear(), t.getMonthValue(), t.getDayOfMonth());
+        }
+        return new Datetime(t.getYear(), t.getMonthValue(), t.getDayOfMonth(),
+                t.getHour(), t.getMinute(), t.getSecond(), (int) Math.floorMod(millis, 1000L));
+    }
+
+    private void append(Event event, CorrelationID cid, TickJournal.Reader tick)
+    {
+        MessageFormatter formatter = TestUtil.appendMessage(event, d_definition,
+                new MessageProperties().setCorrelationId(cid).setService(d_service));
+        for (int i = 0; i < tick.numValues(); ++i) {
+            Name name = d_names[tick.field(i)];
+            byte kind = tick.kind(i);
+            switch (kind) {
+                case TickJournal.KIND_NULL:
+                    formatter.setElementNull(name);
+                    break;
+                case TickDecoder.KIND_DOUBLE:
+                    formatter.setElement(name, tick.getDouble(i));
+                    break;
+                case TickDecoder.KIND_LONG:
+                    formatter.setElement(name, tick.getLong(i));
+                    break;
+                case TickDecoder.KIND_DATETIME:
+                case TickDecoder.KIND_DATE:
+                case TickDecoder.KIND_TIME:
+                    formatter.setElement(name, datetime(kind, tick.getLong(i)));
+                    break;
+                default:
+                    formatter.setElement(name, tick.getString(i));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Delivers every tick of the journal to target, in order. Returns the
+     * number of messages delivered; ticks of skipped topics are not counted.
+     * A topic is looked up again at each of its ticks until the target has a
+     * correlation id for it, so topics subscribed during the replay get their
+     * ticks from then on.
+     */
+    public long replay(Target target, double speed) throws Exception
+    {
+        d_isStopped = false;
+        Replay replay = new Replay(target, speed);
+        d_reader.read(replay);
+        if (!d_isStopped) replay.deliver();
+        return replay.d_delivered;
+    }
+
+    // one replay(): events are built and delivered as the journal is read
+    private final class Replay implements TickJournal.Visitor
+    {
+        private final Target                    d_target;
+        private final double                    d_speed;
+        private final Map<Long, String>         d_topics = new HashMap<Long, String>();
+        private final Map<Long, CorrelationID>  d_cids   = new HashMap<Long, CorrelationID>();
+        private long                            d_firstNanos = Long.MIN_VALUE;
+        private long                            d_startNanos;
+        private long                            d_delivered;
+        private Event                           d_pending;
+        private long                            d_pendingNanos;
+        private int                             d_pendingMessages;
+
+        Replay(Target target, double speed)
+        {
+            d_target = target;
+            d_speed  = speed;
+        }
+
+        public boolean isStopped()
+        {
+            return d_isStopped;
+        }
+
+        public void onTopic(long cid, String topic)
+        {
+            d_topics.put(cid, topic);
+            d_cids.remove(cid);
+        }
+
+        public void onTick(long nanos, long cid, boolean firstInEvent, TickJournal.Reader tick) throws Exception
+        {
+            if (firstInEvent) deliver();
+            if (d_isStopped) return;
+            CorrelationID correlationID = d_cids.get(cid);
+            if (correlationID == null) {
+                String topic = d_topics.get(cid);
+                correlationID = topic == null ? null : d_target.correlationID(topic);
+                if (correlationID == null) return;
+                d_cids.put(cid, correlationID);
+            }
+            if (d_pending == null) {
+                d_pending = TestUtil.createEvent(Event.EventType.SUBSCRIPTION_DATA);
+                d_pendingNanos = nanos;
+            }
+            append(d_pending, correlationID, tick);
+            d_pendingMessages++;
+        }
+
+        /** Delivers the pending event, at its time at speed. */
+        void deliver() throws Exception
+        {
+            if (d_pending == null) return;
+            if (d_firstNanos == Long.MIN_VALUE) {
+                d_firstNanos = d_pendingNanos;
+                d_startNanos = System.nanoTime();
+            }
+            if (d_speed > 0) {
+                long due = d_startNanos + (long) ((d_pendingNanos - d_firstNanos) / d_speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            Event event = d_pending;
+            d_pending = null;
+            d_target.onEvent(event);
+            d_delivered += d_pendingMessages;
+            d_pendingMessages = 0;
+        }
+    }
+
+    public String toString()
+    {
+        return "TickReplay[" + d_dir + " " + d_reader.fields() + "]";
+    }
+}
@@ -0,0 +1,475 @@
+// Streaming subscription: the ticks of a session as a Flow.Publisher, for
+// core/tick-stream and tick-channel.
+//
+// A "tick-stream" thread reads the session (which must not have an
+// EventHandler), decodes every SUBSCRIPTION_DATA message into a Tick of the
+// subscribed fields present in it (doubles for numeric fields, strings
+// otherwise) and buffers it for the one subscriber, which gets ticks only as
+// it requests them. When the subscriber is behind, overflow decides:
+//
+// - DROP_OLDEST: at most bufferTicks ticks are buffered; a new one pushes out
+//   the oldest, which is counted as dropped;
+// - CONFLATE: at most one tick per topic is buffered, in the order the topics
+//   first ticked; a new tick of a buffered topic is merged into it (newer
+//   field values win) and counted as conflated;
+// - BLOCK: the reader waits for room in bufferTicks, leaving events in the
+//   session's queue: the SDK then warns of a slow consumer and drops data
+//   (DataLoss) on its side.
+//
+// Topics can be added and removed at any time. SUBSCRIPTION_STATUS messages
+// are kept per topic (status()): a topic that fails or is terminated is no
+// longer subscribed. ADMIN events are counted. close(), cancel() or a
+// SessionTerminated unsubscribe every topic, stop the session if the stream
+// owns it (a session passed in by a caller is left running) and complete the
+// subscriber once the buffer is drained (onError if the session terminated by
+// itself).
+// -----------------------------------------------------------------------------
+
+import com.bloomberglp.blpapi.CorrelationID;
+import com.bloomberglp.blpapi.Element;
+import com.bloomberglp.blpapi.Event;
+import com.bloomberglp.blpapi.Identity;
+import com.bloomberglp.blpapi.Message;
+import com.bloomberglp.blpapi.Name;
+import com.bloomberglp.blpapi.Schema;
+import com.bloomberglp.blpapi.Session;
+import com.bloomberglp.blpapi.Subscription;
+import com.bloomberglp.blpapi.SubscriptionList;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class TickStream implements Flow.Publisher<TickStream.Tick>, AutoCloseable
+{
+    public enum Overflow { DROP_OLDEST, CONFLATE, BLOCK }
+
+    public static final String MKTDATA = "//blp/mktdata";
+
+    private static final Name SUBSCRIPTION_STARTED    = Name.getName("SubscriptionStarted");
+    private static final Name SUBSCRIPTION_FAILURE    = Name.getName("SubscriptionFailure");
+    private static final Name SUBSCRIPTION_TERMINATED = Name.getName("SubscriptionTerminated");
+    private static final Name SESSION_TERMINATED      = Name.getName("SessionTerminated");
+    private static final Name SLOW_CONSUMER_WARNING   = Name.getName("SlowConsumerWarning");
+    private static final Name DATA_LOSS               = Name.getName("DataLoss");
+
+    /** The fields of one or more (conflated) SUBSCRIPTION_DATA messages of a topic. */
+    public static final class Tick
+    {
+        private final String                d_topic;
+        private final Map<String, Object>   d_fields;
+        private int                         d_messages = 1;
+
+        Tick(String topic, Map<String, Object> fields)
+        {
+            d_topic  = topic;
+            d_fields = fields;
+        }
+
+        public String topic()                   { return d_topic; }
+        public Map<String, Object> fields()     { return Collections.unmodifiableMap(d_fields); }
+        public int messages()                   { return d_messages; }
+
+        public String toString()                { return d_topic + " " + d_fields; }
+    }
+
+    private final Session                                       d_session;
+    private final boolean                                       d_ownsSession;
+    private final Identity                                      d_identity;
+    private final String[]                                      d_fields;
+    private final Name[]                                        d_names;
+    private final String                                        d_fieldList;
+    private final Overflow                                      d_overflow;
+    private final int                                           d_bufferTicks;
+    private final ConcurrentHashMap<String, CorrelationID>      d_topics = new ConcurrentHashMap<String, CorrelationID>();
+    private final ConcurrentHashMap<String, String>             d_status = new ConcurrentHashMap<String, String>();
+
+    private final Object                                        d_lock = new Object();
+    private final ArrayDeque<Tick>                              d_buffer = new ArrayDeque<Tick>();          // d_lock
+    private final LinkedHashMap<String, Tick>                   d_conflated = new LinkedHashMap<String, Tick>(); // d_lock
+    private long                                                d_demand;                                   // d_lock
+    private Flow.Subscriber<? super Tick>                       d_subscriber;                               // d_lock
+    private final AtomicInteger                                 d_draining = new AtomicInteger();
+    private volatile boolean                                    d_isCancelled;
+    private volatile boolean                                    d_isDone;       // no more ticks will be buffered
+    private volatile Throwable                                  d_error;
+    private boolean                                             d_isCompleted;  // drain thread only
+    private volatile boolean                                    d_isClosed;
+    private Thread                                              d_reader;
+
+    private final AtomicLong d_received   = new AtomicLong();
+    private final AtomicLong d_delivered  = new AtomicLong();
+    private final AtomicLong d_dropped    = new AtomicLong();
+    private final AtomicLong d_conflations = new AtomicLong();
+    private final AtomicLong d_slowConsumerWarnings = new AtomicLong();
+    private final AtomicLong d_dataLosses = new AtomicLong();
+
+    /**
+     * session must be started and without EventHandler; identity may be null.
+     * close() stops session only if ownsSession.
+     */
+    public TickStream(Session session, boolean ownsSession, Identity identity, List<String> fields,
+                      Overflow overflow, int bufferTicks)
+    {
+        d_session     = session;
+        d_ownsSession = ownsSession;
+        d_identity    = identity;
+        d_fields      = fields.toArray(new String[0]);
+        d_names       = new Name[d_fields.length];
+        for (int f = 0; f < d_fields.length; ++f) d_names[f] = Name.getName(d_fields[f]);
+        d_fieldList   = String.join(",", fields);
+        d_overflow    = overflow;
+        d_bufferTicks = Math.max(1, bufferTicks);
+    }
+
+    /** Opens //blp/mktdata and starts the reader thread. */
+    public synchronized TickStream start() throws IOException, InterruptedException
+    {
+        if (d_reader != null) return this;
+        if (!d_session.openService(MKTDATA)) throw new IOException("Cannot open " + MKTDATA);
+        d_reader = new Thread(new Runnable() {
+            public void run() { readLoop(); }
+        }, "tick-stream");
+        d_reader.setDaemon(true);
+        d_reader.start();
+        return this;
+    }
+
+    // Topics //////////////////////////////////////////////////////////////////
+
+    /** Subscribes the topics not subscribed yet. */
+    public void add(Collection<String> topics) throws IOException
+    {
+        SubscriptionList subscriptions = new SubscriptionList();
+        synchronized (d_topics) {
+            if (d_isClosed) throw new IllegalStateException("TickStream is closed");
+            for (String topic : topics) {
+                if (d_topics.containsKey(topic)) continue;
+                CorrelationID cid = new CorrelationID(topic);
+                d_topics.put(topic, cid);
+                d_status.put(topic, "Pending");
+                subscriptions.add(new Subscription(topic, d_fieldList, cid));
+            }
+        }
+        if (subscriptions.isEmpty()) return;
+        if (d_identity != null) {
+            d_session.subscribe(subscriptions, d_identity);
+        } else {
+            d_session.subscribe(subscriptions);
+        }
+    }
+
+    /** Unsubscribes topics; their ticks still buffered are delivered. */
+    public void remove(Collection<String> topics) throws IOException
+    {
+        SubscriptionList subscriptions = new SubscriptionList();
+        synchronized (d_topics) {
+            for (String topic : topics) {
+                CorrelationID cid = d_topics.remove(topic);
+                if (cid == null) continue;
+                d_status.remove(topic);
+                subscriptions.add(new Subscription(topic, d_fieldList, cid));
+            }
+        }
+        if (!subscriptions.isEmpty()) d_session.unsubscribe(subscriptions);
+    }
+
+    public List<String> topics()
+    {
+        return new ArrayList<String>(d_topics.keySet());
+    }
+
+    /** Last SUBSCRIPTION_STATUS of every subscribed topic: Pending, SubscriptionStarted, SubscriptionFailure... */
+    public Map<String, String> status()
+    {
+        return new TreeMap<String, String>(d_status);
+    }
+
+    // Reader //////////////////////////////////////////////////////////////////
+
+    private void readLoop()
+    {
+        try {
+            while (!d_isClosed) {
+                Event event = d_session.nextEvent(100);
+                switch (event.eventType().intValue()) {
+                    case Event.EventType.Constants.SUBSCRIPTION_DATA:
+                        for (Message message : event) {
+                            Tick tick = decode(message);
+                            if (tick != null) offer(tick);
+                        }
+                        break;
+                    case Event.EventType.Constants.SUBSCRIPTION_STATUS:
+                        for (Message message : event) onStatus(message);
+                        break;
+                    case Event.EventType.Constants.ADMIN:
+                        for (Message message : event) {
+                            if (SLOW_CONSUMER_WARNING.equals(message.messageType())) d_slowConsumerWarnings.incrementAndGet();
+                            if (DATA_LOSS.equals(message.messageType())) d_dataLosses.incrementAndGet();
+                        }
+                        break;
+                    case Event.EventType.Constants.SESSION_STATUS:
+                        for (Message message : event) {
+                            if (SESSION_TERMINATED.equals(message.messageType()) && !d_isClosed) {
+                                d_error = new IllegalStateException("Session terminated: " + message);
+                                d_isClosed = true;
+                            }
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed while blocked
+        } catch (RuntimeException e) {
+            d_error = e;
+        } finally {
+            d_isDone = true;
+            drain();
+        }
+    }
+
+    private static boolean isNumeric(Schema.Datatype datatype)
+    {
+        return datatype == Schema.Datatype.FLOAT64 || datatype == Schema.Datatype.FLOAT32
+            || datatype == Schema.Datatype.INT64 || datatype == Schema.Datatype.INT32;
+    }
+
+    private Tick decode(Message message)
+    {
+        CorrelationID cid = message.correlationID();
+        Object topic = cid == null ? null : cid.object();
+        if (!(topic instanceof String)) return null;
+        Element element = message.asElement();
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        for (int f = 0; f < d_names.length; ++f) {
+            if (!element.hasElement(d_names[f], true)) continue;
+            Element value = element.getElement(d_names[f]);
+            fields.put(d_fields[f], isNumeric(value.datatype()) ? (Object) value.getValueAsFloat64()
+                                                                : value.getValueAsString());
+        }
+        if (fields.isEmpty()) return null;
+        d_received.incrementAndGet();
+        return new Tick((String) topic, fields);
+    }
+
+    private void onStatus(Message message)
+    {
+        CorrelationID cid = message.correlationID();
+        Object topic = cid == null ? null : cid.object();
+        if (!(topic instanceof String) || !cid.equals(d_topics.get(topic))) return;
+        Name type = message.messageType();
+        d_status.put((String) topic, type.toString());
+        if (SUBSCRIPTION_FAILURE.equals(type) || SUBSCRIPTION_TERMINATED.equals(type)) {
+            d_topics.remove(topic, cid);
+        }
+    }
+
+    private void offer(Tick tick) throws InterruptedException
+    {
+        synchronized (d_lock) {
+            switch (d_overflow) {
+                case CONFLATE:
+                    Tick pending = d_conflated.get(tick.d_topic);
+                    if (pending == null) {
+                        d_conflated.put(tick.d_topic, tick);
+                    } else {
+                        pending.d_fields.putAll(tick.d_fields);
+                        pending.d_messages += tick.d_messages;
+                        d_conflations.incrementAndGet();
+                    }
+                    break;
+                case DROP_OLDEST:
+                    if (d_buffer.size() >= d_bufferTicks) {
+                        d_buffer.poll();
+                        d_dropped.incrementAndGet();
+                    }
+                    d_buffer.add(tick);
+                    break;
+                case BLOCK:
+                    while (d_buffer.size() >= d_bufferTicks && !d_isClosed) d_lock.wait(100);
+                    if (d_isClosed) return;
+                    d_buffer.add(tick);
+                    break;
+            }
+        }
+        drain();
+    }
+
+    // Publisher ///////////////////////////////////////////////////////////////
+
+    /** One subscriber per stream; a second one gets onError. */
+    public void subscribe(final Flow.Subscriber<? super Tick> subscriber)
+    {
+        synchronized (d_lock) {
+            if (d_subscriber != null) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    public void request(long n) {}
+                    public void cancel() {}
+                });
+                subscriber.onError(new IllegalStateException("TickStream already has a subscriber"));
+                return;
+            }
+            d_subscriber = subscriber;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            public void request(long n)
+            {
+                if (n <= 0) {
+                    d_error = new IllegalArgumentException("Demand must be positive: " + n);
+                    d_isCancelled = true;
+                    close();
+                } else {
+                    synchronized (d_lock) {
+                        d_demand = d_demand + n < 0 ? Long.MAX_VALUE : d_demand + n;
+                    }
+                }
+                drain();
+            }
+
+            public void cancel()
+            {
+                d_isCancelled = true;
+                close();
+            }
+        });
+        drain();
+    }
+
+    private Tick poll()
+    {
+        if (d_overflow != Overflow.CONFLATE) return d_buffer.poll();
+        Iterator<Tick> it = d_conflated.values().iterator();
+        if (!it.hasNext()) return null;
+        Tick tick = it.next();
+        it.remove();
+        return tick;
+    }
+
+    private int buffered()
+    {
+        return d_overflow == Overflow.CONFLATE ? d_conflated.size() : d_buffer.size();
+    }
+
+    /** Delivers what demand allows, on whichever thread gets here first; the others leave it more to do. */
+    private void drain()
+    {
+        if (d_draining.getAndIncrement() != 0) return;
+        int missed = 1;
+        do {
+            Flow.Subscriber<? super Tick> subscriber;
+            synchronized (d_lock) {
+                subscriber = d_subscriber;
+            }
+            if (subscriber != null && !d_isCompleted) {
+                while (true) {
+                    Tick tick;
+                    boolean isEmpty;
+                    synchronized (d_lock) {
+                        tick = d_isCancelled || d_demand == 0 ? null : poll();
+                        if (tick != null) {
+                            d_demand--;
+                            d_lock.notifyAll();
+                        }
+                        isEmpty = buffered() == 0;
+                    }
+                    if (tick != null) {
+                        d_delivered.incrementAndGet();
+                        subscriber.onNext(tick);
+                        continue;
+                    }
+                    if (d_isDone && (isEmpty || d_isCancelled)) {
+                        d_isCompleted = true;
+                        if (d_error != null) subscriber.onError(d_error); else if (!d_isCancelled) subscriber.onComplete();
+                    }
+                    break;
+                }
+            }
+            missed = d_draining.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    // Shutdown ////////////////////////////////////////////////////////////////
+
+    /**
+     * Unsubscribes every topic, stops the reader and the session if owned; the
+     * subscriber completes after the buffer.
+     */
+    public void close()
+    {
+        synchronized (d_topics) {
+            if (d_isClosed && d_topics.isEmpty()) return;
+            d_isClosed = true;
+        }
+        try {
+            remove(topics());
+        } catch (Exception e) {
+            // the session is stopped below anyway
+        }
+        synchronized (d_lock) {
+            d_lock.notifyAll();
+        }
+        if (d_ownsSession) {
+            try {
+                d_session.stop();
+            } catch (Exception e) {
+                if (d_error == null) d_error = e;
+            }
+        }
+        Thread reader;
+        synchronized (this) {
+            reader = d_reader;
+        }
+        if (reader == null) {
+            d_isDone = true;
+            drain();
+        } else if (reader != Thread.currentThread()) {
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isClosed()           { return d_isClosed; }
+    public Overflow overflow()          { return d_overflow; }
+    public long received()              { return d_received.get(); }
+    public long delivered()             { return d_delivered.get(); }
+    public long dropped()               { return d_dropped.get(); }
+    public long conflated()             { return d_conflations.get(); }
+    public long slowConsumerWarnings()  { return d_slowConsumerWarnings.get(); }
+    public long dataLosses()            { return d_dataLosses.get(); }
+
+    public int buffer()
+    {
+        synchronized (d_lock) {
+            return buffered();
+        }
+    }
+
+    public long demand()
+    {
+        synchronized (d_lock) {
+            return d_demand;
+        }
+    }
+
+    public String toString()
+    {
+        return String.format("TickStream[%s topics=%d received=%d delivered=%d buffered=%d dropped=%d conflated=%d]",
+                d_overflow, d_topics.size(), received(), delivered(), buffer(), dropped(), conflated());
+    }
+}
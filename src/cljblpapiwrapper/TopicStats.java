@@ -0,0 +1,88 @@
+// Per-topic tick counts, rates and inter-arrival gaps of a subscription.
+//
+// Topics are rows, as in SnapshotStore, TickDecoder and SubscriptionRegistry.
+// onTick(row, nanos) must only be called by one thread at a time for a given
+// row (the dispatcher, or the worker that owns the topic), which is what
+// makes it allocation- and lock-free: plain reads and lazySet writes of the
+// row's slots. Readers on other threads see each slot's latest value.
+//
+// Every gap between two ticks of a topic also goes into the gaps() histogram
+// shared by all the topics.
+// -----------------------------------------------------------------------------
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public final class TopicStats
+{
+    private final String[]          d_topics;
+    private final AtomicLongArray   d_ticks;
+    private final AtomicLongArray   d_firstNanos;
+    private final AtomicLongArray   d_lastNanos;
+    private final AtomicLongArray   d_maxGapNanos;
+    private final LatencyHistogram  d_gaps = new LatencyHistogram();
+
+    public TopicStats(List<String> topics)
+    {
+        d_topics      = topics.toArray(new String[0]);
+        d_ticks       = new AtomicLongArray(d_topics.length);
+        d_firstNanos  = new AtomicLongArray(d_topics.length);
+        d_lastNanos   = new AtomicLongArray(d_topics.length);
+        d_maxGapNanos = new AtomicLongArray(d_topics.length);
+    }
+
+    public void onTick(int row, long nanos)
+    {
+        long ticks = d_ticks.get(row);
+        if (ticks == 0) {
+            d_firstNanos.lazySet(row, nanos);
+        } else {
+            long gap = nanos - d_lastNanos.get(row);
+            d_gaps.record(gap);
+            if (gap > d_maxGapNanos.get(row)) d_maxGapNanos.lazySet(row, gap);
+        }
+        d_lastNanos.lazySet(row, nanos);
+        d_ticks.lazySet(row, ticks + 1);
+    }
+
+    public int numTopics()                { return d_topics.length; }
+    public String topic(int row)          { return d_topics[row]; }
+    public long ticks(int row)            { return d_ticks.get(row); }
+    public long lastNanos(int row)        { return d_lastNanos.get(row); }
+    public long maxGapNanos(int row)      { return d_maxGapNanos.get(row); }
+    public LatencyHistogram gaps()        { return d_gaps; }
+
+    /** Ticks per second between the first and the latest tick of row; 0 before two ticks. */
+    public double rate(int row)
+    {
+        long ticks = d_ticks.get(row);
+        long span = d_lastNanos.get(row) - d_firstNanos.get(row);
+        return ticks < 2 || span <= 0 ? 0.0 : (ticks - 1) * 1e9 / span;
+    }
+
+    public long totalTicks()
+    {
+        long n = 0;
+        for (int row = 0; row < d_topics.length; ++row) n += d_ticks.get(row);
+        return n;
+    }
+
+    /** Nanos since the latest tick of the topic that has been quiet longest (that ticked at all); 0 if none. */
+    public long stalestNanos(long now)
+    {
+        long stalest = 0;
+        for (int row = 0; row < d_topics.length; ++row) {
+            if (d_ticks.get(row) > 0) stalest = Math.max(stalest, now - d_lastNanos.get(row));
+        }
+        return stalest;
+    }
+
+    public void reset()
+    {
+        for (int row = 0; row < d_topics.length; ++row) {
+            d_ticks.set(row, 0);
+            d_maxGapNanos.set(row, 0);
+        }
+        d_gaps.reset();
+    }
+}
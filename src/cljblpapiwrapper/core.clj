@@ -2,9 +2,17 @@
   (:gen-class)
   (:require [clojure.tools.logging :as log])
   (:import
-    (java.time LocalDate ZonedDateTime)
+    (java.io File)
+    (java.time LocalDate LocalTime OffsetDateTime ZoneOffset ZonedDateTime)
     (java.time.format DateTimeFormatter)
-    (com.bloomberglp.blpapi AuthApplication AuthOptions EventHandler Name Identity CorrelationID Session SessionOptions Subscription SubscriptionList MessageIterator Event$EventType$Constants SessionOptions$ClientMode Event Message Element Request NotFoundException EventQueue)))
+    (java.util Collection)
+    (java.util.concurrent CompletableFuture CompletionException ConcurrentHashMap ExecutionException Executor Executors Flow$Subscriber Flow$Subscription LinkedBlockingQueue ScheduledExecutorService Semaphore ThreadFactory TimeUnit)
+    (java.util.concurrent.atomic AtomicLong)
+    (java.util.function BiConsumer Function)
+    (com.bloomberglp.blpapi AbstractSession AuthApplication AuthOptions Datetime EventHandler Name Identity CorrelationID Schema$Datatype SchemaElementDefinition SchemaTypeDefinition Session SessionOptions SessionOptions$ServerAddress Subscription SubscriptionList MessageIterator Event$EventType Event$EventType$Constants SessionOptions$ClientMode Event Message Element Request NotFoundException EventQueue Service)
+    Authorizer Authorizer$Authorization Conflator Conflator$Listener EntitlementFanout EntitlementFanout$Listener HistoryColumns HistoryStore LatencyHistogram Metrics PartitionedWorkers RefdataCache RefdataCache$Lookup PartitionedWorkers$Worker SessionEmulator SessionEmulator$Options
+    SnapshotStore TopicStats
+    TickJournal TickJournal$Topics TickJournal$Writer TickReplay TickReplay$Target TickStream TickStream$Overflow TickStream$Tick))
 
 
 ;; Useful functions, not Bloomberg add-in dependent ;;
@@ -17,25 +25,67 @@
     ZonedDateTime (.format date (DateTimeFormatter/ofPattern "yyyyMMdd"))
     String (clojure.string/replace date #"-" "")))
 
+(defn- columnar? [res] (instance? HistoryColumns (first (vals res))))
+
+(defn- ->local-date
+  "LocalDate from a LocalDate, ZonedDateTime, yyyy-MM-dd (with or without a timezone suffix) or yyyyMMdd"
+  ^LocalDate [date]
+  (cond
+    (instance? LocalDate date) date
+    (instance? ZonedDateTime date) (.toLocalDate ^ZonedDateTime date)
+    :else (LocalDate/parse (date->yyyyMMdd (subs date 0 (min (count date) 10))) DateTimeFormatter/BASIC_ISO_DATE)))
+
+(defn- columnar-value
+  "nil when missing"
+  [^HistoryColumns columns row field]
+  (let [f (.fieldIndex columns (name field))]
+    (when (and (>= row 0) (>= f 0) (not (.isMissing columns row f)))
+      (.get columns (int row) f))))
+
+(defn- columnar-record [security ^HistoryColumns columns row]
+  (into {:date (.date columns (int row)) :security security}
+        (for [f (range (.numFields columns)) :when (not (.isMissing columns row f))]
+          [(keyword (.field columns f)) (.get columns (int row) (int f))])))
+
 (defn bdh-result->records
   "This is useful for e.g. vega-lite display"
   [res]
-  (apply concat (for [[k v] res] (mapv #(assoc % :security k) v))))
+  (if (columnar? res)
+    (apply concat (for [[k ^HistoryColumns v] res] (mapv #(columnar-record k v %) (range (.size v)))))
+    (apply concat (for [[k v] res] (mapv #(assoc % :security k) v)))))
 
 (defn bdh-result->field
+  "{:date date security value} per date, sorted by date; both forms assert that every series has the same length"
   [res field]
-  (assert (apply = (map count (vals res))) "Error, series misaligned!")
-  (sort-by :date
-           (into [] (for [[d v] (group-by :date (bdh-result->records res))]
-                      (into {:date d} (for [r v] [(r :security) (r field)]))))))
+  (if (columnar? res)
+    (do
+      (assert (apply = (map #(.size ^HistoryColumns %) (vals res))) "Error, series misaligned!")
+      (for [day (into (sorted-set) (mapcat #(.days ^HistoryColumns %) (vals res)))]
+        (into {:date (LocalDate/ofEpochDay day)}
+              (for [[k ^HistoryColumns v] res :let [row (.rowOf v (long day))] :when (>= row 0)]
+                [k (columnar-value v row field)]))))
+    (do
+      (assert (apply = (map count (vals res))) "Error, series misaligned!")
+      (sort-by :date
+               (into [] (for [[d v] (group-by :date (bdh-result->records res))]
+                          (into {:date d} (for [r v] [(r :security) (r field)]))))))))
 
 (defn bdh-result->date
+  "Records of date, which is a LocalDate, ZonedDateTime, yyyy-MM-dd or yyyyMMdd in both forms"
   [res date]
-  (filter #(= (:date %) date) (bdh-result->records res)))
+  (let [date (->local-date date)]
+    (if (columnar? res)
+      (for [[k ^HistoryColumns v] res :let [row (.rowOf v date)] :when (>= row 0)]
+        (columnar-record k v row))
+      (filter #(= (->local-date (:date %)) date) (bdh-result->records res)))))
 
 (defn bdh-result->date-field
   [res date field]
-  (into {} (for [r (bdh-result->date res date)] [(r :security) (r field)])))
+  (if (columnar? res)
+    (let [date (->local-date date)]
+      (into {} (for [[k ^HistoryColumns v] res :let [row (.rowOf v date)] :when (>= row 0)]
+                 [k (columnar-value v row field)])))
+    (into {} (for [r (bdh-result->date res date)] [(r :security) (r field)]))))
 
 (defn ->coll [x] (if (coll? x) x [x]))
 (defn ->namecoll [x] (mapv #(Name. %) (->coll x)))
@@ -66,67 +116,12 @@
 
 ;;;;;;;;;;;;;;;;;; WORK IN PROGRESS RE BLOOMBERG IDEAL SOLUTION ;;;;;;;;;;;;;;;;;;
 (comment
-  (defn print-failed-entitlements
-    [failed-entitlements]
-    (doseq [i (range (count failed-entitlements))]
-      (println (.get failed-entitlements i))))
-
-  (defn distribute-message [^Message msg identities uuids]
-    (let [service (.service msg)
-          failed-entitlements (atom [])
-          securities (.getElement msg ^Name bbg-securityData)
-          num-securities (.numValues securities)]
-      (println "Processing" num-securities "securities:")
-      (doseq [i (range num-securities)]
-        (let [security (.getValueAsElement securities i)
-              ticker (.getElementAsString security ^Name bbg-security)
-              entitlements (if (.hasElement security ^Name bbg-eidData) (.getElement security ^Name bbg-eidData))
-              num-users (.size identities)]
-          (if (and entitlements (not (.isNull entitlements)) (> (.numValues entitlements) 0))
-            (dotimes [j num-users]
-              (reset! failed-entitlements [])
-              (let [identity (.get identities j)
-                    uuid (.get uuids j)]
-                (if (.hasEntitlements identity entitlements service failed-entitlements)
-                  (do
-                    (println "User:" uuid "is entitled to get data for:" ticker)
-                    (.print msg System/out))
-                  (do
-                    (println "User:" uuid "is NOT entitled to get data for:" ticker "- Failed eids:")
-                    (print-failed-entitlements failed-entitlements)))))
-            (dotimes [j num-users]
-              (println "User:" (.get uuids j) "is entitled to get data for:" ticker)))))))
-
-  (defn process-response-event [^Event event identities uuids]
-    (doseq [^Message msg event]
-      (if (.hasElement msg ^Name bbg-responseError)
-        (println msg)
-        (distribute-message msg identities uuids))))
-
-  (defn make-session-event-handler [identities uuids user-ips]
-    (reify EventHandler
-      (processEvent [_ event session]
-        (let [event-type (.intValue (.eventType event))]
-          (cond
-            (some #{event-type} [(.intValue Event$EventType$Constants/SESSION_STATUS)
-                                 (.intValue Event$EventType$Constants/SERVICE_STATUS)
-                                 (.intValue Event$EventType$Constants/REQUEST_STATUS)
-                                 (.intValue Event$EventType$Constants/AUTHORIZATION_STATUS)
-                                 (.intValue Event$EventType$Constants/SUBSCRIPTION_STATUS)])
-            (try (println event) (catch ^Exception e (println "Exception!!!" (.getMessage e))))
-            (some #{event-type} [(.intValue Event$EventType$Constants/RESPONSE)
-                                 (.intValue Event$EventType$Constants/PARTIAL_RESPONSE)])
-            (try
-              (process-response-event event identities uuids)
-              (catch Exception e
-                (println "Library Exception!!!" (.getMessage e)))))))))
-
   (defn sapi-session-new-untested
     "SAPI authentication
     - host-ip and host-port are for the server
     - uuid is the UUID of a user who's creating the request and is logged into Bloomberg desktop
     - local-ip is the ip of the user"
-    [^String host-ip ^Long host-port ^Long uuid ^String local-ip ^String app-name]
+    [^String host-ip ^Long host-port ^Long uuid ^String local-ip ^String app-name fanout]
     (let [app-corr-id (CorrelationID. app-name)
           auth-options (AuthOptions. (AuthApplication. app-name))
           session-options (doto
@@ -135,7 +130,7 @@
                             (.setServerHost host-ip)
                             (.setServerPort host-port)
                             (.setSessionIdentityOptions auth-options app-corr-id))
-          session (doto (Session. session-options (make-session-event-handler i u ui)) (.start) (.openService "//blp/apiauth")) ;(SessionEventHandler)
+          session (doto (Session. session-options (make-session-event-handler fanout)) (.start) (.openService "//blp/apiauth")) ;(SessionEventHandler)
           bbgidentity (.createIdentity session)
           api-auth-svc (.getService session "//blp/apiauth")
           auth-req (doto (.createAuthorizationRequest api-auth-svc) (.set ^Name bbg-uuid (str uuid)) (.set ^Name bbg-ipAddress local-ip))
@@ -151,47 +146,212 @@
              :correlation-id corr}                          ; [session (.contains (.toString (.next (.messageIterator event))) "AuthorizationSuccess")]
             (recur s)))))))
 
-(defn sapi-session
-  "SAPI authentication
-  - host-ip and host-port are for the server
-  - uuid is the UUID of a user who's creating the request and is logged into Bloomberg desktop
-  - local-ip is the ip of the user"
-  [^String host-ip ^Long host-port ^Long uuid ^String local-ip]
-  (let [session-options (doto
-                          (SessionOptions.)
-                          (.setClientMode SessionOptions$ClientMode/AUTO)
-                          (.setServerHost host-ip)
-                          (.setServerPort host-port))
-        session (doto (Session. session-options) (.start) (.openService "//blp/apiauth"))
+(defn session-options
+  "SessionOptions with every host registered as a server address (hosts is one host or a collection, same port for all).
+  The session connects to the first host that answers and, after a disconnection, restarts by itself over the same list,
+  so a B-PIPE node restart fails over without a new session or a new authorization. Subscription data carries the time
+  it was received, for the queue lag metric."
+  [hosts port]
+  (let [hosts (->coll hosts)]
+    (doto (SessionOptions.)
+      (.setClientMode SessionOptions$ClientMode/AUTO)
+      (.setServerAddresses (into-array SessionOptions$ServerAddress (for [h hosts] (SessionOptions$ServerAddress. ^String h (int port)))))
+      (.setAutoRestartOnDisconnection true)
+      (.setNumStartAttempts (max 3 (count hosts)))
+      (.setRecordSubscriptionDataReceiveTimes true))))
+
+(defn- start-session
+  (^Session [^SessionOptions session-options] (start-session session-options nil))
+  (^Session [^SessionOptions session-options ^EventHandler handler]
+   (let [session (if handler (Session. session-options handler) (Session. session-options))]
+     (when-not (.start session)
+       (throw (ex-info "Failed to start Bloomberg session" {:servers (mapv str (.getServerAddresses session-options))})))
+     session)))
+
+(defn- authorization-request
+  "AuthorizationRequest for uuid/local-ip, opening //blp/apiauth on session"
+  ^Request [^AbstractSession session uuid local-ip]
+  (.openService session "//blp/apiauth")
+  (doto (.createAuthorizationRequest (.getService session "//blp/apiauth"))
+    (.set ^Name bbg-uuid (str uuid))
+    (.set ^Name bbg-ipAddress ^String local-ip)))
+
+(defn- authorization-answer
+  "The part of a session-map given by the RESPONSE event to an AuthorizationRequest"
+  [^Event event bbgidentity corr]
+  {:success (.contains (.toString (.next (.messageIterator event))) "AuthorizationSuccess")
+   :identity bbgidentity
+   :correlation-id corr})
+
+(defn- authorize
+  "Sends an AuthorizationRequest for uuid/local-ip and blocks until it is answered"
+  [^Session session uuid local-ip]
+  (let [auth-req (authorization-request session uuid local-ip)
         bbgidentity (.createIdentity session)
-        api-auth-svc (.getService session "//blp/apiauth")
-        auth-req (doto (.createAuthorizationRequest api-auth-svc) (.set ^Name bbg-uuid (str uuid)) (.set ^Name bbg-ipAddress local-ip))
         corr (CorrelationID. "authCorrelation")             ;uuid
         auth-event-queue (EventQueue/new)]
     (.sendAuthorizationRequest session auth-req bbgidentity auth-event-queue corr)
     (loop [s auth-event-queue]
       (let [event (.nextEvent s)]
         (if (= (.intValue (.eventType event)) Event$EventType$Constants/RESPONSE)
-          {:session session
-           :success (.contains (.toString (.next (.messageIterator event))) "AuthorizationSuccess")
-           :identity bbgidentity
-           :correlation-id corr
-           :session-options session-options}
+          (authorization-answer event bbgidentity corr)
           (recur s))))))
 
+(defn sapi-session
+  "SAPI authentication
+  - host-ip and host-port are for the server; host-ip can also be a collection of hosts to fail over between
+  - uuid is the UUID of a user who's creating the request and is logged into Bloomberg desktop
+  - local-ip is the ip of the user
+  For many users on one session, see sapi-multi-session."
+  [host-ip ^Long host-port ^Long uuid ^String local-ip]
+  (let [session-options (session-options host-ip host-port)
+        session (start-session session-options)]
+    (assoc (authorize session uuid local-ip)
+      :session session
+      :session-options session-options)))
+
 (defn local-session []
-  (doto
-    (Session.
-      (doto (SessionOptions.)
-        (.setServerHost default-local-host)
-        (.setServerPort default-local-port)))
-    (.start)))
+  (start-session
+    (doto (SessionOptions.)
+      (.setServerHost default-local-host)
+      (.setServerPort default-local-port)
+      (.setRecordSubscriptionDataReceiveTimes true))))
 
-;; Response handling ;;
+;; Entitlement fan-out ;;
+;; One SAPI / B-PIPE session serving many users: an EntitlementFanout holds the identity of every user and delivers each
+;; response or tick once per cohort of users with the same entitlements, see EntitlementFanout. Refdata requests must
+;; ask for returnEids and subscriptions for the EID field, otherwise every user gets everything.
+
+(defn entitlement-fanout
+  "EntitlementFanout calling (deliver message cohort securities) once per cohort entitled to a message, (.users cohort)
+  being its users; securities are the indices in securityData of the securities of a refdata response the cohort may
+  see, nil for ticks"
+  ^EntitlementFanout [deliver]
+  (EntitlementFanout. (reify EntitlementFanout$Listener
+                        (deliver [_ message cohort securities] (deliver message cohort securities)))))
 
-(defn- handle-response-event [^Event event]
-  (log/debug "blp response event" (str event))
-  (last (iterator-seq (.messageIterator event))))
+(defn add-entitled-user!
+  "Adds user (e.g. its uuid) authorized as in the result of sapi-session: {:identity identity :correlation-id cid}, the
+  correlation id of the AuthorizationRequest being what AuthorizationRevoked messages are matched with"
+  [^EntitlementFanout fanout user {:keys [identity correlation-id]}]
+  (.addUser fanout user identity correlation-id)
+  fanout)
+
+(defn remove-entitled-user! [^EntitlementFanout fanout user] (.removeUser fanout user))
+
+(defn distribute-message [^EntitlementFanout fanout ^Message msg] (.distribute fanout msg))
+
+(defn distribute-event
+  "Distributes the RESPONSE, PARTIAL_RESPONSE and SUBSCRIPTION_DATA messages of event, follows AuthorizationRevoked
+  and EntitlementChanged in AUTHORIZATION_STATUS events"
+  [^EntitlementFanout fanout ^Event event]
+  (let [distribute-responses #(doseq [^Message msg event]
+                                (if (.hasElement msg ^Name bbg-responseError)
+                                  (log/warn "blp response error" (str msg))
+                                  (.distribute fanout msg)))]
+    (condp = (.intValue (.eventType event))
+      Event$EventType$Constants/RESPONSE (distribute-responses)
+      Event$EventType$Constants/PARTIAL_RESPONSE (distribute-responses)
+      Event$EventType$Constants/SUBSCRIPTION_DATA (doseq [msg event] (.distribute fanout msg))
+      Event$EventType$Constants/AUTHORIZATION_STATUS
+      (doseq [^Message msg event]
+        (if-let [user (.onAuthorizationStatus fanout msg)]
+          (log/info "blp" (str (.messageType msg)) "for" user)
+          (log/debug "blp authorization status" (str msg))))
+      (log/debug "blp other event" (str event)))))
+
+(defn make-session-event-handler
+  "EventHandler for a Session shared by the users of fanout"
+  [^EntitlementFanout fanout]
+  (reify EventHandler
+    (processEvent [_ event _]
+      (try
+        (distribute-event fanout event)
+        (catch Exception e
+          (log/error e "entitlement fan-out failed"))))))
+
+(defn entitlement-fanout-stats [^EntitlementFanout fanout]
+  {:users (.numUsers fanout) :eid-sets (.numEidSets fanout) :cohorts (.numCohorts fanout)
+   :messages (.messages fanout) :deliveries (.deliveries fanout) :checks (.checks fanout)})
+
+;; Emulated sessions ;;
+;; A SessionEmulator answers //blp/refdata requests and //blp/mktdata subscriptions locally, to run and load test
+;; everything here without Bloomberg.
+
+(defn emulated-session
+  "session-map over a started SessionEmulator, for bdp/bdh (:session-map) or clj-bdp-subscribe (session-input).
+  Options, see SessionEmulator: :fields :latency-ms :cell-us :server-threads :securities-per-message
+  :ticks-per-second :ticks-per-event :payload-bytes :queue-messages :slow-consumer-messages :seed :denied-uuids.
+  With :uuid and :local-ip the session-map is authorized as by sapi-session (:success false for a denied uuid).
+  Like a real session, one that serves requests should not also carry subscriptions."
+  [& {:keys [uuid local-ip] :as opts}]
+  (let [o (SessionEmulator$Options.)]
+    (doseq [[k v] (dissoc opts :uuid :local-ip)]
+      (case k
+        :fields (.fields o (mapv name (->coll v)))
+        :latency-ms (.latencyMillis o (long v))
+        :cell-us (.cellMicros o (long v))
+        :server-threads (.serverThreads o (int v))
+        :securities-per-message (.securitiesPerMessage o (int v))
+        :ticks-per-second (.ticksPerSecond o (double v))
+        :ticks-per-event (.ticksPerEvent o (int v))
+        :payload-bytes (.payloadBytes o (int v))
+        :queue-messages (.queueMessages o (int v))
+        :slow-consumer-messages (.slowConsumerMessages o (int v))
+        :seed (.seed o (long v))
+        :denied-uuids (.deniedUuids o (mapv str (->coll v)))))
+    (let [session (SessionEmulator. o)]
+      (.start session)
+      (if uuid
+        (let [corr (CorrelationID. "authCorrelation")       ;the emulator cannot answer on an EventQueue
+              event (.authorizationResponse session (authorization-request session uuid local-ip) corr)]
+          (assoc (authorization-answer event (.createIdentity session) corr) :session session))
+        {:session session :identity (.createIdentity session) :success true}))))
+
+;; Session pool ;;
+
+(defn session-pool
+  "Starts size warm sessions over the same hosts (see session-options), each SAPI-authorized when :uuid and :local-ip
+  are given, with //blp/refdata already opened. :subscription-sessions more are kept apart for subscription shards
+  (see pool-subscribe), since a subscription thread reads every event of its session.
+  bdp/bdh spread their requests over the refdata sessions in turn: (bdp secs fields :session-pool pool).
+  with-pool-session lends a session for exclusive use instead.
+  If a session cannot be started, those already started are stopped before the exception is rethrown."
+  [hosts port & {:keys [size subscription-sessions uuid local-ip] :or {size 2 subscription-sessions 0}}]
+  (let [started (volatile! [])
+        new-session-map (fn []
+                          (let [session-map (if uuid
+                                              (sapi-session hosts port uuid local-ip)
+                                              (let [o (session-options hosts port) s (start-session o)]
+                                                {:session s :identity (.createIdentity s) :success true :session-options o}))]
+                            (vswap! started conj (:session session-map))
+                            (.openService ^Session (:session session-map) "//blp/refdata")
+                            session-map))]
+    (try
+      (let [refdata (vec (repeatedly size new-session-map))]
+        {:refdata refdata
+         :subscription (vec (repeatedly subscription-sessions new-session-map))
+         :available (LinkedBlockingQueue. ^Collection refdata)
+         :next (AtomicLong.)})
+      (catch Throwable e
+        (doseq [^Session session @started]
+          (try (.stop session) (catch Exception _)))
+        (throw e)))))
+
+(defmacro with-pool-session
+  "Borrows a refdata session-map from pool for the duration of body, waiting if all are in use"
+  [[session-map pool] & body]
+  `(let [^LinkedBlockingQueue available# (:available ~pool)
+         ~session-map (.take available#)]
+     (try
+       ~@body
+       (finally (.put available# ~session-map)))))
+
+(defn close-session-pool [pool]
+  (doseq [session-map (concat (:refdata pool) (:subscription pool))]
+    (.stop ^Session (:session session-map))))
+
+;; Response handling ;;
 
 (defn- handle-other-event [event] (log/debug "blp other event" (str event)))
 
@@ -213,49 +373,659 @@
                 (into {:date (.getElementAsString x (Name. "date"))}
                       (for [f fields] [(keyword f) (try (.getElementAsFloat64 x ^Name (Name. f)) (catch NotFoundException e nil))]))))}))
 
-(defn- wait-for-response
-  "This will loop indefinitely if no more events"
-  [session spot-or-history fields]
-  (letfn [(assoc-response [acc event fields]
-            (let [response ((if (= spot-or-history :spot) read-spot-response read-historical-response) (handle-response-event event) fields)]
-              (merge acc response)))]
-    (loop [s session acc {}]
-      (let [event (.nextEvent s)]
-        (condp = (.intValue (.eventType event))
-          Event$EventType$Constants/RESPONSE (assoc-response acc event fields)
-          Event$EventType$Constants/PARTIAL_RESPONSE (recur s (assoc-response acc event fields)) ; (assoc-response acc event fields)
-          (do (handle-other-event event) (recur s acc)))))))
+(defn- read-historical-columns
+  "Returns {security HistoryColumns}"
+  [^Message message fields]
+  (let [security-data (.getElement message ^Name bbg-securityData)]
+    {(.getValueAsString (.getElement security-data ^Name bbg-security) 0)
+     (HistoryColumns/read security-data fields)}))
+
+
+;; Typed reference data ;;
+;; Readers are built from the SchemaTypeDefinition of a field the first time it shows up in a request and reused for
+;; the rest of it: numbers stay numbers, dates become java.time values and bulk fields become vectors of maps.
+
+(defn- datetime->java
+  "LocalDate or LocalTime when dt only has one of the two, else an OffsetDateTime (UTC unless dt carries an offset)"
+  [^Datetime dt]
+  (let [date? (.hasParts dt Datetime/DATE)
+        time? (.hasParts dt Datetime/TIME)
+        nanos (if (.hasParts dt Datetime/MILLISECOND) (* 1000000 (.milliSecond dt)) 0)]
+    (cond
+      (not time?) (LocalDate/of (.year dt) (.month dt) (.dayOfMonth dt))
+      (not date?) (LocalTime/of (.hour dt) (.minute dt) (.second dt) nanos)
+      :else (OffsetDateTime/of (.year dt) (.month dt) (.dayOfMonth dt) (.hour dt) (.minute dt) (.second dt) nanos
+                               (ZoneOffset/ofTotalSeconds (if (.hasParts dt Datetime/TIME_ZONE_OFFSET)
+                                                            (* 60 (.timezoneOffsetMinutes dt))
+                                                            0))))))
+
+(declare value-reader)
+
+(defn- sequence-reader
+  "fn of a sequence element returning {sub-element value}, absent sub-elements left out"
+  [^SchemaTypeDefinition type]
+  (let [readers (vec (for [i (range (.numElementDefinitions type))
+                           :let [definition (.getElementDefinition type (int i))]]
+                       [(.name definition) (keyword (str (.name definition))) (value-reader definition)]))]
+    (fn [^Element e]
+      (into {} (for [[^Name n k read] readers :when (.hasElement e n true)]
+                 [k (read (.getElement e n))])))))
+
+(defn- scalar-reader
+  "fn of [element index] reading one value of type"
+  [^SchemaTypeDefinition type]
+  (let [datatype (.datatype type)]
+    (condp = datatype
+      Schema$Datatype/FLOAT64 (fn [^Element e i] (.getValueAsFloat64 e (int i)))
+      Schema$Datatype/FLOAT32 (fn [^Element e i] (.getValueAsFloat64 e (int i)))
+      Schema$Datatype/INT64 (fn [^Element e i] (.getValueAsInt64 e (int i)))
+      Schema$Datatype/INT32 (fn [^Element e i] (.getValueAsInt64 e (int i)))
+      Schema$Datatype/BOOL (fn [^Element e i] (.getValueAsBool e (int i)))
+      Schema$Datatype/DATE (fn [^Element e i] (datetime->java (.getValueAsDatetime e (int i))))
+      Schema$Datatype/TIME (fn [^Element e i] (datetime->java (.getValueAsDatetime e (int i))))
+      Schema$Datatype/DATETIME (fn [^Element e i] (datetime->java (.getValueAsDatetime e (int i))))
+      Schema$Datatype/SEQUENCE (let [read (sequence-reader type)] (fn [^Element e i] (read (.getValueAsElement e (int i)))))
+      (fn [^Element e i] (.getValueAsString e (int i))))))
+
+(defn- value-reader
+  "fn of an element returning its value, a vector of values for arrays (bulk fields), nil when empty"
+  [^SchemaElementDefinition definition]
+  (let [read (scalar-reader (.typeDefinition definition))]
+    (if (= 1 (.maxValues definition))
+      (fn [^Element e] (when (pos? (.numValues e)) (read e 0)))
+      (fn [^Element e] (mapv #(read e %) (range (.numValues e)))))))
+
+(defn- typed-spot-reader
+  "fn of a ReferenceDataResponse message returning {security {field value}} like read-spot-response, with typed
+  values. Create one per request: the field readers it caches are only valid for the schema of one response."
+  [fields]
+  (let [names (mapv #(vector (Name. ^String %) (keyword %)) fields)
+        readers (volatile! {})]
+    (fn [^Message message]
+      (let [security-data (.getElement message ^Name bbg-securityData)]
+        (into {} (for [i (range (.numValues security-data))
+                       :let [o (.getValueAsElement security-data (int i))
+                             field-data (.getElement o ^Name bbg-fieldData)]]
+                   [(.getValueAsString (.getElement o ^Name bbg-security))
+                    (into {} (for [[^Name n k] names]
+                               [k (when (.hasElement field-data n true)
+                                    (let [e (.getElement field-data n)
+                                          read (or (@readers n)
+                                                   ((vswap! readers assoc n (value-reader (.elementDefinition e))) n))]
+                                      (read e)))]))]))))))
+
+
+;; Metrics ;;
+;; Always recorded into default-metrics (see Metrics): request latency from send to final response per operation
+;; (request.<operation>), event handling time per event type of the request dispatchers (dispatcher.<TYPE>) and of
+;; the subscription threads (subscription.<TYPE>), subscription queue lag (subscription.queueLag, from the receive
+;; time the session records), ticks and inter-arrival gaps per topic of every running clj-bdp-subscribe, slow consumer
+;; warnings, data losses and the latency of the authorizations of an Authorizer (authorization). Histograms are in
+;; nanoseconds.
+
+(defonce ^Metrics default-metrics (Metrics. "cljblpapiwrapper"))
+
+(defn metrics
+  "Pull API: {key value} of every recorder of m (default-metrics), sorted by key, e.g. \"request.ReferenceDataRequest.p99\""
+  ([] (metrics default-metrics))
+  ([^Metrics m] (into (sorted-map) (.snapshot m))))
+
+(defn topic-metrics
+  "{topic {:ticks n :rate ticks-per-second :max-gap-ns n :idle-ns n}} of the topic stats called name in m (default-metrics),
+  e.g. the :metrics-name of a clj-bdp-subscribe"
+  ([name] (topic-metrics default-metrics name))
+  ([^Metrics m name]
+   (when-let [^TopicStats stats (get (.topicStats m) name)]
+     (let [now (System/nanoTime)]
+       (into {} (for [row (range (.numTopics stats)) :let [row (int row) ticks (.ticks stats row)]]
+                  [(.topic stats row) {:ticks ticks
+                                       :rate (.rate stats row)
+                                       :max-gap-ns (.maxGapNanos stats row)
+                                       :idle-ns (if (zero? ticks) 0 (- now (.lastNanos stats row)))}]))))))
+
+(defn register-metrics-mbean
+  "Makes m (default-metrics) readable over JMX as cljblpapiwrapper:type=Metrics,name=..., returns its ObjectName"
+  ([] (register-metrics-mbean default-metrics))
+  ([^Metrics m] (.register m)))
+
+(defonce ^:private dispatcher-times (.eventTimes default-metrics "dispatcher"))
+(defonce ^:private subscription-times (.eventTimes default-metrics "subscription"))
+(defonce ^:private ^LatencyHistogram subscription-queue-lag (.histogram default-metrics "subscription.queueLag"))
+(defonce ^:private ^AtomicLong request-failures (.counter default-metrics "request.failures"))
+(defonce ^:private ^AtomicLong slow-consumer-warnings (.counter default-metrics "slowConsumerWarnings"))
+(defonce ^:private ^AtomicLong data-losses (.counter default-metrics "dataLosses"))
+(defonce ^:private ^AtomicLong messages-dropped (.counter default-metrics "dataLoss.messagesDropped"))
+(defonce ^:private ^ConcurrentHashMap request-latencies (ConcurrentHashMap.))
+
+(defn- request-latency
+  "Send-to-response histogram of request's operation"
+  ^LatencyHistogram [^Request request]
+  (let [operation (.name (.operation request))]
+    (or (.get request-latencies operation)
+        (let [histogram (.histogram default-metrics (str "request." operation))]
+          (.putIfAbsent request-latencies operation histogram)
+          histogram))))
+
+(defn- record-event-time!
+  "Records the nanos since start in the histogram of event's type in times (see Metrics.eventTimes)"
+  [^objects times ^Event event ^long start]
+  (let [t (.intValue (.eventType event))]
+    (when (< t (alength times))
+      (when-let [^LatencyHistogram histogram (aget times t)]
+        (.record histogram (- (System/nanoTime) start))))))
+
+(defn- record-tick!
+  "Records a SUBSCRIPTION_DATA message of row: tick and gap in topic-stats, queue lag if the session recorded a receive time"
+  [^TopicStats topic-stats ^Message msg ^long row]
+  (.onTick topic-stats (int row) (System/nanoTime))
+  (let [received (.timeReceivedMillis msg)]
+    (when (pos? received)
+      (.record subscription-queue-lag (* 1000000 (- (System/currentTimeMillis) received))))))
+
+(def ^:private bbg-SlowConsumerWarning (Name. "SlowConsumerWarning"))
+(def ^:private bbg-DataLoss (Name. "DataLoss"))
+(def ^:private bbg-numMessagesDropped (Name. "numMessagesDropped"))
+
+(defn- record-admin-event!
+  "Counts the slow consumer warnings and data losses of an ADMIN event"
+  [^Event event]
+  (doseq [^Message msg event :let [t (.messageType msg)]]
+    (cond
+      (= t bbg-SlowConsumerWarning) (.incrementAndGet slow-consumer-warnings)
+      (= t bbg-DataLoss) (do (.incrementAndGet data-losses)
+                             (when (.hasElement msg ^Name bbg-numMessagesDropped)
+                               (.addAndGet messages-dropped (.getElementAsInt64 msg ^Name bbg-numMessagesDropped)))))))
+
+;; Bulk authorization ;;
+;; Many users on one SAPI / B-PIPE session (see Entitlement fan-out): an Authorizer is the session's EventHandler and
+;; sends the AuthorizationRequest of every user at once, each with its own correlation id, instead of one blocking round
+;; trip after the other as sapi-session does. Authorized identities are cached until AuthorizationRevoked.
+
+(defonce ^:private ^LatencyHistogram authorization-latency (.histogram default-metrics "authorization"))
+
+(def default-authorization-timeout-ms 60000)
+
+(defn authorizer
+  "Authorizer passing the events that are not its own (and AUTHORIZATION_STATUS events) on to :next-handler, e.g.
+  (make-session-event-handler fanout); authorizations unanswered after :timeout-ms fail"
+  ^Authorizer [& {:keys [next-handler timeout-ms] :or {timeout-ms default-authorization-timeout-ms}}]
+  (Authorizer. next-handler authorization-latency (long timeout-ms)))
+
+(defn open-authorizer!
+  "Opens //blp/apiauth for authorizer on session, whose EventHandler it must be"
+  [^Authorizer authorizer session]
+  (.open authorizer session)
+  authorizer)
+
+(defn sapi-multi-session
+  "Session for many users, started with an authorizer (options as in authorizer) as its EventHandler:
+  {:session :session-options :authorizer}. host-ip and host-port as in sapi-session"
+  [host-ip ^Long host-port & {:as opts}]
+  (let [session-options (session-options host-ip host-port)
+        authorizer (apply authorizer (apply concat opts))
+        session (start-session session-options authorizer)]
+    {:session (open-authorizer! authorizer session) :session-options session-options :authorizer authorizer}))
+
+(defn- authorization-result [^Authorizer$Authorization a]
+  {:success true :uuid (.uuid a) :local-ip (.ipAddress a) :identity (.identity a) :correlation-id (.correlationId a)})
+
+(defn authorize-async
+  "CompletableFuture of {:success true :identity :correlation-id :uuid :local-ip} (see add-entitled-user!) for uuid at
+  local-ip, sent now unless already authorized or being authorized; fails if the authorization does"
+  ^CompletableFuture [^Authorizer authorizer uuid ^String local-ip]
+  (.thenApply (.authorize authorizer (str uuid) local-ip)
+              (reify Function (apply [_ a] (authorization-result a)))))
+
+(defn authorize-all
+  "{uuid result} for users [[uuid local-ip] ...], every request sent before waiting for any answer. result is that of
+  authorize-async, or {:success false :uuid :local-ip :error e} when it failed"
+  [authorizer users]
+  (let [futures (mapv (fn [[uuid local-ip]] [uuid local-ip (authorize-async authorizer uuid local-ip)]) users)]
+    (into {} (for [[uuid local-ip ^CompletableFuture f] futures]
+               [uuid (try
+                       (.join f)
+                       (catch CompletionException e
+                         {:success false :uuid (str uuid) :local-ip local-ip :error (.getCause e)}))]))))
+
+(defn authorizer-stats
+  "Counts of authorizer and the percentiles in milliseconds of the authorization latency, which every authorizer records
+  into default-metrics"
+  [^Authorizer authorizer]
+  (let [^LatencyHistogram latency (.latency authorizer)
+        ms #(/ (double %) 1e6)]
+    {:authorized (.numAuthorized authorizer) :pending (.numPending authorizer) :sent (.sent authorizer)
+     :failed (.failed authorizer) :revoked (.revoked authorizer)
+     :latency-ms {:p50 (ms (.percentile latency 50.0)) :p90 (ms (.percentile latency 90.0))
+                  :p99 (ms (.percentile latency 99.0)) :max (ms (.max latency))}}))
+
+;; Request engine ;;
+;; One dispatcher thread per session reads every event and routes RESPONSE / PARTIAL_RESPONSE messages
+;; to the request they belong to by correlation id, so many requests can share a session concurrently.
+
+(def bbg-SessionTerminated (Name. "SessionTerminated"))
+
+(def default-max-in-flight
+  "Outstanding requests per session before send-request blocks"
+  64)
+
+(defonce ^:private ^AtomicLong request-counter (AtomicLong.))
+
+(defn- next-correlation-id ^CorrelationID [] (CorrelationID. (.incrementAndGet request-counter)))
+
+(defonce ^:private ^ConcurrentHashMap engines (ConcurrentHashMap.))
+
+(defn- complete-request!
+  "Removes the pending request for cid-value, frees its slot and calls (f request)"
+  [engine cid-value f]
+  (when-let [request (.remove ^ConcurrentHashMap (:pending engine) cid-value)]
+    (.release ^Semaphore (:permits engine))
+    (f request)))
+
+(defn- fail-request! [engine cid-value ^Throwable e]
+  (complete-request! engine cid-value (fn [request]
+                                        (.incrementAndGet request-failures)
+                                        (.completeExceptionally ^CompletableFuture (:future request) e))))
+
+(defn- route-response! [engine ^Event event final?]
+  (let [^ConcurrentHashMap pending (:pending engine)
+        cids (volatile! #{})]
+    (doseq [^Message msg event
+            :let [cid (.correlationID msg)]
+            :when (.isValue cid)
+            :let [cid-value (.value cid) request (.get pending cid-value)]
+            :when request]
+      (vswap! cids conj cid-value)
+      (try
+        (vswap! (:acc request) (:merge-fn request) ((:read-fn request) msg))
+        (catch Exception e
+          (fail-request! engine cid-value e))))
+    (when final?
+      (doseq [cid-value @cids]
+        (complete-request! engine cid-value (fn [request]
+                                              (when-let [^LatencyHistogram latency (:latency request)]
+                                                (.record latency (- (System/nanoTime) (long (:started request)))))
+                                              (.complete ^CompletableFuture (:future request) @(:acc request))))))))
+
+(defn- dispatch-events [engine]
+  (let [^Session session (:session engine)]
+    (try
+      (loop []
+        (let [event (.nextEvent session)
+              start (System/nanoTime)
+              terminated? (volatile! false)]
+          (condp = (.intValue (.eventType event))
+            Event$EventType$Constants/RESPONSE (route-response! engine event true)
+            Event$EventType$Constants/PARTIAL_RESPONSE (route-response! engine event false)
+            Event$EventType$Constants/REQUEST_STATUS
+            (doseq [^Message msg event :let [cid (.correlationID msg)] :when (.isValue cid)]
+              (fail-request! engine (.value cid) (ex-info "Bloomberg request failed" {:message (str msg)})))
+            Event$EventType$Constants/SESSION_STATUS
+            (do (handle-other-event event)
+                (when (some #(= bbg-SessionTerminated (.messageType ^Message %)) event)
+                  (vreset! terminated? true)))
+            Event$EventType$Constants/ADMIN (do (record-admin-event! event) (handle-other-event event))
+            (handle-other-event event))
+          (record-event-time! dispatcher-times event start)
+          (when-not @terminated? (recur))))
+      (catch InterruptedException _)
+      (finally
+        (.remove engines session engine)
+        (doseq [cid-value (vec (keys (:pending engine)))]
+          (fail-request! engine cid-value (ex-info "Bloomberg session closed before the response arrived" {})))))))
+
+(defn- refdata-service ^Service [^Session session]
+  (.openService session "//blp/refdata")
+  (.getService session "//blp/refdata"))
 
+(defn request-engine
+  "The request engine of session-map's session, started on first use. Its dispatcher thread reads every event of the
+  session (so nothing else, e.g. clj-bdp-subscribe, may read that session) and lets at most max-in-flight requests
+  be outstanding on it. A session-map may carry its own :engine instead, e.g. a stand-in for tests."
+  [session-map & {:keys [max-in-flight] :or {max-in-flight default-max-in-flight}}]
+  (or (:engine session-map)
+      (let [^Session session (:session session-map)]
+        (.computeIfAbsent engines session
+                          (reify Function
+                            (apply [_ _]
+                              (let [engine-promise (promise)
+                                    thread (doto (Thread. ^Runnable (fn [] (dispatch-events @engine-promise)) "blp-request-dispatcher")
+                                             (.setDaemon true))
+                                    identity (or (:identity session-map) (.createIdentity session))
+                                    engine {:session session
+                                            :service (delay (refdata-service session))
+                                            :send (fn [request cid] (.sendRequest session ^Request request ^Identity identity ^CorrelationID cid))
+                                            :pending (ConcurrentHashMap.)
+                                            :permits (Semaphore. (int max-in-flight))
+                                            :thread thread}]
+                                (deliver engine-promise engine)
+                                (.start thread)
+                                engine)))))))
+
+(defn stop-request-engine
+  "Stops the dispatcher thread of session-map's session; outstanding requests fail. The session itself is left running."
+  [session-map]
+  (when-let [engine (.remove engines (:session session-map))]
+    (.interrupt ^Thread (:thread engine))))
+
+(defn- register-request!
+  "Waits for a free slot and registers a new request under a fresh correlation id, returns [cid future]. The time to
+  its final response goes to latency, if given."
+  ([engine read-fn] (register-request! engine read-fn merge))
+  ([engine read-fn merge-fn] (register-request! engine read-fn merge-fn nil))
+  ([engine read-fn merge-fn latency]
+   (let [cid (next-correlation-id)
+         future (CompletableFuture.)]
+     (.acquire ^Semaphore (:permits engine))
+     (.put ^ConcurrentHashMap (:pending engine) (.value cid) {:future future :acc (volatile! {}) :read-fn read-fn :merge-fn merge-fn
+                                                              :latency latency :started (System/nanoTime)})
+     [cid future])))
+
+(defn send-request
+  "Sends request with a fresh correlation id and returns a CompletableFuture of (read-fn message) over every response
+  message of that request, combined with merge-fn (merge by default). Blocks while max-in-flight requests are already
+  outstanding on the engine."
+  (^CompletableFuture [engine request read-fn] (send-request engine request read-fn merge))
+  (^CompletableFuture [engine ^Request request read-fn merge-fn]
+   (let [[^CorrelationID cid future] (register-request! engine read-fn merge-fn (request-latency request))]
+     (try
+       ((:send engine) request cid)
+       (catch Exception e
+         (fail-request! engine (.value cid) e)))
+     future)))
+
+(defn- get-result
+  "Blocks on a future, rethrowing the original exception rather than an ExecutionException"
+  [^CompletableFuture future]
+  (try
+    (.get future)
+    (catch ExecutionException e
+      (let [cause (.getCause e)]
+        (throw (if (instance? CompletionException cause) (or (.getCause ^Throwable cause) cause) (or cause e)))))))
+
+(defn- next-pool-session [pool]
+  (let [sessions (:refdata pool)]
+    (sessions (mod (.getAndIncrement ^AtomicLong (:next pool)) (count sessions)))))
+
+;; Managed sessions ;;
+;; bdp/bdh without :session-map or :session-pool share one session per (hosts, port, uuid, local-ip), started on
+;; first use with //blp/refdata already open. A background check stops sessions that have been idle for idle-millis
+;; and forgets terminated ones, so the next call starts a new session.
+
+(def default-managed-idle-millis 600000)
+
+(def managed-session-check-millis 30000)
+
+(defonce ^:private ^ConcurrentHashMap managed-sessions (ConcurrentHashMap.))
+
+(defn- start-managed-session [hosts port uuid local-ip]
+  (let [session-map (if uuid
+                      (let [sm (sapi-session hosts port uuid local-ip)]
+                        (when-not (:success sm)
+                          (.stop ^Session (:session sm))
+                          (throw (ex-info "Bloomberg authorization failed" {:uuid uuid :local-ip local-ip})))
+                        sm)
+                      {:session (start-session (session-options hosts port))})
+        engine (request-engine session-map)]
+    @(:service engine)
+    (assoc session-map :engine engine)))
+
+(defn- healthy?
+  "False once the dispatcher of the session has stopped, i.e. the session terminated"
+  [session-map]
+  (let [^Thread thread (:thread (:engine session-map))]
+    (or (nil? thread) (.isAlive thread))))
+
+(defn- stop-managed-session [k entry]
+  (when (.remove managed-sessions k entry)
+    (let [session-map (try @(:session-map entry) (catch Exception _ nil))]
+      (when session-map
+        (stop-request-engine session-map)
+        (.stop ^Session (:session session-map))))))
+
+(defn- evict-managed-sessions
+  "Stops sessions idle for longer than their idle-millis, with nothing in flight, and forgets terminated ones"
+  []
+  (let [now (System/currentTimeMillis)]
+    (doseq [[k entry] managed-sessions
+            :let [d (:session-map entry)]
+            :when (realized? d)
+            :let [session-map (try @d (catch Exception _ nil))]
+            :when (or (nil? session-map)
+                      (not (healthy? session-map))
+                      (and (> (- now (.get ^AtomicLong (:last-used entry))) (:idle-millis entry))
+                           (.isEmpty ^ConcurrentHashMap (:pending (:engine session-map)))))]
+      (log/debug "Stopping managed Bloomberg session" k)
+      (stop-managed-session k entry))))
+
+(defonce ^:private managed-session-evictor
+  (delay
+    (doto (Executors/newSingleThreadScheduledExecutor
+            (reify ThreadFactory
+              (newThread [_ r] (doto (Thread. ^Runnable r "blp-session-evictor") (.setDaemon true)))))
+      (.scheduleWithFixedDelay ^Runnable (fn [] (try (evict-managed-sessions) (catch Exception e (log/warn e "Session eviction failed"))))
+                               (long managed-session-check-millis) (long managed-session-check-millis) TimeUnit/MILLISECONDS))))
+
+(defn managed-session
+  "Cached session-map for (hosts, port, uuid, local-ip), started and authorized (when uuid is given) on first use,
+  with //blp/refdata opened and a request engine running. Later calls return the same session as long as it is alive.
+  It is stopped after idle-millis without calls, or by shutdown-managed-sessions."
+  ([] (managed-session default-local-host default-local-port))
+  ([hosts port & {:keys [uuid local-ip idle-millis] :or {idle-millis default-managed-idle-millis}}]
+   (let [k [(vec (->coll hosts)) port uuid local-ip]]
+     @managed-session-evictor
+     (loop [attempts 2]
+       (let [entry (.computeIfAbsent managed-sessions k
+                                     (reify Function
+                                       (apply [_ _]
+                                         {:session-map (delay (start-managed-session hosts port uuid local-ip))
+                                          :last-used (AtomicLong. (System/currentTimeMillis))
+                                          :idle-millis idle-millis})))
+             session-map (try
+                           @(:session-map entry)
+                           (catch Exception e
+                             (.remove managed-sessions k entry)
+                             (throw e)))]
+         (.set ^AtomicLong (:last-used entry) (System/currentTimeMillis))
+         (if (or (healthy? session-map) (= 1 attempts))
+           session-map
+           (do (stop-managed-session k entry)
+               (recur (dec attempts)))))))))
+
+(defn shutdown-managed-sessions
+  "Stops every managed session; outstanding requests on them fail"
+  []
+  (doseq [[k entry] managed-sessions]
+    (stop-managed-session k entry)))
+
+
+;; Request splitting ;;
+;; Large universes are cut into sub-requests of at most securities-per-request x fields-per-request, sent concurrently
+;; and merged back into one result.
+
+(def default-request-split
+  "Largest sub-request bdp/bdh send; override per call with :securities-per-request / :fields-per-request"
+  {:securities-per-request 100 :fields-per-request 25})
+
+(defn- split-request
+  "[securities fields] blocks covering securities x fields"
+  [securities fields securities-per-request fields-per-request]
+  (for [s (partition-all securities-per-request securities)
+        f (partition-all fields-per-request fields)]
+    [(vec s) (vec f)]))
+
+(defn- merge-history
+  "Joins the rows one security got from sub-requests for different fields, by date"
+  [rows-a rows-b]
+  (->> (concat rows-a rows-b)
+       (reduce (fn [m row] (update m (:date row) merge row)) (sorted-map))
+       vals
+       vec))
+
+(defn- merged-future
+  "Future of the results of futures combined with (merge-with f); fails as soon as one of them fails"
+  ^CompletableFuture [futures f]
+  (.thenApply (CompletableFuture/allOf (into-array CompletableFuture futures))
+              (reify Function
+                (apply [_ _] (apply merge-with f {} (map #(.join ^CompletableFuture %) futures))))))
+
+(defn- send-refdata-requests
+  "Sends one request per [build-request read-fn], build-request taking the //blp/refdata Service, and returns a future
+  of all results combined with (merge-with merge-fn). Requests go to the engine of session-map, to the pool sessions
+  in turn, or else to the managed local session.
+  Blocks while the engine it sends to already has max-in-flight requests outstanding."
+  [session-map session-pool requests merge-fn]
+  (let [send-all (fn [next-engine]
+                   (merged-future (mapv (fn [[build-request read-fn]]
+                                          (let [engine (next-engine)]
+                                            (send-request engine (build-request @(:service engine)) read-fn
+                                                          #(merge-with merge-fn %1 %2))))
+                                        requests)
+                                  merge-fn))]
+    (if (and session-pool (nil? session-map))
+      (send-all #(request-engine (next-pool-session session-pool)))
+      (let [engine (request-engine (or session-map (managed-session)))]
+        (send-all (constantly engine))))))
+
+
+;; Refdata cache ;;
+;; Opt-in cache of bdp values (:cache), see RefdataCache: keyed by (security, field, overrides), each field living for
+;; the time of its TTL class, at most max-size values.
+
+(def default-ttl-classes
+  "Time to live in milliseconds of each TTL class"
+  {:static (* 24 3600 1000)
+   :daily (* 3600 1000)
+   :intraday (* 60 1000)})
+
+(def default-field-classes
+  "TTL class of the fields that are not :intraday"
+  (merge (zipmap ["NAME" "LONG_COMP_NAME" "SECURITY_NAME" "SECURITY_DES" "SECURITY_TYP" "MARKET_SECTOR_DES" "CRNCY"
+                  "COUNTRY" "COUNTRY_ISO" "EXCH_CODE" "ID_ISIN" "ID_CUSIP" "ID_SEDOL1" "ID_BB_GLOBAL" "ID_BB_UNIQUE"
+                  "TICKER" "COUPON" "CPN_TYP" "CPN_FREQ" "MATURITY" "ISSUE_DT" "FIRST_CPN_DT" "INDUSTRY_SECTOR"
+                  "INDUSTRY_GROUP" "GICS_SECTOR_NAME" "PARSEKYABLE_DES"]
+                 (repeat :static))
+         (zipmap ["CUR_MKT_CAP" "EQY_SH_OUT" "EQY_BETA" "DVD_EX_DT" "AMT_OUTSTANDING" "RTG_SP" "RTG_MOODY" "RTG_FITCH"]
+                 (repeat :daily))))
+
+(defn refdata-cache
+  "RefdataCache for bdp :cache. field-classes maps field names to a class of ttl-classes (milliseconds), other fields
+  being default-class."
+  [& {:keys [max-size ttl-classes field-classes default-class]
+      :or {max-size 100000 ttl-classes default-ttl-classes field-classes default-field-classes default-class :intraday}}]
+  (RefdataCache. (int max-size)
+                 (long (ttl-classes default-class))
+                 (into {} (for [[f c] field-classes] [(name f) (long (ttl-classes c))]))))
+
+(defn refdata-cache-stats [^RefdataCache cache]
+  {:size (.size cache) :loading (.loading cache) :hits (.hits cache) :waits (.waits cache) :loads (.loads cache)
+   :evictions (.evictions cache) :expirations (.expirations cache) :rejections (.rejections cache)})
 
 ;; BDP definition ;;
 
-(defn clj-bdp-session
-  "We either take the session as an input (SAPI) or create a
-  local session, which will only work locally on a computer that is connected to Bloomberg"
-  ([securitiescoll fieldscoll override-map session-map]
-   (let [session (or (:session session-map) (local-session))
-         identity (or (:identity session-map) (.createIdentity session))]
-     (.openService session "//blp/refdata")
-     (let [request-id (CorrelationID. (rand-int 1000))
-           ref-data-service (.getService session "//blp/refdata")
-           request (.createRequest ref-data-service "ReferenceDataRequest")]
-       (doseq [s securitiescoll] (.append ^Request request ^Name bbg-securities ^String s))
-       (doseq [f fieldscoll] (.append ^Request request ^Name bbg-fields ^String f))
-       (when override-map
-         (doseq [[k v] override-map]
-           (doto (.appendElement (.getElement request ^Name bbg-overrides))
-             (.setElement ^Name bbg-fieldId ^String k)
-             (.setElement ^Name bbg-value v))))
-       (.sendRequest ^Session session ^Request request ^Identity identity ^CorrelationID request-id)
-       session))))
+(defn- reference-data-request ^Request [^Service ref-data-service securitiescoll fieldscoll override-map]
+  (let [request (.createRequest ref-data-service "ReferenceDataRequest")]
+    (doseq [s securitiescoll] (.append ^Request request ^Name bbg-securities ^String s))
+    (doseq [f fieldscoll] (.append ^Request request ^Name bbg-fields ^String f))
+    (when override-map
+      (doseq [[k v] override-map]
+        (doto (.appendElement (.getElement request ^Name bbg-overrides))
+          (.setElement ^Name bbg-fieldId ^String k)
+          (.setElement ^Name bbg-value v))))
+    request))
+
+(defn- uncached-bdp-async
+  [securities fields {:keys [session-map session-pool override-map securities-per-request fields-per-request typed on-partial]
+                      :or {securities-per-request (:securities-per-request default-request-split)
+                           fields-per-request (:fields-per-request default-request-split)}}]
+  (send-refdata-requests session-map session-pool
+                         (for [[securitiescoll fieldscoll] (split-request (->coll securities) (mapv name (->coll fields))
+                                                                          securities-per-request fields-per-request)
+                               :let [read (if typed (typed-spot-reader fieldscoll) #(read-spot-response % fieldscoll))]]
+                           [#(reference-data-request % securitiescoll fieldscoll override-map)
+                            (if on-partial
+                              (fn [message] (let [result (read message)] (on-partial result) result))
+                              read)])
+                         merge))
+
+(defn- cached-bdp-async
+  "bdp-async through cache: cached (security, field) values are used as they are, those another call is loading are
+  waited for, and the rest is requested, securities grouped by the fields they miss"
+  [^RefdataCache cache securities fields {:keys [override-map typed on-partial] :as options}]
+  (let [variant (pr-str [(boolean typed) (into (sorted-map) (for [[k v] override-map] [(name k) (str v)]))])
+        lookups (into {} (for [s securities f fields] [[s f] (.lookup cache ^String s ^String f variant)]))
+        missing (reduce (fn [m [s f]] (if (.isLoader ^RefdataCache$Lookup (lookups [s f])) (update m s (fnil conj []) f) m))
+                        {}
+                        (for [s securities f fields] [s f]))
+        load-options (dissoc options :cache :on-partial)]
+    (doseq [[missing-fields group] (group-by val missing)
+            :let [group-securities (mapv key group)
+                  pairs (for [s group-securities f missing-fields] [s f])]]
+      (try
+        (.whenComplete ^CompletableFuture (uncached-bdp-async group-securities missing-fields load-options)
+                       (reify BiConsumer
+                         (accept [_ result e]
+                           (doseq [[s f] pairs]
+                             (if e
+                               (.fail cache s f variant e)
+                               (.complete cache s f variant (get-in result [s (keyword f)])))))))
+        (catch Exception e
+          (doseq [[s f] pairs] (.fail cache s f variant e)))))
+    (cond-> (.thenApply (CompletableFuture/allOf (into-array CompletableFuture (map #(.future ^RefdataCache$Lookup %) (vals lookups))))
+                        (reify Function
+                          (apply [_ _]
+                            (into {} (for [s securities]
+                                       [s (into {} (for [f fields]
+                                                     [(keyword f) (.join (.future ^RefdataCache$Lookup (lookups [s f])))]))])))))
+      on-partial (.thenApply (reify Function (apply [_ result] (on-partial result) result))))))
 
+(defn bdp-async
+  "Same as bdp but returns a CompletableFuture of the result straight away.
+  securities x fields is split into sub-requests (see default-request-split) that are in flight concurrently
+  on the :session-map, or spread over the sessions of a :session-pool.
+  :typed true keeps numbers, dates and bulk fields typed instead of returning strings.
+  :on-partial is called with the {security {field value}} of every response message as it arrives, on the
+  dispatcher thread, so it must not block.
+  :cache (see refdata-cache) answers the (security, field) pairs it holds for the same overrides and :typed, and only
+  requests the others; a pair already being requested by another call is waited for rather than requested again.
+  With :cache, :on-partial is called once with the whole result."
+  [securities fields & {:keys [cache] :as options}]
+  (if cache
+    (cached-bdp-async cache (vec (distinct (->coll securities))) (vec (distinct (map name (->coll fields)))) options)
+    (uncached-bdp-async securities fields options)))
 
 (defn bdp
-  "(bdp [\"AAPL US Equity\" ] [ \"PX_LAST\"] :session-map s)"
-  [securities fields & {:keys [session-map override-map] :or {session-map nil override-map nil}}]
-  (let [fieldscoll (mapv name (->coll fields))
-        new-session (clj-bdp-session (->coll securities) fieldscoll override-map session-map)]
-    (wait-for-response new-session :spot fieldscoll)))
+  "(bdp [\"AAPL US Equity\" ] [ \"PX_LAST\"] :session-map s)
+  or :session-pool p to use the sessions of a session-pool in turn"
+  [securities fields & options]
+  (get-result (apply bdp-async securities fields options)))
+
+(defn clj-bdp-session
+  "bdp of securitiescoll and fieldscoll with override-map, on the session-map (SAPI) or else on the local session, which
+  will only work on a computer that is connected to Bloomberg. Goes through the request engine like bdp and returns its
+  result"
+  [securitiescoll fieldscoll override-map session-map]
+  (bdp securitiescoll fieldscoll :override-map override-map :session-map session-map))
+
+(defn bdp-seq
+  "Lazy sequence of partial bdp results {security {field value}}, one per response message in arrival order, so the
+  first securities of a large download can be used before the rest has arrived. Takes the options of bdp; realizing
+  the sequence throws if the request fails."
+  [securities fields & options]
+  (let [queue (LinkedBlockingQueue.)
+        done (Object.)
+        future (apply bdp-async securities fields (concat options [:on-partial #(.put queue %)]))]
+    (.whenComplete ^CompletableFuture future
+                   (reify BiConsumer
+                     (accept [_ _ e]
+                       (.put queue (if e (if (instance? CompletionException e) (or (.getCause ^Throwable e) e) e) done)))))
+    (letfn [(step []
+              (lazy-seq
+                (let [x (.take queue)]
+                  (cond
+                    (identical? x done) nil
+                    (instance? Throwable x) (throw x)
+                    :else (cons x (step))))))]
+      (step))))
 
 (defn bdp-simple
   "One security and one field, one override; will return a string"
@@ -267,31 +1037,116 @@
     [security (keyword field)]))
 
 
+;; History store ;;
+;; bdh with :store (see HistoryStore) keeps every (security, field) it downloads on disk, keyed by periodicity and
+;; adjustment-split, and only requests the dates the store does not cover yet. Today and later dates are never
+;; covered, as their values may still change: they are requested every time.
+
+(defn history-store
+  "HistoryStore in directory dir, created if needed"
+  ^HistoryStore [dir]
+  (HistoryStore. (File. (str dir))))
+
+(defonce ^:private history-store-executor
+  (delay
+    (Executors/newCachedThreadPool
+      (reify ThreadFactory
+        (newThread [_ r] (doto (Thread. ^Runnable r "blp-history-store") (.setDaemon true)))))))
+
+(defn- epoch-day ^long [date] (.toEpochDay (LocalDate/parse (date->yyyyMMdd date) DateTimeFormatter/BASIC_ISO_DATE)))
+
+(defn- history-gaps
+  "[from to] epoch-day ranges of from..to that store does not cover for security / field; the days between the covered
+  range and from..to are requested too, so that the covered range stays one range"
+  [^HistoryStore store store-key security field from to]
+  (if-let [[covered-from covered-to] (.coverage store store-key security field)]
+    (cond-> []
+      (< from covered-from) (conj [from (dec covered-from)])
+      (> to covered-to) (conj [(inc covered-to) to]))
+    [[from to]]))
+
+(defn- columns->rows
+  "The bdh row form of a HistoryColumns"
+  [^HistoryColumns columns fields]
+  (mapv (fn [row] (into {:date (str (.date columns (int row)))} (for [f fields] [(keyword f) (columnar-value columns row f)])))
+        (range (.size columns))))
+
 ;; BDH definition ;;
 
-(defn- clj-bdh-session
-  [securitiescoll fieldscoll start-date end-date adjustment-split periodicity session-map]
-  (let [session (or (:session session-map) (local-session))
-        identity (or (:identity session-map) (.createIdentity session))]
-    (.openService session "//blp/refdata")
-    (let [request-id (CorrelationID. 1)
-          ref-data-service (.getService session "//blp/refdata")
-          request (doto
-                    (.createRequest ref-data-service "HistoricalDataRequest")
-                    (.set ^Name bbg-startDate ^String start-date)
-                    (.set ^Name bbg-endDate ^String end-date)
-                    (.set ^Name bbg-adjustmentSplit (if adjustment-split "TRUE" "FALSE"))
-                    (.set ^Name bbg-periodicitySelection ^String periodicity))]
-      (doseq [s securitiescoll] (.append request ^Name bbg-securities ^String s))
-      (doseq [f fieldscoll] (.append request ^Name bbg-fields ^String f))
-      (.sendRequest ^Session session ^Request request ^Identity identity ^CorrelationID request-id)
-      session)))
+(defn- historical-data-request ^Request [^Service ref-data-service securitiescoll fieldscoll start-date end-date adjustment-split periodicity]
+  (let [request (doto
+                  (.createRequest ref-data-service "HistoricalDataRequest")
+                  (.set ^Name bbg-startDate ^String start-date)
+                  (.set ^Name bbg-endDate ^String end-date)
+                  (.set ^Name bbg-adjustmentSplit (if adjustment-split "TRUE" "FALSE"))
+                  (.set ^Name bbg-periodicitySelection ^String periodicity))]
+    (doseq [s securitiescoll] (.append request ^Name bbg-securities ^String s))
+    (doseq [f fieldscoll] (.append request ^Name bbg-fields ^String f))
+    request))
+
+(defn- uncached-bdh-async
+  [securities fields start-date end-date {:keys [adjustment-split periodicity session-map session-pool securities-per-request fields-per-request columnar]
+                                          :or {adjustment-split false periodicity "DAILY" session-map nil session-pool nil columnar false
+                                               securities-per-request (:securities-per-request default-request-split)
+                                               fields-per-request (:fields-per-request default-request-split)}}]
+  (let [start (date->yyyyMMdd start-date)
+        end (date->yyyyMMdd end-date)]
+    (send-refdata-requests session-map session-pool
+                           (for [[securitiescoll fieldscoll] (split-request (->coll securities) (mapv name (->coll fields))
+                                                                            securities-per-request fields-per-request)]
+                             [#(historical-data-request % securitiescoll fieldscoll start end adjustment-split periodicity)
+                              (if columnar
+                                #(read-historical-columns % fieldscoll)
+                                #(read-historical-response % fieldscoll))])
+                           (if columnar #(HistoryColumns/merge %1 %2) merge-history))))
+
+(defn- stored-bdh-async
+  "bdh-async through store: the missing ranges are requested, securities grouped by the fields and range they miss,
+  stored, and the whole result is then read from the store"
+  [^HistoryStore store securities fields start-date end-date {:keys [adjustment-split periodicity columnar]
+                                                              :or {periodicity "DAILY"} :as options}]
+  (let [store-key (str periodicity (if adjustment-split "-adjusted" "-unadjusted"))
+        from (epoch-day start-date)
+        to (epoch-day end-date)
+        coverable-to (min to (dec (.toEpochDay (LocalDate/now))))
+        missing (reduce (fn [m [s f]] (reduce #(update %1 [%2 s] (fnil conj []) f) m (history-gaps store store-key s f from to)))
+                        {}
+                        (for [s securities f fields] [s f]))
+        load-options (assoc (dissoc options :store) :columnar true)
+        loads (vec (for [[[gap-from gap-to] group] (group-by (comp first key) missing)
+                         [missing-fields group] (group-by val group)
+                         :let [group-securities (mapv (comp second key) group)]]
+                     (.thenApplyAsync ^CompletableFuture (uncached-bdh-async group-securities missing-fields
+                                                                             (LocalDate/ofEpochDay gap-from) (LocalDate/ofEpochDay gap-to)
+                                                                             load-options)
+                                      (reify Function
+                                        (apply [_ result]
+                                          (doseq [s group-securities f missing-fields]
+                                            (.put store store-key s f (int gap-from) (int (min gap-to coverable-to)) (get result s)))))
+                                      ^Executor @history-store-executor)))]
+    ;file I/O, kept off the dispatcher thread that completes the loads
+    (.thenApplyAsync (CompletableFuture/allOf (into-array CompletableFuture loads))
+                     (reify Function
+                       (apply [_ _]
+                         (into {} (for [s securities :let [columns (.read store store-key s fields (int from) (int to))]]
+                                    [s (if columnar columns (columns->rows columns fields))]))))
+                     ^Executor @history-store-executor)))
+
+(defn bdh-async
+  "Same as bdh but returns a CompletableFuture of the result straight away.
+  :store (see history-store) answers the dates it has already downloaded for the same :periodicity and
+  :adjustment-split, and only requests the others."
+  [securities fields start-date end-date & {:keys [store] :as options}]
+  (if store
+    (stored-bdh-async store (vec (distinct (->coll securities))) (vec (distinct (map name (->coll fields))))
+                      start-date end-date options)
+    (uncached-bdh-async securities fields start-date end-date options)))
 
 (defn bdh
-  [securities fields start-date end-date & {:keys [adjustment-split periodicity session-map] :or {adjustment-split false periodicity "DAILY" session-map nil}}]
-  (let [securitiescoll (->coll securities)
-        fieldscoll (map name (->coll fields))]
-    (wait-for-response (clj-bdh-session securitiescoll fieldscoll (date->yyyyMMdd start-date) (date->yyyyMMdd end-date) adjustment-split periodicity session-map) :history fieldscoll)))
+  "{security [{:date date field1 value1}]}, or with :columnar true {security HistoryColumns}: a LocalDate index and
+  one double[] per field, see HistoryColumns. The bdh-result-> helpers take either."
+  [securities fields start-date end-date & options]
+  (get-result (apply bdh-async securities fields start-date end-date options)))
 
 
 ;Examples
@@ -321,34 +1176,369 @@
 
 ;; Subscription ;;
 
+(def bbg-SubscriptionStarted (Name. "SubscriptionStarted"))
+(def bbg-SubscriptionFailure (Name. "SubscriptionFailure"))
+
+(def default-subscription-pacing
+  "Subscriptions are sent :chunk-size topics at a time, at most :chunks-per-second (in bursts of up to :burst-chunks),
+  and never with more than :max-outstanding topics still waiting for SubscriptionStarted/SubscriptionFailure.
+  :on-subscribed, if given, is called once with {:topics :failed :chunks :elapsed-ms} when every topic has been acknowledged."
+  {:chunk-size 200 :chunks-per-second 5.0 :burst-chunks 2 :max-outstanding 1000 :on-subscribed nil})
+
+(defn- subscription-pacer [chunks now]
+  {:chunks (seq chunks) :total (reduce + (map count chunks)) :outstanding 0 :sent 0 :acked 0 :failed 0
+   :tokens nil :refilled now :start now :elapsed-ms nil})
+
+(defn- pacer-take-chunk
+  "Token bucket + window of outstanding topics. Returns [pacer chunk], chunk is nil if nothing can be sent now"
+  [pacer now {:keys [chunk-size chunks-per-second burst-chunks max-outstanding]}]
+  (let [{:keys [chunks outstanding tokens refilled] :as p} pacer
+        tokens (min (double burst-chunks) (+ (or tokens (double burst-chunks)) (/ (* (- now refilled) chunks-per-second) 1e9)))
+        p (assoc p :tokens tokens :refilled now)
+        chunk (first chunks)]
+    (if (and chunk (>= tokens 1.0) (<= (+ outstanding (count chunk)) (max max-outstanding chunk-size)))
+      [(assoc p :chunks (next chunks) :outstanding (+ outstanding (count chunk)) :tokens (dec tokens) :sent (inc (:sent p))) chunk]
+      [p nil])))
+
+(defn- pacer-ack
+  "SubscriptionStarted (failed? false) or SubscriptionFailure (failed? true) for one topic"
+  [pacer failed? now]
+  (if (zero? (:outstanding pacer))
+    pacer
+    (let [p (cond-> (-> pacer (update :outstanding dec) (update :acked inc)) failed? (update :failed inc))]
+      (if (and (= (:acked p) (:total p)) (nil? (:elapsed-ms p)))
+        (assoc p :elapsed-ms (/ (- now (:start p)) 1e6))
+        p))))
+
+(defn snapshot-store
+  "SnapshotStore for the latest value of every (security, field). Give it to clj-bdp-subscribe as :snapshot-store to
+  read ticks straight from the store (topic-snapshot) rather than from the atom."
+  [securities fields]
+  (SnapshotStore. (vec (->coll securities)) (mapv name (->coll fields))))
+
+(defn- read-snapshot
+  "{key value} of one row of store copied into bits/refs, keys taken from field-keys and numeric values (longs for
+  integer fields, doubles otherwise) passed through number; nil if the row never ticked"
+  [^SnapshotStore store row ^longs bits ^objects refs field-keys number]
+  (when (pos? (.read store (int row) bits refs))
+    (persistent!
+      (reduce (fn [m f]
+                (let [r (aget refs f) b (aget bits f)]
+                  (cond
+                    r (assoc! m (field-keys f) r)
+                    (= b SnapshotStore/EMPTY) m
+                    (.isLong store (int f)) (assoc! m (field-keys f) (number b))
+                    :else (assoc! m (field-keys f) (number (Double/longBitsToDouble b))))))
+              (transient {})
+              (range (.numFields store))))))
+
+(defn topic-snapshot
+  "{field value} of security as of one update (longs for integer fields, doubles for the other numeric fields, strings
+  otherwise), nil if it never ticked.
+  Never blocks the subscription thread."
+  [^SnapshotStore store security]
+  (let [row (.topicIndex store security)
+        n (.numFields store)]
+    (when (>= row 0)
+      (read-snapshot store row (long-array n) (make-array String n) (mapv #(.field store %) (range n)) identity))))
+
+(defn conflator
+  "Conflator over the rows of store, flushing every publish-ms. Give it to clj-bdp-subscribe as :conflator to read its
+  counts (conflation-stats); one conflator can be shared by the shards of pool-subscribe along with the store."
+  [^SnapshotStore store publish-ms]
+  (Conflator. (.numTopics store) (long publish-ms)))
+
+(defn conflation-stats
+  "{:ticks :absorbed :flushes :flushed :topics {security {:ticks :absorbed}}} of a conflator; a tick is absorbed when
+  its topic ticks again before the next flush, so only the latest of them reaches the atom"
+  [^Conflator conflator ^SnapshotStore store]
+  {:ticks (.totalTicks conflator)
+   :absorbed (.totalAbsorbed conflator)
+   :flushes (.flushes conflator)
+   :flushed (.flushed conflator)
+   :topics (into {} (for [row (range (.rows conflator)) :when (pos? (.ticks conflator (int row)))]
+                      [(.topic store (int row)) {:ticks (.ticks conflator (int row)) :absorbed (.absorbed conflator (int row))}]))})
+
+;; Tick journal ;;
+;; clj-bdp-subscribe with :journal writes every SUBSCRIPTION_DATA message to a TickJournal; a replay-session plays a
+;; journal back to clj-bdp-subscribe in place of a live session.
+
+(defn tick-journal
+  "TickJournal writer for fields in dir (which must not hold a journal yet), in memory-mapped segments of
+  :segment-bytes. Give it to clj-bdp-subscribe as :journal and .close it when done."
+  [dir fields & {:keys [segment-bytes] :or {segment-bytes TickJournal/DEFAULT_SEGMENT_BYTES}}]
+  (TickJournal$Writer. (File. (str dir)) (mapv name (->coll fields)) (int segment-bytes)))
+
+(defn replay-session
+  "Stand-in Session playing back the tick journal in dir: give it to clj-bdp-subscribe as {:session ...}. Every
+  subscription is acknowledged with SubscriptionStarted and the first one starts the replay, at :speed times the
+  recorded pace (0 as fast as the subscriber takes it), with the correlation id of each security; securities of the
+  journal that are not subscribed (yet) are skipped. .stop stops the replay."
+  [dir & {:keys [speed] :or {speed 1.0}}]
+  (let [replay (TickReplay. (File. (str dir)))
+        events (LinkedBlockingQueue.)
+        cids (ConcurrentHashMap.)
+        started (atom false)
+        target (reify TickReplay$Target
+                 (correlationID [_ topic] (.get cids topic))
+                 (onEvent [_ event] (.put events event)))
+        subscribe! (fn [^SubscriptionList subscriptions]
+                    (doseq [^Subscription s subscriptions]
+                      (.put cids (first (clojure.string/split (.subscriptionString s) #"\?" 2)) (.correlationID s)))
+                    (.put events (TickReplay/subscriptionStarted subscriptions))
+                    (when (compare-and-set! started false true)
+                      (future
+                        (try
+                          (.replay replay target (double speed))
+                          (catch Exception e (log/error e "tick replay failed"))))))]
+    (proxy [Session] [(SessionOptions.)]
+      (start [] true)
+      (openService [_] true)
+      (subscribe
+        ([subscriptions] (subscribe! subscriptions))
+        ([subscriptions _] (subscribe! subscriptions)))
+      (nextEvent
+        ([] (.take events))
+        ([timeout] (or (.poll events timeout TimeUnit/MILLISECONDS) (TickReplay/timeout))))
+      (stop [] (.stop replay) true))))
+
+(defn- journal-topics
+  "Topic of a clj-bdp-subscribe correlation id"
+  [corrmap]
+  (reify TickJournal$Topics
+    (topic [_ cid] (corrmap (.object ^CorrelationID cid)))))
+
+(defn- publish-snapshots!
+  "Copies the rows whose version moved since published (long-array indexed by row) into atom-map, in one swap!;
+  number as in read-snapshot"
+  [^SnapshotStore store rows ^longs published atom-map field-keys number]
+  (let [n (.numFields store)
+        bits (long-array n)
+        refs (make-array String n)
+        changed (persistent!
+                  (reduce (fn [m row]
+                            (if (= (.version store (int row)) (aget published row))
+                              m
+                              (let [snapshot (read-snapshot store row bits refs field-keys number)]
+                                (aset published row (.version store (int row)))
+                                (assoc! m (.topic store (int row)) snapshot))))
+                          (transient {})
+                          rows))]
+    (when (seq changed)
+      (swap! atom-map merge changed))))
+
+(defn- update-snapshots!
+  "Writes every message of a SUBSCRIPTION_DATA event into store (and its tick into topic-stats), returns the rows that
+  ticked"
+  [^SnapshotStore store row-of topic-stats event]
+  (reduce (fn [ticked ^Message msg]
+            (let [row (row-of msg)]
+              (record-tick! topic-stats msg row)
+              (if (pos? (.update store row msg)) (conj ticked row) ticked)))
+          []
+          event))
+
+(defonce ^:private ^AtomicLong subscription-counter (AtomicLong.))
+
 (defn clj-bdp-subscribe
-  "This will subscribe to a list of securities and fields and update an atom-map with the values"
-  [securities fields session-input atom-map]
-  (let [session (or (:session session-input) (local-session))]
+  "This will subscribe to a list of securities and fields and update an atom-map with the values.
+  Subscriptions are sent in paced chunks, see default-subscription-pacing for the options.
+  Every message of every event is written into a SnapshotStore (:snapshot-store, or a private one). atom-map gets
+  {security {field-Name value}}, values as strings (.getValueAsString), or as in topic-snapshot with :typed true:
+  after every event for the securities that ticked, or conflated with :publish-ms (or a :conflator, see conflator):
+  every publish-ms milliseconds, in one swap!, only for the securities that ticked since the last time, whatever the
+  number of ticks in between.
+  With :workers n the subscription thread only reads events and hands each message to one of n worker threads chosen
+  by security (PartitionedWorkers), which write the store and publish: ticks of one security stay in order, different
+  securities are processed in parallel. Each worker queues up to :worker-capacity messages (16384) and takes them
+  :worker-batch-size at a time (1024).
+  With :journal (see tick-journal) every SUBSCRIPTION_DATA event is also written to that journal as it is received.
+  Ticks, rates and gaps per security are in default-metrics under :metrics-name (subscription-1, -2... by default, see
+  topic-metrics) while the thread runs; a :metrics-name already in use is rejected."
+  [securities fields session-input atom-map & {:keys [publish-ms workers worker-capacity worker-batch-size
+                                                      ^TickJournal$Writer journal metrics-name typed]
+                                               :or {worker-capacity 16384 worker-batch-size 1024} :as pacing}]
+  (let [session (or (:session session-input) (local-session))
+        opts (merge default-subscription-pacing pacing)]
     (.openService session "//blp/mktdata")
-    (let [subscriptions (SubscriptionList.)
-          securitiescoll (->coll securities)
+    (let [securitiescoll (->coll securities)
           fieldscoll (->coll fields)
-          fieldscollname (->namecoll fieldscoll)
-          corrmap (into {} (map-indexed vector securitiescoll))]
-      (doseq  [[c s] corrmap]
-        (.add subscriptions (Subscription. ^String s (clojure.string/join "," fieldscoll) (CorrelationID. c))))
+          ^SnapshotStore store (or (:snapshot-store pacing) (snapshot-store securitiescoll fieldscoll))
+          field-keys (mapv #(Name. (.field store %)) (range (.numFields store)))
+          number (if typed identity str)                     ;str of a double or long is its .getValueAsString
+          published (long-array (.numTopics store))
+          ^Conflator conflator (or (:conflator pacing) (when publish-ms (conflator store publish-ms)))
+          corrmap (into {} (map-indexed vector securitiescoll))
+          rows (mapv #(.topicIndex store ^String %) securitiescoll)
+          _ (assert (every? #(>= % 0) rows) "snapshot-store does not hold every security")
+          topics (journal-topics corrmap)
+          metrics-name (or metrics-name (str "subscription-" (.incrementAndGet subscription-counter)))
+          topic-stats (.topics default-metrics metrics-name securitiescoll)
+          row-of (fn [^Message msg] (int (rows (.object (.correlationID msg)))))
+          worker (fn []
+                   (let [ticked (volatile! [])]
+                     (reify PartitionedWorkers$Worker
+                       (process [_ msg]
+                         (let [row (row-of msg)]
+                           (record-tick! topic-stats msg row)
+                           (when (pos? (.update store row msg))
+                             (if conflator (.mark conflator row) (vswap! ticked conj row)))))
+                       (flush [_]
+                         (when (seq @ticked)
+                           (publish-snapshots! store @ticked published atom-map field-keys number)
+                           (vreset! ticked []))))))
+          chunks (partition-all (:chunk-size opts)
+                                (for [[c s] corrmap] (Subscription. ^String s (clojure.string/join "," fieldscoll) (CorrelationID. c))))
+          send-chunk (fn [chunk]
+                       (let [subscriptions (SubscriptionList.)]
+                         (doseq [sub chunk] (.add subscriptions sub))
+                         (if session-input
+                           (.subscribe ^Session session ^SubscriptionList subscriptions ^Identity (:identity session-input))
+                           (.subscribe ^Session session subscriptions))))]
       (Thread.
         (fn []
-          (try
-            (if session-input
-              (.subscribe ^Session session ^SubscriptionList subscriptions ^Identity (:identity session-input))
-              (.subscribe session subscriptions))
-            (while true
-              (let [event (.nextEvent session)]
-                (if (= (.intValue (.eventType event)) Event$EventType$Constants/SUBSCRIPTION_DATA)
-                  (let [iter (.messageIterator event) msg (.next iter) s (corrmap (.object (.correlationID msg)))]
-                    (doseq [f fieldscollname]
-                      (when (.hasElement msg ^Name f) (swap! atom-map assoc-in [s f]  (.getValueAsString (.getElement msg ^Name f)))))))))
-          (catch InterruptedException e
-            (.stop ^Session session)
-            (println (.getMessage e)))))))))
+          (let [^PartitionedWorkers pool (when (and workers (pos? workers))
+                                           (.start (PartitionedWorkers. (into-array PartitionedWorkers$Worker (repeatedly workers worker))
+                                                                        (int worker-capacity) (int worker-batch-size))))]
+            (when conflator
+              (.start conflator (reify Conflator$Listener
+                                  (flush [_ flushed n]
+                                    (publish-snapshots! store (take n flushed) published atom-map field-keys number)))))
+            (try
+              (let [pacer (volatile! (subscription-pacer chunks (System/nanoTime)))]
+                (while true
+                  (loop []
+                    (let [[p chunk] (pacer-take-chunk @pacer (System/nanoTime) opts)]
+                      (vreset! pacer p)
+                      (when chunk (send-chunk chunk) (recur))))
+                  (let [event (.nextEvent ^Session session 100)
+                        start (System/nanoTime)]
+                    (condp = (.intValue (.eventType event))
+                      Event$EventType$Constants/SUBSCRIPTION_DATA
+                      (do
+                        (when journal
+                          (.append journal (System/nanoTime) event topics))
+                        (cond
+                          pool
+                          (doseq [^Message msg event]
+                            (.dispatch pool (row-of msg) msg))
+                          conflator
+                          (doseq [^Message msg event :let [row (row-of msg)]]
+                            (record-tick! topic-stats msg row)
+                            (when (pos? (.update store row msg))
+                              (.mark conflator row)))
+                          :else
+                          (publish-snapshots! store (update-snapshots! store row-of topic-stats event) published atom-map field-keys number)))
+                      Event$EventType$Constants/SUBSCRIPTION_STATUS
+                      (doseq [^Message msg event :let [t (.messageType msg)]
+                              :when (#{bbg-SubscriptionStarted bbg-SubscriptionFailure} t)]
+                        (let [done? (:elapsed-ms @pacer)
+                              p (vswap! pacer pacer-ack (= t bbg-SubscriptionFailure) (System/nanoTime))]
+                          (when (and (not done?) (:elapsed-ms p))
+                            (log/info "subscribed" (:total p) "topics," (:failed p) "failed, in" (:sent p) "chunks," (:elapsed-ms p) "ms")
+                            (when-let [f (:on-subscribed opts)]
+                              (f {:topics (:total p) :failed (:failed p) :chunks (:sent p) :elapsed-ms (:elapsed-ms p)})))))
+                      Event$EventType$Constants/TIMEOUT nil
+                      Event$EventType$Constants/ADMIN (do (record-admin-event! event) (handle-other-event event))
+                      (handle-other-event event))
+                    (record-event-time! subscription-times event start))))
+            (catch InterruptedException e
+              (.stop ^Session session)
+              (println (.getMessage e)))
+            (finally
+              (.remove default-metrics metrics-name topic-stats)
+              (when pool
+                (.stop pool))
+              (when conflator
+                (.stop conflator))))))))))
+
+
+
+(defn pool-subscribe
+  "Spreads securities round-robin over the subscription sessions of a session-pool, one clj-bdp-subscribe per session.
+  Returns the (unstarted) threads; interrupting a thread stops its session."
+  [pool securities fields atom-map & pacing]
+  (let [sessions (:subscription pool)
+        n (count sessions)
+        securitiescoll (vec (->coll securities))]
+    (assert (pos? n) "session-pool has no :subscription-sessions")
+    (vec (for [i (range n) :let [shard (take-nth n (drop i securitiescoll))] :when (seq shard)]
+           (apply clj-bdp-subscribe shard fields (sessions i) atom-map pacing)))))
+
+
+;; Streaming subscription ;;
+;; A TickStream publishes the ticks of a session as a java.util.concurrent.Flow.Publisher, at the pace its subscriber
+;; requests them; when the subscriber falls behind the overflow policy drops the oldest ticks, conflates them per topic
+;; or blocks the session. Topics are added and removed on the live subscription, close-tick-stream! unsubscribes them
+;; and stops the session. tick-channel is a blocking channel over a stream with explicit demand.
+
+(def tick-overflow-policies
+  {:drop-oldest TickStream$Overflow/DROP_OLDEST :conflate TickStream$Overflow/CONFLATE :block TickStream$Overflow/BLOCK})
+
+(defn tick-stream
+  "Started TickStream of fields for securities, over the session of session-input as in clj-bdp-subscribe, or else over
+  a local session that it stops when closed, or when it cannot be started; the session of session-input is left to the
+  caller. :overflow is :drop-oldest (default), :conflate or :block, see TickStream; :buffer-ticks (10000) bounds the
+  ticks waiting for demand with :drop-oldest and :block"
+  ^TickStream [securities fields session-input & {:keys [overflow buffer-ticks] :or {overflow :drop-oldest buffer-ticks 10000}}]
+  (let [policy (or (tick-overflow-policies overflow) (throw (ex-info "Unknown overflow policy" {:overflow overflow})))
+        own-session? (nil? (:session session-input))
+        session (or (:session session-input) (local-session))
+        stream (TickStream. session own-session? (:identity session-input) (mapv name (->coll fields)) policy
+                            (int buffer-ticks))]
+    (try
+      (.start stream)
+      (.add stream (vec (->coll securities)))
+      stream
+      (catch Throwable e
+        (.close stream)
+        (throw e)))))
+
+(defn add-topics! [^TickStream stream securities] (.add stream (vec (->coll securities))) stream)
+
+(defn remove-topics! [^TickStream stream securities] (.remove stream (vec (->coll securities))) stream)
+
+(defn close-tick-stream!
+  "Unsubscribes every topic of stream and stops its session if tick-stream started it; its subscriber completes once it
+  has taken what is left"
+  [^TickStream stream]
+  (.close stream))
+
+(defn tick-channel
+  "Blocking channel subscribed to stream (see take-tick!). It requests :demand ticks (256) up front and one more per tick
+  taken, so it never holds more than that: the other ticks wait in the stream, under its overflow policy."
+  [^TickStream stream & {:keys [demand] :or {demand 256}}]
+  (let [queue (LinkedBlockingQueue.)
+        subscription (promise)]
+    (.subscribe stream (reify Flow$Subscriber
+                         (onSubscribe [_ s] (deliver subscription s) (.request ^Flow$Subscription s (long demand)))
+                         (onNext [_ tick] (.put queue tick))
+                         (onError [_ e] (.put queue e))
+                         (onComplete [_] (.put queue ::closed))))
+    {:queue queue :subscription subscription}))
+
+(defn- tick->map [^TickStream$Tick tick]
+  {:security (.topic tick)
+   :fields (into {} (for [[field value] (.fields tick)] [(keyword field) value]))
+   :messages (.messages tick)})
+
+(defn take-tick!
+  "Next tick of channel, {:security :fields {field value} :messages n} (n > 1 when conflated), waiting for it (at most
+  timeout-ms, then nil). nil once the stream is closed and every tick taken; throws if the stream failed."
+  ([channel] (take-tick! channel nil))
+  ([{:keys [^LinkedBlockingQueue queue subscription]} timeout-ms]
+   (let [x (if timeout-ms (.poll queue (long timeout-ms) TimeUnit/MILLISECONDS) (.take queue))]
+     (cond
+       (nil? x) nil
+       (= x ::closed) (do (.put queue x) nil)
+       (instance? Throwable x) (do (.put queue x) (throw (ex-info "Tick stream failed" {} x)))
+       :else (do (.request ^Flow$Subscription @subscription 1) (tick->map x))))))
 
+(defn tick-stream-stats [^TickStream stream]
+  {:topics (count (.topics stream)) :status (into {} (.status stream)) :overflow (.overflow stream)
+   :received (.received stream) :delivered (.delivered stream) :buffered (.buffer stream) :demand (.demand stream)
+   :dropped (.dropped stream) :conflated (.conflated stream)
+   :slow-consumer-warnings (.slowConsumerWarnings stream) :data-losses (.dataLosses stream)})
 
 
 ;Examples
@@ -44,6 +44,7 @@
 import com.bloomberglp.blpapi.CorrelationID;
 import com.bloomberglp.blpapi.Event;
 import com.bloomberglp.blpapi.Event.EventType;
+import com.bloomberglp.blpapi.EventDispatcher;
 import com.bloomberglp.blpapi.EventHandler;
 import com.bloomberglp.blpapi.Logging;
 
@@ -60,14 +61,20 @@ import com.bloomberglp.blpapi.Subscription;
 import com.bloomberglp.blpapi.SubscriptionList;
 import com.bloomberglp.blpapi.Identity;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.Calendar;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 //private
 class Config
@@ -80,9 +87,10 @@ class Config
     };
 
     public static int    port         = 9294;
+    public static int    startAttempts = 3;  // at least one per host
     public static int    uuid         = 7420832;
     public static String ipAddress    = "10.137.42.184";
-    public static final int maxsec    = 400;
+    public static int    maxsec       = Integer.MAX_VALUE;  // optional cap on the number of topics
 
     public static ArrayList<String> topics =
             new ArrayList<String>(Arrays.asList(
@@ -108,6 +116,95 @@ class Config
     public static String[] sub_options = {
             // "interval=10"
     };
+
+    // Subscriptions are sent in chunks of subChunkSize topics, at most
+    // subChunksPerSecond (bursts of subBurstChunks), with no more than
+    // subMaxOutstanding topics waiting for SubscriptionStarted/Failure.
+    public static int    subChunkSize        = 200;
+    public static double subChunksPerSecond  = 5;
+    public static int    subBurstChunks      = 2;
+    public static int    subMaxOutstanding   = 1000;
+
+    // PRINT : every field of every tick is printed as it arrives (original behaviour)
+    // TYPED : Config.fields are decoded into primitive slots by TickDecoder and
+    //         only printed on demand (ENTER in the console)
+    enum   DecodeMode{PRINT, TYPED};
+    public static DecodeMode decodeMode = DecodeMode.PRINT;
+
+    // With conflateMillis > 0 ticks are decoded as in TYPED mode and, every
+    // conflateMillis, only the topics that ticked since the previous flush are
+    // printed, once each, with their latest values and the ticks absorbed.
+    public static long       conflateMillis = 0;
+
+    // dispatcherThreads > 1 runs the session on an EventDispatcher with that
+    // many threads. BLPAPI does not order events across dispatcher threads, so
+    // the messages of a topic are only processed in arrival order with 1.
+    // workerThreads > 0 hands SUBSCRIPTION_DATA messages to a pool of workers
+    // partitioned by cid (PartitionedWorkers): a topic always goes to the same
+    // worker, in order, while different topics are decoded and printed in
+    // parallel. Several dispatcher threads always use at least one worker, so
+    // that the state of a topic keeps a single writer.
+    public static int        dispatcherThreads = 1;
+    public static int        workerThreads     = 0;
+    public static int        workerQueueSize   = 1 << 14;
+
+    // Backpressure (BackpressureController): under SlowConsumerWarning, InProc
+    // DataLoss, an output queue fuller than bpHighWater or handler time above
+    // bpHandlerBudgetMicros per event, the handler first conflates ticks
+    // (bpConflateMillis), then sheds topics from the end of Config.topics
+    // (bpShedFraction of them at a time, never the first bpProtectedTopics),
+    // then widens the rest to interval=bpIntervalSeconds, shedding more while
+    // at most bpMaxShedFraction of the topics are off. It recovers one step
+    // per backoff period, bpRestoreBatch topics at a time, the backoff doubling
+    // from bpBackoffMillis up to bpMaxBackoffMillis while the pressure returns.
+    // Off by default: it cancels and resubscribes topics on its own.
+    public static boolean backpressure          = false;
+    public static long    bpTickMillis          = 250;
+    public static double  bpHighWater           = 0.5;
+    public static long    bpHandlerBudgetMicros = 2000;
+    public static long    bpConflateMillis      = 500;
+    public static double  bpShedFraction        = 0.25;
+    public static double  bpMaxShedFraction     = 0.5;
+    public static int     bpProtectedTopics     = 1;
+    public static double  bpIntervalSeconds     = 5;
+    public static int     bpRestoreBatch        = 20;
+    public static long    bpEscalateMillis      = 2000;
+    public static long    bpBackoffMillis       = 1000;
+    public static long    bpMaxBackoffMillis    = 60000;
+
+    // captureDir journals every SUBSCRIPTION_DATA message, as the decoded
+    // values of Config.fields, into memory-mapped segments of
+    // captureSegmentBytes in that directory (TickJournal). With replayDir no
+    // session is started and the arguments are not needed: the journal in
+    // replayDir goes through the handler instead (TickReplay), at replaySpeed
+    // times the recorded pace, 0 meaning as fast as the handler takes it.
+    public static String  captureDir            = null;
+    public static int     captureSegmentBytes   = TickJournal.DEFAULT_SEGMENT_BYTES;
+    public static String  replayDir             = null;
+    public static double  replaySpeed           = 1;
+
+    // emulator runs the sample against an in-process SessionEmulator rather
+    // than hosts, without authorization and without the arguments, e.g.
+    //   new SessionEmulator.Options().ticksPerSecond(100).payloadBytes(256)
+    public static SessionEmulator.Options emulator = null;
+
+    // Metrics (see Metrics) are always recorded: handler time per event type,
+    // queue lag of every SUBSCRIPTION_DATA message (the session records when
+    // it received them), ticks, rate and inter-arrival gaps per topic, slow
+    // consumer warnings and data losses. With metricsJmx they are readable
+    // over JMX as cljblpapiwrapper:type=Metrics,name=test_with_uuid_a while
+    // running; they are printed when the sample stops.
+    public static boolean metricsJmx = true;
+
+    // Handler output goes through a bounded queue (AsyncOutput) to one of these
+    // sinks, so the dispatcher thread never blocks on console or file I/O.
+    enum   OutputMode{CONSOLE, ROLLING_FILE, BINARY_LOG};
+    public static OutputMode outputMode      = OutputMode.CONSOLE;
+    public static String     outputPath      = "test_with_uuid_a.log";
+    public static long       outputFileBytes = 64L * 1024 * 1024;
+    public static int        outputFiles     = 5;
+    public static int        outputQueueSize = 1 << 16;
+    public static int        outputBatchSize = 1024;
 }
 
 
@@ -117,7 +214,10 @@ public class test_with_uuid_a
     private static final Name SLOW_CONSUMER_WARNING_CLEARED = Name.getName( "SlowConsumerWarningCleared" );
     private static final Name DATA_LOSS                     = Name.getName( "DataLoss"                   );
     private static final Name SUBSCRIPTION_TERMINATED       = Name.getName( "SubscriptionTerminated"     );
+    private static final Name SUBSCRIPTION_STARTED          = Name.getName( "SubscriptionStarted"        );
+    private static final Name SUBSCRIPTION_FAILURE          = Name.getName( "SubscriptionFailure"        );
     private static final Name SOURCE                        = Name.getName( "source"                     );
+    private static final Name NUM_MESSAGES_DROPPED          = Name.getName( "numMessagesDropped"         );
     private static final Name AUTHORIZATION_SUCCESS         = Name.getName( "AuthorizationSuccess"       );
     private static final Name AUTHORIZATION_FAILURE         = Name.getName( "AuthorizationFailure"       );
     private static final Name AUTHORIZATION_REVOKED         = Name.getName( "AuthorizationRevoked"       );
@@ -125,14 +225,22 @@ public class test_with_uuid_a
     private static final Name TOKEN                         = Name.getName( "token"                      );
 
     private Session                  d_session;
-    private ArrayList<String>        d_topics;
-    private SubscriptionList         d_subscriptions;
+    private SubscriptionEventHandler d_handler;
+    private AsyncOutput              d_output;
+    private AsyncOutput              d_conflatedOutput;
+    private AsyncOutput[]            d_workerOutputs = new AsyncOutput[0];
+    private EventDispatcher          d_dispatcher;
+    private SubscriptionRegistry     d_registry;
+    private SubscriptionScheduler    d_scheduler;
+    private BackpressureController   d_controller;
+    private TickJournal.Writer       d_journal;
+    private final Metrics            d_metrics = new Metrics("test_with_uuid_a");
+    private double                   d_intervalSeconds;     // widened interval, 0 if none; d_lock
     private SimpleDateFormat         d_dateFormat;
     private String                   d_service;
-    private boolean                  d_isSlow;
-    private boolean                  d_isStopped;
+    private volatile boolean         d_isSlow;
+    private volatile boolean         d_isStopped;
     private final SubscriptionList   d_pendingSubscriptions;
-    private final Set<CorrelationID> d_pendingUnsubscribe;
     private final Object             d_lock;
     private Identity                 d_identity;
     private CorrelationID            d_authCorrelationId;
@@ -153,13 +261,11 @@ public class test_with_uuid_a
     public test_with_uuid_a()
     {
         d_service              = "//blp/mktdata";
-        d_topics               = new ArrayList<String>();
-        d_subscriptions        = new SubscriptionList();
+        d_registry             = new SubscriptionRegistry(Config.topics.size());
         d_dateFormat           = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS");
         d_isSlow               = false;
         d_isStopped            = false;
         d_pendingSubscriptions = new SubscriptionList();
-        d_pendingUnsubscribe   = new HashSet<CorrelationID>();
         d_lock                 = new Object();
 
     }
@@ -169,14 +275,34 @@ public class test_with_uuid_a
         if (d_session != null) d_session.stop();
         SessionOptions  options = new SessionOptions();
 
-        // Server addresses setup
-        SessionOptions.ServerAddress[] servers = new SessionOptions.ServerAddress[1];
-        servers[0] = new SessionOptions.ServerAddress(Config.hosts[0], Config.port);
+        // Server addresses setup: every host is registered so that the session
+        // fails over to the next one, and restarts by itself on disconnection
+        // instead of us creating (and re-authorizing) a new session.
+        SessionOptions.ServerAddress[] servers = new SessionOptions.ServerAddress[Config.hosts.length];
+        for (int i = 0; i < Config.hosts.length; ++i) {
+            servers[i] = new SessionOptions.ServerAddress(Config.hosts[i].trim(), Config.port);
+        }
         options.setServerAddresses(servers);
+        options.setAutoRestartOnDisconnection(true);
+        options.setNumStartAttempts(Math.max(Config.startAttempts, servers.length));
+        options.setRecordSubscriptionDataReceiveTimes(true);    // queue lag
 
 
         System.out.println("Session options: " + options.toString());
-        d_session = new Session(options, new SubscriptionEventHandler(d_topics, d_subscriptions));
+        d_handler = new SubscriptionEventHandler(d_registry);
+        if (Config.emulator != null) {
+            System.out.println("Emulated session: " + Config.emulator);
+            d_session = new SessionEmulator(Config.emulator, d_handler);
+        }
+        else if (Config.dispatcherThreads > 1) {
+            if (d_dispatcher != null) d_dispatcher.stop();
+            d_dispatcher = new EventDispatcher(Config.dispatcherThreads);
+            d_dispatcher.start();
+            d_session = new Session(options, d_handler, d_dispatcher);
+        }
+        else {
+            d_session = new Session(options, d_handler);
+        }
         System.out.println("Starting session...\n");
         if (!d_session.start()) {
             System.err.println("Failed to start session\n");
@@ -250,19 +376,49 @@ public class test_with_uuid_a
         return is_authorized;
     }
 
-    private void subscribe() throws Exception {
+    private void prepareHandler() throws Exception {
         int cid = 0;
         for(String line: Config.topics) {
-            d_topics.add(line);
-            d_subscriptions.add(new Subscription(line,
-                    Config.fields, Arrays.asList(Config.sub_options), new CorrelationID(++cid)));
+            d_registry.add(++cid, line, Config.fields, Arrays.asList(Config.sub_options));
             if(cid==Config.maxsec){
                 break;
             }
         }
+        d_handler.d_decoder.ensureCapacity(d_registry.size());
+        List<String> topics = new ArrayList<String>();
+        for (int row = 0; row < d_registry.size(); ++row) {
+            topics.add(d_registry.byRow(row).topic());
+        }
+        d_handler.d_topicStats = d_metrics.topics("topics", topics);
+        if (d_workerOutputs.length > 0) {
+            PartitionedWorkers.Worker[] workers = new PartitionedWorkers.Worker[d_workerOutputs.length];
+            for (int i = 0; i < workers.length; ++i) {
+                workers[i] = new DataWorker(d_workerOutputs[i]);
+            }
+            d_handler.d_workers = new PartitionedWorkers(workers, Config.workerQueueSize, Config.outputBatchSize).start();
+        }
+        if (Config.conflateMillis > 0) {
+            d_handler.startConflation(new Conflator(d_registry.size(), Config.conflateMillis));
+        }
+    }
+
+    private void subscribe() throws Exception {
+        prepareHandler();
+        if (Config.backpressure) {
+            d_controller = new BackpressureController(new BackpressureActions(),
+                    Config.bpHighWater, Config.bpHandlerBudgetMicros, Config.bpConflateMillis,
+                    (int) Math.ceil(d_registry.size() * Config.bpShedFraction),
+                    (int) (d_registry.size() * Config.bpMaxShedFraction), Config.bpIntervalSeconds,
+                    Config.bpRestoreBatch, Config.bpEscalateMillis, Config.bpBackoffMillis,
+                    Config.bpMaxBackoffMillis).start(Config.bpTickMillis);
+        }
 
-        System.out.print("Use simplified auth credential");
-        d_session.subscribe(d_subscriptions, d_identity);
+        System.out.println("Use simplified auth credential");
+        System.out.printf("Subscribing to %d topics in chunks of %d%n", d_registry.size(), Config.subChunkSize);
+        d_scheduler = new SubscriptionScheduler(d_session, d_identity, d_registry,
+                Config.subChunkSize, Config.subChunksPerSecond, Config.subBurstChunks,
+                Config.subMaxOutstanding, d_output);
+        d_scheduler.start();
     }
 
 
@@ -271,31 +427,104 @@ public class test_with_uuid_a
         // turn off logging by default
         registerCallback(Level.OFF);
 
-        if (args.length != 4) {
-            System.err.println("Usage: java -jar test_with_uuid_a.jar <host1,...> <port> <uuid> <ipAddress>");
-            System.err.printf("  e.g. java -jar test_with_uuid_a.jar  %s  %d  %d  %s\n", Config.hosts[0], Config.port, Config.uuid, Config.ipAddress);
-            System.exit(1);
+        if (Config.replayDir == null && Config.emulator == null) {
+            if (args.length != 4) {
+                System.err.println("Usage: java -jar test_with_uuid_a.jar <host1,...> <port> <uuid> <ipAddress>");
+                System.err.printf("  e.g. java -jar test_with_uuid_a.jar  %s  %d  %d  %s\n", Config.hosts[0], Config.port, Config.uuid, Config.ipAddress);
+                System.exit(1);
+            }
+
+            // Populate mutable fields in Config from command line
+            Config.hosts     = args[0].split(",");
+            Config.port      = Integer.parseInt(args[1]);
+            Config.uuid      = Integer.parseInt(args[2]);
+            Config.ipAddress = args[3];
+
+            System.out.println("\nOptions to be used:");
+            System.out.printf("| Config.hosts   : %s\n", args[0]);
+            System.out.printf("| Config.port    : %s\n", args[1]);
+            System.out.printf("| Config.uuid    : %s\n", args[2]);
+            System.out.printf("| Config.ipAdress: %s\n", args[3]);
+            System.out.println();
         }
 
-        // Populate mutable fields in Config from command line
-        Config.hosts     = args[0].split(",");
-        Config.port      = Integer.parseInt(args[1]);
-        Config.uuid      = Integer.parseInt(args[2]);
-        Config.ipAddress = args[3];
+        // the conflation flusher and every worker get their own queue, AsyncOutput has one producer
+        boolean conflation = Config.conflateMillis > 0 || Config.backpressure;
+        d_workerOutputs = new AsyncOutput[workerThreads()];
+        OutputSink sink = createSink();
+        int users = 1 + (conflation ? 1 : 0) + d_workerOutputs.length;
+        if (users > 1) {
+            sink = new OutputSink.Shared(sink, users);
+        }
+        if (conflation) {
+            d_conflatedOutput = new AsyncOutput(sink, Config.outputQueueSize, Config.outputBatchSize).start();
+        }
+        for (int i = 0; i < d_workerOutputs.length; ++i) {
+            d_workerOutputs[i] = new AsyncOutput(sink, Config.outputQueueSize, Config.outputBatchSize).start();
+        }
+        d_output = new AsyncOutput(sink, Config.outputQueueSize, Config.outputBatchSize).start();
+        if (Config.metricsJmx) {
+            System.out.println("Metrics: " + d_metrics.register());
+        }
+        if (Config.captureDir != null) {
+            d_journal = new TickJournal.Writer(new File(Config.captureDir), Config.fields, Config.captureSegmentBytes);
+        }
+        try {
+            if (Config.replayDir != null) {
+                runReplay();
+            }
+            else {
+                runSession();
+            }
+        }
+        finally {
+            if (d_controller != null) {
+                d_controller.stop();
+                System.out.println("Backpressure: " + d_controller);
+            }
+            if (d_handler != null && d_handler.d_workers != null) {
+                d_handler.d_workers.stop();
+                System.out.println("Workers: " + d_handler.d_workers);
+            }
+            for (AsyncOutput output : d_workerOutputs) {
+                output.close();
+            }
+            if (d_handler != null && d_handler.d_conflator != null) {
+                d_handler.d_conflator.stop();
+                System.out.println("Conflation: " + d_handler.d_conflator);
+            }
+            if (d_conflatedOutput != null) {
+                d_conflatedOutput.close();
+                System.out.println("Conflated output: " + d_conflatedOutput);
+            }
+            d_output.close();
+            System.out.println("Output: " + d_output);
+            if (d_journal != null) {
+                d_journal.close();
+                System.out.println("Journal: " + d_journal);
+            }
+            System.out.print(d_metrics.report());
+            d_metrics.unregister();
+        }
+    }
 
-        System.out.println("\nOptions to be used:");
-        System.out.printf("| Config.hosts   : %s\n", args[0]);
-        System.out.printf("| Config.port    : %s\n", args[1]);
-        System.out.printf("| Config.uuid    : %s\n", args[2]);
-        System.out.printf("| Config.ipAdress: %s\n", args[3]);
-        System.out.println();
+    private static int workerThreads()
+    {
+        return Config.dispatcherThreads > 1 ? Math.max(1, Config.workerThreads) : Math.max(0, Config.workerThreads);
+    }
 
+    private void runSession() throws Exception
+    {
         if (!createSession()) return;
 
         boolean isAuthorized = false;
         d_identity = d_session.createIdentity();
         d_authCorrelationId = new CorrelationID("authCorrelation");
-        if (d_session.openService("//blp/apiauth"))
+        if (Config.emulator != null)
+        {
+            isAuthorized = true;
+        }
+        else if (d_session.openService("//blp/apiauth"))
         {
             Service authService = d_session.getService("//blp/apiauth");
             isAuthorized = authorize(authService, d_session, d_identity, d_authCorrelationId);
@@ -313,17 +542,84 @@ public class test_with_uuid_a
         System.out.println("Subscribing...");
         subscribe();
 
-        // wait for enter key to exit application
-        System.in.read();
+        if (Config.decodeMode == Config.DecodeMode.TYPED) {
+            // ENTER prints the latest decoded values, q exits
+            System.out.println("Press ENTER to print latest values, q + ENTER to exit");
+            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+            String line;
+            while ((line = reader.readLine()) != null && !line.trim().equals("q")) {
+                d_handler.printSnapshot(System.out);
+            }
+        }
+        else {
+            // wait for enter key to exit application
+            System.in.read();
+        }
         synchronized (d_lock) {
             d_isStopped = true;
         }
+        d_scheduler.stop();
+        if (d_controller != null) d_controller.stop();
 
         d_session.cancel(d_authCorrelationId);
         d_session.stop();
+        if (d_dispatcher != null) d_dispatcher.stop();
         System.out.println("Exiting...");
     }
 
+    // The handler without a session: Config.topics registered with cids 1, 2,
+    // ... and ACTIVE, output going to output. Used for replay, and by the
+    // benchmarks to call processEvent directly.
+    public EventHandler offlineHandler(AsyncOutput output) throws Exception
+    {
+        d_output = output;
+        d_handler = new SubscriptionEventHandler(d_registry);
+        prepareHandler();
+        for (SubscriptionRegistry.Entry entry : d_registry.entries()) {
+            entry.setState(SubscriptionRegistry.State.ACTIVE);
+        }
+        return d_handler;
+    }
+
+    // Feeds the journal of Config.replayDir to the handler, with the cids of
+    // Config.topics; topics of the journal that are not in Config.topics are
+    // skipped. Backpressure needs a session and is left out.
+    private void runReplay() throws Exception
+    {
+        TickReplay replay = new TickReplay(new File(Config.replayDir));
+        System.out.printf("Replaying %s at speed %s%n", replay, Config.replaySpeed);
+        offlineHandler(d_output);
+        final Map<String, CorrelationID> cids = new HashMap<String, CorrelationID>();
+        for (SubscriptionRegistry.Entry entry : d_registry.entries()) {
+            cids.put(entry.topic(), entry.correlationID());
+        }
+
+        long start = System.nanoTime();
+        long messages = replay.replay(new TickReplay.Target() {
+            public CorrelationID correlationID(String topic) { return cids.get(topic); }
+            public void onEvent(Event event)                 { d_handler.processEvent(event, null); }
+        }, Config.replaySpeed);
+        if (d_handler.d_workers != null) d_handler.d_workers.stop();
+        double millis = (System.nanoTime() - start) / 1e6;
+        System.out.printf("Replayed %d messages in %.1f ms (%.0f messages/s)%n",
+                messages, millis, messages * 1000 / Math.max(millis, 1e-3));
+        if (Config.decodeMode == Config.DecodeMode.TYPED) {
+            d_handler.printSnapshot(System.out);
+        }
+    }
+
+    private OutputSink createSink() throws IOException
+    {
+        switch (Config.outputMode) {
+            case ROLLING_FILE:
+                return new OutputSink.RollingFile(Config.outputPath, Config.outputFileBytes, Config.outputFiles);
+            case BINARY_LOG:
+                return new OutputSink.BinaryLog(Config.outputPath);
+            default:
+                return new OutputSink.Console(System.out);
+        }
+    }
+
     // register API logging callback level
     private void registerCallback(Level logLevel)
     {
@@ -339,74 +635,211 @@ public class test_with_uuid_a
         Logging.registerCallback(loggingCallback, logLevel);
     }
 
+    // What BackpressureController does to this session. Called on the
+    // controller thread, so subscriptions and their states change under d_lock.
+    class BackpressureActions implements BackpressureController.Actions
+    {
+        public double queueFill()
+        {
+            double fill = (double) d_output.pending() / d_output.capacity();
+            PartitionedWorkers workers = d_handler.d_workers;
+            return workers == null ? fill : Math.max(fill, workers.maxFill());
+        }
+
+        public void setConflateMillis(long millis) throws Exception
+        {
+            d_handler.setConflation(millis > 0 ? millis : Config.conflateMillis);
+        }
+
+        public List<SubscriptionRegistry.Entry> shed(int count) throws Exception
+        {
+            List<SubscriptionRegistry.Entry> shed = new ArrayList<SubscriptionRegistry.Entry>();
+            synchronized (d_lock) {
+                if (d_isStopped) return shed;
+                ArrayList<CorrelationID> cids = new ArrayList<CorrelationID>();
+                for (int row = d_registry.size() - 1; row >= Config.bpProtectedTopics && shed.size() < count; --row) {
+                    SubscriptionRegistry.Entry entry = d_registry.byRow(row);
+                    if (entry.state() != SubscriptionRegistry.State.ACTIVE) continue;
+                    entry.setState(SubscriptionRegistry.State.SHED);
+                    shed.add(entry);
+                    cids.add(entry.correlationID());
+                }
+                if (!cids.isEmpty()) d_session.cancel(cids);
+            }
+            return shed;
+        }
+
+        public void restore(List<SubscriptionRegistry.Entry> entries) throws Exception
+        {
+            synchronized (d_lock) {
+                if (d_isStopped) return;
+                SubscriptionList subscriptions = new SubscriptionList();
+                for (SubscriptionRegistry.Entry entry : entries) {
+                    entry.setState(SubscriptionRegistry.State.PENDING);
+                    subscriptions.add(entry.subscription(d_intervalSeconds));
+                }
+                if (!subscriptions.isEmpty()) d_session.subscribe(subscriptions, d_identity);
+            }
+        }
+
+        public void setIntervalSeconds(double seconds) throws Exception
+        {
+            synchronized (d_lock) {
+                d_intervalSeconds = seconds;
+                if (d_isStopped) return;
+                SubscriptionList subscriptions = new SubscriptionList();
+                for (SubscriptionRegistry.Entry entry : d_registry.entries()) {
+                    if (entry.state() == SubscriptionRegistry.State.ACTIVE) {
+                        subscriptions.add(entry.subscription(seconds));
+                    }
+                }
+                if (!subscriptions.isEmpty()) d_session.resubscribe(subscriptions);
+            }
+        }
+    }
+
+    // SUBSCRIPTION_DATA messages of the topics partitioned to one worker thread
+    class DataWorker implements PartitionedWorkers.Worker
+    {
+        private final AsyncOutput      d_workerOutput;
+        private final SimpleDateFormat d_workerDateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS");
+
+        DataWorker(AsyncOutput output)
+        {
+            d_workerOutput = output;
+        }
+
+        public void process(Message message) throws Exception
+        {
+            d_handler.processMessage(message, d_workerOutput, d_workerDateFormat);
+        }
+
+        public void flush() {}
+    }
+
     class SubscriptionEventHandler implements EventHandler
     {
-        ArrayList<String> d_topics;
-        SubscriptionList d_subscriptions;
+        SubscriptionRegistry d_registry;
+        TickDecoder d_decoder;
+        volatile Conflator d_conflator;
+        volatile PartitionedWorkers d_workers;
+        volatile TopicStats d_topicStats;
+        final LatencyHistogram[] d_handlerTimes = d_metrics.eventTimes("handler");
+        final LatencyHistogram d_queueLag = d_metrics.histogram("queueLag");
+        final AtomicLong d_slowConsumerWarnings = d_metrics.counter("slowConsumerWarnings");
+        final AtomicLong d_dataLosses = d_metrics.counter("dataLosses");
+        final AtomicLong d_messagesDropped = d_metrics.counter("dataLoss.messagesDropped");
+        final TickJournal.Topics d_topics = new TickJournal.Topics() {
+            public String topic(CorrelationID cid) {
+                SubscriptionRegistry.Entry entry = d_registry.get(cid);
+                return entry != null ? entry.topic() : null;
+            }
+        };
 
-        public SubscriptionEventHandler(ArrayList<String> topics, SubscriptionList subscriptions)
+        public SubscriptionEventHandler(SubscriptionRegistry registry)
         {
-            d_topics = topics;
-            d_subscriptions = subscriptions;
+            d_registry = registry;
+            d_decoder = new TickDecoder(Config.fields, Config.topics.size());
         }
 
         public void processEvent(Event event, Session session)
         {
+            long start = System.nanoTime();
+            int type = event.eventType().intValue();
             try {
-                switch (event.eventType().intValue())
+                switch (type)
                 {
                     case Event.EventType.Constants.SUBSCRIPTION_DATA:
                         processSubscriptionDataEvent(event, session);
+                        if (d_controller != null) d_controller.onEvent(System.nanoTime() - start);
                         break;
                     case Event.EventType.Constants.SUBSCRIPTION_STATUS:
                         synchronized (d_lock) {
+                            reportSchedulerFailure();
                             processSubscriptionStatus(event, session);
                         }
                         break;
                     case Event.EventType.Constants.ADMIN:
                         synchronized (d_lock) {
+                            reportSchedulerFailure();
                             processAdminEvent(event, session);
                         }
                         break;
 
                     default:
-                        processMiscEvents(event, session);
+                        synchronized (d_lock) {
+                            reportSchedulerFailure();
+                            processMiscEvents(event, session);
+                        }
                         break;
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LatencyHistogram handlerTime = type < d_handlerTimes.length ? d_handlerTimes[type] : null;
+            if (handlerTime != null) handlerTime.record(System.nanoTime() - start);
+        }
+
+        // The scheduler thread does not write to d_output, see SubscriptionScheduler
+        private void reportSchedulerFailure()
+        {
+            if (d_scheduler != null) d_scheduler.reportFailure();
         }
 
         private boolean processSubscriptionStatus(Event event, Session session)
                 throws Exception
         {
-            System.out.println("Processing SUBSCRIPTION_STATUS: ");
+            d_output.println("Processing SUBSCRIPTION_STATUS: ");
             SubscriptionList subscriptionList = null;
             for(Message msg: event){
                 CorrelationID cid = msg.correlationID();
-                String topic = d_topics.get((int)cid.value() - 1);
-                System.out.printf(
-                        "%s: %s%n",
+                SubscriptionRegistry.Entry entry = d_registry.get(cid);
+                String topic = entry != null ? entry.topic() : String.valueOf(cid);
+                d_output.printf(
+                        "%s: %s",
                         d_dateFormat.format(Calendar.getInstance().getTime()),
                         topic);
-                System.out.println("MESSAGE: " + msg);
-
-                if (msg.messageType() == SUBSCRIPTION_TERMINATED
-                        && d_pendingUnsubscribe.remove(cid)) {
-                    // If this message was due to a previous unsubscribe
-                    Subscription subscription = getSubscription(cid);
-                    if (d_isSlow) {
-                        System.out.printf(
-                                "Deferring subscription for topic = %s because session is slow.%n",
-                                topic);
-                        d_pendingSubscriptions.add(subscription);
-                    }
-                    else {
-                        if (subscriptionList == null) {
-                            subscriptionList = new SubscriptionList();
+                d_output.println("MESSAGE: " + msg);
+                if (entry == null) {
+                    continue;
+                }
+
+                if (msg.messageType() == SUBSCRIPTION_STARTED) {
+                    entry.setState(SubscriptionRegistry.State.ACTIVE);
+                    d_scheduler.onAck(entry, false);
+                }
+                else if (msg.messageType() == SUBSCRIPTION_FAILURE) {
+                    entry.setState(SubscriptionRegistry.State.TERMINATED);
+                    d_scheduler.onAck(entry, true);
+                }
+                else if (msg.messageType() == SUBSCRIPTION_TERMINATED) {
+                    entry.onTerminated();
+                    if (entry.isPendingUnsubscribe()) {
+                        // If this message was due to a previous unsubscribe
+                        entry.setPendingUnsubscribe(false);
+                        entry.onResubscribe();
+                        if (d_controller != null) {
+                            // resubscribed gradually once the pressure is gone
+                            entry.setState(SubscriptionRegistry.State.DEFERRED);
+                            d_controller.defer(entry);
+                        }
+                        else if (d_isSlow) {
+                            d_output.printf(
+                                    "Deferring subscription for topic = %s because session is slow.",
+                                    topic);
+                            entry.setState(SubscriptionRegistry.State.DEFERRED);
+                            d_pendingSubscriptions.add(entry.subscription());
                         }
-                        subscriptionList.add(subscription);
+                        else {
+                            if (subscriptionList == null) {
+                                subscriptionList = new SubscriptionList();
+                            }
+                            entry.setState(SubscriptionRegistry.State.PENDING);
+                            subscriptionList.add(entry.subscription());
+                        }
+                    }
+                    else if (entry.state() != SubscriptionRegistry.State.SHED) {
+                        entry.setState(SubscriptionRegistry.State.TERMINATED);
                     }
                 }
             }
@@ -420,56 +853,152 @@ public class test_with_uuid_a
         private boolean processSubscriptionDataEvent(Event event, Session session)
                 throws Exception
         {
-            System.out.println("Processing SUBSCRIPTION_DATA");
+            if (d_journal != null) {
+                d_journal.append(System.nanoTime(), event, d_topics);
+            }
+            PartitionedWorkers workers = d_workers;
+            if (workers != null) {
+                // decoded and printed on the worker of each topic, see DataWorker
+                for(Message msg: event){
+                    CorrelationID cid = msg.correlationID();
+                    workers.dispatch(cid != null && cid.isValue() ? cid.value() : 0, msg);
+                }
+                return true;
+            }
+
+            if (d_conflator == null && Config.decodeMode == Config.DecodeMode.PRINT) {
+                d_output.println("Processing SUBSCRIPTION_DATA");
+            }
             for(Message msg: event){
-                String topic = d_topics.get((int)msg.correlationID().value() - 1);
-                System.out.printf(
-                        "%s: %s%n",
-                        d_dateFormat.format(Calendar.getInstance().getTime()),
-                        topic);
-                int numFields = msg.asElement().numElements();
-                for (int i = 0; i < numFields; ++i) {
-                    Element field = msg.asElement().getElement(i);
-                    if (field.isNull()) {
-                        System.out.println("\t\t" + field.name() + " is NULL");
-                        continue;
-                    }
+                processMessage(msg, d_output, d_dateFormat);
+            }
+            return true;
+        }
 
-                    processElement(field);
+        // One SUBSCRIPTION_DATA message, on the dispatcher thread or on the
+        // worker of its topic; output and dateFormat belong to that thread.
+        void processMessage(Message msg, AsyncOutput output, SimpleDateFormat dateFormat) throws Exception
+        {
+            SubscriptionRegistry.Entry entry = d_registry.get(msg.correlationID());
+            long received = msg.timeReceivedMillis();
+            if (received > 0) d_queueLag.record((System.currentTimeMillis() - received) * 1000000L);
+            TopicStats topicStats = d_topicStats;
+            if (entry != null && topicStats != null) topicStats.onTick(entry.row(), System.nanoTime());
+            Conflator conflator = d_conflator;
+            if (conflator != null || Config.decodeMode == Config.DecodeMode.TYPED) {
+                // no formatting or printing here, see printSnapshot / printConflated
+                if (entry == null) return;
+                entry.onMessage(System.currentTimeMillis());
+                if (d_decoder.decode(msg, entry.row()) && conflator != null) {
+                    conflator.mark(entry.row());
                 }
-                System.out.println();
+                return;
             }
-            return true;
+
+            String topic = entry != null ? entry.topic() : String.valueOf(msg.correlationID());
+            if (entry != null) entry.onMessage(System.currentTimeMillis());
+            output.printf(
+                    "%s: %s",
+                    dateFormat.format(Calendar.getInstance().getTime()),
+                    topic);
+            Element root = msg.asElement();
+            int numFields = root.numElements();
+            for (int i = 0; i < numFields; ++i) {
+                Element field = root.getElement(i);
+                if (field.isNull()) {
+                    output.println("\t\t" + field.name() + " is NULL");
+                    continue;
+                }
+
+                processElement(field, output);
+            }
+            output.println("");
+        }
+
+        void printSnapshot(PrintStream out)
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append(d_dateFormat.format(Calendar.getInstance().getTime())).append('\n');
+            for (int row = 0; row < d_registry.size() && row < d_decoder.capacity(); ++row) {
+                sb.append(d_registry.byRow(row)).append('\n');
+                d_decoder.format(row, sb);
+            }
+            out.print(sb);
         }
 
-        private void processElement(Element element) throws Exception
+        // controller thread, see BackpressureActions; millis <= 0 stops conflating
+        void setConflation(long millis) throws InterruptedException
+        {
+            Conflator conflator = d_conflator;
+            if (millis <= 0) {
+                if (conflator != null) {
+                    d_conflator = null;
+                    conflator.stop();
+                }
+            }
+            else if (conflator != null) {
+                conflator.setIntervalMillis(millis);
+            }
+            else {
+                startConflation(new Conflator(d_registry.size(), millis));
+            }
+        }
+
+        void startConflation(final Conflator conflator)
+        {
+            final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS");
+            d_conflator = conflator.start(new Conflator.Listener() {
+                public void flush(int[] rows, int count) {
+                    printConflated(conflator, rows, count, dateFormat);
+                }
+            });
+        }
+
+        // conflator thread: one record per flush, like printSnapshot the values
+        // are read while the dispatcher thread may be decoding the next tick
+        private void printConflated(Conflator conflator, int[] rows, int count, SimpleDateFormat dateFormat)
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append(dateFormat.format(Calendar.getInstance().getTime()))
+              .append(": ").append(count).append(" topics changed");
+            for (int i = 0; i < count; ++i) {
+                int row = rows[i];
+                sb.append('\n').append(d_registry.byRow(row).topic())
+                  .append(" [ticks=").append(conflator.ticks(row))
+                  .append(" absorbed=").append(conflator.absorbed(row)).append("]\n");
+                d_decoder.format(row, sb);
+            }
+            d_conflatedOutput.println(sb.toString());
+        }
+
+        private void processElement(Element element, AsyncOutput output) throws Exception
         {
             if (element.isArray())
             {
-                System.out.println("\t\t" + element.name());
+                output.println("\t\t" + element.name());
                 // process array
                 int numOfValues = element.numValues();
                 for (int i = 0; i < numOfValues; ++i)
                 {
                     // process array data
-                    processElement(element.getValueAsElement(i));
+                    processElement(element.getValueAsElement(i), output);
                 }
-                System.out.println();
+                output.println("");
             }
             else if (element.numElements() > 0)
             {
-                System.out.println("\t\t" + element.name());
+                output.println("\t\t" + element.name());
                 int numOfElements = element.numElements();
                 for (int i = 0; i < numOfElements; ++i)
                 {
                     // process child elements
-                    processElement(element.getElement(i));
+                    processElement(element.getElement(i), output);
                 }
             }
             else
             {
                 // Assume all values are scalar.
-                System.out.printf("%40s : %s\n", element.name(), element.getValueAsString());
+                output.printf("%40s : %s", element.name(), element.getValueAsString());
             }
         }
 
@@ -478,31 +1007,46 @@ public class test_with_uuid_a
         private boolean processAdminEvent(Event event, Session session)
                 throws Exception
         {
-            System.out.println("Processing ADMIN: ");
+            d_output.println("Processing ADMIN: ");
             ArrayList<CorrelationID> cidsToCancel = null;
             boolean previouslySlow = d_isSlow;
             for(Message msg: event){
                 // An admin event can have more than one messages.
                 if (msg.messageType() == SLOW_CONSUMER_WARNING) {
-                    System.out.printf("MESSAGE: %s%n", msg);
+                    d_output.printf("MESSAGE: %s", msg);
+                    d_output.printf("Output: %s", d_output);
                     d_isSlow = true;
+                    d_slowConsumerWarnings.incrementAndGet();
+                    if (d_controller != null) {
+                        d_controller.onSlowConsumerWarning();
+                        d_output.printf("Backpressure: %s", d_controller);
+                    }
                 }
                 else if (msg.messageType() == SLOW_CONSUMER_WARNING_CLEARED) {
-                    System.out.printf("MESSAGE: %s%n", msg);
+                    d_output.printf("MESSAGE: %s", msg);
                     d_isSlow = false;
+                    if (d_controller != null) d_controller.onSlowConsumerCleared();
                 }
                 else if (msg.messageType() == DATA_LOSS) {
                     CorrelationID cid = msg.correlationID();
-                    String topic = (String) cid.object();
-                    System.out.printf(
-                            "%s: %s%n",
+                    SubscriptionRegistry.Entry entry = d_registry.get(cid);
+                    String topic = entry != null ? entry.topic() : String.valueOf(cid);
+                    d_output.printf(
+                            "%s: %s",
                             d_dateFormat.format(Calendar.getInstance().getTime()),
                             topic);
-                    System.out.printf("MESSAGE: %s%n", msg);
-                    if (msg.hasElement(SOURCE)) {
+                    d_output.printf("MESSAGE: %s", msg);
+                    d_dataLosses.incrementAndGet();
+                    if (msg.hasElement(NUM_MESSAGES_DROPPED)) {
+                        d_messagesDropped.addAndGet(msg.getElementAsInt64(NUM_MESSAGES_DROPPED));
+                    }
+                    if (entry != null) {
+                        entry.onDataLoss();
+                    }
+                    if (entry != null && msg.hasElement(SOURCE)) {
                         String sourceStr = msg.getElementAsString(SOURCE);
                         if (sourceStr.compareTo("InProc") == 0
-                                && !d_pendingUnsubscribe.contains(cid)) {
+                                && !entry.isPendingUnsubscribe()) {
                             // DataLoss was generated "InProc". This can only happen if
                             // applications are processing events slowly and hence are not
                             // able to keep-up with the incoming events.
@@ -510,7 +1054,8 @@ public class test_with_uuid_a
                                 cidsToCancel = new ArrayList<CorrelationID>();
                             }
                             cidsToCancel.add(cid);
-                            d_pendingUnsubscribe.add(cid);
+                            entry.setPendingUnsubscribe(true);
+                            if (d_controller != null) d_controller.onDataLoss();
                         }
                     }
                 }
@@ -523,9 +1068,12 @@ public class test_with_uuid_a
                 else if ((previouslySlow && !d_isSlow) && !d_pendingSubscriptions.isEmpty()){
                     // Session was slow but is no longer slow. subscribe to any topics
                     // for which we have previously received SUBSCRIPTION_TERMINATED
-                    System.out.printf(
-                            "Subscribing to topics - %s%n",
+                    d_output.printf(
+                            "Subscribing to topics - %s",
                             getTopicsString(d_pendingSubscriptions));
+                    for (Subscription subscription : d_pendingSubscriptions) {
+                        d_registry.get(subscription.correlationID()).setState(SubscriptionRegistry.State.PENDING);
+                    }
                     session.subscribe(d_pendingSubscriptions, d_identity);
                     d_pendingSubscriptions.clear();
                 }
@@ -536,31 +1084,20 @@ public class test_with_uuid_a
         private boolean processMiscEvents(Event event, Session session)
                 throws Exception
         {
-            System.out.printf("Processing %s%n", event.eventType());
+            d_output.printf("Processing %s", event.eventType());
             for(Message msg: event){
-                System.out.printf(
-                        "%s: %s%n",
+                d_output.printf(
+                        "%s: %s",
                         d_dateFormat.format(Calendar.getInstance().getTime()),
                         msg.messageType());
-                System.out.printf(
-                        "%s: %s%n",
+                d_output.printf(
+                        "%s: %s",
                         d_dateFormat.format(Calendar.getInstance().getTime()),
                         msg.toString());
             }
             return true;
         }
 
-        private Subscription getSubscription(CorrelationID cid)
-        {
-            for (Subscription subscription : d_subscriptions) {
-                if (subscription.correlationID().equals(cid)) {
-                    return subscription;
-                }
-            }
-            throw new IllegalArgumentException(
-                    "No subscription found corresponding to cid = " + cid.toString());
-        }
-
         private String getTopicsString(SubscriptionList list)
         {
             StringBuilder strBuilder = new StringBuilder();
@@ -569,7 +1106,7 @@ public class test_with_uuid_a
                 if (count != 0) {
                     strBuilder.append(", ");
                 }
-                strBuilder.append((String) subscription.correlationID().object());
+                strBuilder.append(d_registry.get(subscription.correlationID()).topic());
             }
             return strBuilder.toString();
         }
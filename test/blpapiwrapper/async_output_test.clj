@@ -0,0 +1,75 @@
+(ns blpapiwrapper.async-output-test
+  (:require [clojure.test :refer :all])
+  (:import
+    (java.io File)
+    (java.nio.charset StandardCharsets)
+    (java.nio.file Files)
+    (java.util.concurrent CountDownLatch)
+    AsyncOutput OutputSink OutputSink$RollingFile))
+
+(defn- collecting-sink
+  "OutputSink that appends records to an atom; write blocks until gate is counted down"
+  [records ^CountDownLatch gate]
+  (reify OutputSink
+    (write [_ _ record] (.await gate) (swap! records conj record))
+    (flush [_])
+    (close [_])))
+
+(deftest test-records-in-order
+  (testing "everything offered is written, in order, and counted"
+    (let [records (atom [])
+          output (.start (AsyncOutput. (collecting-sink records (CountDownLatch. 0)) 1024 64))]
+      (dotimes [i 10000]
+        (while (not (.offer output (str i))) (Thread/yield)))
+      (.close output)
+      (is (= (map str (range 10000)) @records))
+      (is (= 10000 (.flushed output)))
+      (is (= 10000 (.enqueued output)))
+      (is (zero? (.pending output))))))
+
+(deftest test-drops-when-full
+  (testing "a stalled sink makes the ring fill up and further records are dropped, not blocked on"
+    (let [records (atom [])
+          gate (CountDownLatch. 1)
+          output (.start (AsyncOutput. (collecting-sink records gate) 8 4))]
+      (is (= 8 (.capacity output)))
+      (let [accepted (count (filter true? (for [i (range 100)] (.offer output (str i)))))]
+        (is (pos? (.dropped output)))
+        (is (= 100 (+ (.enqueued output) (.dropped output))))
+        (is (= accepted (.enqueued output)))
+        (.countDown gate)
+        (.close output)
+        (is (= accepted (count @records) (.flushed output)))))))
+
+(deftest test-rolling-file-counts-bytes
+  (testing "a RollingFile rolls over on the UTF-8 size of what it wrote, not on its number of chars"
+    (let [dir (.toFile (Files/createTempDirectory "rolling" (make-array java.nio.file.attribute.FileAttribute 0)))
+          path (str dir "/out.txt")
+          sink (OutputSink$RollingFile. path 8 2)]
+      (.write sink 0 "\u00e9\u00e9\u00e9\u00e9")
+      (.write sink 0 "x")
+      (.close sink)
+      (is (= "\u00e9\u00e9\u00e9\u00e9\n" (String. (Files/readAllBytes (.toPath (File. (str path ".1")))) StandardCharsets/UTF_8)))
+      (is (= "x\n" (slurp path))))))
+
+(deftest test-sink-errors-are-counted
+  (testing "records the sink fails to write or flush are counted as lost, and the rest of the batch is still written"
+    (let [records (atom [])
+          flushes (atom 0)
+          output (AsyncOutput. (reify OutputSink
+                                 (write [_ _ record]
+                                   (when (= "bad" record) (throw (java.io.IOException. "write failed")))
+                                   (swap! records conj record))
+                                 (flush [_]
+                                   (when (= 2 (swap! flushes inc)) (throw (java.io.IOException. "flush failed"))))
+                                 (close [_]))
+                               16 4)]
+      (doseq [r ["a" "bad" "b" "c" "d" "e"]] (.offer output r))
+      (.start output)
+      (.close output)
+      (is (= ["a" "b" "c" "d" "e"] @records))
+      (is (= 2 (.batches output)))
+      (is (= 3 (.flushed output)))
+      (is (= 3 (.lost output)))
+      (is (= 2 (.errors output)))
+      (is (= 6 (+ (.flushed output) (.lost output)))))))
@@ -0,0 +1,88 @@
+(ns blpapiwrapper.authorizer-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core :as core])
+  (:import
+    (java.util.concurrent TimeoutException)
+    (com.bloomberglp.blpapi Message)
+    Authorizer EntitlementFanout$Cohort SessionEmulator SessionEmulator$Options))
+
+(defn- authorized-session
+  "Started SessionEmulator with authorizer as its EventHandler"
+  ^SessionEmulator [^SessionEmulator$Options options authorizer]
+  (let [session (SessionEmulator. options authorizer)]
+    (.start session)
+    (core/open-authorizer! authorizer session)
+    session))
+
+(def ^:private users (for [i (range 200)] [(+ 1000 i) (str "10.0.0." (mod i 250))]))
+
+(deftest test-pipelined-authorizations
+  (testing "every request is on the wire before the first answer, failures are per user, results are cached"
+    (let [authorizer (core/authorizer)
+          session (authorized-session (-> (SessionEmulator$Options.) (.latencyMillis 50) (.serverThreads 4)
+                                          (.deniedUuids ["1007"]))
+                                      authorizer)]
+      (try
+        (let [start (System/nanoTime)
+              results (core/authorize-all authorizer users)
+              elapsed-ms (/ (- (System/nanoTime) start) 1e6)]
+          (is (< elapsed-ms 2000) "one at a time would take 200 x 50ms")
+          (is (= 200 (count results)))
+          (is (= 199 (count (filter :success (vals results)))))
+          (is (= {:success false :uuid "1007" :local-ip "10.0.0.7"} (dissoc (results 1007) :error)))
+          (is (not= (:correlation-id (results 1000)) (:correlation-id (results 1001))))
+          (is (identical? (:identity (results 1000)) (:identity @(core/authorize-async authorizer 1000 "10.0.0.0"))))
+          (is (= {:authorized 199 :pending 0 :sent 200 :failed 1 :revoked 0}
+                 (dissoc (core/authorizer-stats authorizer) :latency-ms)))
+          (is (<= 50.0 (get-in (core/authorizer-stats authorizer) [:latency-ms :p50]))))
+        (finally
+          (.stop session)
+          (.close ^Authorizer authorizer))))))
+
+(deftest test-revocation-and-timeout
+  (testing "AuthorizationRevoked reaches the fan-out and drops the cached identity"
+    (let [deliveries (atom [])
+          fanout (core/entitlement-fanout (fn [^Message _ ^EntitlementFanout$Cohort cohort _]
+                                            (swap! deliveries conj (set (.users cohort)))))
+          authorizer (core/authorizer :next-handler (core/make-session-event-handler fanout))
+          session (authorized-session (.latencyMillis (SessionEmulator$Options.) 1) authorizer)]
+      (try
+        (doseq [[uuid result] (core/authorize-all authorizer (take 3 users))]
+          (core/add-entitled-user! fanout uuid result))
+        (.injectAuthorizationRevoked session (:correlation-id @(core/authorize-async authorizer 1001 "10.0.0.1")))
+        (loop [n 0] (when (and (= 3 (:users (core/entitlement-fanout-stats fanout))) (< n 200)) (Thread/sleep 5) (recur (inc n))))
+        (is (= 2 (:users (core/entitlement-fanout-stats fanout))))
+        (is (= 1 (:revoked (core/authorizer-stats authorizer))))
+        (is (:success @(core/authorize-async authorizer 1001 "10.0.0.1")))
+        (is (= 4 (:sent (core/authorizer-stats authorizer))) "authorized again")
+        (finally
+          (.stop session)
+          (.close ^Authorizer authorizer)))))
+  (testing "an answer that arrives before sendAuthorizationRequest returns is not undone by the timeout"
+    (let [authorizer (core/authorizer :timeout-ms 20)
+          session (proxy [SessionEmulator] [(.latencyMillis (SessionEmulator$Options.) 0) authorizer]
+                    (sendAuthorizationRequest [request identity cid]
+                      (let [sent (proxy-super sendAuthorizationRequest request identity cid)]
+                        (Thread/sleep 50)
+                        sent)))]
+      (.start ^SessionEmulator session)
+      (core/open-authorizer! authorizer session)
+      (try
+        (is (:success ((core/authorize-all authorizer [[1 "10.0.0.1"]]) 1)))
+        (Thread/sleep 100)
+        (is (= {:authorized 1 :pending 0 :sent 1 :failed 0}
+               (select-keys (core/authorizer-stats authorizer) [:authorized :pending :sent :failed])))
+        (finally
+          (.stop ^SessionEmulator session)
+          (.close ^Authorizer authorizer)))))
+  (testing "unanswered authorizations time out and are not cached"
+    (let [authorizer (core/authorizer :timeout-ms 20)
+          session (authorized-session (.latencyMillis (SessionEmulator$Options.) 500) authorizer)]
+      (try
+        (let [result ((core/authorize-all authorizer [[1 "10.0.0.1"]]) 1)]
+          (is (false? (:success result)))
+          (is (instance? TimeoutException (:error result))))
+        (is (= {:authorized 0 :pending 0} (select-keys (core/authorizer-stats authorizer) [:authorized :pending])))
+        (finally
+          (.stop session)
+          (.close ^Authorizer authorizer))))))
@@ -0,0 +1,131 @@
+(ns blpapiwrapper.backpressure-controller-test
+  (:require [clojure.test :refer :all])
+  (:import
+    BackpressureController BackpressureController$Actions BackpressureController$Level
+    SubscriptionRegistry SubscriptionRegistry$State))
+
+(def ms 1000000)
+
+(defn- fake-actions
+  "Actions over registry recording every call in log; queue-fill is an atom"
+  [^SubscriptionRegistry registry log queue-fill]
+  (reify BackpressureController$Actions
+    (queueFill [_] @queue-fill)
+    (setConflateMillis [_ millis] (swap! log conj [:conflate millis]))
+    (shed [_ n]
+      (let [shed (->> (reverse (.entries registry))
+                      (filter #(= SubscriptionRegistry$State/ACTIVE (.state ^SubscriptionRegistry$Entry %)))
+                      (take n)
+                      vec)]
+        (doseq [^SubscriptionRegistry$Entry e shed] (.setState e SubscriptionRegistry$State/SHED))
+        (swap! log conj [:shed (mapv #(.topic ^SubscriptionRegistry$Entry %) shed)])
+        shed))
+    (restore [_ entries]
+      (doseq [^SubscriptionRegistry$Entry e entries] (.setState e SubscriptionRegistry$State/ACTIVE))
+      (swap! log conj [:restore (mapv #(.topic ^SubscriptionRegistry$Entry %) entries)]))
+    (setIntervalSeconds [_ seconds] (swap! log conj [:interval seconds]))))
+
+(defn- registry-of [n]
+  (let [registry (SubscriptionRegistry. n)]
+    (doseq [i (range n)]
+      (.setState (.add registry (inc i) (str "T" i) ["BID"] []) SubscriptionRegistry$State/ACTIVE))
+    registry))
+
+(defn- controller
+  "highWater 0.5, no handler budget, conflate 100ms, shed 2 up to max-shed (4 by default), interval 5s, restore 1,
+  escalate 10ms, backoff 20ms up to 80ms"
+  ([actions] (controller actions 4))
+  ([actions max-shed] (BackpressureController. actions 0.5 0 100 2 (int max-shed) 5.0 1 10 20 80)))
+
+(deftest test-degrade-and-restore
+  (testing "pressure escalates one level per escalate period; calm walks back one step per backoff"
+    (let [log (atom [])
+          fill (atom 0.0)
+          ^BackpressureController c (controller (fake-actions (registry-of 4) log fill))]
+      (.tick c 0)
+      (is (= BackpressureController$Level/NORMAL (.level c)))
+      (.onSlowConsumerWarning c)
+      (doseq [t [1 5 11 21 31]] (.tick c (* t ms)))
+      (is (= BackpressureController$Level/WIDEN (.level c)))
+      (is (= [[:conflate 100] [:shed ["T3" "T2"]] [:interval 5.0] [:shed ["T1" "T0"]]] @log))
+      (reset! log [])
+      (.onSlowConsumerCleared c)
+      (doseq [t [40 52 72 92 112 132 152 172]] (.tick c (* t ms)))
+      (is (= [[:interval 0.0] [:restore ["T3"]] [:restore ["T2"]] [:restore ["T1"]] [:restore ["T0"]] [:conflate 0]] @log))
+      (is (= BackpressureController$Level/NORMAL (.level c)))
+      (is (= 4 (.shed c)))
+      (is (= 4 (.restored c)))
+      (is (= 1 (.degradations c)))
+      (is (= 171 (.degradedMillis c)))
+      (is (= 1 (.millisAt c BackpressureController$Level/NORMAL))))))
+
+(deftest test-backoff-doubles-when-pressure-returns
+  (testing "pressure right after a restore step doubles the backoff, a long calm resets it"
+    (let [fill (atom 0.9)
+          ^BackpressureController c (controller (fake-actions (registry-of 4) (atom []) fill))]
+      (.tick c 0)
+      (reset! fill 0.0)
+      (.tick c (* 30 ms))
+      (is (= BackpressureController$Level/NORMAL (.level c)))
+      (reset! fill 0.9)
+      (.tick c (* 40 ms))
+      (is (= 40 (.backoffMillis c)))
+      (reset! fill 0.0)
+      (.tick c (* 60 ms))
+      (is (= BackpressureController$Level/CONFLATE (.level c)) "still backing off")
+      (.tick c (* 80 ms))
+      (is (= BackpressureController$Level/NORMAL (.level c)))
+      (.tick c (* 200 ms))
+      (is (= 20 (.backoffMillis c))))))
+
+(deftest test-deferred-topics-are-restored-gradually
+  (testing "topics cancelled for DataLoss come back restore-batch at a time once the pressure is gone"
+    (let [log (atom [])
+          registry (registry-of 3)
+          ^BackpressureController c (controller (fake-actions registry log (atom 0.0)))]
+      (.onDataLoss c)
+      (doseq [e (.entries registry)]
+        (.setState ^SubscriptionRegistry$Entry e SubscriptionRegistry$State/DEFERRED)
+        (.defer c e))
+      (.tick c 0)
+      (is (= [[:conflate 100]] @log))
+      (doseq [t [20 40 60 80]] (.tick c (* t ms)))
+      (is (= [[:conflate 100] [:restore ["T0"]] [:restore ["T1"]] [:restore ["T2"]] [:conflate 0]] @log))
+      (is (zero? (.deferred c))))))
+
+(deftest test-handler-budget
+  (testing "handler time above budget counts as pressure"
+    (let [^BackpressureController c (BackpressureController. (fake-actions (registry-of 1) (atom []) (atom 0.0))
+                                                              0.5 100 100 1 1 0.0 1 10 20 80)]
+      (dotimes [_ 50] (.onEvent c 1000000))
+      (is (< 900 (.handlerEwmaMicros c) 1001))
+      (.tick c 0)
+      (is (= BackpressureController$Level/CONFLATE (.level c))))))
+
+(deftest test-shed-cap
+  (testing "under continued pressure WIDEN sheds no more than max-shed topics in all"
+    (let [log (atom [])
+          ^BackpressureController c (controller (fake-actions (registry-of 6) log (atom 0.9)) 3)]
+      (doseq [t [0 11 22 33 44 55]] (.tick c (* t ms)))
+      (is (= BackpressureController$Level/WIDEN (.level c)))
+      (is (= [[:conflate 100] [:shed ["T5" "T4"]] [:interval 5.0] [:shed ["T3"]]] @log))
+      (is (= 3 (.shed c))))))
+
+(deftest test-failed-action-keeps-level
+  (testing "a level is only taken once its action succeeded, and the action is tried again"
+    (let [fail? (atom true)
+          ^BackpressureController c
+          (controller (reify BackpressureController$Actions
+                        (queueFill [_] 0.9)
+                        (setConflateMillis [_ _] (when @fail? (throw (Exception. "conflation failed"))))
+                        (shed [_ _] [])
+                        (restore [_ _])
+                        (setIntervalSeconds [_ _])))]
+      (.tick c 0)
+      (is (= BackpressureController$Level/NORMAL (.level c)))
+      (is (= 1 (.errors c)))
+      (is (zero? (.degradations c)))
+      (reset! fail? false)
+      (.tick c (* 1 ms))
+      (is (= BackpressureController$Level/CONFLATE (.level c)))
+      (is (= 1 (.degradations c))))))
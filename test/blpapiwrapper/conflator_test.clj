@@ -0,0 +1,85 @@
+(ns blpapiwrapper.conflator-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core :refer [snapshot-store conflator conflation-stats]])
+  (:import
+    (java.util.concurrent LinkedBlockingQueue TimeUnit)
+    Conflator Conflator$Listener))
+
+(defn- recording-listener
+  "Listener putting every flushed batch (a vector of rows) on queue"
+  [^LinkedBlockingQueue queue]
+  (reify Conflator$Listener
+    (flush [_ rows n]
+      (.put queue (vec (take n rows))))))
+
+(deftest test-flush-only-changed-topics
+  (testing "ticks between two flushes are absorbed and only the topics that ticked are flushed, in one batch"
+    (let [store (snapshot-store ["A" "B" "C"] ["BID"])
+          ^Conflator c (conflator store 3600000)
+          batches (LinkedBlockingQueue.)]
+      (.start c (recording-listener batches))
+      (dotimes [_ 5] (.mark c 0))
+      (.mark c 2)
+      (.stop c)
+      (is (= [0 2] (.poll batches 1 TimeUnit/SECONDS)))
+      (is (nil? (.poll batches)))
+      (is (= {:ticks 6 :absorbed 4 :flushes 1 :flushed 2
+              :topics {"A" {:ticks 5 :absorbed 4} "C" {:ticks 1 :absorbed 0}}}
+             (conflation-stats c store))))))
+
+(deftest test-timer-flushes
+  (testing "the timer keeps flushing what ticked since the previous flush"
+    (let [^Conflator c (Conflator. 2 5)
+          batches (LinkedBlockingQueue.)]
+      (.start c (recording-listener batches))
+      (try
+        (.mark c 1)
+        (is (= [1] (.poll batches 1 TimeUnit/SECONDS)))
+        (.mark c 0)
+        (.mark c 1)
+        (is (= [0 1] (.poll batches 1 TimeUnit/SECONDS)))
+        (is (zero? (.totalAbsorbed c)))
+        (finally (.stop c))))))
+
+(deftest test-shared-conflator
+  (testing "the timer of a shared conflator runs until the last user stops it"
+    (let [^Conflator c (Conflator. 1 3600000)
+          batches (LinkedBlockingQueue.)]
+      (.start c (recording-listener batches))
+      (.start c (recording-listener batches))
+      (.mark c 0)
+      (.stop c)
+      (is (nil? (.poll batches 50 TimeUnit/MILLISECONDS)))
+      (.stop c)
+      (is (= [0] (.poll batches 1 TimeUnit/SECONDS))))))
+
+(deftest test-restart
+  (testing "a conflator stopped by its last user flushes again once started again"
+    (let [^Conflator c (Conflator. 1 5)
+          batches (LinkedBlockingQueue.)]
+      (.start c (recording-listener batches))
+      (.stop c)
+      (.start c (recording-listener batches))
+      (try
+        (.mark c 0)
+        (is (= [0] (.poll batches 1 TimeUnit/SECONDS)))
+        (.mark c 0)
+        (is (= [0] (.poll batches 1 TimeUnit/SECONDS)) "the timer keeps running")
+        (finally (.stop c))))))
+
+(deftest test-listener-failure
+  (testing "a failing listener is counted and does not stop the timer"
+    (let [^Conflator c (Conflator. 1 5)
+          batches (LinkedBlockingQueue.)
+          calls (atom 0)]
+      (.start c (reify Conflator$Listener
+                  (flush [_ rows n]
+                    (when (= 1 (swap! calls inc)) (throw (Exception. "boom")))
+                    (.put batches (vec (take n rows))))))
+      (try
+        (.mark c 0)
+        (Thread/sleep 50)
+        (.mark c 0)
+        (is (= [0] (.poll batches 1 TimeUnit/SECONDS)))
+        (is (= 1 (.errors c)))
+        (finally (.stop c))))))
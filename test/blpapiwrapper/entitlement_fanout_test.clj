@@ -0,0 +1,128 @@
+(ns blpapiwrapper.entitlement-fanout-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core :as core]
+            [blpapiwrapper.refdata-fixture :refer [response-event]]
+            [blpapiwrapper.mktdata-fixture :refer [tick-event]])
+  (:import
+    (java.io ByteArrayInputStream)
+    (java.util.concurrent.atomic AtomicLong)
+    (com.bloomberglp.blpapi CorrelationID Event Event$EventType Identity Message Service)
+    (com.bloomberglp.blpapi.test MessageProperties TestUtil)
+    EntitlementFanout EntitlementFanout$Cohort))
+
+(def ^Service auth-service
+  (TestUtil/deserializeService
+    (ByteArrayInputStream.
+      (.getBytes
+        "<ServiceDefinition name=\"blp.apiauth\" version=\"1.0.0.0\">
+           <service name=\"//blp/apiauth\" version=\"1.0.0.0\">
+             <operation name=\"AuthorizationRequest\" serviceId=\"1\">
+               <request>AuthorizationRequest</request>
+               <response>AuthorizationStatus</response>
+               <responseSelection>AuthorizationRevoked</responseSelection>
+               <responseSelection>EntitlementChanged</responseSelection>
+             </operation>
+             <defaultServiceId>1</defaultServiceId>
+           </service>
+           <schema>
+             <sequenceType name=\"AuthorizationRequest\">
+               <element name=\"uuid\" type=\"Int32\" minOccurs=\"0\" maxOccurs=\"1\"/>
+             </sequenceType>
+             <sequenceType name=\"Reason\">
+               <element name=\"message\" type=\"String\" minOccurs=\"0\" maxOccurs=\"1\"/>
+             </sequenceType>
+             <choiceType name=\"AuthorizationStatus\">
+               <element name=\"AuthorizationRevoked\" type=\"Reason\"/>
+               <element name=\"EntitlementChanged\" type=\"Reason\"/>
+             </choiceType>
+           </schema>
+         </ServiceDefinition>" "UTF-8"))))
+
+(defn- authorization-event
+  "AUTHORIZATION_STATUS event of one AuthorizationRevoked or EntitlementChanged message for the authorization of cid"
+  ^Event [message-type cid]
+  (let [event (TestUtil/createEvent Event$EventType/AUTHORIZATION_STATUS)]
+    (.formatMessageXml (TestUtil/appendMessage event
+                                               (.responseDefinition (.getOperation auth-service "AuthorizationRequest")
+                                                                    (if (= message-type "AuthorizationRevoked") 0 1))
+                                               (.setCorrelationId (MessageProperties.) cid))
+                       (str "<" message-type "><message>test</message></" message-type ">"))
+    event))
+
+(defn- identity-of
+  "Identity entitled to the EIDs of entitled, counting its checks in checks"
+  [entitled ^AtomicLong checks]
+  (reify Identity
+    (^boolean hasEntitlements [_ ^ints eids ^Service _]
+      (.incrementAndGet checks)
+      (if (every? @entitled eids) true false))))
+
+(defn- spot-event
+  "RESPONSE of one ReferenceDataResponse for [security eids]"
+  ^Event [securities]
+  (response-event Event$EventType/RESPONSE
+                  [[1 "ReferenceDataRequest"
+                    (str "<ReferenceDataResponse>"
+                         (apply str (for [[security eids] securities]
+                                      (str "<securityData><security>" security "</security>"
+                                           (apply str (for [e eids] (str "<eidData>" e "</eidData>")))
+                                           "<fieldData><PX_LAST>1.0</PX_LAST></fieldData></securityData>")))
+                         "</ReferenceDataResponse>")]]))
+
+(defn- fanout-with-users
+  "Fan-out recording [security-names users] per delivery, and users u0..u(n-1) of the profiles of profile-of"
+  [n profile-of deliveries checks]
+  (let [fanout (core/entitlement-fanout
+                 (fn [^Message message ^EntitlementFanout$Cohort cohort securities]
+                   (swap! deliveries conj [(when securities
+                                             (let [data (.getElement message "securityData")]
+                                               (mapv #(.getElementAsString (.getValueAsElement data (int %)) "security") securities)))
+                                           (set (.users cohort))])))
+        entitlements (into {} (for [i (range n)] [(str "u" i) (atom (profile-of i))]))]
+    (doseq [i (range n) :let [user (str "u" i)]]
+      (core/add-entitled-user! fanout user {:identity (identity-of (entitlements user) checks)
+                                            :correlation-id (CorrelationID. (str "auth-" user))}))
+    [fanout entitlements]))
+
+(deftest test-cohorts
+  (testing "every message is delivered once per cohort, entitlements are checked once per EID set and user"
+    (let [deliveries (atom [])
+          checks (AtomicLong.)
+          profiles [#{1 2} #{1} #{}]
+          [fanout] (fanout-with-users 300 #(profiles (mod % 3)) deliveries checks)
+          users-of (fn [& profile-indices] (set (for [i (range 300) :when (some #{(mod i 3)} profile-indices)] (str "u" i))))]
+      (dotimes [_ 10]
+        (core/distribute-event fanout (spot-event [["A" [1]] ["B" [2 1]] ["C" [1 2 2]] ["D" []] ["E" [3]]])))
+      (is (= 300 (:users (core/entitlement-fanout-stats fanout))))
+      (is (= (* 3 300) (.get checks)) "EID sets #{1}, #{1 2} and #{3}, whatever their order, checked once per user")
+      (is (= 30 (count @deliveries)) "3 cohorts per message, E having no user")
+      (is (= #{[["A"] (users-of 0 1)] [["B" "C"] (users-of 0)] [["D"] (users-of 0 1 2)]} (set @deliveries)))
+      (reset! deliveries [])
+      (core/distribute-event fanout (tick-event [[7 {"BID" 1.0 "EID" 2}] [8 {"BID" 2.0}]]))
+      (is (= [[nil (users-of 0)] [nil (users-of 0 1 2)]] @deliveries) "ticks by their EID field")
+      (is (= {:users 300 :eid-sets 4 :cohorts 4 :messages 12 :deliveries 32 :checks 1200}
+             (core/entitlement-fanout-stats fanout))))))
+
+(deftest test-revocation-and-changes
+  (testing "AuthorizationRevoked drops the user, EntitlementChanged checks only that user again"
+    (let [deliveries (atom [])
+          checks (AtomicLong.)
+          [fanout entitlements] (fanout-with-users 4 (constantly #{1}) deliveries checks)
+          event (spot-event [["A" [1]]])]
+      (core/distribute-event fanout event)
+      (is (= [[["A"] #{"u0" "u1" "u2" "u3"}]] @deliveries))
+      (core/distribute-event fanout (authorization-event "AuthorizationRevoked" (CorrelationID. "auth-u1")))
+      (reset! (entitlements "u2") #{})
+      (.set checks 0)
+      (core/distribute-event fanout (authorization-event "EntitlementChanged" (CorrelationID. "auth-u2")))
+      (is (= 1 (.get checks)))
+      (core/distribute-event fanout (authorization-event "AuthorizationRevoked" (CorrelationID. "unknown")))
+      (reset! deliveries [])
+      (core/distribute-event fanout event)
+      (is (= [[["A"] #{"u0" "u3"}]] @deliveries))
+      (is (= 3 (:users (core/entitlement-fanout-stats fanout))))
+      (core/add-entitled-user! fanout "u1" {:identity (identity-of (atom #{1}) checks)})
+      (core/remove-entitled-user! fanout "u0")
+      (reset! deliveries [])
+      (core/distribute-event fanout event)
+      (is (= [[["A"] #{"u1" "u3"}]] @deliveries) "a new user in a freed slot is not mistaken for the old one"))))
@@ -0,0 +1,86 @@
+(ns blpapiwrapper.history-columns-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core :refer [bdh bdh-result->field bdh-result->date bdh-result->date-field bdh-result->records]]
+            [blpapiwrapper.refdata-fixture :refer [response-event history-xml stand-in-engine stand-in-value stop-stand-in]])
+  (:import
+    (java.time LocalDate ZoneId ZonedDateTime)
+    (java.util BitSet)
+    (com.bloomberglp.blpapi Event$EventType Message)
+    HistoryColumns))
+
+(def read-historical-columns #'cljblpapiwrapper.core/read-historical-columns)
+
+(deftest test-read-columns
+  (testing "dates become an epoch day index and absent cells are NaN and flagged missing"
+    (let [^Message msg (first (response-event Event$EventType/RESPONSE
+                                              [[1 "HistoricalDataRequest"
+                                                (history-xml "A US Equity" [{"date" "2024-01-02" "PX_LAST" 1.5 "VOLUME" 10}
+                                                                            {"date" "2024-01-03" "PX_LAST" 2.5}
+                                                                            {"date" "2024-01-05" "VOLUME" 30}])]]))
+          ^HistoryColumns columns (get (read-historical-columns msg ["PX_LAST" "VOLUME"]) "A US Equity")]
+      (is (= 3 (.size columns)))
+      (is (= (.toEpochDay (LocalDate/of 2024 1 2)) (.day columns 0)))
+      (is (= [1.5 2.5] (take 2 (vec (.column columns "PX_LAST")))))
+      (is (Double/isNaN (aget (.column columns "PX_LAST") 2)))
+      (is (.isMissing columns 2 0))
+      (is (.isMissing columns 1 1))
+      (is (not (.isMissing columns 0 1)))
+      (is (= 2 (.rowOf columns (LocalDate/of 2024 1 5))))
+      (is (= -1 (.rowOf columns (LocalDate/of 2024 1 4))))
+      (is (= -1 (.rowOf columns (LocalDate/of 2023 12 31))))
+      (is (= 30.0 (.get columns (LocalDate/of 2024 1 5) "VOLUME"))))))
+
+(deftest test-merge-and-sparse-lookup
+  (testing "merge takes the union of dates and fields; sparse dates are found by binary search"
+    (let [missing (fn [n] (BitSet. n))
+          a (HistoryColumns. (into-array String ["PX_LAST"]) (int-array [0 700]) (into-array [(double-array [1 2])]) (into-array [(missing 2)]))
+          b (HistoryColumns. (into-array String ["VOLUME"]) (int-array [350 700]) (into-array [(double-array [5 6])]) (into-array [(missing 2)]))
+          m (HistoryColumns/merge a b)]
+      (is (= [0 350 700] (vec (.days m))))
+      (is (= 1 (.rowOf m 350)))
+      (is (= -1 (.rowOf m 351)))
+      (is (= 2.0 (.get m 2 0)))
+      (is (= 6.0 (.get m 2 1)))
+      (is (.isMissing m 1 0))
+      (is (.isMissing m 0 1)))))
+
+(deftest test-columnar-bdh
+  (testing "columnar bdh holds the same data as the row form, and the helpers agree"
+    (let [engine (stand-in-engine :days 4)
+          securities ["A US Equity" "B US Equity" "C US Equity"]
+          fields ["PX_LAST" "VOLUME" "PX_BID"]
+          session-map {:engine engine}]
+      (try
+        (let [rows (bdh securities fields "20240101" "20240104" :session-map session-map)
+              columns (bdh securities fields "20240101" "20240104" :session-map session-map :columnar true
+                           :securities-per-request 2 :fields-per-request 2)
+              ^HistoryColumns a (columns "A US Equity")]
+          (is (= 4 (.size a)))
+          (is (= 3 (.numFields a)))
+          (is (= (+ 3 (stand-in-value "A US Equity" "PX_BID")) (.get a (LocalDate/of 2024 1 4) "PX_BID")))
+          (is (= (bdh-result->field rows :VOLUME)
+                 (map #(update % :date str) (bdh-result->field columns :VOLUME))))
+          (is (= (bdh-result->date-field rows "2024-01-03" :PX_LAST)
+                 (bdh-result->date-field columns "2024-01-03" :PX_LAST)
+                 (bdh-result->date-field columns (LocalDate/of 2024 1 3) :PX_LAST)))
+          (is (= (set (bdh-result->date rows "2024-01-02"))
+                 (set (map #(update % :date str) (bdh-result->date columns "2024-01-02")))))
+          (is (= 12 (count (bdh-result->records columns)))))
+        (finally (stop-stand-in engine))))))
+
+(deftest test-both-forms-alike
+  (testing "row and columnar results take the same dates and fail alike on misaligned series"
+    (let [columns (fn [days values]
+                    (HistoryColumns. (into-array String ["PX_LAST"]) (int-array (map #(.toEpochDay ^LocalDate %) days))
+                                     (into-array [(double-array values)]) (into-array [(BitSet. (count days))])))
+          d1 (LocalDate/of 2024 1 2)
+          d2 (LocalDate/of 2024 1 3)
+          rows {"A" [{:date "2024-01-02" :PX_LAST 1.0} {:date "2024-01-03" :PX_LAST 2.0}]
+                "B" [{:date "2024-01-02" :PX_LAST 3.0} {:date "2024-01-03" :PX_LAST 4.0}]}
+          cols {"A" (columns [d1 d2] [1.0 2.0]) "B" (columns [d1 d2] [3.0 4.0])}
+          zoned (ZonedDateTime/of 2024 1 3 10 30 0 0 (ZoneId/of "UTC"))]
+      (doseq [date [d2 zoned "2024-01-03" "20240103"]]
+        (is (= {"A" 2.0 "B" 4.0} (bdh-result->date-field rows date :PX_LAST) (bdh-result->date-field cols date :PX_LAST))))
+      (is (= (bdh-result->field rows :PX_LAST) (map #(update % :date str) (bdh-result->field cols :PX_LAST))))
+      (is (thrown? AssertionError (bdh-result->field (assoc rows "C" [{:date "2024-01-02" :PX_LAST 5.0}]) :PX_LAST)))
+      (is (thrown? AssertionError (bdh-result->field (assoc cols "C" (columns [d1] [5.0])) :PX_LAST))))))
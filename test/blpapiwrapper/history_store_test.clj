@@ -0,0 +1,97 @@
+(ns blpapiwrapper.history-store-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core :as core]
+            [blpapiwrapper.refdata-fixture :refer [stand-in-engine stand-in-value stop-stand-in]])
+  (:import
+    (java.io File)
+    (java.nio.file Files)
+    (java.nio.file.attribute FileAttribute)
+    (java.time LocalDate)
+    (com.bloomberglp.blpapi Request)
+    HistoryColumns HistoryStore))
+
+(defn- temp-dir ^File [] (.toFile (Files/createTempDirectory "history-store-test" (make-array FileAttribute 0))))
+
+(defn- day [s] (int (.toEpochDay (LocalDate/parse s))))
+
+(defn- columns
+  "HistoryColumns of one field with values for days"
+  ^HistoryColumns [field days values]
+  (HistoryColumns. (into-array String [field]) (int-array days) (into-array [(double-array values)])
+                   (into-array [(java.util.BitSet.)])))
+
+(deftest test-put-and-read
+  (let [dir (temp-dir)
+        store (HistoryStore. dir)
+        d0 (day "2024-01-01")
+        read (fn [^HistoryStore store field from to]
+               (let [c (.read store "DAILY" "A" [field] (int from) (int to))]
+                 [(vec (.days c)) (vec (.column c 0))]))]
+    (testing "appends, earlier dates and overlaps keep the rows ascending and the coverage in one range"
+      (is (nil? (.coverage store "DAILY" "A" "PX_LAST")))
+      (.put store "DAILY" "A" "PX_LAST" (int d0) (int (+ d0 9)) (columns "PX_LAST" (range d0 (+ d0 10)) (range 10)))
+      (is (= [d0 (+ d0 9)] (vec (.coverage store "DAILY" "A" "PX_LAST"))))
+      (.put store "DAILY" "A" "PX_LAST" (int (+ d0 10)) (int (+ d0 99)) (columns "PX_LAST" (range (+ d0 10) (+ d0 100)) (range 10 100)))
+      (.put store "DAILY" "A" "PX_LAST" (int (- d0 5)) (int (dec d0)) (columns "PX_LAST" [(- d0 3)] [-3]))
+      (is (= [(- d0 5) (+ d0 99)] (vec (.coverage store "DAILY" "A" "PX_LAST"))))
+      (is (= [(into [(- d0 3)] (range d0 (+ d0 100))) (into [-3.0] (map double (range 100)))]
+             (read store "PX_LAST" (- d0 10) (+ d0 200))))
+      (is (= [[(+ d0 5) (+ d0 6)] [5.0 6.0]] (read store "PX_LAST" (+ d0 5) (+ d0 6)))))
+    (testing "a put that covers nothing still replaces the rows of its days"
+      (.put store "DAILY" "A" "PX_LAST" (int (+ d0 100)) (int (+ d0 99)) (columns "PX_LAST" [(+ d0 100)] [1]))
+      (.put store "DAILY" "A" "PX_LAST" (int (+ d0 100)) (int (+ d0 99)) (columns "PX_LAST" [(+ d0 100)] [2]))
+      (is (= [(- d0 5) (+ d0 99)] (vec (.coverage store "DAILY" "A" "PX_LAST"))))
+      (is (= [[(+ d0 100)] [2.0]] (read store "PX_LAST" (+ d0 100) (+ d0 100)))))
+    (testing "fields with different dates are merged, other keys and securities are apart"
+      (.put store "DAILY" "A" "VOLUME" (int d0) (int (+ d0 1)) (columns "VOLUME" [(+ d0 1)] [7]))
+      (let [c (.read store "DAILY" "A" ["PX_LAST" "VOLUME"] (int d0) (int (+ d0 1)))]
+        (is (= [d0 (+ d0 1)] (vec (.days c))))
+        (is (.isMissing c 0 1))
+        (is (= 7.0 (.get c 1 1))))
+      (is (nil? (.coverage store "WEEKLY" "A" "PX_LAST")))
+      (is (nil? (.coverage store "DAILY" "B/C Equity" "PX_LAST")))
+      (is (= 0 (.size (.read store "DAILY" "B/C Equity" ["PX_LAST"] (int d0) (int (+ d0 1)))))))
+    (testing "everything is still there after reopening"
+      (.close store)
+      (let [reopened (HistoryStore. dir)]
+        (is (= [(- d0 5) (+ d0 99)] (vec (.coverage reopened "DAILY" "A" "PX_LAST"))))
+        (is (= (read store "PX_LAST" (- d0 10) (+ d0 200)) (read reopened "PX_LAST" (- d0 10) (+ d0 200))))
+        (.close reopened)))))
+
+(defn- dates [^Request request]
+  (let [e (.asElement request)
+        elements (fn [n] (let [x (.getElement e ^String n)] (mapv #(.getValueAsString x (int %)) (range (.numValues x)))))]
+    [(elements "securities") (elements "fields") (.getElementAsString e "startDate") (.getElementAsString e "endDate")]))
+
+(deftest test-incremental-bdh
+  (testing "bdh :store only requests the dates it does not hold, per periodicity and adjustment-split"
+    (let [sent (atom [])
+          engine (stand-in-engine :days 1000 :request-millis 1)
+          session-map {:engine (update engine :send (fn [send] (fn [request cid] (swap! sent conj (dates request)) (send request cid))))}
+          plain {:engine engine}
+          store (core/history-store (temp-dir))
+          securities ["A US Equity" "B US Equity"]]
+      (try
+        (let [first-month (core/bdh securities ["PX_LAST" "VOLUME"] "20240101" "20240131" :session-map session-map :store store :columnar true)
+              ^HistoryColumns a (first-month "A US Equity")]
+          (is (= 31 (.size a)))
+          (is (= (+ 30 (stand-in-value "A US Equity" "VOLUME")) (.get a (LocalDate/of 2024 1 31) "VOLUME")))
+          (is (= [[(set securities) ["PX_LAST" "VOLUME"] "20240101" "20240131"]] (map #(update % 0 set) @sent))))
+        (reset! sent [])
+        (let [rows (core/bdh securities ["PX_LAST" "VOLUME" "PX_OPEN"] "20231215" "20240229" :session-map session-map :store store)]
+          (is (= #{[(set securities) ["PX_LAST" "VOLUME"] "20231215" "20231231"]
+                   [(set securities) ["PX_LAST" "VOLUME"] "20240201" "20240229"]
+                   [(set securities) ["PX_OPEN"] "20231215" "20240229"]}
+                 (set (map #(update % 0 set) @sent)))
+              "PX_OPEN is new, the other fields miss both ends")
+          (is (= (core/bdh securities ["PX_LAST" "VOLUME" "PX_OPEN"] "20231215" "20240229" :session-map plain) rows)))
+        (reset! sent [])
+        (is (= (set (core/bdh-result->records (core/bdh securities "PX_LAST" "20240110" "20240120" :session-map plain :columnar true)))
+               (set (core/bdh-result->records (core/bdh securities "PX_LAST" "20240110" "20240120" :session-map session-map :store store :columnar true)))))
+        (is (= [] @sent) "all stored")
+        (core/bdh securities "PX_LAST" "20240110" "20240120" :session-map session-map :store store :periodicity "WEEKLY")
+        (core/bdh securities "PX_LAST" "20240110" "20240120" :session-map session-map :store store :adjustment-split true)
+        (is (= 2 (count @sent)) "other keys")
+        (finally
+          (.close store)
+          (stop-stand-in engine))))))
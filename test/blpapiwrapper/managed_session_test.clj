@@ -0,0 +1,41 @@
+(ns blpapiwrapper.managed-session-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core :refer [bdp-simple managed-session shutdown-managed-sessions]]
+            [blpapiwrapper.refdata-fixture :refer [stand-in-engine stand-in-value stop-stand-in]])
+  (:import (com.bloomberglp.blpapi Session SessionOptions)))
+
+(deftest test-managed-session-reuse
+  (testing "repeated calls share one lazily started session until it is evicted or shut down"
+    (let [started (atom [])]
+      (with-redefs [cljblpapiwrapper.core/start-managed-session
+                    (fn [& _]
+                      (let [session-map {:session (Session. (SessionOptions.)) :engine (stand-in-engine)}]
+                        (swap! started conj session-map)
+                        session-map))]
+        (try
+          (shutdown-managed-sessions)
+          (is (= (stand-in-value "A US Equity" "PX_LAST") (Double/parseDouble (bdp-simple "A US Equity" "PX_LAST"))))
+          (is (= (stand-in-value "B US Equity" "PX_LAST") (Double/parseDouble (bdp-simple "B US Equity" "PX_LAST"))))
+          (is (= 1 (count @started)))
+          (is (identical? (managed-session) (managed-session)))
+          (is (not (identical? (managed-session) (managed-session "otherhost" 8194))))
+          (is (= 2 (count @started)))
+          (let [session-map (managed-session "idlehost" 8194 :idle-millis 0)]
+            (Thread/sleep 5)
+            (#'cljblpapiwrapper.core/evict-managed-sessions)
+            (is (not (identical? session-map (managed-session "idlehost" 8194 :idle-millis 0)))))
+          (is (= 4 (count @started)))
+          (shutdown-managed-sessions)
+          (managed-session)
+          (is (= 5 (count @started)))
+          (finally
+            (shutdown-managed-sessions)
+            (run! (comp stop-stand-in :engine) @started)))))))
+
+(deftest test-managed-session-failure
+  (testing "a session that fails to start is not cached"
+    (let [attempts (atom 0)]
+      (with-redefs [cljblpapiwrapper.core/start-managed-session (fn [& _] (swap! attempts inc) (throw (ex-info "down" {})))]
+        (is (thrown? Exception (managed-session "downhost" 8194)))
+        (is (thrown? Exception (managed-session "downhost" 8194)))
+        (is (= 2 @attempts))))))
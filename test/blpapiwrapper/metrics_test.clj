@@ -0,0 +1,123 @@
+(ns blpapiwrapper.metrics-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core :as core]
+            [blpapiwrapper.refdata-fixture :refer [stand-in-engine stop-stand-in]])
+  (:import
+    (java.lang.management ManagementFactory)
+    (javax.management ObjectName)
+    (com.bloomberglp.blpapi Name)
+    LatencyHistogram Metrics SessionEmulator TopicStats))
+
+(deftest test-histogram
+  (testing "percentiles are within one sub-bucket (1/64) of the exact value, max is exact"
+    (let [h (LatencyHistogram.)
+          values (shuffle (range 1 100001))]
+      (doseq [v values] (.record h (long v)))
+      (is (= 100000 (.count h)))
+      (is (= 100000 (.max h)))
+      (is (< (Math/abs (- (.mean h) 50000.5)) 1e-6))
+      (doseq [[p exact] [[50 50000] [90 90000] [99 99000] [99.9 99900] [100 100000]]]
+        (let [v (.percentile h p)]
+          (is (<= exact v (* exact (+ 1 (/ 1.0 64)))) (str "p" p " " v))))
+      (is (= 0 (.percentile (LatencyHistogram.) 99)))
+      (.record h -5)
+      (is (= 0 (.percentile h 0.0001)) "negative values count as 0")
+      (.reset h)
+      (is (= [0 0 0] [(.count h) (.max h) (.percentile h 50)]))))
+  (testing "small values are exact, huge ones go to the last bucket"
+    (let [h (doto (LatencyHistogram.) (.record 7) (.record 7) (.record Long/MAX_VALUE))]
+      (is (= 7 (.percentile h 50)))
+      (is (= Long/MAX_VALUE (.percentile h 100))))))
+
+(defn- allocated-bytes ^long []
+  (let [bean (ManagementFactory/getThreadMXBean)]
+    (.getThreadAllocatedBytes ^com.sun.management.ThreadMXBean bean (.getId (Thread/currentThread)))))
+
+(deftest test-allocation-free
+  (testing "recording allocates nothing"
+    (let [h (LatencyHistogram.)
+          stats (TopicStats. ["A" "B" "C" "D"])]
+      (dotimes [i 20000] (.record h i) (.onTick stats (int (bit-and i 3)) i))
+      (let [before (allocated-bytes)]
+        (dotimes [i 200000]
+          (.record h i)
+          (.onTick stats (int (bit-and i 3)) i))
+        (is (> 4096 (- (allocated-bytes) before)))))))
+
+(deftest test-topic-stats
+  (testing "ticks, gaps and rate per topic"
+    (let [stats (TopicStats. ["A" "B"])]
+      (doseq [t [0 1000 3000 6000]] (.onTick stats 0 (long t)))
+      (.onTick stats 1 500)
+      (is (= [4 1] [(.ticks stats 0) (.ticks stats 1)]))
+      (is (= 3000 (.maxGapNanos stats 0)))
+      (is (= 0 (.maxGapNanos stats 1)))
+      (is (= 3 (.count (.gaps stats))))
+      (is (< (Math/abs (- (.rate stats 0) 5e5)) 1e-6) "3 gaps in 6 microseconds")
+      (is (= 0.0 (.rate stats 1)))
+      (is (= 5 (.totalTicks stats)))
+      (is (= 9500 (.stalestNanos stats 10000))))))
+
+(deftest test-metrics-and-jmx
+  (testing "snapshot keys, event type histograms, and the same values over JMX"
+    (let [m (Metrics. "metrics-test")
+          times (.eventTimes m "handler")]
+      (.incrementAndGet (.counter m "drops"))
+      (.record (.histogram m "latency") 1000)
+      (.record ^LatencyHistogram (aget times 8) 50)
+      (.onTick (.topics m "topics" ["A"]) 0 1)
+      (let [snapshot (core/metrics m)]
+        (is (= 1 (snapshot "drops")))
+        (is (= 1000 (snapshot "latency.p99")))
+        (is (= 1 (snapshot "handler.SUBSCRIPTION_DATA.count")))
+        (is (= 0 (snapshot "handler.ADMIN.count")))
+        (is (= 1 (snapshot "topics.ticks"))))
+      (let [object-name (core/register-metrics-mbean m)
+            server (ManagementFactory/getPlatformMBeanServer)]
+        (try
+          (is (= (ObjectName. "cljblpapiwrapper:type=Metrics,name=\"metrics-test\"") object-name))
+          (is (= 1000 (.getAttribute server object-name "latency.max")))
+          (is (some #{"handler.SUBSCRIPTION_DATA.p50"} (map #(.getName %) (.getAttributes (.getMBeanInfo server object-name)))))
+          (is (.contains ^String (.invoke server object-name "report" nil nil) "topics"))
+          (.invoke server object-name "reset" nil nil)
+          (is (= 0 (.getAttribute server object-name "latency.count")))
+          (finally
+            (.unregister m)))
+        (is (not (.isRegistered server object-name)))))))
+
+(deftest test-request-latency
+  (testing "bdp records send-to-response latency per operation"
+    (let [engine (stand-in-engine :request-millis 2)
+          before (get (core/metrics) "request.ReferenceDataRequest.count" 0)]
+      (try
+        (core/bdp ["A Equity" "B Equity"] ["PX_LAST"] :session-map {:engine engine})
+        (let [m (core/metrics)]
+          (is (= 1 (- (m "request.ReferenceDataRequest.count") before)))
+          (is (<= 2000000 (m "request.ReferenceDataRequest.max"))))
+        (finally
+          (stop-stand-in engine))))))
+
+(deftest test-subscription-metrics
+  (testing "clj-bdp-subscribe publishes per-topic ticks, queue lag and handler time while running"
+    (let [session-map (core/emulated-session :ticks-per-second 200 :latency-ms 1)
+          lag-before (get (core/metrics) "subscription.queueLag.count" 0)
+          t (core/clj-bdp-subscribe ["X Index" "Y Index"] ["BID"] session-map (atom {}) :metrics-name "metrics-test")]
+      (.start t)
+      (loop [i 0]
+        (when (and (< i 100) (some zero? (map :ticks (vals (core/topic-metrics "metrics-test")))))
+          (Thread/sleep 20)
+          (recur (inc i))))
+      (let [topics (core/topic-metrics "metrics-test")
+            m (core/metrics)]
+        (is (= #{"X Index" "Y Index"} (set (keys topics))))
+        (is (every? pos? (map :ticks (vals topics))))
+        (is (< lag-before (m "subscription.queueLag.count")))
+        (is (pos? (m "subscription.SUBSCRIPTION_DATA.count")))
+        (is (pos? (m "metrics-test.ticks"))))
+      (is (thrown? IllegalArgumentException
+                   (core/clj-bdp-subscribe ["Z Index"] ["BID"] session-map (atom {}) :metrics-name "metrics-test"))
+          "a name in use is not taken over")
+      (is (= #{"X Index" "Y Index"} (set (keys (core/topic-metrics "metrics-test")))))
+      (.interrupt t)
+      (.join t 1000)
+      (is (nil? (core/topic-metrics "metrics-test")) "forgotten once the thread stops"))))
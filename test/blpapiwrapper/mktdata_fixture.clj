@@ -0,0 +1,48 @@
+(ns blpapiwrapper.mktdata-fixture
+  "Minimal //blp/mktdata schema so that TestUtil can build SUBSCRIPTION_DATA events"
+  (:import
+    (java.io ByteArrayInputStream)
+    (com.bloomberglp.blpapi CorrelationID Datetime Event$EventType Name Service)
+    (com.bloomberglp.blpapi.test MessageProperties TestUtil)))
+
+(def mktdata-schema
+  "<ServiceDefinition name=\"blp.mktdata\" version=\"1.0.0.0\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">
+     <service name=\"//blp/mktdata\" version=\"1.0.0.0\">
+       <event name=\"MarketDataEvents\" eventType=\"MarketDataUpdate\"><eventId>0</eventId></event>
+       <defaultServiceId>1</defaultServiceId>
+       <publisherSupportsRecap>true</publisherSupportsRecap>
+       <authoritativeSourceSupportsRecap>true</authoritativeSourceSupportsRecap>
+       <isInfrastructureService>false</isInfrastructureService>
+       <isMetered>false</isMetered>
+       <appendMtrId>false</appendMtrId>
+     </service>
+     <schema>
+       <sequenceType name=\"MarketDataUpdate\">
+         <element name=\"BID\" type=\"Float64\" minOccurs=\"0\" maxOccurs=\"1\"/>
+         <element name=\"ASK\" type=\"Float64\" minOccurs=\"0\" maxOccurs=\"1\"/>
+         <element name=\"LAST_PRICE\" type=\"Float64\" minOccurs=\"0\" maxOccurs=\"1\"/>
+         <element name=\"VOLUME\" type=\"Int64\" minOccurs=\"0\" maxOccurs=\"1\"/>
+         <element name=\"TRADE_TIME\" type=\"Datetime\" minOccurs=\"0\" maxOccurs=\"1\"/>
+         <element name=\"RT_PRICING_SOURCE\" type=\"String\" minOccurs=\"0\" maxOccurs=\"1\"/>
+         <element name=\"EID\" type=\"Int64\" minOccurs=\"0\" maxOccurs=\"1\"/>
+       </sequenceType>
+     </schema>
+   </ServiceDefinition>")
+
+(def ^Service mktdata-service
+  (TestUtil/deserializeService (ByteArrayInputStream. (.getBytes ^String mktdata-schema "UTF-8"))))
+
+(defn tick-event
+  "One SUBSCRIPTION_DATA event holding one message per [cid field-map]"
+  [ticks]
+  (let [event (TestUtil/createEvent Event$EventType/SUBSCRIPTION_DATA)
+        definition (.getEventDefinition mktdata-service (Name/getName "MarketDataEvents"))]
+    (doseq [[cid m] ticks]
+      (let [fmt (TestUtil/appendMessage event definition (.setCorrelationId (MessageProperties.) (CorrelationID. (long cid))))]
+        (doseq [[f v] m :let [n (Name/getName f)]]
+          (cond
+            (float? v) (.setElement fmt n (double v))
+            (integer? v) (.setElement fmt n (long v))
+            (instance? Datetime v) (.setElement fmt n ^Datetime v)
+            :else (.setElement fmt n (str v))))))
+    event))
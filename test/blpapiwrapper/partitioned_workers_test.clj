@@ -0,0 +1,58 @@
+(ns blpapiwrapper.partitioned-workers-test
+  (:require [clojure.test :refer :all]
+            [blpapiwrapper.mktdata-fixture :refer [tick-event]])
+  (:import
+    (java.util.concurrent ConcurrentHashMap ConcurrentLinkedQueue)
+    (com.bloomberglp.blpapi Message Name)
+    PartitionedWorkers PartitionedWorkers$Worker))
+
+(def BID (Name/getName "BID"))
+
+(defn- recording-worker
+  "Worker appending [thread-name bid] to seen (cid -> queue) for every message, and counting flushes"
+  [^ConcurrentHashMap seen flushes]
+  (reify PartitionedWorkers$Worker
+    (process [_ msg]
+      (let [^Message msg msg]
+        (.add ^ConcurrentLinkedQueue (.computeIfAbsent seen (.value (.correlationID msg))
+                                                       (reify java.util.function.Function (apply [_ _] (ConcurrentLinkedQueue.))))
+              [(.getName (Thread/currentThread)) (.getElementAsFloat64 msg BID)])))
+    (flush [_] (swap! flushes inc))))
+
+(deftest test-per-topic-order
+  (testing "every topic is processed by one worker, in dispatch order, while topics spread over workers"
+    (let [seen (ConcurrentHashMap.)
+          flushes (atom 0)
+          pool (.start (PartitionedWorkers. (into-array PartitionedWorkers$Worker (repeatedly 4 #(recording-worker seen flushes)))
+                                            64 16))
+          topics 50
+          ticks 200
+          events (vec (for [t (range ticks)] (tick-event (for [cid (range topics)] [cid {"BID" (double t)}]))))]
+      (doseq [event events ^Message msg event]
+        (.dispatch pool (.value (.correlationID msg)) msg))
+      (.stop pool)
+      (is (= (* topics ticks) (.dispatched pool)))
+      (is (= (* topics ticks) (reduce + (map #(.processed pool %) (range 4)))))
+      (is (pos? @flushes))
+      (doseq [cid (range topics) :let [rows (vec (.get seen (long cid)))]]
+        (is (= (map double (range ticks)) (map second rows)) (str "order of topic " cid))
+        (is (= 1 (count (distinct (map first rows)))) (str "one worker for topic " cid))
+        (is (= (str "subscription-worker-" (.workerOf pool cid)) (ffirst rows))))
+      (is (< 1 (count (distinct (map #(.workerOf pool %) (range topics)))))))))
+
+(deftest test-worker-failure
+  (testing "a failing message is counted and the worker goes on"
+    (let [processed (atom [])
+          pool (.start (PartitionedWorkers. (into-array PartitionedWorkers$Worker
+                                                        [(reify PartitionedWorkers$Worker
+                                                           (process [_ msg]
+                                                             (let [bid (.getElementAsFloat64 ^Message msg BID)]
+                                                               (when (= 1.0 bid) (throw (Exception. "boom")))
+                                                               (swap! processed conj bid)))
+                                                           (flush [_]))])
+                                            8 8))]
+      (doseq [^Message msg (tick-event [[0 {"BID" 0.0}] [0 {"BID" 1.0}] [0 {"BID" 2.0}]])]
+        (.dispatch pool 0 msg))
+      (.stop pool)
+      (is (= [0.0 2.0] @processed))
+      (is (= 1 (.errors pool))))))
@@ -0,0 +1,128 @@
+(ns blpapiwrapper.refdata-cache-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core :as core]
+            [blpapiwrapper.refdata-fixture :refer [stand-in-engine stand-in-value stop-stand-in]])
+  (:import
+    (java.util.concurrent CompletableFuture ExecutionException)
+    (com.bloomberglp.blpapi Request)
+    RefdataCache RefdataCache$Lookup))
+
+(defn- values [^Request request element]
+  (let [e (.getElement (.asElement request) ^String element)]
+    (mapv #(.getValueAsString e (int %)) (range (.numValues e)))))
+
+(defn- recording
+  "engine whose requests are also recorded in sent as [securities fields]"
+  [engine sent]
+  (update engine :send (fn [send] (fn [request cid]
+                                    (swap! sent conj [(values request "securities") (values request "fields")])
+                                    (send request cid)))))
+
+(defn- expected [securities fields]
+  (into {} (for [s securities] [s (into {} (for [f fields] [(keyword f) (str (stand-in-value s f))]))])))
+
+(deftest test-lookup
+  (testing "one loader per key, the others wait on its future; failures are not cached"
+    (let [cache (RefdataCache. 10 60000 {})
+          ^RefdataCache$Lookup a (.lookup cache "A" "F" "v")
+          ^RefdataCache$Lookup b (.lookup cache "A" "F" "v")]
+      (is (.isLoader a))
+      (is (not (.isLoader b)))
+      (is (.isLoader (.lookup cache "A" "F" "other variant")))
+      (.complete cache "A" "F" "v" nil)
+      (is (.isDone (.future b)))
+      (is (nil? (.join (.future b))) "nil values are cached too")
+      (is (not (.isLoader (.lookup cache "A" "F" "v"))))
+      (let [^RefdataCache$Lookup c (.lookup cache "B" "F" "v")
+            ^RefdataCache$Lookup d (.lookup cache "B" "F" "v")]
+        (.fail cache "B" "F" "v" (IllegalStateException. "down"))
+        (is (.isCompletedExceptionally (.future d)))
+        (is (.isLoader (.lookup cache "B" "F" "v"))))
+      (is (= [1 1 2 4] [(.size cache) (.hits cache) (.waits cache) (.loads cache)])))))
+
+(deftest test-ttl
+  (testing "a field of a 0 TTL class is always reloaded, the others are not"
+    (let [cache (RefdataCache. 10 0 {"NAME" 60000})]
+      (doseq [f ["NAME" "PX_LAST"]]
+        (.lookup cache "A" f "")
+        (.complete cache "A" f "" 1))
+      (Thread/sleep 1)
+      (is (not (.isLoader (.lookup cache "A" "NAME" ""))))
+      (is (.isLoader (.lookup cache "A" "PX_LAST" "")))
+      (is (= 1 (.expirations cache))))))
+
+(deftest test-invalidate-during-load
+  (testing "a load in flight when its field is invalidated completes its waiters but is not cached"
+    (let [cache (RefdataCache. 10 60000 {})
+          ^RefdataCache$Lookup a (.lookup cache "A" "F" "v")
+          ^RefdataCache$Lookup b (.lookup cache "A" "F" "v")
+          ^RefdataCache$Lookup c (.lookup cache "A" "G" "v")]
+      (.invalidate cache "F")
+      (.complete cache "A" "F" "v" 1)
+      (.complete cache "A" "G" "v" 2)
+      (is (= 1 (.join (.future a)) (.join (.future b))))
+      (is (.isLoader (.lookup cache "A" "F" "v")) "loaded again")
+      (is (not (.isLoader (.lookup cache "A" "G" "v"))) "other fields are cached")
+      (is (= 2 (.join (.future c))))
+      (.invalidate cache nil)
+      (.complete cache "A" "F" "v" 3)
+      (is (.isLoader (.lookup cache "A" "F" "v")) "invalidate of every field too"))))
+
+(deftest test-admission
+  (testing "when full, a new key only displaces the least recently used one if it is looked up more often"
+    (let [cache (RefdataCache. 2 60000 {})
+          load (fn [k] (let [^RefdataCache$Lookup l (.lookup cache k "F" "")]
+                         (when (.isLoader l) (.complete cache k "F" "" k))
+                         (.isLoader l)))]
+      (load "A") (load "B")
+      (dotimes [_ 3] (load "A") (load "B"))
+      (is (load "C"))
+      (is (= 1 (.rejections cache)) "C was looked up once, less than A and B")
+      (is (not (load "A")))
+      (is (not (load "B")))
+      (dotimes [_ 5] (load "C"))
+      (is (= 1 (.evictions cache)) "C now displaced A, the least recently used")
+      (is (not (load "C")))
+      (is (not (load "B")))
+      (is (load "A")))))
+
+(deftest test-bdp-partial-hits
+  (testing "only the missing (security, field) pairs are requested, grouped by the fields they miss"
+    (let [sent (atom [])
+          engine (stand-in-engine :request-millis 1)
+          session-map {:engine (recording engine sent)}
+          cache (core/refdata-cache)]
+      (try
+        (is (= (expected ["A" "B"] ["PX_LAST" "NAME"])
+               (core/bdp ["A" "B"] ["PX_LAST" "NAME"] :session-map session-map :cache cache)))
+        (is (= [[["A" "B"] ["PX_LAST" "NAME"]]] @sent))
+        (reset! sent [])
+        (is (= (expected ["B" "A"] ["NAME"]) (core/bdp ["B" "A"] "NAME" :session-map session-map :cache cache)))
+        (is (= [] @sent) "all hits")
+        (is (= (expected ["A" "B" "C"] ["PX_LAST" "NAME" "PX_OPEN"])
+               (core/bdp ["A" "B" "C"] ["PX_LAST" "NAME" "PX_OPEN"] :session-map session-map :cache cache)))
+        (is (= #{[["A" "B"] ["PX_OPEN"]] [["C"] ["PX_LAST" "NAME" "PX_OPEN"]]} (set @sent)))
+        (reset! sent [])
+        (core/bdp ["A"] ["PX_LAST"] :session-map session-map :cache cache :override-map {"EQY_FUND_CRNCY" "EUR"})
+        (core/bdp ["A"] ["PX_LAST"] :session-map session-map :cache cache :typed true)
+        (is (= 2 (count @sent)) "other overrides, typed values: other keys")
+        (is (= 6 (:hits (core/refdata-cache-stats cache))))
+        (finally
+          (stop-stand-in engine))))))
+
+(deftest test-bdp-deduplication
+  (testing "concurrent identical bdp calls send one request; a failed one is retried by the next call"
+    (let [sent (atom [])
+          engine (stand-in-engine :request-millis 100)
+          session-map {:engine (recording engine sent)}
+          cache (core/refdata-cache)]
+      (try
+        (let [futures (doall (repeatedly 5 #(core/bdp-async ["A" "B"] ["PX_LAST"] :session-map session-map :cache cache)))]
+          (is (apply = (expected ["A" "B"] ["PX_LAST"]) (map #(.get ^CompletableFuture %) futures)))
+          (is (= 1 (count @sent)))
+          (is (= 8 (:waits (core/refdata-cache-stats cache)))))
+        (let [failing {:engine (assoc engine :send (fn [_ _] (throw (IllegalStateException. "down"))))}]
+          (is (thrown? ExecutionException (.get ^CompletableFuture (core/bdp-async ["Z"] ["PX_LAST"] :session-map failing :cache cache))))
+          (is (= (expected ["Z"] ["PX_LAST"]) (core/bdp ["Z"] ["PX_LAST"] :session-map session-map :cache cache))))
+        (finally
+          (stop-stand-in engine))))))
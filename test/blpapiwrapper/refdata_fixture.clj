@@ -0,0 +1,184 @@
+(ns blpapiwrapper.refdata-fixture
+  "Minimal //blp/refdata schema so that TestUtil can build RESPONSE / PARTIAL_RESPONSE events,
+  and a stand-in request engine serving it locally"
+  (:import
+    (java.io ByteArrayInputStream)
+    (java.time LocalDate)
+    (java.time.format DateTimeFormatter)
+    (java.util.concurrent ConcurrentHashMap ExecutorService Executors Semaphore ThreadFactory)
+    (java.util.concurrent.locks LockSupport)
+    (com.bloomberglp.blpapi CorrelationID Element Event Event$EventType Request Service)
+    (com.bloomberglp.blpapi.test MessageProperties TestUtil)))
+
+(def numeric-fields
+  "Float64 fields of the schema"
+  ["PX_LAST" "PX_OPEN" "PX_HIGH" "PX_LOW" "PX_BID" "PX_ASK" "PX_MID" "VOLUME"
+   "CUR_MKT_CAP" "EQY_BETA" "EQY_DVD_YLD_12M" "PE_RATIO" "YLD_YTM_MID" "DUR_ADJ_MID" "Z_SPRD_MID" "OAS_SPREAD_MID"])
+
+(def refdata-schema
+  (str
+  "<ServiceDefinition name=\"blp.refdata\" version=\"1.0.0.0\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">
+     <service name=\"//blp/refdata\" version=\"1.0.0.0\">
+       <operation name=\"ReferenceDataRequest\" serviceId=\"1\">
+         <request>ReferenceDataRequest</request>
+         <response>Response</response>
+         <responseSelection>ReferenceDataResponse</responseSelection>
+       </operation>
+       <operation name=\"HistoricalDataRequest\" serviceId=\"1\">
+         <request>HistoricalDataRequest</request>
+         <response>Response</response>
+         <responseSelection>HistoricalDataResponse</responseSelection>
+       </operation>
+       <defaultServiceId>1</defaultServiceId>
+       <publisherSupportsRecap>false</publisherSupportsRecap>
+       <authoritativeSourceSupportsRecap>false</authoritativeSourceSupportsRecap>
+       <isInfrastructureService>false</isInfrastructureService>
+       <isMetered>false</isMetered>
+       <appendMtrId>false</appendMtrId>
+     </service>
+     <schema>
+       <sequenceType name=\"ReferenceDataRequest\">
+         <element name=\"securities\" type=\"String\" minOccurs=\"0\" maxOccurs=\"unbounded\"/>
+         <element name=\"fields\" type=\"String\" minOccurs=\"0\" maxOccurs=\"unbounded\"/>
+         <element name=\"overrides\" type=\"Override\" minOccurs=\"0\" maxOccurs=\"unbounded\"/>
+       </sequenceType>
+       <sequenceType name=\"Override\">
+         <element name=\"fieldId\" type=\"String\"/>
+         <element name=\"value\" type=\"String\"/>
+       </sequenceType>
+       <sequenceType name=\"HistoricalDataRequest\">
+         <element name=\"securities\" type=\"String\" minOccurs=\"0\" maxOccurs=\"unbounded\"/>
+         <element name=\"fields\" type=\"String\" minOccurs=\"0\" maxOccurs=\"unbounded\"/>
+         <element name=\"startDate\" type=\"String\" minOccurs=\"0\" maxOccurs=\"1\"/>
+         <element name=\"endDate\" type=\"String\" minOccurs=\"0\" maxOccurs=\"1\"/>
+         <element name=\"adjustmentSplit\" type=\"Boolean\" minOccurs=\"0\" maxOccurs=\"1\"/>
+         <element name=\"periodicitySelection\" type=\"String\" minOccurs=\"0\" maxOccurs=\"1\"/>
+       </sequenceType>
+       <sequenceType name=\"FieldData\">
+         <element name=\"date\" type=\"Date\" minOccurs=\"0\" maxOccurs=\"1\"/>
+         <element name=\"NAME\" type=\"String\" minOccurs=\"0\" maxOccurs=\"1\"/>
+         <element name=\"EQY_SH_OUT\" type=\"Int64\" minOccurs=\"0\" maxOccurs=\"1\"/>
+         <element name=\"LAST_UPDATE_DT\" type=\"Date\" minOccurs=\"0\" maxOccurs=\"1\"/>
+         <element name=\"INDX_MEMBERS\" type=\"IndexMember\" minOccurs=\"0\" maxOccurs=\"unbounded\"/>"
+       (apply str (for [f numeric-fields] (str "<element name=\"" f "\" type=\"Float64\" minOccurs=\"0\" maxOccurs=\"1\"/>")))
+       "
+       </sequenceType>
+       <sequenceType name=\"IndexMember\">
+         <element name=\"Member_Ticker_and_Exchange_Code\" type=\"String\"/>
+         <element name=\"Weight\" type=\"Float64\" minOccurs=\"0\" maxOccurs=\"1\"/>
+       </sequenceType>
+       <sequenceType name=\"ReferenceSecurityData\">
+         <element name=\"security\" type=\"String\"/>
+         <element name=\"eidData\" type=\"Int32\" minOccurs=\"0\" maxOccurs=\"unbounded\"/>
+         <element name=\"fieldData\" type=\"FieldData\"/>
+       </sequenceType>
+       <sequenceType name=\"HistoricalSecurityData\">
+         <element name=\"security\" type=\"String\"/>
+         <element name=\"fieldData\" type=\"FieldData\" minOccurs=\"0\" maxOccurs=\"unbounded\"/>
+       </sequenceType>
+       <sequenceType name=\"ReferenceDataResponseType\">
+         <element name=\"securityData\" type=\"ReferenceSecurityData\" minOccurs=\"0\" maxOccurs=\"unbounded\"/>
+       </sequenceType>
+       <sequenceType name=\"HistoricalDataResponseType\">
+         <element name=\"securityData\" type=\"HistoricalSecurityData\"/>
+       </sequenceType>
+       <choiceType name=\"Response\">
+         <element name=\"ReferenceDataResponse\" type=\"ReferenceDataResponseType\"/>
+         <element name=\"HistoricalDataResponse\" type=\"HistoricalDataResponseType\"/>
+       </choiceType>
+     </schema>
+   </ServiceDefinition>"))
+
+(def ^Service refdata-service
+  (TestUtil/deserializeService (ByteArrayInputStream. (.getBytes ^String refdata-schema "UTF-8"))))
+
+(defn response-event
+  "One event of event-type (e.g. Event$EventType/PARTIAL_RESPONSE) holding one message per [cid operation xml],
+  operation being \"ReferenceDataRequest\" or \"HistoricalDataRequest\""
+  ^Event [event-type messages]
+  (let [event (TestUtil/createEvent event-type)]
+    (doseq [[cid operation xml] messages]
+      (.formatMessageXml (TestUtil/appendMessage event
+                                                 (.responseDefinition (.getOperation refdata-service ^String operation) 0)
+                                                 (.setCorrelationId (MessageProperties.) (CorrelationID. (long cid))))
+                         xml))
+    event))
+
+(defn spot-xml
+  "ReferenceDataResponse xml for {security {field value}}"
+  [m]
+  (str "<ReferenceDataResponse>"
+       (apply str (for [[security fields] m]
+                    (str "<securityData><security>" security "</security><fieldData>"
+                         (apply str (for [[f v] fields] (str "<" f ">" v "</" f ">")))
+                         "</fieldData></securityData>")))
+       "</ReferenceDataResponse>"))
+
+(defn history-xml
+  "HistoricalDataResponse xml for one security and [{\"date\" \"2024-01-02\" field value}]"
+  [security rows]
+  (str "<HistoricalDataResponse><securityData><security>" security "</security>"
+       (apply str (for [row rows]
+                    (str "<fieldData>" (apply str (for [[f v] row] (str "<" f ">" v "</" f ">"))) "</fieldData>")))
+       "</securityData></HistoricalDataResponse>"))
+
+;; Stand-in request engine ;;
+
+(defn stand-in-value
+  "Value the stand-in returns for security / field (plus the days since 2024-01-01 in history)"
+  ^double [security field]
+  (double (mod (hash [security field]) 1000)))
+
+(defn- values [^Element e]
+  (vec (for [i (range (.numValues e))] (.getValueAsString e i))))
+
+(defn- daemon-threads [name]
+  (reify ThreadFactory
+    (newThread [_ r] (doto (Thread. ^Runnable r ^String name) (.setDaemon true)))))
+
+(defn stand-in-engine
+  "Request engine (see cljblpapiwrapper.core/request-engine) answered locally instead of by a Bloomberg session.
+  server-threads requests are served at a time, each taking request-millis plus cell-micros per security x field
+  (x days for history: every date from startDate to endDate, at most days of them), and streamed back as
+  PARTIAL_RESPONSE events of securities-per-message securities (one security per message for history), which a single
+  dispatcher thread routes like the real engine does."
+  [& {:keys [server-threads request-millis cell-micros securities-per-message days max-in-flight]
+      :or {server-threads 4 request-millis 5 cell-micros 0 securities-per-message 10 days 5 max-in-flight 64}}]
+  (let [route-response! @(resolve 'cljblpapiwrapper.core/route-response!)
+        ^ExecutorService server (Executors/newFixedThreadPool server-threads (daemon-threads "stand-in-server"))
+        ^ExecutorService dispatcher (Executors/newSingleThreadExecutor (daemon-threads "stand-in-dispatcher"))
+        engine (promise)
+        serve (fn [^Request request ^CorrelationID cid]
+                (let [el (.asElement request)
+                      history? (= "HistoricalDataRequest" (str (.name el)))
+                      securities (values (.getElement el "securities"))
+                      fields (values (.getElement el "fields"))
+                      messages (if history?
+                                 (let [start (LocalDate/parse (.getElementAsString el "startDate") DateTimeFormatter/BASIC_ISO_DATE)
+                                       end (LocalDate/parse (.getElementAsString el "endDate") DateTimeFormatter/BASIC_ISO_DATE)
+                                       dates (take-while #(not (.isAfter ^LocalDate % end)) (take days (iterate #(.plusDays ^LocalDate % 1) start)))]
+                                   (for [s securities]
+                                     ["HistoricalDataRequest"
+                                      (history-xml s (for [^LocalDate date dates
+                                                           :let [d (- (.toEpochDay date) (.toEpochDay (LocalDate/of 2024 1 1)))]]
+                                                       (into {"date" (str date)}
+                                                             (for [f fields] [f (+ d (stand-in-value s f))]))))]))
+                                 (for [chunk (partition-all securities-per-message securities)]
+                                   ["ReferenceDataRequest"
+                                    (spot-xml (for [s chunk] [s (for [f fields] [f (stand-in-value s f)])]))]))]
+                  (LockSupport/parkNanos (long (+ (* request-millis 1e6)
+                                                  (* cell-micros 1e3 (count securities) (count fields) (if history? days 1)))))
+                  (doseq [[i [operation xml]] (map-indexed vector messages)
+                          :let [final? (= i (dec (count messages)))
+                                event (response-event (if final? Event$EventType/RESPONSE Event$EventType/PARTIAL_RESPONSE)
+                                                      [[(.value cid) operation xml]])]]
+                    (.execute dispatcher #(route-response! @engine event final?)))))]
+    (deliver engine {:service (delay refdata-service)
+                     :send (fn [request cid] (.execute server #(serve request cid)))
+                     :pending (ConcurrentHashMap.)
+                     :permits (Semaphore. (int max-in-flight))
+                     :executors [server dispatcher]})
+    @engine))
+
+(defn stop-stand-in [engine]
+  (doseq [^ExecutorService e (:executors engine)] (.shutdownNow e)))
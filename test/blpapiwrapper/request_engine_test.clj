@@ -0,0 +1,79 @@
+(ns blpapiwrapper.request-engine-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core :refer [bdp bdh]]
+            [blpapiwrapper.refdata-fixture :refer [response-event spot-xml history-xml stand-in-engine stand-in-value stop-stand-in]])
+  (:import
+    (java.util.concurrent CompletableFuture ConcurrentHashMap ExecutionException Semaphore)
+    (java.util.concurrent.atomic AtomicLong)
+    (com.bloomberglp.blpapi CorrelationID Event$EventType)))
+
+(def register-request! #'cljblpapiwrapper.core/register-request!)
+(def route-response! #'cljblpapiwrapper.core/route-response!)
+(def read-spot-response #'cljblpapiwrapper.core/read-spot-response)
+(def read-historical-response #'cljblpapiwrapper.core/read-historical-response)
+
+(defn- engine [max-in-flight]
+  {:pending (ConcurrentHashMap.) :permits (Semaphore. (int max-in-flight))})
+
+(deftest test-routing-by-correlation-id
+  (testing "interleaved partial responses of two requests end up in their own futures"
+    (let [e (engine 4)
+          [^CorrelationID spot-cid ^CompletableFuture spot] (register-request! e #(read-spot-response % ["PX_LAST"]))
+          [^CorrelationID hist-cid ^CompletableFuture hist] (register-request! e #(read-historical-response % ["PX_LAST"]))]
+      (is (= 2 (- 4 (.availablePermits ^Semaphore (:permits e)))))
+      (route-response! e (response-event Event$EventType/PARTIAL_RESPONSE
+                                         [[(.value spot-cid) "ReferenceDataRequest" (spot-xml {"A US Equity" {"PX_LAST" 1.5}})]
+                                          [(.value hist-cid) "HistoricalDataRequest" (history-xml "A US Equity" [{"date" "2024-01-02" "PX_LAST" 1.0}])]])
+                       false)
+      (is (not (.isDone spot)))
+      (route-response! e (response-event Event$EventType/RESPONSE
+                                         [[(.value spot-cid) "ReferenceDataRequest" (spot-xml {"B US Equity" {"PX_LAST" 2.5}})]])
+                       true)
+      (is (= {"A US Equity" {:PX_LAST "1.5"} "B US Equity" {:PX_LAST "2.5"}} (.get spot)))
+      (is (not (.isDone hist)))
+      (route-response! e (response-event Event$EventType/RESPONSE
+                                         [[(.value hist-cid) "HistoricalDataRequest" (history-xml "B US Equity" [{"date" "2024-01-03" "PX_LAST" 2.0}])]])
+                       true)
+      (is (= {"A US Equity" [{:date "2024-01-02" :PX_LAST 1.0}] "B US Equity" [{:date "2024-01-03" :PX_LAST 2.0}]} (.get hist)))
+      (is (.isEmpty ^ConcurrentHashMap (:pending e)))
+      (is (= 4 (.availablePermits ^Semaphore (:permits e)))))))
+
+(deftest test-unknown-and-failing-requests
+  (testing "messages of unknown cids are ignored and a reader exception fails only its own request"
+    (let [e (engine 4)
+          [^CorrelationID cid ^CompletableFuture f] (register-request! e (fn [_] (throw (IllegalStateException. "bad"))))]
+      (route-response! e (response-event Event$EventType/RESPONSE
+                                         [[(inc (.value cid)) "ReferenceDataRequest" (spot-xml {"A US Equity" {"PX_LAST" 1.5}})]
+                                          [(.value cid) "ReferenceDataRequest" (spot-xml {"A US Equity" {"PX_LAST" 1.5}})]])
+                       true)
+      (is (.isCompletedExceptionally f))
+      (is (instance? IllegalStateException (.getCause ^ExecutionException (try (.get f) (catch ExecutionException x x)))))
+      (is (= 4 (.availablePermits ^Semaphore (:permits e)))))))
+
+(deftest test-request-splitting
+  (testing "split sub-requests merge back into the same result as one request"
+    (let [engine (stand-in-engine :server-threads 3 :request-millis 1 :securities-per-message 4 :days 3)
+          securities (mapv #(str "SEC" % " Equity") (range 37))
+          fields ["PX_LAST" "PX_OPEN" "VOLUME" "PX_BID" "PX_ASK"]
+          session-map {:engine engine}]
+      (try
+        (let [whole (bdp securities fields :session-map session-map :securities-per-request 100 :fields-per-request 100)
+              split (bdp securities fields :session-map session-map :securities-per-request 10 :fields-per-request 2)]
+          (is (= 37 (count whole)))
+          (is (= (stand-in-value "SEC5 Equity" "VOLUME") (Double/parseDouble (get-in whole ["SEC5 Equity" :VOLUME]))))
+          (is (= whole split)))
+        (let [whole (bdh securities fields "20240101" "20240103" :session-map session-map :securities-per-request 100 :fields-per-request 100)
+              split (bdh securities fields "20240101" "20240103" :session-map session-map :securities-per-request 7 :fields-per-request 3)]
+          (is (= 37 (count whole)))
+          (is (= ["2024-01-01" "2024-01-02" "2024-01-03"] (map :date (whole "SEC0 Equity"))))
+          (is (= (+ 2 (stand-in-value "SEC0 Equity" "PX_BID")) (get-in whole ["SEC0 Equity" 2 :PX_BID])))
+          (is (= whole split)))
+        (is (.isEmpty ^ConcurrentHashMap (:pending engine)))
+        (finally (stop-stand-in engine)))))
+  (testing "sub-requests are spread over the sessions of a pool"
+    (let [engines [(stand-in-engine) (stand-in-engine)]
+          pool {:refdata (mapv #(hash-map :engine %) engines) :next (AtomicLong.)}]
+      (try
+        (is (= 20 (count (bdp (mapv str (range 20)) ["PX_LAST"] :session-pool pool :securities-per-request 5))))
+        (is (= 4 (.get ^AtomicLong (:next pool))))
+        (finally (run! stop-stand-in engines))))))
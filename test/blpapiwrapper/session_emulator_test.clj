@@ -0,0 +1,147 @@
+(ns blpapiwrapper.session-emulator-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core :as core])
+  (:import
+    (java.time LocalDate)
+    (com.bloomberglp.blpapi CorrelationID Event Event$EventType Message Name Subscription SubscriptionList)
+    HistoryColumns SessionEmulator SessionEmulator$Options))
+
+(deftest test-bdp
+  (testing "bdp against the emulator, answered in partial responses of securities-per-message securities"
+    (let [session-map (core/emulated-session :securities-per-message 4 :latency-ms 1)
+          securities (mapv #(str "SEC" % " Equity") (range 10))]
+      (try
+        (is (= (into {} (for [s securities]
+                          [s {:PX_LAST (str (SessionEmulator/value s "PX_LAST")) :NAME s}]))
+               (core/bdp securities ["PX_LAST" "NAME"] :session-map session-map)))
+        (is (= 3 (count (core/bdp-seq securities ["PX_LAST"] :session-map session-map))))
+        (is (= {"SEC1 Equity" {:PX_LAST (SessionEmulator/value "SEC1 Equity" "PX_LAST")}}
+               (core/bdp "SEC1 Equity" "PX_LAST" :session-map session-map :typed true)))
+        (is (= {"SEC2 Equity" {:PX_LAST (str (SessionEmulator/value "SEC2 Equity" "PX_LAST"))}}
+               (core/clj-bdp-session ["SEC2 Equity"] ["PX_LAST"] nil session-map)))
+        (is (= 4 (.requests ^SessionEmulator (:session session-map))))
+        (finally
+          (core/stop-request-engine session-map)
+          (.stop ^SessionEmulator (:session session-map)))))))
+
+(deftest test-bdh
+  (testing "bdh points are weekdays (or every period) between start and end, value + point index"
+    (let [session-map (core/emulated-session :latency-ms 0)]
+      (try
+        (let [res (core/bdh ["A Equity" "B Equity"] ["PX_LAST"] "2024-01-05" "2024-01-10" :session-map session-map)
+              base (SessionEmulator/value "B Equity" "PX_LAST")]
+          (is (= ["2024-01-05" "2024-01-08" "2024-01-09" "2024-01-10"] (mapv :date (res "B Equity"))))
+          (is (= (mapv #(+ base %) (range 4)) (mapv :PX_LAST (res "B Equity")))))
+        (let [res (core/bdh "A Equity" "PX_LAST" "2024-01-01" "2024-03-31" :session-map session-map
+                            :periodicity "MONTHLY" :columnar true)]
+          (is (= [(LocalDate/of 2024 1 1) (LocalDate/of 2024 2 1) (LocalDate/of 2024 3 1)]
+                 (let [^HistoryColumns columns (res "A Equity")] (mapv #(.date columns (int %)) (range (.size columns)))))))
+        (finally
+          (core/stop-request-engine session-map)
+          (.stop ^SessionEmulator (:session session-map)))))))
+
+(deftest test-request-failure
+  (testing "a request the emulator cannot serve is answered with a RequestFailure instead of nothing"
+    (let [session-map (core/emulated-session :latency-ms 0)]
+      (try
+        (is (thrown-with-msg? Exception #"request failed"
+                              (core/bdh "A Equity" "PX_LAST" "2024-13-45" "2024-13-46" :session-map session-map)))
+        (finally
+          (core/stop-request-engine session-map)
+          (.stop ^SessionEmulator (:session session-map)))))))
+
+(deftest test-authorize
+  (testing "an emulated session-map is authorized like a sapi-session one"
+    (let [allowed (core/emulated-session :latency-ms 0 :denied-uuids [666] :uuid 1234 :local-ip "10.0.0.1")
+          denied (core/emulated-session :latency-ms 0 :denied-uuids [666] :uuid 666 :local-ip "10.0.0.2")]
+      (try
+        (is (:success allowed))
+        (is (some? (:identity allowed)))
+        (is (some? (:correlation-id allowed)))
+        (is (false? (:success denied)))
+        (finally
+          (.stop ^SessionEmulator (:session allowed))
+          (.stop ^SessionEmulator (:session denied)))))))
+
+(deftest test-subscribe
+  (testing "clj-bdp-subscribe receives ticks of the subscribed fields, as strings by default"
+    (let [session-map (core/emulated-session :ticks-per-second 100 :latency-ms 1)
+          m (atom {})
+          t (core/clj-bdp-subscribe ["X Index" "Y Index"] ["BID" "ASK"] session-map m)]
+      (.start t)
+      (loop [i 0]
+        (when (and (< i 100) (< (count @m) 2))
+          (Thread/sleep 20)
+          (recur (inc i))))
+      (.interrupt t)
+      (.join t 1000)
+      (is (= #{"X Index" "Y Index"} (set (keys @m))))
+      (is (= #{(Name. "BID") (Name. "ASK")} (set (keys (@m "X Index")))))
+      (is (string? (get-in @m ["X Index" (Name. "BID")])))
+      (is (< 0.9 (/ (Double/parseDouble (get-in @m ["X Index" (Name. "BID")])) (SessionEmulator/value "X Index" "BID")) 1.1))
+      (is (pos? (.ticks ^SessionEmulator (:session session-map)))))))
+
+(deftest test-subscribe-workers
+  (testing "clj-bdp-subscribe with :workers and small worker queues and batches"
+    (let [session-map (core/emulated-session :ticks-per-second 100 :latency-ms 1)
+          m (atom {})
+          t (core/clj-bdp-subscribe ["X Index" "Y Index"] ["BID"] session-map m
+                                    :workers 2 :worker-capacity 4 :worker-batch-size 2 :typed true)]
+      (.start t)
+      (loop [i 0]
+        (when (and (< i 100) (< (count @m) 2))
+          (Thread/sleep 20)
+          (recur (inc i))))
+      (.interrupt t)
+      (.join t 1000)
+      (is (= #{"X Index" "Y Index"} (set (keys @m))))
+      (is (double? (get-in @m ["Y Index" (Name. "BID")]))))))
+
+(defn- drain
+  "[event-type message-type-string cid-value] of every message until the queue is empty"
+  [^SessionEmulator session]
+  (loop [acc []]
+    (if-let [^Event event (.tryNextEvent session)]
+      (recur (into acc (for [^Message msg event]
+                         [(.eventType event) (str (.messageType msg)) (some-> (.correlationID msg) .value)])))
+      acc)))
+
+(deftest test-slow-consumer-and-data-loss
+  (testing "a consumer that falls behind gets SlowConsumerWarning, InProc DataLoss for dropped ticks, then Cleared"
+    (let [session (doto (SessionEmulator. (-> (SessionEmulator$Options.)
+                                              (.latencyMillis 0)
+                                              (.ticksPerSecond 1000.0)
+                                              (.ticksPerEvent 1)
+                                              (.payloadBytes 64)
+                                              (.queueMessages 40)
+                                              (.slowConsumerMessages 20)))
+                    (.start))]
+      (try
+        (.subscribe session (doto (SubscriptionList.)
+                              (.add (Subscription. "A Equity" "BID" (CorrelationID. 1)))
+                              (.add (Subscription. "B Equity" "BID" "interval=1.0" (CorrelationID. 2)))))
+        (Thread/sleep 1200)
+        (let [seen (drain session)
+              types (map second seen)]
+          (is (= "SessionStarted" (first types)))
+          (is (some #{"SubscriptionStarted"} types))
+          (is (some #{"SlowConsumerWarning"} types))
+          (is (some #{"SlowConsumerWarningCleared"} types))
+          (is (pos? (.dropped session)))
+          (Thread/sleep 1100)
+          (let [losses (filter #(= "DataLoss" (second %)) (drain session))]
+            (is (some #{1} (map #(nth % 2) losses))))
+          (is (>= 2 (count (filter #(= [Event$EventType/SUBSCRIPTION_DATA "MarketDataEvents" 2] %) seen)))
+              "interval=1.0 ticks at most once a second"))
+        (.cancel session (CorrelationID. 1))
+        (Thread/sleep 50)
+        (is (some #{[Event$EventType/SUBSCRIPTION_STATUS "SubscriptionTerminated" 1]} (drain session)))
+        (is (= 1 (.topics session)))
+        (.injectDataLoss session (CorrelationID. 2) 7)
+        (let [loss (first (for [^Event e (take-while some? (repeatedly #(.tryNextEvent session)))
+                                ^Message msg e :when (= "DataLoss" (str (.messageType msg)))]
+                            msg))]
+          (is (= 2 (.value (.correlationID ^Message loss))))
+          (is (= 7 (.getElementAsInt64 ^Message loss "numMessagesDropped"))))
+        (finally
+          (.stop session))))))
@@ -0,0 +1,30 @@
+(ns blpapiwrapper.session-pool-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core :refer [session-options session-pool]])
+  (:import
+    SessionEmulator SessionEmulator$Options))
+
+(deftest test-session-options
+  (testing "every host is registered for failover"
+    (let [o (session-options ["bpipe1" "bpipe2" "bpipe3"] 8194)]
+      (is (= ["bpipe1" "bpipe2" "bpipe3"] (mapv #(.host %) (.getServerAddresses o))))
+      (is (every? #(= 8194 (.port %)) (.getServerAddresses o)))
+      (is (.getAutoRestartOnDisconnection o))
+      (is (= 3 (.numStartAttempts o))))
+    (is (= ["localhost"] (mapv #(.host %) (.getServerAddresses (session-options "localhost" 8194)))))))
+
+(deftest test-failed-start-stops-the-started-sessions
+  (testing "when a later session cannot start, the sessions already started are stopped"
+    (let [stopped (atom 0)
+          starts (atom 0)]
+      (with-redefs [cljblpapiwrapper.core/start-session
+                    (fn [_]
+                      (when (= 3 (swap! starts inc))
+                        (throw (ex-info "Failed to start Bloomberg session" {})))
+                      (doto (proxy [SessionEmulator] [(SessionEmulator$Options.)]
+                              (stop [] (swap! stopped inc) (proxy-super stop)))
+                        (.start)))]
+        (is (thrown-with-msg? Exception #"Failed to start"
+                              (session-pool "localhost" 8194 :size 2 :subscription-sessions 1)))
+        (is (= 3 @starts))
+        (is (= 2 @stopped))))))
@@ -0,0 +1,89 @@
+(ns blpapiwrapper.snapshot-store-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core :refer [snapshot-store topic-snapshot]]
+            [blpapiwrapper.mktdata-fixture :refer [tick-event]])
+  (:import
+    (java.util.concurrent.atomic AtomicBoolean AtomicLong)
+    (com.bloomberglp.blpapi Message Name)
+    SnapshotStore))
+
+(def publish-snapshots! #'cljblpapiwrapper.core/publish-snapshots!)
+
+(deftest test-every-message-is-kept
+  (testing "all messages of an event land in their topic's row, numbers as doubles and strings as strings"
+    (let [^SnapshotStore store (snapshot-store ["A" "B"] ["BID" "ASK" "RT_PRICING_SOURCE"])
+          event (tick-event [[0 {"BID" 1.5 "ASK" 1.75}] [1 {"RT_PRICING_SOURCE" "BGN"}] [0 {"BID" 1.625}]])]
+      (doseq [^Message msg event]
+        (.update store (int (.value (.correlationID msg))) msg))
+      (is (= {"BID" 1.625 "ASK" 1.75} (topic-snapshot store "A")))
+      (is (= {"RT_PRICING_SOURCE" "BGN"} (topic-snapshot store "B")))
+      (is (= 4 (.version store 0)))
+      (is (nil? (topic-snapshot store "C")))
+      (is (Double/isNaN (.getDouble store 1 0))))))
+
+(deftest test-publish-changed-topics
+  (testing "only topics that moved since the last publication are copied into the atom"
+    (let [^SnapshotStore store (snapshot-store ["A" "B"] ["BID"])
+          published (long-array 2)
+          field-keys [(Name. "BID")]
+          view (atom {})
+          swaps (atom 0)]
+      (add-watch view :count (fn [& _] (swap! swaps inc)))
+      (doseq [^Message msg (tick-event [[0 {"BID" 1.0}] [1 {"BID" 2.0}]])]
+        (.update store (int (.value (.correlationID msg))) msg))
+      (publish-snapshots! store [0 1] published view field-keys identity)
+      (is (= {"A" {(Name. "BID") 1.0} "B" {(Name. "BID") 2.0}} @view))
+      (publish-snapshots! store [0 1] published view field-keys identity)
+      (is (= 1 @swaps))
+      (.update store 1 ^Message (first (tick-event [[1 {"BID" 3.0}]])))
+      (publish-snapshots! store [0 1] published view field-keys identity)
+      (is (= 2 @swaps))
+      (is (= 3.0 (get-in @view ["B" (Name. "BID")]))))))
+
+(deftest test-publish-as-strings
+  (testing "with str as number, numeric values are published as .getValueAsString gives them"
+    (let [^SnapshotStore store (snapshot-store ["A"] ["BID" "RT_PRICING_SOURCE"])
+          view (atom {})
+          ^Message msg (first (tick-event [[0 {"BID" 4321.25 "RT_PRICING_SOURCE" "BGN"}]]))]
+      (.update store 0 msg)
+      (publish-snapshots! store [0] (long-array 1) view [(Name. "BID") (Name. "RT_PRICING_SOURCE")] str)
+      (is (= {"A" {(Name. "BID") (.getValueAsString (.getElement msg "BID")) (Name. "RT_PRICING_SOURCE") "BGN"}} @view)))))
+
+(deftest test-integer-fields-stay-longs
+  (testing "INT64 fields are kept as longs: published as .getValueAsString gives them and exact above 2^53"
+    (let [^SnapshotStore store (snapshot-store ["A" "B"] ["VOLUME"])
+          view (atom {})
+          big 9007199254740993
+          ^Message small (first (tick-event [[0 {"VOLUME" 100}]]))
+          ^Message large (first (tick-event [[1 {"VOLUME" big}]]))]
+      (.update store 0 small)
+      (.update store 1 large)
+      (is (.isLong store 0))
+      (is (= {"VOLUME" 100} (topic-snapshot store "A")))
+      (is (instance? Long (get (topic-snapshot store "A") "VOLUME")))
+      (is (= {"VOLUME" big} (topic-snapshot store "B")))
+      (publish-snapshots! store [0 1] (long-array 2) view [(Name. "VOLUME")] str)
+      (is (= "100" (get-in @view ["A" (Name. "VOLUME")]) (.getValueAsString (.getElement small "VOLUME"))))
+      (is (= (.getValueAsString (.getElement large "VOLUME")) (get-in @view ["B" (Name. "VOLUME")]))))))
+
+(deftest test-consistent-reads
+  (testing "readers never see half an update while the writer keeps going"
+    (let [^SnapshotStore store (snapshot-store ["A"] ["BID" "ASK"])
+          messages (vec (for [i (range 200)] (first (tick-event [[0 {"BID" (double i) "ASK" (double i)}]]))))
+          stop (AtomicBoolean.)
+          torn (AtomicLong.)
+          reads (AtomicLong.)
+          readers (vec (for [_ (range 2)]
+                         (doto (Thread. (fn []
+                                          (let [bits (long-array 2) refs (make-array String 2)]
+                                            (while (not (.get stop))
+                                              (when (pos? (.read store 0 bits refs))
+                                                (.incrementAndGet reads)
+                                                (when (not= (aget bits 0) (aget bits 1)) (.incrementAndGet torn)))))))
+                           (.start))))]
+      (dotimes [i 200000]
+        (.update store 0 ^Message (messages (mod i 200))))
+      (.set stop true)
+      (run! #(.join ^Thread %) readers)
+      (is (pos? (.get reads)))
+      (is (zero? (.get torn))))))
@@ -0,0 +1,27 @@
+(ns blpapiwrapper.subscription-pacer-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core]))
+
+(deftest test-subscription-pacer
+  (testing "chunks are limited by the token bucket and by the outstanding window"
+    (let [take-chunk #'cljblpapiwrapper.core/pacer-take-chunk
+          ack #'cljblpapiwrapper.core/pacer-ack
+          opts {:chunk-size 2 :chunks-per-second 1.0 :burst-chunks 2 :max-outstanding 4}
+          p0 (#'cljblpapiwrapper.core/subscription-pacer (partition-all 2 (range 7)) 0)
+          [p1 c1] (take-chunk p0 0 opts)
+          [p2 c2] (take-chunk p1 0 opts)
+          [p3 c3] (take-chunk p2 0 opts)
+          [p4 c4] (take-chunk p3 2000000000 opts)
+          p5 (-> p4 (ack false 2000000000) (ack true 2000000000))
+          [p6 c6] (take-chunk p5 2000000000 opts)]
+      (is (= [[0 1] [2 3]] [c1 c2]))
+      (is (nil? c3) "burst of 2 used up")
+      (is (nil? c4) "token available again but window of 4 outstanding is full")
+      (is (= [4 5] c6))
+      (is (= 1 (:failed p6)))
+      (is (= 4 (:outstanding p6)))
+      (let [p7 (reduce #(ack %1 false %2) p6 (repeat 4 3000000000))
+            [p8 c8] (take-chunk p7 3000000000 opts)]
+        (is (= [6] c8))
+        (is (nil? (:elapsed-ms p8)) "not done until all 7 topics are acknowledged")
+        (is (= 4000.0 (:elapsed-ms (ack p8 false 4000000000))))))))
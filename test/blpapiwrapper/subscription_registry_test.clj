@@ -0,0 +1,35 @@
+(ns blpapiwrapper.subscription-registry-test
+  (:require [clojure.test :refer :all])
+  (:import
+    (com.bloomberglp.blpapi CorrelationID)
+    SubscriptionRegistry SubscriptionRegistry$State))
+
+(deftest test-sparse-cids
+  (testing "lookups by primitive cid work for sparse and negative cids, across rehashes"
+    (let [registry (SubscriptionRegistry. 2)
+          cids (concat (range 1 1000) [-7 0 Long/MAX_VALUE (bit-shift-left 1 40)])]
+      (doseq [cid cids]
+        (.add registry cid (str "TOPIC " cid) ["LAST_PRICE"] []))
+      (is (= (count cids) (.size registry)))
+      (doseq [cid cids]
+        (is (= (str "TOPIC " cid) (.topic (.get registry (long cid))))))
+      (is (nil? (.get registry 5000)))
+      (is (= (bit-shift-left 1 40) (.value (.correlationID (.get registry (CorrelationID. (bit-shift-left 1 40))))))))))
+
+(deftest test-rows-and-state
+  (testing "entries get dense rows, start pending, and keep their own stats"
+    (let [registry (SubscriptionRegistry. 4)
+          a (.add registry 10 "IBM US Equity" ["BID"] ["interval=1"])
+          b (.add registry 42 "VOD LN Equity" ["BID"] [])]
+      (is (= [0 1] [(.row a) (.row b)]))
+      (is (identical? b (.byRow registry 1)))
+      (is (= 2 (.count registry SubscriptionRegistry$State/PENDING)))
+      (.setState a SubscriptionRegistry$State/ACTIVE)
+      (.onMessage a 1000)
+      (.onDataLoss b)
+      (is (= 1 (.count registry SubscriptionRegistry$State/ACTIVE)))
+      (is (= 1 (.messages a)))
+      (is (= 1 (.dataLosses b)))
+      (is (= "IBM US Equity?fields=BID&interval=1" (.subscriptionString (.subscription a))))
+      (is (thrown? IllegalArgumentException (.add registry 10 "dup" [] [])))
+      (is (nil? (.get registry (CorrelationID. "authCorrelation")))))))
@@ -0,0 +1,62 @@
+(ns blpapiwrapper.tick-decoder-test
+  (:require [clojure.test :refer :all]
+            [blpapiwrapper.mktdata-fixture :refer [tick-event]])
+  (:import
+    (java.lang.management ManagementFactory)
+    (java.time LocalDate)
+    (com.bloomberglp.blpapi Datetime Message)
+    EpochDays TickDecoder))
+
+(def fields ["BID" "ASK" "LAST_PRICE" "VOLUME" "TRADE_TIME" "RT_PRICING_SOURCE"])
+
+(deftest test-typed-decoding
+  (testing "values land in the row of their correlation id"
+    (let [decoder (TickDecoder. fields 2)
+          event (tick-event [[1 {"BID" 1.5 "ASK" 1.75 "VOLUME" 100 "TRADE_TIME" (Datetime. 2024 1 2 3 4 5 6)}]
+                             [2 {"LAST_PRICE" 99.0 "RT_PRICING_SOURCE" "BGN"}]
+                             [1 {"BID" 1.625}]])]
+      (doseq [^Message msg event] (is (.decode decoder msg)))
+      (is (= 1.625 (.getDouble decoder 0 (.fieldIndex decoder "BID"))))
+      (is (= 1.75 (.getDouble decoder 0 (.fieldIndex decoder "ASK"))))
+      (is (= 100 (.getLong decoder 0 (.fieldIndex decoder "VOLUME"))))
+      (is (= (.toEpochMilli (java.time.Instant/parse "2024-01-02T03:04:05.006Z"))
+             (.getLong decoder 0 (.fieldIndex decoder "TRADE_TIME"))))
+      (is (= TickDecoder/STATE_EMPTY (.state decoder 0 (.fieldIndex decoder "LAST_PRICE"))))
+      (is (= 99.0 (.getDouble decoder 1 (.fieldIndex decoder "LAST_PRICE"))))
+      (is (= "BGN" (.getRef decoder 1 (.fieldIndex decoder "RT_PRICING_SOURCE"))))
+      (is (= 2 (.messages decoder 0)))
+      (is (= 1 (.messages decoder 1)))
+      (is (clojure.string/includes? (str (.format decoder 0 (StringBuilder.))) "2024-01-02T03:04:05.006Z")))))
+
+(deftest test-unknown-row
+  (testing "cids outside the preallocated rows are rejected"
+    (let [decoder (TickDecoder. fields 1)
+          ^Message msg (first (tick-event [[5 {"BID" 1.0}]]))]
+      (is (false? (.decode decoder msg)))
+      (.ensureCapacity decoder 5)
+      (is (.decode decoder msg))
+      (is (= 1.0 (.getDouble decoder 4 0))))))
+
+(deftest test-zero-steady-state-allocation
+  (testing "decoding a numeric tick allocates nothing once warmed up"
+    (let [decoder (TickDecoder. fields 4)
+          ^"[Lcom.bloomberglp.blpapi.Message;" msgs
+          (into-array Message (seq (tick-event (for [cid (range 1 5)]
+                                                 [cid {"BID" (+ cid 0.5) "ASK" (+ cid 0.75) "LAST_PRICE" (double cid)
+                                                       "VOLUME" (* cid 10) "TRADE_TIME" (Datetime. 2024 1 2 3 4 5 cid)}]))))
+          n (alength msgs)
+          ^com.sun.management.ThreadMXBean mx (ManagementFactory/getThreadMXBean)
+          thread-id (.getId (Thread/currentThread))
+          iterations 200000]
+      (dotimes [i iterations] (.decode decoder (aget msgs (int (rem i n)))))
+      (let [before (.getThreadAllocatedBytes mx thread-id)]
+        (dotimes [i iterations] (.decode decoder (aget msgs (int (rem i n)))))
+        (let [allocated (- (.getThreadAllocatedBytes mx thread-id) before)]
+          (is (< allocated 1024) (str allocated " bytes over " iterations " messages")))))))
+
+(deftest test-epoch-days
+  (testing "EpochDays agrees with LocalDate, before 1970 and across leap days"
+    (doseq [^LocalDate d (concat (map #(LocalDate/ofEpochDay %) (range -800 800 7))
+                                 [(LocalDate/of 1900 3 1) (LocalDate/of 2000 2 29) (LocalDate/of 2100 3 1)])]
+      (is (= (.toEpochDay d) (EpochDays/fromCivil (.getYear d) (.getMonthValue d) (.getDayOfMonth d))))
+      (is (= (.toEpochDay d) (EpochDays/of (Datetime. (.getYear d) (.getMonthValue d) (.getDayOfMonth d))))))))
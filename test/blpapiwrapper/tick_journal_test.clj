@@ -0,0 +1,159 @@
+(ns blpapiwrapper.tick-journal-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core :as core]
+            [blpapiwrapper.mktdata-fixture :refer [tick-event]])
+  (:import
+    (java.io File)
+    (java.nio.file Files)
+    (java.nio.file.attribute FileAttribute)
+    (com.bloomberglp.blpapi CorrelationID Datetime Message Name)
+    TickJournal TickJournal$Reader TickJournal$Topics TickJournal$Visitor TickJournal$Writer TickReplay TickReplay$Target
+    TickDecoder))
+
+(def fields ["BID" "ASK" "VOLUME" "TRADE_TIME" "RT_PRICING_SOURCE"])
+
+(defn- temp-dir ^File [] (.toFile (Files/createTempDirectory "ticks" (make-array FileAttribute 0))))
+
+(def topics
+  (reify TickJournal$Topics
+    (topic [_ cid] (str "T" (.value ^CorrelationID cid)))))
+
+(defn- read-journal
+  "[[:topic cid topic] [:tick cid first? {field value}] ...] of the journal in dir"
+  [dir]
+  (let [reader (TickJournal$Reader. dir)
+        records (atom [])]
+    (.read reader (reify TickJournal$Visitor
+                    (onTopic [_ cid topic] (swap! records conj [:topic cid topic]))
+                    (onTick [_ _ cid first? tick]
+                      (let [^TickJournal$Reader tick tick]
+                        (swap! records conj
+                               [:tick cid first?
+                                (into {} (for [i (range (.numValues tick)) :let [f (.field tick i) k (.kind tick i)]]
+                                           [(nth fields f)
+                                            (condp = k
+                                              TickJournal/KIND_NULL nil
+                                              TickDecoder/KIND_DOUBLE (.getDouble tick i)
+                                              TickDecoder/KIND_STRING (.getString tick i)
+                                              (.getLong tick i))]))])))))
+    @records))
+
+(deftest test-round-trip
+  (testing "ticks come back with their cids, event boundaries and typed values"
+    (let [dir (temp-dir)
+          writer (TickJournal$Writer. dir fields 4096)
+          now (System/nanoTime)]
+      (.append writer now (tick-event [[1 {"BID" 1.5 "VOLUME" 10}]
+                                       [2 {"ASK" 2.5 "RT_PRICING_SOURCE" "BGN"}]]) topics)
+      (.append writer (+ now 1000) (tick-event [[1 {"TRADE_TIME" (Datetime. 2024 1 2 3 4 5 6)}]]) topics)
+      (.close writer)
+      (is (= [[:topic 1 "T1"] [:tick 1 true {"BID" 1.5 "VOLUME" 10}]
+              [:topic 2 "T2"] [:tick 2 false {"ASK" 2.5 "RT_PRICING_SOURCE" "BGN"}]
+              [:tick 1 true {"TRADE_TIME" (+ (* 19724 86400000) (* 3 3600000) (* 4 60000) 5006)}]]
+             (read-journal dir)))
+      (let [reader (TickJournal$Reader. dir)]
+        (is (= fields (vec (.fields reader))))
+        (is (= [TickDecoder/KIND_DOUBLE TickDecoder/KIND_DOUBLE TickDecoder/KIND_LONG TickDecoder/KIND_DATETIME
+                TickDecoder/KIND_STRING]
+               (mapv #(.fieldKind reader %) (range (count fields))))))
+      (is (= 5 (.records writer)))
+      (is (thrown? java.io.IOException (TickJournal$Writer. dir fields 4096)) "an existing journal is never overwritten"))))
+
+(deftest test-segments
+  (testing "a full segment rolls over to the next one, which names its topics again"
+    (let [dir (temp-dir)
+          writer (TickJournal$Writer. dir fields 512)]
+      (doseq [i (range 100)]
+        (.append writer (System/nanoTime) (tick-event [[(mod i 3) {"BID" (double i)}]]) topics))
+      (.close writer)
+      (is (< 5 (.segments writer)))
+      (is (= (.segments writer) (count (.listFiles dir))))
+      (let [records (read-journal dir)
+            ticks (filter #(= :tick (first %)) records)]
+        (is (= (map double (range 100)) (map #(get-in % [3 "BID"]) ticks)))
+        (is (= (.segments writer) (count (filter #(= [:topic 0 "T0"] %) records))))))))
+
+(defn- journal-of
+  "Journal in a new dir of BID ticks, [[delay-nanos [[cid bid] ...]] ...]"
+  ^File [events]
+  (let [dir (temp-dir)
+        writer (TickJournal$Writer. dir fields 65536)
+        start (System/nanoTime)]
+    (doseq [[delay ticks] events]
+      (.append writer (+ start delay) (tick-event (for [[cid bid] ticks] [cid {"BID" bid}])) topics))
+    (.close writer)
+    dir))
+
+(deftest test-replay
+  (testing "replay rebuilds the events with the cids of the target, skipping unknown topics, at the recorded pace"
+    (let [dir (journal-of [[0 [[1 1.0] [2 2.0]]] [50000000 [[2 3.0] [3 4.0]]] [100000000 [[1 5.0]]]])
+          replay (TickReplay. dir)
+          events (atom [])
+          target (reify TickReplay$Target
+                   (correlationID [_ topic] ({"T1" (CorrelationID. 100) "T2" (CorrelationID. 200)} topic))
+                   (onEvent [_ event]
+                     (swap! events conj (vec (for [^Message msg event]
+                                               [(.value (.correlationID msg)) (.getElementAsFloat64 msg (Name/getName "BID"))])))))
+          start (System/nanoTime)]
+      (is (= 4 (.replay replay target 1.0)))
+      (is (<= 100 (/ (- (System/nanoTime) start) 1e6)))
+      (is (= [[[100 1.0] [200 2.0]] [[200 3.0]] [[100 5.0]]] @events))
+      (reset! events [])
+      (let [start (System/nanoTime)]
+        (.replay replay target 0.0)
+        (is (> 90 (/ (- (System/nanoTime) start) 1e6)) "speed 0 does not wait"))
+      (is (= 3 (count @events))))))
+
+(deftest test-replay-late-topics-and-stop
+  (testing "a topic the target knows of later gets its ticks from then on; stop counts only delivered messages"
+    (let [dir (journal-of [[0 [[1 1.0] [2 2.0]]] [0 [[2 3.0]]] [0 [[1 4.0] [2 5.0]]] [0 [[1 6.0]]]])
+          replay (TickReplay. dir)
+          events (atom [])
+          target (reify TickReplay$Target
+                   (correlationID [_ topic] (case topic
+                                              "T1" (CorrelationID. 100)
+                                              "T2" (when (seq @events) (CorrelationID. 200))))
+                   (onEvent [_ event]
+                     (swap! events conj (vec (for [^Message msg event]
+                                               [(.value (.correlationID msg)) (.getElementAsFloat64 msg (Name/getName "BID"))])))
+                     (when (= 2 (count @events)) (.stop replay))))]
+      (is (= 2 (.replay replay target 0.0)))
+      (is (= [[[100 1.0]] [[200 3.0]]] @events)))))
+
+(deftest test-replay-session
+  (testing "clj-bdp-subscribe on a replay-session sees the journal as live ticks"
+    (let [dir (journal-of [[0 [[0 1.0] [1 2.0]]] [1000000 [[1 3.0] [2 4.0]]]])
+          m (atom {})
+          t (core/clj-bdp-subscribe ["T0" "T1" "T3"] ["BID"] {:session (core/replay-session dir :speed 0)} m
+                                    :typed true)]
+      (.start t)
+      (loop [i 0]
+        (when (and (< i 100) (not= 3.0 (get-in @m ["T1" (Name. "BID")])))
+          (Thread/sleep 20)
+          (recur (inc i))))
+      (.interrupt t)
+      (.join t 1000)
+      (is (= {"T0" {(Name. "BID") 1.0} "T1" {(Name. "BID") 3.0}} @m)))))
+
+(deftest test-subscribe-journal
+  (testing "clj-bdp-subscribe with :journal records what it receives, under the security names"
+    (let [source (journal-of [[0 [[0 1.0] [1 2.0]]]])
+          dir (temp-dir)
+          journal (core/tick-journal dir ["BID"] :segment-bytes 4096)
+          m (atom {})
+          t (core/clj-bdp-subscribe ["T0" "T1"] ["BID"] {:session (core/replay-session source :speed 0)} m
+                                    :journal journal)]
+      (.start t)
+      (loop [i 0]
+        (when (and (< i 100) (< (count @m) 2))
+          (Thread/sleep 20)
+          (recur (inc i))))
+      (.interrupt t)
+      (.join t 1000)
+      (.close journal)
+      (let [records (atom [])]
+        (.read (TickJournal$Reader. dir)
+               (reify TickJournal$Visitor
+                 (onTopic [_ cid topic] (swap! records conj [cid topic]))
+                 (onTick [_ _ cid _ tick] (swap! records conj [cid (.getDouble ^TickJournal$Reader tick 0)]))))
+        (is (= [[0 "T0"] [0 1.0] [1 "T1"] [1 2.0]] @records))))))
@@ -0,0 +1,113 @@
+(ns blpapiwrapper.tick-stream-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core :as core])
+  (:import
+    (java.util.concurrent Flow$Subscriber)
+    SessionEmulator SessionEmulator$Options TickStream))
+
+(def ^:private securities ["A US Equity" "B US Equity" "C US Equity" "D US Equity"])
+
+(defn- wait-until [f]
+  (loop [n 0] (when (and (not (f)) (< n 400)) (Thread/sleep 5) (recur (inc n)))))
+
+(defn- stream
+  "tick-stream over an emulator in place of the local session, so that the stream stops it when closed"
+  [& opts]
+  (with-redefs [core/local-session #(:session (core/emulated-session :ticks-per-second 200 :ticks-per-event 4 :latency-ms 1))]
+    (apply core/tick-stream securities ["BID" "ASK"] nil opts)))
+
+(defn- take-n [channel n] (vec (repeatedly n #(core/take-tick! channel 2000))))
+
+(deftest test-overflow-policies
+  (testing "drop-oldest keeps the newest buffer-ticks ticks beyond what was requested"
+    (let [s (stream :overflow :drop-oldest :buffer-ticks 10)
+          channel (core/tick-channel s :demand 5)]
+      (try
+        (wait-until #(pos? (.dropped ^TickStream s)))
+        (let [stats (core/tick-stream-stats s)]
+          (is (= 5 (:delivered stats)) "no more than the demand")
+          (is (= 10 (:buffered stats)))
+          (is (pos? (:dropped stats))))
+        (let [ticks (take-n channel 20)]
+          (is (every? #(contains? (set securities) (:security %)) ticks))
+          (is (every? #(number? (get-in % [:fields :BID])) ticks)))
+        (finally (core/close-tick-stream! s)))))
+  (testing "conflate holds one tick per topic, merging what it replaces"
+    (let [s (stream :overflow :conflate)
+          channel (core/tick-channel s :demand 1)]
+      (try
+        (wait-until #(> (.conflated ^TickStream s) 100))
+        (is (<= (:buffered (core/tick-stream-stats s)) (count securities)))
+        (let [ticks (take-n channel 5)]
+          (is (= (set securities) (set (map :security (rest ticks)))))
+          (is (every? #(> (:messages %) 1) (rest ticks))))
+        (finally (core/close-tick-stream! s)))))
+  (testing "block stops reading the session instead of dropping"
+    (let [s (stream :overflow :block :buffer-ticks 5)
+          channel (core/tick-channel s :demand 2)]
+      (try
+        (wait-until #(= 5 (.buffer ^TickStream s)))
+        (Thread/sleep 100)
+        (let [stats (core/tick-stream-stats s)]
+          (is (<= (:received stats) 8) "2 delivered, 5 buffered, 1 waiting for room")
+          (is (= 0 (:dropped stats))))
+        (is (= 50 (count (filter some? (take-n channel 50)))))
+        (finally (core/close-tick-stream! s))))))
+
+(deftest test-topics-and-shutdown
+  (let [s (stream)
+        channel (core/tick-channel s)]
+    (testing "topics come and go on the live subscription"
+      (wait-until #(= 4 (count (filter #{"SubscriptionStarted"} (vals (:status (core/tick-stream-stats s)))))))
+      (core/add-topics! s ["E US Equity"])
+      (core/remove-topics! s ["A US Equity" "B US Equity"])
+      (is (= #{"C US Equity" "D US Equity" "E US Equity"} (set (.topics s))))
+      (Thread/sleep 50)
+      (loop [] (when (core/take-tick! channel 0) (recur)))
+      (let [ticks (take-n channel 40)]
+        (is (= #{"C US Equity" "D US Equity" "E US Equity"} (set (map :security ticks))))))
+    (testing "a second subscriber is refused"
+      (let [error (promise)]
+        (.subscribe s (reify Flow$Subscriber
+                        (onSubscribe [_ _])
+                        (onNext [_ _])
+                        (onError [_ e] (deliver error e))
+                        (onComplete [_])))
+        (is (instance? IllegalStateException (deref error 1000 nil)))))
+    (testing "closing unsubscribes, stops the session and completes the channel after what it holds"
+      (core/close-tick-stream! s)
+      (is (.isClosed s))
+      (is (empty? (.topics s)))
+      (let [left (take-while some? (repeatedly #(core/take-tick! channel 2000)))]
+        (is (<= (count left) 256)))
+      (is (nil? (core/take-tick! channel 10)))
+      (is (nil? (core/take-tick! channel)) "stays closed")
+      (is (thrown? IllegalStateException (core/add-topics! s ["F US Equity"]))))))
+
+(defn- failing-emulator
+  "Started SessionEmulator whose subscribe throws, counting its stop() calls in stops"
+  [stops]
+  (doto (proxy [SessionEmulator] [(SessionEmulator$Options.)]
+          (stop [] (swap! stops inc) (proxy-super stop))
+          (subscribe [& _] (throw (java.io.IOException. "subscribe failed"))))
+    (.start)))
+
+(deftest test-failed-start-closes-the-stream
+  (testing "a stream that cannot subscribe its topics is closed, and the session it started is stopped"
+    (let [stops (atom 0)]
+      (with-redefs [core/local-session (fn [] (failing-emulator stops))]
+        (is (thrown-with-msg? java.io.IOException #"subscribe failed" (core/tick-stream securities ["BID"] nil))))
+      (is (= 1 @stops)))))
+
+(deftest test-session-of-the-caller
+  (testing "closing a stream over the session of session-input leaves that session running"
+    (let [stops (atom 0)
+          session (doto (proxy [SessionEmulator] [(SessionEmulator$Options.)]
+                          (stop [] (swap! stops inc) (proxy-super stop)))
+                    (.start))
+          s (core/tick-stream securities ["BID"] {:session session})]
+      (core/close-tick-stream! s)
+      (is (.isClosed ^TickStream s))
+      (is (zero? @stops))
+      (.stop ^SessionEmulator session)
+      (is (= 1 @stops)))))
@@ -0,0 +1,49 @@
+(ns blpapiwrapper.typed-refdata-test
+  (:require [clojure.test :refer :all]
+            [cljblpapiwrapper.core :refer [bdp bdp-seq]]
+            [blpapiwrapper.refdata-fixture :refer [response-event spot-xml stand-in-engine stand-in-value stop-stand-in]])
+  (:import
+    (java.time LocalDate)
+    (com.bloomberglp.blpapi Event$EventType Message)))
+
+(def typed-spot-reader #'cljblpapiwrapper.core/typed-spot-reader)
+(def read-spot-response #'cljblpapiwrapper.core/read-spot-response)
+
+(def members-xml
+  (str "<ReferenceDataResponse><securityData><security>SPX Index</security><fieldData>"
+       "<PX_LAST>4500.25</PX_LAST><EQY_SH_OUT>123456789012</EQY_SH_OUT><LAST_UPDATE_DT>2024-01-02</LAST_UPDATE_DT>"
+       "<NAME>S&amp;P 500</NAME>"
+       "<INDX_MEMBERS><Member_Ticker_and_Exchange_Code>AAPL UW</Member_Ticker_and_Exchange_Code><Weight>7.1</Weight></INDX_MEMBERS>"
+       "<INDX_MEMBERS><Member_Ticker_and_Exchange_Code>MSFT UW</Member_Ticker_and_Exchange_Code></INDX_MEMBERS>"
+       "</fieldData></securityData></ReferenceDataResponse>"))
+
+(deftest test-typed-values
+  (testing "scalars keep their type, dates become LocalDate and bulk fields vectors of maps"
+    (let [^Message msg (first (response-event Event$EventType/RESPONSE [[1 "ReferenceDataRequest" members-xml]]))
+          fields ["PX_LAST" "EQY_SH_OUT" "LAST_UPDATE_DT" "NAME" "INDX_MEMBERS" "PX_BID"]
+          read (typed-spot-reader fields)]
+      (is (= {"SPX Index" {:PX_LAST 4500.25
+                           :EQY_SH_OUT 123456789012
+                           :LAST_UPDATE_DT (LocalDate/of 2024 1 2)
+                           :NAME "S&P 500"
+                           :INDX_MEMBERS [{:Member_Ticker_and_Exchange_Code "AAPL UW" :Weight 7.1}
+                                          {:Member_Ticker_and_Exchange_Code "MSFT UW"}]
+                           :PX_BID nil}}
+             (read msg)))
+      (is (= (read msg) (read msg)) "cached readers give the same result")
+      (is (= "4500.25" (get-in (read-spot-response msg ["PX_LAST"]) ["SPX Index" :PX_LAST]))))))
+
+(deftest test-partial-results
+  (testing "results arrive per response message, before the whole request is complete"
+    (let [engine (stand-in-engine :securities-per-message 3)
+          securities (mapv #(str "SEC" % " Equity") (range 10))
+          partials (atom [])]
+      (try
+        (let [result (bdp securities ["PX_LAST"] :session-map {:engine engine} :typed true :on-partial #(swap! partials conj %))]
+          (is (= 4 (count @partials)))
+          (is (= result (apply merge @partials)))
+          (is (= (stand-in-value "SEC3 Equity" "PX_LAST") (get-in result ["SEC3 Equity" :PX_LAST]))))
+        (let [chunks (bdp-seq securities ["PX_LAST"] :session-map {:engine engine} :securities-per-request 5)]
+          (is (= 4 (count chunks)))
+          (is (= (set securities) (set (mapcat keys chunks)))))
+        (finally (stop-stand-in engine))))))